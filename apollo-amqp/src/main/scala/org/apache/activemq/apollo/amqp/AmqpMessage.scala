@@ -26,7 +26,7 @@ import org.fusesource.hawtbuf.Buffer
 import org.fusesource.hawtbuf.AsciiBuffer
 import org.fusesource.hawtbuf.UTF8Buffer
 import org.apache.qpid.proton.amqp.{UnsignedByte, UnsignedShort, UnsignedLong, UnsignedInteger}
-import org.apache.qpid.proton.amqp.messaging.{Properties, Header}
+import org.apache.qpid.proton.amqp.messaging._
 import org.apache.qpid.proton.message.impl.MessageImpl
 
 object AmqpMessageCodecFactory extends MessageCodecFactory.Provider {
@@ -56,6 +56,9 @@ object AmqpMessageCodec extends MessageCodec {
 object AmqpMessage {
   val SENDER_CONTAINER_KEY = "sender-container"
 
+  // The priority of messages that do not set one.
+  val DEFAULT_PRIORITY = 4
+
   val prefixVendor = "JMS_AMQP_";
   val prefixDeliveryAnnotationsKey = prefixVendor+"DA_";
   val prefixMessageAnnotationsKey= prefixVendor+"MA_";
@@ -70,13 +73,88 @@ object AmqpMessage {
 }
 import AmqpMessage._
 
-class AmqpMessage(private var encoded_buffer:Buffer, private var decoded_message:org.apache.qpid.proton.message.Message=null) extends org.apache.activemq.apollo.broker.Message {
+class AmqpMessage(private var encoded_buffer:Buffer, private var decoded_message:org.apache.qpid.proton.message.Message=null) extends org.apache.activemq.apollo.broker.RetainedConversions {
 
   /**
    * The encoder/decoder of the message
    */
   def codec = AmqpMessageCodec
 
+  private var _sections:AmqpSections = _
+  private var sections_scanned = false
+
+  /**
+   * @return the section offsets of the encoded message or null if the message
+   *         has been decoded or the scanner could not make sense of it.
+   */
+  private def sections = {
+    if( !sections_scanned && decoded_message==null ) {
+      _sections = AmqpSections.scan(encoded_buffer)
+      sections_scanned = true
+    }
+    if( decoded_message==null ) _sections else null
+  }
+
+  /**
+   * @return the requested section.  Unless the message has already been
+   *         decoded, only that section of the encoded message gets decoded.
+   */
+  private def section[T](code:Int)(from_decoded: (org.apache.qpid.proton.message.Message)=>T):T = {
+    val s = sections
+    if( s!=null ) {
+      s.get(code).asInstanceOf[T]
+    } else {
+      from_decoded(decoded)
+    }
+  }
+
+  def header = section(AmqpSections.HEADER)(_.getHeader)
+  def properties = section(AmqpSections.PROPERTIES)(_.getProperties)
+  def delivery_annotations = section(AmqpSections.DELIVERY_ANNOTATIONS)(_.getDeliveryAnnotations)
+  def message_annotations = section(AmqpSections.MESSAGE_ANNOTATIONS)(_.getMessageAnnotations)
+  def application_properties = section(AmqpSections.APPLICATION_PROPERTIES)(_.getApplicationProperties)
+  def footer = section(AmqpSections.FOOTER)(_.getFooter)
+
+  /**
+   * @return a copy of the message with the entry added to its footer.  Only
+   *         the footer section gets re-encoded when the message has not
+   *         already been decoded.
+   */
+  def with_footer_entry(key:AnyRef, value:AnyRef):AmqpMessage = {
+    val s = sections
+    if( s!=null ) {
+      val map = new java.util.HashMap[AnyRef,AnyRef]
+      val current = s.get(AmqpSections.FOOTER).asInstanceOf[Footer]
+      if( current!=null ) {
+        map.putAll(current.getValue.asInstanceOf[java.util.Map[AnyRef,AnyRef]])
+      }
+      map.put(key, value)
+      val encoded_footer = AmqpSections.encode(new Footer(map))
+
+      // The footer is always the last section.
+      val prefix = if( current!=null ) {
+        s.offset(AmqpSections.FOOTER) - encoded_buffer.offset
+      } else {
+        encoded_buffer.length
+      }
+      val buffer = new Array[Byte](prefix + encoded_footer.length)
+      System.arraycopy(encoded_buffer.data, encoded_buffer.offset, buffer, 0, prefix)
+      System.arraycopy(encoded_footer.data, encoded_footer.offset, buffer, prefix, encoded_footer.length)
+      new AmqpMessage(new Buffer(buffer))
+    } else {
+      val dm = decoded
+      val footer_map:java.util.Map[AnyRef,AnyRef] = if( dm.getFooter == null ) {
+        val map = new java.util.HashMap[AnyRef,AnyRef]
+        dm.setFooter(new Footer(map))
+        map
+      } else {
+        dm.getFooter.getValue.asInstanceOf[java.util.Map[AnyRef,AnyRef]]
+      }
+      footer_map.put(key, value)
+      new AmqpMessage(null, dm)
+    }
+  }
+
   def decoded = {
     if( decoded_message==null ) {
       val amqp = new MessageImpl();
@@ -108,7 +186,7 @@ class AmqpMessage(private var encoded_buffer:Buffer, private var decoded_message
   }
 
 
-  override def message_group = decoded.getGroupId
+  override def message_group = getProperties[String](null)(_.getGroupId)
 
   def getBodyAs[T](toType : Class[T]): T = {
     if (toType == classOf[Buffer]) {
@@ -125,8 +203,9 @@ class AmqpMessage(private var encoded_buffer:Buffer, private var decoded_message
   }.asInstanceOf[T]
 
   def getLocalConnectionId: AnyRef = {
-    if ( decoded.getDeliveryAnnotations!=null ) {
-      decoded.getDeliveryAnnotations.getValue.get(SENDER_CONTAINER_KEY) match {
+    val annotations = delivery_annotations
+    if ( annotations!=null ) {
+      annotations.getValue.get(SENDER_CONTAINER_KEY) match {
         case x:String => x
         case _ => null
       }
@@ -136,16 +215,17 @@ class AmqpMessage(private var encoded_buffer:Buffer, private var decoded_message
   }
 
   def getApplicationProperty(name:String) = {
-    if( decoded.getApplicationProperties !=null ) {
-      decoded.getApplicationProperties.getValue.get(name).asInstanceOf[AnyRef]
+    val properties = application_properties
+    if( properties !=null ) {
+      properties.getValue.get(name).asInstanceOf[AnyRef]
     } else {
       null
     }
   }
 
   def getMessageAnnotationProperty(name:String) = {
-    if( decoded.getMessageAnnotations !=null ) {
-      var ma = decoded.getMessageAnnotations
+    val ma = message_annotations
+    if( ma !=null ) {
       var rc = ma.getValue.get(name)
       if( rc == null ) {
         rc = ma.getValue.get(org.apache.qpid.proton.amqp.Symbol.valueOf(name))
@@ -157,32 +237,36 @@ class AmqpMessage(private var encoded_buffer:Buffer, private var decoded_message
   }
 
   def getDeliveryAnnotationProperty(name:String) = {
-    if( decoded.getDeliveryAnnotations !=null ) {
-      decoded.getDeliveryAnnotations.getValue.get(name).asInstanceOf[AnyRef]
+    val annotations = delivery_annotations
+    if( annotations !=null ) {
+      annotations.getValue.get(name).asInstanceOf[AnyRef]
     } else {
       null
     }
   }
   def getFooterProperty(name:AnyRef) = {
-    if( decoded.getFooter !=null ) {
-      decoded.getFooter.getValue.get(name).asInstanceOf[AnyRef]
+    val f = footer
+    if( f !=null ) {
+      f.getValue.get(name).asInstanceOf[AnyRef]
     } else {
       null
     }
   }
 
   def getHeader[T](default:T)(func: (Header)=>T) = {
-    if( decoded.getHeader == null ) {
+    val h = header
+    if( h == null ) {
       default
     } else {
-      func(decoded.getHeader)
+      func(h)
     }
   }
   def getProperties[T](default:T)(func: (Properties)=>T) = {
-    if( decoded.getProperties == null ) {
+    val p = properties
+    if( p == null ) {
       default
     } else {
-      func(decoded.getProperties)
+      func(p)
     }
   }
 
@@ -198,7 +282,7 @@ class AmqpMessage(private var encoded_buffer:Buffer, private var decoded_message
       case "JMSDeliveryMode" =>
         getHeader[AnyRef](null)(header=> if(header.getDurable) "PERSISTENT" else "NON_PERSISTENT" )
       case "JMSPriority" =>
-        new java.lang.Integer(decoded.getPriority)
+        new java.lang.Integer(getHeader[Int](DEFAULT_PRIORITY)(x=> if(x.getPriority==null) DEFAULT_PRIORITY else x.getPriority.intValue))
       case "JMSType" =>
         getMessageAnnotationProperty("x-opt-jms-type")
       case "JMSMessageID" =>
@@ -260,8 +344,8 @@ class AmqpMessage(private var encoded_buffer:Buffer, private var decoded_message
       case _ => v
     })
 
-    if ( decoded.getHeader!=null ) {
-      val header = decoded.getHeader
+    val header = this.header
+    if ( header!=null ) {
       if ( header.getDeliveryCount !=null ) {
         rc.put("header.delivery_count", new java.lang.Long(header.getDeliveryCount.longValue()))
       }
@@ -279,8 +363,8 @@ class AmqpMessage(private var encoded_buffer:Buffer, private var decoded_message
       }
     }
 
-    if( decoded.getProperties != null ) {
-      val properties = decoded.getProperties
+    val properties = this.properties
+    if( properties != null ) {
       if ( properties.getAbsoluteExpiryTime !=null ) {
         rc.put("property.absolute_expiry_time", new java.lang.Long(properties.getAbsoluteExpiryTime.getTime()))
       }
@@ -322,30 +406,26 @@ class AmqpMessage(private var encoded_buffer:Buffer, private var decoded_message
       }
     }
 
-    if( decoded.getDeliveryAnnotations !=null ) {
-      val annotations = decoded.getDeliveryAnnotations
+    val annotations = delivery_annotations
+    if( annotations !=null ) {
       for( (k,v:AnyRef) <- annotations.getValue ) {
         rc.put("annotation."+k, convert(v))
       }
     }
 
-    if( decoded.getApplicationProperties !=null ) {
-      val properties = decoded.getApplicationProperties
-      for( (k,v:AnyRef) <- properties.getValue ) {
+    val app_properties = application_properties
+    if( app_properties !=null ) {
+      for( (k,v:AnyRef) <- app_properties.getValue ) {
         rc.put("app."+k, convert(v))
       }
     }
 
-    if( decoded.getFooter !=null ) {
-      val footer = decoded.getFooter
+    val footer = this.footer
+    if( footer !=null ) {
       for( (k,v:AnyRef) <- footer.getValue ) {
         rc.put("footer."+k, convert(v))
       }
     }
     rc
   }
-
-  def release() {}
-  def retain() {}
-  def retained(): Int = 0
 }
@@ -810,32 +810,24 @@ class AmqpProtocolHandler extends ProtocolHandler {
 
       // Update the message to attach some producer context to the footer..
       // of the message.
-      val dm = m.decoded
-      val footer_map:java.util.Map[AnyRef,AnyRef] = if( dm.getFooter == null ) {
-        val map = new java.util.HashMap[AnyRef,AnyRef]
-        dm.setFooter(new Footer(map))
-        map
-      } else {
-        dm.getFooter.getValue.asInstanceOf[java.util.Map[AnyRef,AnyRef]]
-      }
-      footer_map.put(ORIGIN, session_id)
-      val message = new AmqpMessage(null, dm)
+      val message = m.with_footer_entry(ORIGIN, session_id)
 
       val d = new Delivery
       d.message = message
       d.size = message.encoded.length
-      var decoded = message.decoded
-      if (decoded.getProperties != null) {
-        if (decoded.getProperties.getAbsoluteExpiryTime != null) {
-          d.expiration = decoded.getProperties.getAbsoluteExpiryTime.getTime
+      val properties = message.properties
+      if (properties != null) {
+        if (properties.getAbsoluteExpiryTime != null) {
+          d.expiration = properties.getAbsoluteExpiryTime.getTime
         }
       }
-      if (decoded.getHeader != null) {
-        if (decoded.getHeader.getDurable != null) {
-          d.persistent = decoded.getHeader.getDurable.booleanValue()
+      val header = message.header
+      if (header != null) {
+        if (header.getDurable != null) {
+          d.persistent = header.getDurable.booleanValue()
         }
-        if (decoded.getHeader.getDeliveryCount != null) {
-          d.redeliveries = decoded.getHeader.getDeliveryCount.shortValue()
+        if (header.getDeliveryCount != null) {
+          d.redeliveries = header.getDeliveryCount.shortValue()
         }
       }
 
@@ -1035,33 +1027,39 @@ class AmqpProtocolHandler extends ProtocolHandler {
             }
 
             val (session, apollo_delivery) = value
-            val message = if (apollo_delivery.message.codec == AmqpMessageCodec) {
-              apollo_delivery.message.asInstanceOf[AmqpMessage].decoded
-            } else {
-              val (body, content_type) = protocol_convert match {
-                case "body" => (apollo_delivery.message.getBodyAs(classOf[Buffer]), "protocol/" + apollo_delivery.message.codec.id + ";conv=body")
-                case _ => (apollo_delivery.message.encoded, "protocol/" + apollo_delivery.message.codec.id())
-              }
+            val buffer = apollo_delivery.message match {
+              case message:AmqpMessage if apollo_delivery.redeliveries == 0 =>
+                // Nothing to update, so send it as is without decoding it.
+                message.encoded
+              case _ =>
+                val message = if (apollo_delivery.message.codec == AmqpMessageCodec) {
+                  apollo_delivery.message.asInstanceOf[AmqpMessage].decoded
+                } else {
+                  val (body, content_type) = protocol_convert match {
+                    case "body" => (apollo_delivery.message.converted(org.apache.activemq.apollo.broker.Message.BODY_CONVERSION)(apollo_delivery.message.getBodyAs(classOf[Buffer])), "protocol/" + apollo_delivery.message.codec.id + ";conv=body")
+                    case _ => (apollo_delivery.message.encoded, "protocol/" + apollo_delivery.message.codec.id())
+                  }
 
-              message_id_counter += 1
+                  message_id_counter += 1
 
-              val message = new MessageImpl
-              message.setMessageId(session_id + message_id_counter)
-              message.setBody(new Data(new Binary(body.data, body.offset, body.length)))
-              message.setContentType(content_type)
-              message.setDurable(apollo_delivery.persistent)
-              if (apollo_delivery.expiration > 0) {
-                message.setExpiryTime(apollo_delivery.expiration)
-              }
-              message
-            }
+                  val message = new MessageImpl
+                  message.setMessageId(session_id + message_id_counter)
+                  message.setBody(new Data(new Binary(body.data, body.offset, body.length)))
+                  message.setContentType(content_type)
+                  message.setDurable(apollo_delivery.persistent)
+                  if (apollo_delivery.expiration > 0) {
+                    message.setExpiryTime(apollo_delivery.expiration)
+                  }
+                  message
+                }
 
-            if (apollo_delivery.redeliveries > 0) {
-              message.setDeliveryCount(apollo_delivery.redeliveries)
-              message.setFirstAcquirer(false)
-            }
+                if (apollo_delivery.redeliveries > 0) {
+                  message.setDeliveryCount(apollo_delivery.redeliveries)
+                  message.setFirstAcquirer(false)
+                }
 
-            val buffer = new AmqpMessage(null, message).encoded;
+                new AmqpMessage(null, message).encoded
+            }
             val proton_delivery = if (presettle) {
               sender.delivery(EMPTY_BYTE_ARRAY, 0, 0).asInstanceOf[DeliveryImpl];
             } else {
@@ -0,0 +1,203 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.activemq.apollo.amqp
+
+import org.fusesource.hawtbuf.Buffer
+import org.apache.qpid.proton.codec.{AMQPDefinedTypes, EncoderImpl, DecoderImpl}
+import java.nio.{BufferOverflowException, ByteBuffer}
+
+object AmqpSections {
+
+  // The descriptor codes of the message sections.
+  val HEADER = 0x70
+  val DELIVERY_ANNOTATIONS = 0x71
+  val MESSAGE_ANNOTATIONS = 0x72
+  val PROPERTIES = 0x73
+  val APPLICATION_PROPERTIES = 0x74
+  val DATA = 0x75
+  val AMQP_SEQUENCE = 0x76
+  val AMQP_VALUE = 0x77
+  val FOOTER = 0x78
+
+  private val SYMBOLIC_DESCRIPTORS = Map(
+    "amqp:header:list" -> HEADER,
+    "amqp:delivery-annotations:map" -> DELIVERY_ANNOTATIONS,
+    "amqp:message-annotations:map" -> MESSAGE_ANNOTATIONS,
+    "amqp:properties:list" -> PROPERTIES,
+    "amqp:application-properties:map" -> APPLICATION_PROPERTIES,
+    "amqp:data:binary" -> DATA,
+    "amqp:amqp-sequence:list" -> AMQP_SEQUENCE,
+    "amqp:amqp-value:*" -> AMQP_VALUE,
+    "amqp:footer:map" -> FOOTER
+  )
+
+  class Codec {
+    val decoder = new DecoderImpl
+    val encoder = new EncoderImpl(decoder)
+    AMQPDefinedTypes.registerAllTypes(decoder, encoder)
+  }
+
+  private val codecs = new ThreadLocal[Codec] {
+    override def initialValue = new Codec
+  }
+
+  /**
+   * Finds where each section of an encoded message starts without
+   * decoding any of them.
+   *
+   * @return null if the buffer does not look like a sequence of
+   *         message sections.
+   */
+  def scan(buffer:Buffer):AmqpSections = {
+    val data = buffer.data
+    val end = buffer.offset + buffer.length
+    val offsets = Array.fill(FOOTER - HEADER + 1)(-1)
+    var pos = buffer.offset
+    try {
+      while( pos < end ) {
+        if( data(pos) != 0 ) {
+          return null
+        }
+        val code = descriptor(data, pos+1)
+        if( code < HEADER || code > FOOTER ) {
+          return null
+        }
+        offsets(code - HEADER) = pos
+        pos = skip(data, pos)
+      }
+    } catch {
+      case e:ArrayIndexOutOfBoundsException => return null
+    }
+    if( pos != end ) {
+      return null
+    }
+    new AmqpSections(buffer, offsets)
+  }
+
+  /**
+   * @return the numeric code of the descriptor at `pos` or -1 if
+   *         it is not one of the message section descriptors.
+   */
+  private def descriptor(data:Array[Byte], pos:Int):Int = {
+    (data(pos) & 0xFF) match {
+      case 0x53 =>
+        data(pos+1) & 0xFF
+      case 0x80 =>
+        if( read_int(data, pos+1) == 0 ) read_int(data, pos+5) else -1
+      case 0xA3 =>
+        val len = data(pos+1) & 0xFF
+        SYMBOLIC_DESCRIPTORS.getOrElse(new String(data, pos+2, len, "US-ASCII"), -1)
+      case 0xB3 =>
+        val len = read_int(data, pos+1)
+        SYMBOLIC_DESCRIPTORS.getOrElse(new String(data, pos+5, len, "US-ASCII"), -1)
+      case _ =>
+        -1
+    }
+  }
+
+  /**
+   * @return the position just past the encoded value at `pos`.
+   */
+  private def skip(data:Array[Byte], pos:Int):Int = {
+    val code = data(pos) & 0xFF
+    val next = pos + 1
+    if( code == 0x00 ) {
+      // A described value: skip the descriptor and then the value.
+      skip(data, skip(data, next))
+    } else {
+      (code >> 4) match {
+        case 0x4 => next
+        case 0x5 => next + 1
+        case 0x6 => next + 2
+        case 0x7 => next + 4
+        case 0x8 => next + 8
+        case 0x9 => next + 16
+        case 0xA | 0xC | 0xE => next + 1 + (data(next) & 0xFF)
+        case 0xB | 0xD | 0xF => next + 4 + read_int(data, next)
+        case _ => throw new ArrayIndexOutOfBoundsException("invalid type code: "+code)
+      }
+    }
+  }
+
+  private def read_int(data:Array[Byte], pos:Int) = {
+    ((data(pos) & 0xFF) << 24) | ((data(pos+1) & 0xFF) << 16) | ((data(pos+2) & 0xFF) << 8) | (data(pos+3) & 0xFF)
+  }
+
+  /**
+   * @return the encoding of the AMQP value.
+   */
+  def encode(value:AnyRef):Buffer = {
+    val encoder = codecs.get.encoder
+    var size = 256
+    while( true ) {
+      val bytes = new Array[Byte](size)
+      val buffer = ByteBuffer.wrap(bytes)
+      encoder.setByteBuffer(buffer)
+      try {
+        encoder.writeObject(value)
+        return new Buffer(bytes, 0, buffer.position())
+      } catch {
+        case e:BufferOverflowException =>
+          size *= 2
+      } finally {
+        encoder.setByteBuffer(null)
+      }
+    }
+    null
+  }
+
+  private def decode(data:Array[Byte], offset:Int, length:Int):AnyRef = {
+    val decoder = codecs.get.decoder
+    decoder.setByteBuffer(ByteBuffer.wrap(data, offset, length))
+    try {
+      decoder.readObject()
+    } finally {
+      decoder.setByteBuffer(null)
+    }
+  }
+}
+
+/**
+ * Knows where the sections of an encoded AMQP message start so that
+ * a section can be decoded on its own.  That way looking at the header or
+ * properties of a message does not also decode its body.
+ */
+class AmqpSections(val buffer:Buffer, offsets:Array[Int]) {
+  import AmqpSections._
+
+  private val decoded = new Array[AnyRef](offsets.length)
+
+  def has(code:Int) = offsets(code - HEADER) >= 0
+
+  /**
+   * @return the offset in the buffer's data where the section starts
+   *         or -1 if the message does not have the section.
+   */
+  def offset(code:Int) = offsets(code - HEADER)
+
+  /**
+   * @return the decoded section or null if the message does not have it.
+   */
+  def get(code:Int):AnyRef = {
+    val i = code - HEADER
+    if( decoded(i) == null && offsets(i) >= 0 ) {
+      val start = offsets(i)
+      decoded(i) = decode(buffer.data, start, buffer.offset + buffer.length - start)
+    }
+    decoded(i)
+  }
+}
@@ -0,0 +1,77 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.activemq.apollo.amqp.test
+
+import org.apache.activemq.apollo.amqp.AmqpMessage
+import org.apache.activemq.apollo.util.FunSuiteSupport
+import org.scalatest.matchers.ShouldMatchers
+import org.apache.qpid.proton.amqp.{Symbol => AmqpSymbol, Binary}
+import org.apache.qpid.proton.amqp.messaging.{Data, ApplicationProperties}
+import org.apache.qpid.proton.message.impl.MessageImpl
+import org.fusesource.hawtbuf.ByteArrayOutputStream
+
+class AmqpMessageTest extends FunSuiteSupport with ShouldMatchers {
+
+  val ORIGIN = AmqpSymbol.valueOf("origin")
+
+  def sample(body:Boolean=true) = {
+    val properties = new java.util.HashMap[AnyRef, AnyRef]()
+    properties.put("color", "red")
+    val message = new MessageImpl
+    message.setDurable(true)
+    message.setPriority(7.toShort)
+    message.setGroupId("group-1")
+    message.setSubject("hello")
+    message.setApplicationProperties(new ApplicationProperties(properties))
+    if( body ) {
+      message.setBody(new Data(new Binary(new Array[Byte](1024))))
+    }
+    new AmqpMessage(null, message).encoded
+  }
+
+  test("sections are read from the encoded message") {
+    val message = new AmqpMessage(sample())
+    message.getProperty("color") should be("red")
+    message.getProperty("JMSPriority") should be(new java.lang.Integer(7))
+    message.getProperty("JMSDeliveryMode") should be("PERSISTENT")
+    message.getProperty("JMSXGroupID") should be("group-1")
+    message.message_group should be("group-1")
+  }
+
+  test("the body is not decoded to read the properties") {
+    // An amqp-value section holding a list whose element is truncated.
+    val out = new ByteArrayOutputStream()
+    val properties = sample(false)
+    out.write(properties.data, properties.offset, properties.length)
+    out.write(Array[Byte](0x00, 0x53, 0x77, 0xC0.toByte, 0x03, 0x01, 0xFF.toByte, 0xFF.toByte))
+    val message = new AmqpMessage(out.toBuffer)
+    message.getProperty("color") should be("red")
+    message.message_group should be("group-1")
+  }
+
+  test("footer entries are appended to the encoded message") {
+    var message = new AmqpMessage(sample()).with_footer_entry(ORIGIN, "session-1")
+    message.getFooterProperty(ORIGIN) should be("session-1")
+
+    message = new AmqpMessage(message.encoded).with_footer_entry("hops", "2")
+    val decoded = new AmqpMessage(message.encoded).decoded
+    decoded.getFooter.getValue.get(ORIGIN) should be("session-1")
+    decoded.getFooter.getValue.get("hops") should be("2")
+    decoded.getSubject should be("hello")
+    decoded.getBody.asInstanceOf[Data].getValue.getLength should be(1024)
+  }
+}
@@ -443,6 +443,9 @@ class BDBClient(store: BDBStore) {
               group.expiration = entry.expiration.min(group.expiration)
             }
           }
+          if( entry.redeliveries > group.redeliveries ) {
+            group.redeliveries = entry.redeliveries
+          }
 
           if( group.count == limit) {
             rc += group
@@ -53,6 +53,8 @@ class BDBStore(var config:BDBStoreDTO) extends DelayingStoreSupport {
   override def toString = "bdb store at "+config.directory
 
   def flush_delay = config.flush_delay.getOrElse(500)
+
+  override protected def adaptive_flush_delay = config.adaptive_flush_delay.getOrElse(false)
   
   protected def get_next_msg_key = next_msg_key.getAndIncrement
 
@@ -153,6 +155,9 @@ class BDBStore(var config:BDBStoreDTO) extends DelayingStoreSupport {
   }
 
   def remove_queue(queueKey: Long)(callback: (Boolean) => Unit) = {
+    dispatch_queue {
+      flush_delay_advisor.remove(queueKey)
+    }
     write_executor {
       client.removeQueue(queueKey,^{ callback(true) })
     }
@@ -0,0 +1,79 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.activemq.apollo.benchmarks;
+
+import java.util.HashMap;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.activemq.apollo.amqp.AmqpMessage;
+import org.apache.activemq.apollo.filter.BooleanExpression;
+import org.apache.activemq.apollo.selector.SelectorParser;
+import org.apache.qpid.proton.amqp.Binary;
+import org.apache.qpid.proton.amqp.messaging.ApplicationProperties;
+import org.apache.qpid.proton.amqp.messaging.Data;
+import org.apache.qpid.proton.message.impl.MessageImpl;
+import org.fusesource.hawtbuf.Buffer;
+import org.openjdk.jmh.annotations.*;
+
+/**
+ * Measures routing encoded AMQP messages with a selector on one of their
+ * application properties, the way a queue does for messages it loads
+ * from the store.  The sections benchmark only decodes the sections the
+ * selector needs, the decoded one decodes the whole message first.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class AmqpSelectorBenchmark {
+
+    @Param({"1024", "1048576"})
+    public int body_size;
+
+    private BooleanExpression selector;
+    private Buffer encoded;
+
+    @Setup
+    public void setup() throws Exception {
+        selector = SelectorParser.parse("region = 'emea'");
+
+        HashMap<Object, Object> properties = new HashMap<Object, Object>();
+        properties.put("region", "emea");
+        properties.put("priority_class", Integer.valueOf(3));
+
+        MessageImpl message = new MessageImpl();
+        message.setDurable(true);
+        message.setGroupId("group-1");
+        message.setApplicationProperties(new ApplicationProperties(properties));
+        message.setBody(new Data(new Binary(new byte[body_size])));
+        encoded = new AmqpMessage(null, message).encoded();
+    }
+
+    @Benchmark
+    public boolean sections() throws Exception {
+        return selector.matches(new AmqpMessage(encoded, null));
+    }
+
+    @Benchmark
+    public boolean decoded() throws Exception {
+        AmqpMessage message = new AmqpMessage(encoded, null);
+        message.decoded();
+        return selector.matches(message);
+    }
+}
@@ -0,0 +1,58 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.activemq.apollo.benchmarks;
+
+import java.io.File;
+import java.net.URISyntaxException;
+import java.security.CodeSource;
+import java.util.ArrayList;
+import java.util.Arrays;
+
+/**
+ * Runs the JMH benchmarks.  Unless the -rf or -rff options are given,
+ * the results are also written in JSON to jmh-result.json in the
+ * benchmarks module's target directory, no matter which directory the
+ * benchmarks are run from, so that they can be compared against the
+ * results of earlier builds.
+ */
+public class BenchmarkMain {
+
+    public static void main(String[] args) throws Exception {
+        ArrayList<String> options = new ArrayList<String>(Arrays.asList(args));
+        if (!options.contains("-rf")) {
+            options.add("-rf");
+            options.add("json");
+        }
+        if (!options.contains("-rff")) {
+            options.add("-rff");
+            options.add(new File(targetDirectory(), "jmh-result.json").getPath());
+        }
+        org.openjdk.jmh.Main.main(options.toArray(new String[options.size()]));
+    }
+
+    /**
+     * @return the directory holding the benchmarks jar, or the compiled
+     *         classes when not run from the jar.
+     */
+    static File targetDirectory() throws URISyntaxException {
+        CodeSource source = BenchmarkMain.class.getProtectionDomain().getCodeSource();
+        if (source == null || source.getLocation() == null) {
+            return new File("target");
+        }
+        return new File(source.getLocation().toURI()).getParentFile();
+    }
+}
@@ -0,0 +1,64 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.activemq.apollo.benchmarks;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.*;
+
+/**
+ * Measures how fast messages get forwarded by a STOMP bridge between
+ * two brokers running in the same JVM, with varying in flight windows
+ * and ack batch sizes.  A window of 1 forwards one message at a time.
+ * Each operation is one message sent to the source broker and received
+ * from the target broker.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class BridgeBenchmark {
+
+    public static final int MESSAGES = 1000;
+
+    @Param({"1", "100", "1000"})
+    public int window;
+
+    @Param({"1", "100"})
+    public int ack_batch;
+
+    private BridgeFixture fixture;
+
+    @Setup
+    public void setup() {
+        fixture = new BridgeFixture(window, ack_batch, MESSAGES);
+        fixture.start();
+    }
+
+    @TearDown
+    public void tearDown() {
+        fixture.stop();
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(MESSAGES)
+    public void forward() throws Exception {
+        fixture.transfer();
+    }
+}
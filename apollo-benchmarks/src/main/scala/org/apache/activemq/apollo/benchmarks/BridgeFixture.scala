@@ -0,0 +1,110 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.activemq.apollo.benchmarks
+
+import org.apache.activemq.apollo.broker._
+import org.apache.activemq.apollo.broker.network.{BridgeInfo, StompBridgingStrategy, NetworkManager}
+import org.apache.activemq.apollo.dto.AcceptingConnectorDTO
+import org.apache.activemq.apollo.util.ServiceControl
+import org.fusesource.hawtdispatch._
+import org.fusesource.hawtbuf.Buffer._
+import org.fusesource.stomp.client.Stomp
+import org.fusesource.stomp.client.Constants._
+import org.fusesource.stomp.codec.StompFrame
+import java.net.InetSocketAddress
+
+/**
+ * Starts two embedded brokers with a STOMP bridge forwarding a queue
+ * from the first one to the second one.  Messages get sent to the first
+ * broker and received from the second one over tcp.
+ */
+class BridgeFixture(window:Int, ack_batch:Int, message_count:Int) {
+
+  val destination = ascii("/queue/bridge-benchmark")
+  val body = ascii("Hello World: 0123456789 0123456789 0123456789 0123456789")
+
+  def create_broker = {
+    val rc = new Broker()
+    rc.config.connectors.clear()
+    rc.config.connectors.add({
+      val connector = new AcceptingConnectorDTO
+      connector.id = "tcp"
+      connector.bind = "tcp://127.0.0.1:0"
+      connector
+    })
+    rc
+  }
+
+  val source = create_broker
+  val target = create_broker
+
+  def uri(broker:Broker) = {
+    val address = broker.connectors("tcp").asInstanceOf[AcceptingConnector].socket_address.asInstanceOf[InetSocketAddress]
+    "tcp://127.0.0.1:"+address.getPort
+  }
+
+  val manager = new NetworkManager(source)
+  manager.config.bridge_window = window
+  manager.config.bridge_ack_batch = ack_batch
+  val strategy = new StompBridgingStrategy(manager)
+  var bridge:BridgeInfo = _
+
+  var producer:org.fusesource.stomp.client.BlockingConnection = _
+  var consumer:org.fusesource.stomp.client.BlockingConnection = _
+
+  def start = {
+    ServiceControl.start(source, "starting the source broker")
+    ServiceControl.start(target, "starting the target broker")
+    bridge = BridgeInfo(uri(source), uri(target), "queue", "bridge-benchmark")
+    manager.dispatch_queue {
+      strategy.deploy(bridge)
+    }
+
+    producer = new Stomp(uri(source)).connectBlocking()
+    consumer = new Stomp(uri(target)).connectBlocking()
+    val subscribe = new StompFrame(SUBSCRIBE)
+    subscribe.addHeader(ID, ascii("1"))
+    subscribe.addHeader(DESTINATION, destination)
+    consumer.send(subscribe)
+  }
+
+  def stop = {
+    producer.close()
+    consumer.close()
+    manager.dispatch_queue {
+      strategy.undeploy(bridge)
+    }
+    ServiceControl.stop(source, "stopping the source broker")
+    ServiceControl.stop(target, "stopping the target broker")
+  }
+
+  /**
+   * Sends a batch of messages to the source broker and waits for them
+   * to all arrive at the target broker.
+   */
+  def transfer = {
+    for( i <- 0 until message_count ) {
+      val frame = new StompFrame(SEND)
+      frame.addHeader(DESTINATION, destination)
+      frame.content(body)
+      producer.send(frame)
+    }
+    for( i <- 0 until message_count ) {
+      consumer.receive()
+    }
+  }
+}
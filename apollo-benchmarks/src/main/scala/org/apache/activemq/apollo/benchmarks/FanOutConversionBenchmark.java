@@ -0,0 +1,84 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.activemq.apollo.benchmarks;
+
+import java.util.concurrent.TimeUnit;
+
+import org.apache.activemq.apollo.openwire.OpenwireMessage;
+import org.apache.activemq.apollo.openwire.OpenwireMessageCodec$;
+import org.apache.activemq.apollo.openwire.command.ActiveMQQueue;
+import org.apache.activemq.apollo.openwire.command.ActiveMQTextMessage;
+import org.apache.activemq.apollo.openwire.command.MessageId;
+import org.apache.activemq.apollo.openwire.command.ProducerId;
+import org.fusesource.hawtbuf.Buffer;
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.infra.Blackhole;
+
+/**
+ * Measures handing one published message to many consumers which all
+ * need it in the same encoded form, with and without sharing the
+ * conversion through the message.  Every operation is one message
+ * delivered to all the consumers.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class FanOutConversionBenchmark {
+
+    @Param({"1", "100", "1000"})
+    public int consumers;
+
+    @Param({"true", "false"})
+    public boolean cached;
+
+    private ProducerId producer;
+    private long sequence;
+
+    @Setup
+    public void setup() {
+        producer = new ProducerId("ID:benchmark-1:1:1");
+    }
+
+    private OpenwireMessage publish() {
+        ActiveMQTextMessage message = new ActiveMQTextMessage();
+        message.setProducerId(producer);
+        message.setMessageId(new MessageId(producer, ++sequence));
+        message.setDestination(new ActiveMQQueue("benchmark"));
+        message.setTimestamp(System.currentTimeMillis());
+        message.setProperty("region", "emea");
+        message.setText("Hello World: 0123456789 0123456789 0123456789 0123456789");
+        return new OpenwireMessage(message);
+    }
+
+    @Benchmark
+    public void deliver(Blackhole bh) {
+        OpenwireMessage message = publish();
+        for (int i = 0; i < consumers; i++) {
+            Buffer encoded;
+            if (cached) {
+                encoded = message.encoded();
+            } else {
+                encoded = OpenwireMessageCodec$.MODULE$.encode(message).buffer();
+            }
+            bh.consume(encoded);
+        }
+        message.release();
+    }
+}
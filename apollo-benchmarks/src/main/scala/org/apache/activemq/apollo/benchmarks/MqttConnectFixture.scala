@@ -0,0 +1,125 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.activemq.apollo.benchmarks
+
+import org.apache.activemq.apollo.broker._
+import org.apache.activemq.apollo.broker.store.leveldb.dto.LevelDBStoreDTO
+import org.apache.activemq.apollo.broker.transport.TransportFactory
+import org.apache.activemq.apollo.dto.AcceptingConnectorDTO
+import org.apache.activemq.apollo.util.ServiceControl
+import org.apache.activemq.apollo.util.FileSupport._
+import org.fusesource.hawtdispatch._
+import org.fusesource.hawtdispatch.transport.{TransportListener, Transport}
+import org.fusesource.hawtbuf.UTF8Buffer
+import org.fusesource.mqtt.codec._
+import java.util.concurrent.{TimeUnit, CountDownLatch}
+import java.io.{File, IOException}
+
+/**
+ * Starts an embedded broker which only accepts MQTT connections over
+ * the vm transport, optionally storing sessions in a LevelDB store,
+ * and has a number of clients with persistent sessions connect to
+ * it all at once.
+ */
+class MqttConnectFixture(clients:Int, persistent:Boolean) {
+
+  val broker = new Broker()
+  broker.config.connectors.clear()
+  broker.config.connectors.add({
+    val rc = new AcceptingConnectorDTO
+    rc.id = "vm"
+    rc.bind = "vm://mqtt-benchmark"
+    rc.protocol = "mqtt"
+    rc
+  })
+
+  val directory = if( persistent ) {
+    val rc = File.createTempFile("mqtt-sessions", ".benchmark")
+    rc.delete()
+    rc.mkdirs()
+    val store = new LevelDBStoreDTO
+    store.directory = rc
+    broker.config.virtual_hosts.get(0).store = store
+    rc
+  } else {
+    null
+  }
+
+  class Client(id:String) extends TransportListener {
+    val queue = createQueue(id)
+    val connect_frame = new CONNECT().clientId(new UTF8Buffer(id)).cleanSession(false).encode()
+    var transport:Transport = _
+    var connected:CountDownLatch = _
+
+    def onTransportConnected = {}
+    def onTransportDisconnected = {}
+    def onTransportFailure(error: IOException) = error.printStackTrace()
+    def onRefill = {}
+
+    def onTransportCommand(command: AnyRef) = {
+      if( command.asInstanceOf[MQTTFrame].messageType == CONNACK.TYPE ) {
+        connected.countDown()
+      }
+    }
+
+    def connect(done:CountDownLatch) = {
+      connected = done
+      transport = TransportFactory.connect("vm://mqtt-benchmark?create=false")
+      transport.setProtocolCodec(new MQTTProtocolCodec)
+      transport.setDispatchQueue(queue)
+      transport.setTransportListener(this)
+      transport.start(^{
+        transport.offer(connect_frame)
+      })
+    }
+
+    def disconnect(done:CountDownLatch) = queue {
+      transport.offer(new DISCONNECT().encode())
+      transport.stop(^{ done.countDown() })
+    }
+  }
+
+  val all = (0 until clients).map(i => new Client("benchmark-"+i))
+
+  def start = ServiceControl.start(broker, "starting the benchmark broker")
+
+  def stop = {
+    ServiceControl.stop(broker, "stopping the benchmark broker")
+    if( directory!=null ) {
+      directory.recursive_delete
+    }
+  }
+
+  private def await(latch:CountDownLatch, what:String) = {
+    if( !latch.await(1, TimeUnit.MINUTES) ) {
+      throw new IllegalStateException("timed out waiting for the clients to "+what)
+    }
+  }
+
+  /**
+   * Connects all the clients at once, waits for their sessions to
+   * be attached and then disconnects them again.
+   */
+  def storm = {
+    val connected = new CountDownLatch(clients)
+    all.foreach(_.connect(connected))
+    await(connected, "connect")
+    val disconnected = new CountDownLatch(clients)
+    all.foreach(_.disconnect(disconnected))
+    await(disconnected, "disconnect")
+  }
+}
@@ -0,0 +1,65 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.activemq.apollo.benchmarks;
+
+import java.util.concurrent.TimeUnit;
+
+import org.apache.activemq.apollo.mqtt.MqttSessionManager;
+import org.openjdk.jmh.annotations.*;
+
+/**
+ * Measures how fast a storm of MQTT clients with persistent sessions
+ * can connect to an embedded broker over the vm transport, with the
+ * session manager spread over a varying number of shards.  Each
+ * operation is one client connecting.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class MqttConnectStormBenchmark {
+
+    public static final int CLIENTS = 1000;
+
+    @Param({"1", "8"})
+    public int shards;
+
+    @Param({"false", "true"})
+    public boolean persistent;
+
+    private MqttConnectFixture fixture;
+
+    @Setup
+    public void setup() {
+        MqttSessionManager.SHARDS = shards;
+        fixture = new MqttConnectFixture(CLIENTS, persistent);
+        fixture.start();
+    }
+
+    @TearDown
+    public void tearDown() {
+        fixture.stop();
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(CLIENTS)
+    public void connect() {
+        fixture.storm();
+    }
+}
@@ -0,0 +1,74 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.activemq.apollo.benchmarks;
+
+import java.util.concurrent.TimeUnit;
+
+import org.apache.activemq.apollo.openwire.codec.OpenWireFormat;
+import org.apache.activemq.apollo.openwire.command.ActiveMQQueue;
+import org.apache.activemq.apollo.openwire.command.ActiveMQTextMessage;
+import org.apache.activemq.apollo.openwire.command.MessageId;
+import org.apache.activemq.apollo.openwire.command.ProducerId;
+import org.fusesource.hawtbuf.Buffer;
+import org.openjdk.jmh.annotations.*;
+
+/**
+ * Measures marshaling and unmarshaling an OpenWire text message.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class OpenWireFormatBenchmark {
+
+    @Param({"true", "false"})
+    public boolean tight_encoding;
+
+    private OpenWireFormat format;
+    private Buffer marshaled;
+
+    @Setup
+    public void setup() throws Exception {
+        format = new OpenWireFormat();
+        format.setCacheEnabled(false);
+        format.setTightEncodingEnabled(tight_encoding);
+
+        ProducerId producer = new ProducerId("ID:benchmark-1:1:1");
+        ActiveMQTextMessage message = new ActiveMQTextMessage();
+        message.setProducerId(producer);
+        message.setMessageId(new MessageId(producer, 1));
+        message.setDestination(new ActiveMQQueue("benchmark"));
+        message.setPersistent(true);
+        message.setTimestamp(System.currentTimeMillis());
+        message.setProperty("region", "emea");
+        message.setProperty("priority_class", Integer.valueOf(3));
+        message.setText("Hello World: 0123456789 0123456789 0123456789 0123456789");
+        marshaled = format.marshal(message);
+    }
+
+    @Benchmark
+    public Object unmarshal() throws Exception {
+        return format.unmarshal(marshaled);
+    }
+
+    @Benchmark
+    public Buffer unmarshal_marshal() throws Exception {
+        return format.marshal(format.unmarshal(marshaled));
+    }
+}
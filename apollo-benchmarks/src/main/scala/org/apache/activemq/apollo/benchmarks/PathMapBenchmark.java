@@ -0,0 +1,96 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.activemq.apollo.benchmarks;
+
+import java.util.concurrent.TimeUnit;
+
+import org.apache.activemq.apollo.util.path.Path;
+import org.apache.activemq.apollo.util.path.PathMap;
+import org.apache.activemq.apollo.util.path.PathParser;
+import org.openjdk.jmh.annotations.*;
+
+/**
+ * Measures looking up the values matching a concrete destination path in a
+ * PathMap holding a mix of literal and wildcard paths, like the router
+ * does for every destination lookup.  Since the lookups repeat, most of
+ * them are answered by the PathMap's cache of concrete path matches,
+ * except for the uncached benchmark which changes the map before every lookup.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class PathMapBenchmark {
+
+    @Param({"100", "10000"})
+    public int entries;
+
+    @Param({"false", "true"})
+    public boolean compiled;
+
+    private PathMap<String> map;
+    private Path[] lookups;
+    private int next;
+
+    @Setup
+    public void setup() {
+        PathParser parser = new PathParser();
+        map = new PathMap<String>(compiled);
+        // the router enables the cache on its destination maps.
+        map.cacheLimit_$eq(1024 * 10);
+        for (int i = 0; i < entries; i++) {
+            String region = "region" + (i % 10);
+            String name;
+            switch (i % 4) {
+                case 0:
+                    name = "orders." + region + ".store" + i;
+                    break;
+                case 1:
+                    name = "orders." + region + ".*";
+                    break;
+                case 2:
+                    name = "orders.*.store" + i;
+                    break;
+                default:
+                    name = "orders." + region + ".**";
+                    break;
+            }
+            map.put(parser.decode_path(name), "value" + i);
+        }
+        lookups = new Path[1024];
+        for (int i = 0; i < lookups.length; i++) {
+            lookups[i] = parser.decode_path("orders.region" + (i % 10) + ".store" + (i * 7 % entries));
+        }
+    }
+
+    @Benchmark
+    public int get() {
+        Path path = lookups[next++ & (lookups.length - 1)];
+        return map.get(path).size();
+    }
+
+    @Benchmark
+    public int uncached() {
+        Path path = lookups[next++ & (lookups.length - 1)];
+        map.put(path, "uncached");
+        int rc = map.get(path).size();
+        map.remove(path, "uncached");
+        return rc;
+    }
+}
@@ -0,0 +1,62 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.activemq.apollo.benchmarks;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.*;
+
+/**
+ * Measures a queue dispatching entries to consumers which ack them right
+ * away, without any protocol or transport overhead.  Run it with the gc
+ * profiler (-prof gc) to see how many bytes get allocated per message.
+ * The entry dispatch loop itself does not allocate, but every message
+ * still allocates its queue entry and delivery copy on enqueue, and a
+ * delivery copy and an AcquiredQueueEntry when a consumer acquires it.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class QueueEntryDispatchBenchmark {
+
+    public static final int BATCH = 100;
+
+    @Param({"1", "4"})
+    public int consumers;
+
+    private QueueEntryDispatchFixture fixture;
+
+    @Setup
+    public void setup() {
+        fixture = new QueueEntryDispatchFixture(consumers);
+        fixture.start();
+    }
+
+    @TearDown
+    public void tearDown() {
+        fixture.stop();
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(BATCH)
+    public void transfer() {
+        fixture.transfer(BATCH);
+    }
+}
@@ -0,0 +1,145 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.activemq.apollo.benchmarks
+
+import org.apache.activemq.apollo.broker._
+import org.apache.activemq.apollo.broker.protocol.RawMessage
+import org.apache.activemq.apollo.util.ServiceControl
+import org.fusesource.hawtdispatch._
+import org.fusesource.hawtbuf.Buffer._
+import java.util.concurrent.{TimeUnit, CountDownLatch}
+
+/**
+ * Starts an embedded broker without any connectors and wires a producer
+ * and a number of auto acking consumers directly to one of its queues, so
+ * that the work the queue does to dispatch an entry can be measured without
+ * any protocol or transport code getting in the way.
+ */
+class QueueEntryDispatchFixture(consumer_count:Int) {
+
+  val broker = new Broker()
+  broker.config.connectors.clear()
+
+  val producer_queue = createQueue("benchmark producer")
+  val message = RawMessage(ascii("x" * 256))
+
+  var queue:Queue = _
+  var session:DeliverySession = _
+
+  // Only accessed from the queue's dispatch queue.
+  var received = 0L
+  var target = 0L
+  var done:CountDownLatch = _
+
+  object producer extends DeliveryProducer {
+    def dispatch_queue = producer_queue
+  }
+
+  class Consumer extends AbstractRetainedDeliveryConsumer {
+    def dispatch_queue = queue.dispatch_queue
+    def matches(message:Delivery) = true
+    def is_persistent = false
+    def connect(p:DeliveryProducer) = new ConsumerSession(p, this)
+  }
+
+  // Acks each delivery as soon as the queue offers it.
+  class ConsumerSession(val producer:DeliveryProducer, val consumer:DeliveryConsumer) extends DeliverySession {
+    var refiller:Task = NOOP
+    var enqueue_item_counter = 0L
+    var enqueue_size_counter = 0L
+    var enqueue_ts = 0L
+    def remaining_capacity = Integer.MAX_VALUE
+    def full = false
+    def close = {}
+
+    def offer(delivery:Delivery) = {
+      enqueue_item_counter += 1
+      enqueue_size_counter += delivery.size
+      delivery.ack(Consumed, null)
+      received += 1
+      if( received == target ) {
+        done.countDown()
+      }
+      true
+    }
+  }
+
+  def start = {
+    ServiceControl.start(broker, "starting the benchmark broker")
+    val host = broker.default_virtual_host
+    val router = host.router.asInstanceOf[LocalRouter]
+    val created = new CountDownLatch(1)
+    host.dispatch_queue {
+      queue = router.local_queue_domain.get_or_create_destination(SimpleAddress("queue:benchmark"), null).success
+      created.countDown()
+    }
+    created.await()
+
+    val bound = new CountDownLatch(1)
+    queue.bind((1 to consumer_count).map(x=> new Consumer).toList, ()=>{ bound.countDown() })
+    bound.await()
+
+    val connected = new CountDownLatch(1)
+    producer_queue {
+      session = queue.connect(producer)
+      connected.countDown()
+    }
+    connected.await()
+  }
+
+  def stop = {
+    val latch = new CountDownLatch(1)
+    producer_queue {
+      session.close
+      latch.countDown()
+    }
+    latch.await()
+    ServiceControl.stop(broker, "stopping the benchmark broker")
+  }
+
+  /**
+   * Sends the number of messages to the queue and waits for the consumers
+   * to have acked all of them.
+   */
+  def transfer(count:Int) = {
+    val latch = new CountDownLatch(1)
+    queue.dispatch_queue {
+      target = received + count
+      done = latch
+      producer_queue {
+        var remaining = count
+        def fill:Unit = {
+          while( remaining > 0 && !session.full ) {
+            val delivery = new Delivery
+            delivery.message = message
+            delivery.size = message.payload.length
+            session.offer(delivery)
+            remaining -= 1
+          }
+          if( remaining == 0 ) {
+            session.refiller = NOOP
+          }
+        }
+        session.refiller = ^{ fill }
+        fill
+      }
+    }
+    if( !latch.await(1, TimeUnit.MINUTES) ) {
+      throw new IllegalStateException("timed out waiting for the messages to be dispatched")
+    }
+  }
+}
@@ -0,0 +1,68 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.activemq.apollo.benchmarks;
+
+import java.util.concurrent.TimeUnit;
+
+import org.fusesource.hawtbuf.Buffer;
+import org.openjdk.jmh.annotations.*;
+
+/**
+ * Measures appending records to and reading records back from the
+ * LevelDB store's RecordLog.  A fresh log is used for every iteration so
+ * that the appends do not fill up the disk.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class RecordLogBenchmark {
+
+    public static final int UNIT_OF_WORK = 10;
+    public static final int RECORDS = 10000;
+
+    @Param({"100", "4096"})
+    public int record_size;
+
+    private RecordLogFixture fixture;
+    private int next;
+
+    @Setup(Level.Iteration)
+    public void setup() {
+        fixture = new RecordLogFixture(record_size);
+        fixture.open();
+        fixture.fill(RECORDS);
+    }
+
+    @TearDown(Level.Iteration)
+    public void tearDown() {
+        fixture.close();
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(UNIT_OF_WORK)
+    public long append() {
+        return fixture.append(UNIT_OF_WORK);
+    }
+
+    @Benchmark
+    public Buffer read() {
+        return fixture.read(next++);
+    }
+}
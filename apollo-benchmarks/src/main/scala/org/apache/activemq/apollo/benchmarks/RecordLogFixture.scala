@@ -0,0 +1,78 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.activemq.apollo.benchmarks
+
+import org.apache.activemq.apollo.broker.store.leveldb.RecordLog
+import org.apache.activemq.apollo.util.FileSupport._
+import org.fusesource.hawtbuf.Buffer
+import java.io.File
+
+/**
+ * Manages a RecordLog in a temporary directory which gets deleted
+ * once the log is closed.
+ */
+class RecordLogFixture(record_size:Int) {
+
+  val directory = {
+    val rc = File.createTempFile("record-log", ".benchmark")
+    rc.delete()
+    rc.mkdirs()
+    rc
+  }
+
+  val log = RecordLog(directory, ".log")
+  val record = new Buffer(Array.fill[Byte](record_size)('x'.toByte))
+  var positions = Array[Long]()
+
+  def open = log.open
+
+  def close = {
+    log.close
+    directory.recursive_delete
+  }
+
+  /**
+   * Appends the number of records in a single unit of work.
+   * @return the position of the last record appended.
+   */
+  def append(count:Int):Long = {
+    log.appender { appender =>
+      var rc = 0L
+      var i = 0
+      while( i < count ) {
+        rc = appender.append(1, record)._1
+        i += 1
+      }
+      rc
+    }
+  }
+
+  /**
+   * Appends the number of records so that they can be read back
+   * using the read method.
+   */
+  def fill(count:Int) = {
+    positions = new Array[Long](count)
+    var i = 0
+    while( i < count ) {
+      positions(i) = log.appender(_.append(1, record)._1)
+      i += 1
+    }
+  }
+
+  def read(i:Int):Buffer = log.read(positions(i % positions.length), record_size)
+}
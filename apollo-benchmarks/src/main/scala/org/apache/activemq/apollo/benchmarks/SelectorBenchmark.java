@@ -0,0 +1,98 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.activemq.apollo.benchmarks;
+
+import java.util.HashMap;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.activemq.apollo.filter.BooleanExpression;
+import org.apache.activemq.apollo.filter.ExpressionCompiler;
+import org.apache.activemq.apollo.filter.FilterException;
+import org.apache.activemq.apollo.filter.Filterable;
+import org.apache.activemq.apollo.selector.SelectorParser;
+import org.openjdk.jmh.annotations.*;
+
+/**
+ * Compares evaluating selectors with the interpreted expression tree
+ * against the compiled evaluators.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class SelectorBenchmark {
+
+    @Param({
+        "region = 'emea'",
+        "region IN ('apac', 'amer', 'emea') AND priority_class > 2",
+        "(price >= 10.5 AND price < 100) OR symbol LIKE 'IBM%'",
+        "region = 'emea' AND priority_class BETWEEN 1 AND 5 AND NOT (discounted = TRUE)"
+    })
+    public String selector;
+
+    private BooleanExpression interpreted;
+    private BooleanExpression compiled;
+    private Filterable message;
+
+    static class Message implements Filterable {
+        final HashMap<String, Object> properties = new HashMap<String, Object>();
+
+        public <T> T getBodyAs(Class<T> type) throws FilterException {
+            return null;
+        }
+
+        public Object getProperty(String name) {
+            return properties.get(name);
+        }
+
+        public Object getLocalConnectionId() {
+            return null;
+        }
+    }
+
+    @Setup
+    public void setup() throws Exception {
+        boolean compile = SelectorParser.isCompile();
+        try {
+            SelectorParser.setCompile(false);
+            interpreted = SelectorParser.parse(selector);
+        } finally {
+            SelectorParser.setCompile(compile);
+        }
+        compiled = ExpressionCompiler.compile(interpreted);
+
+        Message m = new Message();
+        m.properties.put("region", "emea");
+        m.properties.put("priority_class", Integer.valueOf(3));
+        m.properties.put("price", Double.valueOf(42.25));
+        m.properties.put("symbol", "IBM.N");
+        m.properties.put("discounted", Boolean.FALSE);
+        message = m;
+    }
+
+    @Benchmark
+    public boolean interpreted() throws Exception {
+        return interpreted.matches(message);
+    }
+
+    @Benchmark
+    public boolean compiled() throws Exception {
+        return compiled.matches(message);
+    }
+}
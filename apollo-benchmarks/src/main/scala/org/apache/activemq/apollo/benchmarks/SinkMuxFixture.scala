@@ -0,0 +1,113 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.activemq.apollo.benchmarks
+
+import org.apache.activemq.apollo.broker._
+import org.fusesource.hawtdispatch._
+import java.util.concurrent.{TimeUnit, CountDownLatch}
+
+/**
+ * Wires a producer dispatch queue to a consumer dispatch queue through a
+ * SessionSinkMux session and a CreditWindowFilter, the same way a
+ * subscription's deliveries flow to a protocol connection, so that the
+ * cost of the credit based flow control can be measured.
+ */
+class SinkMuxFixture(window:Int) {
+
+  val producer_queue = createQueue("benchmark producer")
+  val consumer_queue = createQueue("benchmark consumer")
+
+  var received = 0L
+  var target = 0L
+  var done:CountDownLatch = _
+
+  object DeliverySizer extends Sizer[(Session[Delivery], Delivery)] {
+    def size(value: (Session[Delivery], Delivery)) = value._2.size
+  }
+
+  // The consumer end acknowledges each delivery right away which returns
+  // the credit to both the credit window and the session.
+  val consumer_sink:Sink[(Session[Delivery], Delivery)] = new Sink[(Session[Delivery], Delivery)] {
+    var refiller:Task = NOOP
+    def full = false
+    def offer(value: (Session[Delivery], Delivery)) = {
+      val (session, delivery) = value
+      credit_window.credit(1, delivery.size)
+      mux.delivered(session, delivery.size)
+      received += 1
+      if( received == target ) {
+        done.countDown()
+      }
+      true
+    }
+  }
+
+  val credit_window = new CreditWindowFilter[(Session[Delivery], Delivery)](consumer_sink, DeliverySizer)
+  credit_window.credit(window, window*1024)
+
+  val mux = new SessionSinkMux[Delivery](credit_window, consumer_queue, Delivery, window, window*1024)
+
+  val message_size = 256
+  var session:SessionSink[Delivery] = _
+
+  def open = {
+    val latch = new CountDownLatch(1)
+    producer_queue {
+      session = mux.open(producer_queue)
+      latch.countDown()
+    }
+    latch.await()
+  }
+
+  def close = {
+    val latch = new CountDownLatch(1)
+    producer_queue {
+      mux.close(session, (x:Delivery)=>{})
+      latch.countDown()
+    }
+    latch.await()
+  }
+
+  /**
+   * Sends the number of deliveries through the session and waits for
+   * all of them to have been received by the consumer.
+   */
+  def transfer(count:Int):Unit = {
+    val latch = new CountDownLatch(1)
+    consumer_queue {
+      target = received + count
+      done = latch
+      producer_queue {
+        var remaining = count
+        def fill:Unit = {
+          while( remaining > 0 && !session.full ) {
+            val delivery = new Delivery
+            delivery.size = message_size
+            session.offer(delivery)
+            remaining -= 1
+          }
+          if( remaining == 0 ) {
+            session.refiller = NOOP
+          }
+        }
+        session.refiller = ^{ fill }
+        fill
+      }
+    }
+    latch.await(1, TimeUnit.MINUTES)
+  }
+}
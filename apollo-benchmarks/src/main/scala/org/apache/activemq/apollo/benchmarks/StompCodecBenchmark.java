@@ -0,0 +1,67 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.activemq.apollo.benchmarks;
+
+import java.util.concurrent.TimeUnit;
+
+import org.apache.activemq.apollo.stomp.StompFrame;
+import org.apache.activemq.apollo.stomp.StompFrameMessage;
+import org.openjdk.jmh.annotations.*;
+
+/**
+ * Measures decoding, routing and encoding STOMP SEND frames.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class StompCodecBenchmark {
+
+    @Param({"5", "20"})
+    public int headers;
+
+    private StompFixture fixture;
+    private StompFrameMessage message;
+
+    @Setup
+    public void setup() {
+        fixture = new StompFixture(headers);
+        message = fixture.route(fixture.decode());
+    }
+
+    @Benchmark
+    public StompFrame decode() {
+        return fixture.decode();
+    }
+
+    @Benchmark
+    public Object store_encode() {
+        return fixture.store_encode(message);
+    }
+
+    @Benchmark
+    public int deliver_encode() {
+        return fixture.deliver_encode(message);
+    }
+
+    @Benchmark
+    public int decode_route_encode() {
+        return fixture.deliver_encode(fixture.route(fixture.decode()));
+    }
+}
@@ -0,0 +1,85 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.activemq.apollo.benchmarks
+
+import org.apache.activemq.apollo.stomp._
+import org.fusesource.hawtbuf.{DataByteArrayOutputStream, Buffer}
+import org.fusesource.hawtbuf.Buffer._
+import Stomp._
+
+/**
+ * Builds a STOMP SEND frame with the requested number of headers and
+ * takes it through the same steps the STOMP protocol handler does when
+ * the frame is received, routed to a queue and then delivered.
+ */
+class StompFixture(header_count:Int) {
+
+  val frame_data:Buffer = {
+    val rc = new StringBuilder
+    rc.append("SEND\n")
+    rc.append("destination:/queue/benchmark\n")
+    rc.append("content-type:text/plain\n")
+    rc.append("persistent:true\n")
+    for( i <- 3 until header_count ) {
+      rc.append("header-"+i+":value-"+i+"\n")
+    }
+    rc.append("\n")
+    rc.append("Hello World: 0123456789 0123456789 0123456789 0123456789")
+    rc.append("\u0000")
+    ascii(rc.toString)
+  }
+
+  val codec = new StompCodec
+  val message_id = ascii("ID:benchmark-1:1")
+  val subscription_id = ascii("sub-1")
+  val out = new DataByteArrayOutputStream(frame_data.length*2)
+
+  /**
+   * Decodes the SEND frame as it would be received.
+   */
+  def decode:StompFrame = StompCodec.decode_frame(new Buffer(frame_data))
+
+  /**
+   * Converts a SEND frame into the message that gets routed, like
+   * StompProtocolHandler.send_via_route does, and looks up a header the
+   * way a selector would.
+   */
+  def route(frame:StompFrame):StompFrameMessage = {
+    val updated = new StompHeaders(1, true)
+    if( frame.header(MESSAGE_ID) == null ) {
+      updated.add(MESSAGE_ID, message_id)
+    }
+    val message = StompFrameMessage(StompFrame(MESSAGE, frame.headers, frame.content, frame.contiguous, updated))
+    message.getProperty("header-"+(header_count/2))
+    message
+  }
+
+  /**
+   * Encodes the message for the store.
+   */
+  def store_encode(message:StompFrameMessage):Buffer = StompCodec.encode(message).buffer
+
+  /**
+   * Encodes the message as it is delivered to a subscription.
+   */
+  def deliver_encode(message:StompFrameMessage):Int = {
+    val frame = message.frame.append_header(SUBSCRIPTION, subscription_id)
+    out.reset()
+    codec.encode(frame, out)
+    out.position()
+  }
+}
@@ -0,0 +1,164 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.activemq.apollo.benchmarks
+
+import org.apache.activemq.apollo.broker._
+import org.apache.activemq.apollo.broker.transport.TransportFactory
+import org.apache.activemq.apollo.dto.AcceptingConnectorDTO
+import org.apache.activemq.apollo.stomp._
+import org.apache.activemq.apollo.util.ServiceControl
+import org.fusesource.hawtdispatch._
+import org.fusesource.hawtdispatch.transport.{TransportListener, Transport}
+import org.fusesource.hawtbuf.Buffer._
+import java.util.concurrent.{TimeUnit, CountDownLatch}
+import java.io.IOException
+import Stomp._
+
+/**
+ * Starts an embedded broker which only accepts STOMP connections over
+ * the vm transport and connects a producer and an auto acking consumer
+ * of a queue to it, so that the cost of enqueuing a message and
+ * dispatching it to the consumer can be measured without any sockets
+ * getting in the way.
+ */
+class VMQueueFixture(message_size:Int) {
+
+  val broker = new Broker()
+  broker.config.connectors.clear()
+  broker.config.connectors.add({
+    val rc = new AcceptingConnectorDTO
+    rc.id = "vm"
+    rc.bind = "vm://benchmark"
+    rc.protocol = "stomp"
+    rc
+  })
+
+  val body = ascii("x" * message_size)
+
+  class Client(name:String) extends TransportListener {
+    val queue = createQueue(name)
+    var transport:Transport = _
+    var received = 0L
+    var target = 0L
+    var done:CountDownLatch = _
+    var pending = 0
+    var on_refill:Task = NOOP
+
+    def onTransportConnected = {}
+    def onTransportDisconnected = {}
+    def onTransportFailure(error: IOException) = error.printStackTrace()
+    def onRefill = on_refill.run()
+
+    def onTransportCommand(command: AnyRef) = {
+      val frame = command.asInstanceOf[StompFrame]
+      if( frame.action == ERROR ) {
+        println("Unexpected error frame: "+frame)
+      }
+      received += 1
+      if( received == target ) {
+        done.countDown()
+      }
+    }
+
+    /**
+     * Sends the frames and waits for the number of frames to be received.
+     */
+    def request(frames:Seq[StompFrame], expected:Long) = {
+      val latch = new CountDownLatch(1)
+      queue {
+        target = received + expected
+        done = latch
+        var remaining = frames
+        def fill:Unit = {
+          while( !remaining.isEmpty && !transport.full ) {
+            transport.offer(remaining.head)
+            remaining = remaining.tail
+          }
+          if( remaining.isEmpty ) {
+            on_refill = NOOP
+          }
+        }
+        on_refill = ^{ fill }
+        fill
+        if( expected == 0 ) {
+          latch.countDown()
+        }
+      }
+      if( !latch.await(1, TimeUnit.MINUTES) ) {
+        throw new IllegalStateException(name+" timed out waiting for a response")
+      }
+    }
+
+    def start = {
+      transport = TransportFactory.connect("vm://benchmark?create=false")
+      transport.setProtocolCodec(new StompCodec)
+      transport.setDispatchQueue(queue)
+      transport.setTransportListener(this)
+      val latch = new CountDownLatch(1)
+      transport.start(^{ latch.countDown() })
+      latch.await()
+      request(Seq(StompFrame(CONNECT, StompHeaders(ACCEPT_VERSION->V1_2, HOST->ascii("localhost")))), 1)
+    }
+
+    def stop = {
+      val latch = new CountDownLatch(1)
+      queue {
+        transport.stop(^{ latch.countDown() })
+      }
+      latch.await()
+    }
+  }
+
+  val producer = new Client("benchmark producer")
+  val consumer = new Client("benchmark consumer")
+
+  val send_frame = StompFrame(SEND, StompHeaders(DESTINATION->ascii("/queue/benchmark")), BufferContent(body))
+
+  def start = {
+    ServiceControl.start(broker, "starting the benchmark broker")
+    producer.start
+    consumer.start
+    consumer.request(Seq(StompFrame(SUBSCRIBE, StompHeaders(
+      ID->ascii("0"),
+      DESTINATION->ascii("/queue/benchmark"),
+      ACK_HEADER->ACK_MODE_AUTO,
+      RECEIPT_REQUESTED->ascii("subscribed")
+    ))), 1)
+  }
+
+  def stop = {
+    producer.stop
+    consumer.stop
+    ServiceControl.stop(broker, "stopping the benchmark broker")
+  }
+
+  /**
+   * Sends the number of messages to the queue and waits for the consumer
+   * to have received all of them.
+   */
+  def transfer(count:Int) = {
+    val latch = new CountDownLatch(1)
+    consumer.queue {
+      consumer.target = consumer.received + count
+      consumer.done = latch
+    }
+    producer.request(Seq.fill(count)(send_frame), 0)
+    if( !latch.await(1, TimeUnit.MINUTES) ) {
+      throw new IllegalStateException("timed out waiting for the messages to be dispatched")
+    }
+  }
+}
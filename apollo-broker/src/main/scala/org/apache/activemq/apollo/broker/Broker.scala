@@ -184,14 +184,18 @@ object Broker extends Log {
   XPathExpression.XPATH_EVALUATOR_FACTORY = new XPathExpression.XPathEvaluatorFactory {
     def create(xpath: String): XPathExpression.XPathEvaluator = {
       new XalanXPathEvaluator(xpath) {
-        override def evaluate(m: Filterable): Boolean = {
+        override def body(m: Filterable): AnyRef = {
           val body: Buffer = m.getBodyAs(classOf[Buffer])
           if (body != null) {
-            evaluate(new InputSource(new BufferInputStream(body)))
+            body
           } else {
-            super.evaluate(m)
+            super.body(m)
           }
         }
+        override def source(body: AnyRef): InputSource = body match {
+          case body:Buffer => new InputSource(new BufferInputStream(body))
+          case _ => super.source(body)
+        }
       }
     }
   }
@@ -505,6 +509,8 @@ class Broker() extends BaseService with SecuredResource with PluginStateSupport
 
     SecurityFactory.install(this)
 
+    Message.conversion_cache_limit = Option(config.conversion_cache_limit).map(MemoryPropertyEditor.parse(_).toInt).getOrElse(Message.DEFAULT_CONVERSION_CACHE_LIMIT)
+
     val host_config_by_id = HashMap[AsciiBuffer, VirtualHostDTO]()
     config.virtual_hosts.foreach{ value =>
       host_config_by_id += ascii(value.id) -> value
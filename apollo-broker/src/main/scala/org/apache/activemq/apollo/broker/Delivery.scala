@@ -21,7 +21,7 @@ import org.fusesource.hawtbuf._
 import org.apache.activemq.apollo.filter.Filterable
 import org.apache.activemq.apollo.broker.store.StoreUOW
 import org.apache.activemq.apollo.util.Log
-import java.util.concurrent.atomic.AtomicReference
+import java.util.concurrent.atomic.{AtomicInteger, AtomicReference}
 import org.apache.activemq.apollo.broker.protocol.MessageCodec
 
 object DeliveryProducer extends Log
@@ -109,6 +109,24 @@ trait DeliverySession extends SessionSink[Delivery] {
 }
 
 
+object Message {
+  /**
+   * The conversion key of the message body converted to a Buffer.
+   */
+  val BODY_CONVERSION = "body"
+
+  val DEFAULT_CONVERSION_CACHE_LIMIT = 1024*64
+
+  /**
+   * The most bytes of converted forms a message keeps, set from the
+   * broker's `conversion_cache_limit`.  The older forms get dropped to
+   * make room for a new one, and the latest one is kept even if it is
+   * larger than the limit.
+   */
+  @volatile
+  var conversion_cache_limit = DEFAULT_CONVERSION_CACHE_LIMIT
+}
+
 /**
  * Abstracts wire protocol message implementations.  Each wire protocol
  * will provide it's own type of Message.
@@ -124,9 +142,82 @@ trait Message extends Filterable with Retained {
 
   def headers_as_json = new java.util.HashMap[String, Object]()
 
-  def encoded:Buffer = codec.encode(this).buffer
+  def encoded:Buffer = converted(codec)(codec.encode(this).buffer)
 
   def message_group: String = null
+
+  // The forms the message has been converted to, keyed by conversion.
+  @volatile
+  private var conversions:List[(AnyRef, Buffer)] = Nil
+
+  /**
+   * Converts the message once per kind of conversion.  Topic fan-out
+   * hands the same message to consumers on many connections, and the
+   * ones that need it in the same form share the first conversion
+   * instead of each converting it again.  The converted buffers must
+   * not be modified.
+   *
+   * The latest converted form is always kept, along with the most
+   * recent older ones that fit within Message.conversion_cache_limit
+   * bytes.  They are dropped once the message is released by its last
+   * holder.
+   *
+   * @param key identifies the conversion, for example the codec the
+   *            message is encoded with.
+   */
+  def converted(key:AnyRef)(convert: =>Buffer):Buffer = {
+    var cur = conversions
+    while( !cur.isEmpty ) {
+      if( cur.head._1 == key ) {
+        return cur.head._2
+      }
+      cur = cur.tail
+    }
+    val rc = convert
+    if( rc!=null ) {
+      this.synchronized {
+        if( !conversions.exists(_._1 == key) ) {
+          // Drop the oldest forms that no longer fit next to the new one.
+          val limit = Message.conversion_cache_limit
+          var size = rc.length
+          val kept = conversions.takeWhile { x =>
+            size += x._2.length
+            size <= limit
+          }
+          conversions = (key, rc) :: kept
+        }
+      }
+    }
+    rc
+  }
+
+  /**
+   * Drops the converted forms of the message.  Called once the
+   * message is released by its last holder.
+   */
+  def clear_conversions:Unit = this.synchronized {
+    conversions = Nil
+  }
+}
+
+/**
+ * Retain counting for messages whose wire format does not track it
+ * already.  The converted forms of the message are dropped when the
+ * count returns to zero.
+ */
+trait RetainedConversions extends Message {
+
+  private val retain_count = new AtomicInteger()
+
+  def retained():Int = retain_count.get
+
+  def retain():Unit = retain_count.incrementAndGet()
+
+  def release():Unit = {
+    if( retain_count.decrementAndGet() == 0 ) {
+      clear_conversions
+    }
+  }
 }
 
 /**
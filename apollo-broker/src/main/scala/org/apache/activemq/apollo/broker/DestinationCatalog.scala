@@ -0,0 +1,380 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.activemq.apollo.broker
+
+import java.util.{Comparator, TreeSet, NavigableSet, LinkedHashMap, ArrayList, Iterator => JIterator}
+import java.util.concurrent.ConcurrentLinkedQueue
+import java.util.concurrent.atomic.AtomicBoolean
+import java.util.regex.Pattern
+import org.apache.activemq.apollo.dto.{DataPageDTO, DestMetricsDTO}
+
+object DestinationCatalog {
+
+  case class Column(name:String, value:(DestMetricsDTO)=>Long)
+
+  /**
+   * The destination metrics kept in the catalog.  Every column is indexed.
+   */
+  val COLUMNS = Array[Column](
+    Column("queue_items", _.queue_items),
+    Column("queue_size", _.queue_size),
+    Column("producer_count", _.producer_count),
+    Column("consumer_count", _.consumer_count),
+    Column("enqueue_item_counter", _.enqueue_item_counter),
+    Column("enqueue_size_counter", _.enqueue_size_counter),
+    Column("enqueue_ts", _.enqueue_ts),
+    Column("dequeue_item_counter", _.dequeue_item_counter),
+    Column("dequeue_size_counter", _.dequeue_size_counter),
+    Column("dequeue_ts", _.dequeue_ts),
+    Column("nack_item_counter", _.nack_item_counter),
+    Column("expired_item_counter", _.expired_item_counter)
+  )
+
+  // pseudo columns used in queries.
+  final val ID = -1
+  final val NONE = -2
+
+  private val COLUMN_BY_FIELD = Map(COLUMNS.zipWithIndex.map { case (column, i) => ("metrics."+column.name, i) }:_*) + ("id"->ID)
+
+  private val AND = Pattern.compile("""\s+(?i:AND)\s+""")
+  private val COMPARISON = Pattern.compile("""\s*([\w\.]+)\s*(<=|>=|<>|!=|=|<|>)\s*(-?\d+)\s*""")
+  private val ID_LIKE = Pattern.compile("""\s*id\s+(?i:LIKE)\s+"([^"]*)"\s*""")
+  private val ID_EQUALS = Pattern.compile("""\s*id\s*=\s*"([^"]*)"\s*""")
+  private val ORDER = Pattern.compile("""\s*([\w\.]+)(?:\s+((?i:ASC|DESC)))?\s*""")
+
+  sealed trait Filter {
+    def matches(row:DestinationCatalog#Row, values:Array[Long]):Boolean
+  }
+
+  case class Comparison(column:Int, op:String, value:Long) extends Filter {
+    def matches(row:DestinationCatalog#Row, values:Array[Long]) = {
+      val v = values(column)
+      op match {
+        case "=" => v == value
+        case "<" => v < value
+        case "<=" => v <= value
+        case ">" => v > value
+        case ">=" => v >= value
+        case _ => v != value
+      }
+    }
+  }
+
+  case class IdMatch(pattern:Pattern) extends Filter {
+    def matches(row:DestinationCatalog#Row, values:Array[Long]) = pattern.matcher(row.id).matches()
+  }
+
+  case class Query(headers:Seq[String], fields:Array[Int], filters:List[Filter], order:Int, descending:Boolean)
+
+  /**
+   * Parses the field, where clause and order by parameters of a REST
+   * listing into a catalog query.  Only the queries that can be answered
+   * from the catalog are supported: `id` and `metrics.*` column fields,
+   * a where clause made of `AND`ed comparisons of a column against an
+   * integer or of the id against a string, and a single order by column.
+   *
+   * @return the query or None if it has to be run against the full status
+   *         of the destinations.
+   */
+  def parse(fields:Seq[String], where:String, order:Seq[String]):Option[Query] = {
+    if( fields.isEmpty || order.size > 1 ) {
+      return None
+    }
+    val columns = fields.map(x => COLUMN_BY_FIELD.get(x.trim).getOrElse(return None)).toArray
+
+    var filters = List[Filter]()
+    if( where!=null && where.trim.length > 0 ) {
+      for( clause <- AND.split(where.trim) ) {
+        val comparison = COMPARISON.matcher(clause)
+        val like = ID_LIKE.matcher(clause)
+        val equals = ID_EQUALS.matcher(clause)
+        if( comparison.matches() ) {
+          val column = COLUMN_BY_FIELD.get(comparison.group(1)).getOrElse(return None)
+          if( column == ID ) {
+            return None
+          }
+          filters ::= Comparison(column, comparison.group(2), comparison.group(3).toLong)
+        } else if( like.matches() ) {
+          filters ::= IdMatch(like_pattern(like.group(1)))
+        } else if( equals.matches() ) {
+          filters ::= IdMatch(Pattern.compile(Pattern.quote(equals.group(1))))
+        } else {
+          return None
+        }
+      }
+    }
+
+    var order_column = NONE
+    var descending = false
+    for( o <- order.headOption ) {
+      val matcher = ORDER.matcher(o)
+      if( !matcher.matches() ) {
+        return None
+      }
+      order_column = COLUMN_BY_FIELD.get(matcher.group(1)).getOrElse(return None)
+      descending = "DESC".equalsIgnoreCase(matcher.group(2))
+    }
+    Some(Query(fields, columns, filters.reverse, order_column, descending))
+  }
+
+  private def like_pattern(like:String) = {
+    val rc = new StringBuilder
+    for( c <- like ) {
+      c match {
+        case '%' => rc.append(".*")
+        case '_' => rc.append(".")
+        case _ => rc.append(Pattern.quote(c.toString))
+      }
+    }
+    Pattern.compile(rc.toString)
+  }
+}
+
+/**
+ * A compact table of the metrics of the destinations in a domain that
+ * the REST listings page through.  The destinations periodically push
+ * a snapshot of their metrics into their row, and every column is kept
+ * sorted in an index so that listing, filtering and sorting the
+ * destinations does not have to visit the destinations themselves.
+ *
+ * The rows are updated from the destination threads without locking, each
+ * update publishes a new snapshot of the row's values and queues the row
+ * to get re-keyed.  The indexes are only touched under the catalog lock: a
+ * query first re-keys the rows whose snapshot changed since they were last
+ * indexed, then walks the index of its order or filter column.  The
+ * destinations are authorized outside of the lock.
+ */
+class DestinationCatalog {
+  import DestinationCatalog._
+
+  class Row(val id:String, val destination:DomainDestination, val seq:Long) {
+
+    /**
+     * The latest snapshot of the metrics, never modified once published.
+     */
+    @volatile
+    var values = new Array[Long](COLUMNS.length)
+
+    // the snapshot the indexes are currently keyed by, guarded by the catalog lock.
+    private[DestinationCatalog] var indexed = values
+    private[DestinationCatalog] var listed = false
+    private[DestinationCatalog] val dirty = new AtomicBoolean(false)
+
+    /**
+     * Replaces the row's values with the ones in the metrics snapshot.
+     */
+    def update(metrics:DestMetricsDTO):Unit = {
+      val current = values
+      var changed = false
+      val rc = new Array[Long](COLUMNS.length)
+      var i = 0
+      while( i < COLUMNS.length ) {
+        rc(i) = COLUMNS(i).value(metrics)
+        changed |= rc(i) != current(i)
+        i += 1
+      }
+      if( changed ) {
+        values = rc
+        if( dirty.compareAndSet(false, true) ) {
+          dirty_rows.add(this)
+        }
+      }
+    }
+  }
+
+  private def compare(x:Long, y:Long) = if( x < y ) -1 else if( x > y ) 1 else 0
+
+  private def column_order(column:Int) = new Comparator[Row] {
+    def compare(a:Row, b:Row):Int = {
+      val rc = DestinationCatalog.this.compare(a.indexed(column), b.indexed(column))
+      if( rc != 0 ) rc else DestinationCatalog.this.compare(a.seq, b.seq)
+    }
+  }
+
+  private val id_order = new Comparator[Row] {
+    def compare(a:Row, b:Row):Int = {
+      val rc = a.id.compareTo(b.id)
+      if( rc != 0 ) rc else DestinationCatalog.this.compare(a.seq, b.seq)
+    }
+  }
+
+  // the rows in the order the destinations were added.
+  private val rows = new LinkedHashMap[String, Row]()
+  private val id_index = new TreeSet[Row](id_order)
+  private val indexes = Array.tabulate(COLUMNS.length)(i => new TreeSet[Row](column_order(i)))
+  private var next_seq = 0L
+
+  // the rows which published a new snapshot since they were last re-keyed.
+  private val dirty_rows = new ConcurrentLinkedQueue[Row]()
+
+  def size = synchronized { rows.size }
+
+  def add(id:String, destination:DomainDestination):Row = synchronized {
+    val row = new Row(id, destination, next_seq)
+    next_seq += 1
+    val previous = rows.put(row.id, row)
+    if( previous!=null ) {
+      unindex(previous)
+    }
+    row.listed = true
+    id_index.add(row)
+    indexes.foreach(_.add(row))
+    row
+  }
+
+  def remove(row:Row):Unit = synchronized {
+    // the id may have been taken over by a newer row.
+    if( row.listed ) {
+      rows.remove(row.id)
+      unindex(row)
+    }
+  }
+
+  private def unindex(row:Row) = {
+    row.listed = false
+    id_index.remove(row)
+    indexes.foreach(_.remove(row))
+  }
+
+  /**
+   * Re-keys the indexes of the rows which published a new snapshot.  Only
+   * the indexes of the changed columns need to be re-sorted.
+   */
+  private def reindex:Unit = {
+    var row = dirty_rows.poll()
+    while( row!=null ) {
+      // clear the flag first so that a concurrent update queues the row again.
+      row.dirty.set(false)
+      val values = row.values
+      if( row.listed && (values ne row.indexed) ) {
+        var i = 0
+        while( i < COLUMNS.length ) {
+          if( values(i) != row.indexed(i) ) {
+            indexes(i).remove(row)
+          }
+          i += 1
+        }
+        val previous = row.indexed
+        row.indexed = values
+        i = 0
+        while( i < COLUMNS.length ) {
+          if( values(i) != previous(i) ) {
+            indexes(i).add(row)
+          }
+          i += 1
+        }
+      }
+      row = dirty_rows.poll()
+    }
+  }
+
+  private def probe(column:Int, value:Long, seq:Long) = {
+    val rc = new Row(null, null, seq)
+    rc.indexed = new Array[Long](COLUMNS.length)
+    rc.indexed(column) = value
+    rc
+  }
+
+  /**
+   * @return the rows of the index which could pass the comparison.
+   */
+  private def range(comparison:Comparison):NavigableSet[Row] = {
+    val index = indexes(comparison.column)
+    val value = comparison.value
+    def low = probe(comparison.column, value, Long.MinValue)
+    def high = probe(comparison.column, value, Long.MaxValue)
+    comparison.op match {
+      case "=" => index.subSet(low, true, high, true)
+      case "<" => index.headSet(low, false)
+      case "<=" => index.headSet(high, true)
+      case ">" => index.tailSet(high, false)
+      case ">=" => index.tailSet(low, true)
+      case _ => index
+    }
+  }
+
+  private def candidates(query:Query):JIterator[Row] = {
+    def iterator(set:NavigableSet[Row]) = if( query.descending ) set.descendingIterator() else set.iterator()
+    val narrowing = query.filters.collect { case x:Comparison if x.op!="!=" && x.op!="<>" => x }
+    query.order match {
+      case ID =>
+        iterator(id_index)
+      case NONE =>
+        narrowing.headOption match {
+          case Some(comparison) => range(comparison).iterator()
+          case None => rows.values().iterator()
+        }
+      case column =>
+        narrowing.find(_.column == column) match {
+          case Some(comparison) => iterator(range(comparison))
+          case None => iterator(indexes(column))
+        }
+    }
+  }
+
+  // A row along with the values it was indexed with.
+  private case class Match(row:Row, values:Array[Long])
+
+  /**
+   * Runs the query against the catalog.
+   *
+   * @param visible filters out the destinations the caller is not allowed to see.
+   * @return the requested page of the matching rows.
+   */
+  def page(query:Query, page:Int, page_size:Int, visible:(Row)=>Boolean):DataPageDTO = {
+    // the matches come out of the index already in the requested order.
+    val matches = new ArrayList[Match]()
+    synchronized {
+      reindex
+      val i = candidates(query)
+      while( i.hasNext ) {
+        val row = i.next()
+        val values = row.indexed
+        if( query.filters.forall(_.matches(row, values)) ) {
+          matches.add(Match(row, values))
+        }
+      }
+    }
+
+    val result = new ArrayList[java.util.List[AnyRef]]()
+    val start = page.toLong * page_size
+    var total = 0L
+    val i = matches.iterator()
+    while( i.hasNext ) {
+      val m = i.next()
+      if( visible(m.row) ) {
+        if( total >= start && result.size < page_size ) {
+          val values = new ArrayList[AnyRef](query.fields.length)
+          for( field <- query.fields ) {
+            values.add(if( field == ID ) m.row.id else java.lang.Long.valueOf(m.values(field)))
+          }
+          result.add(values)
+        }
+        total += 1
+      }
+    }
+
+    val rc = new DataPageDTO
+    rc.page = page
+    rc.page_size = page_size
+    rc.total_rows = total
+    rc.total_pages = if( total == 0 ) 1 else ((total + page_size - 1) / page_size).toInt
+    query.headers.foreach(rc.headers.add(_))
+    rc.rows = result
+    rc
+  }
+}
@@ -0,0 +1,245 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.activemq.apollo.broker
+
+import org.fusesource.hawtdispatch._
+import org.apache.activemq.apollo.util.Log
+import org.apache.activemq.apollo.dto.{FlowPlacementDTO, ThreadPlacementDTO, DispatchPlacementDTO}
+import collection.mutable.{ArrayBuffer, HashMap}
+import java.util.IdentityHashMap
+
+object DispatchPlacement extends Log {
+
+  /**
+   * The cumulative message counters of a link over which the `from`
+   * dispatch queue sends messages to the `to` dispatch queue.  The
+   * key identifies the link across samples.
+   */
+  case class LinkSample(key:AnyRef, from:DispatchQueue, to:DispatchQueue, items:Long, size:Long)
+
+  case class Placement(thread:Int, moved_at:Long)
+
+  // A flow only gets moved off its thread if the thread would otherwise
+  // end up this much busier than the least loaded thread.
+  val MOVE_THRESHOLD = 1.25
+
+  // How long a flow is left on a thread after it was moved to it.
+  val MIN_DWELL = 10*1000L
+
+  /**
+   * Each KB of message data costs about as much as sending another message.
+   */
+  def load(items:Long, size:Long) = items + (size / 1024)
+}
+
+/**
+ * Places the dispatch queues of the producers, destinations and
+ * consumers of a virtual host onto the dispatch threads based on the
+ * rate messages flow between them.
+ *
+ * Dispatch queues that exchange messages get grouped into flows, busiest
+ * links first, as long as a flow does not get more than its fair share of
+ * the total load.  Each flow is then placed on a single thread so its
+ * messages do not have to cross threads, and the flows are spread over the
+ * threads so they are evenly loaded.  A flow is only moved when it
+ * considerably improves the balance, and not more often than every
+ * MIN_DWELL ms, so that flows don't bounce between threads.
+ *
+ * Idle dispatch queues are left where they are.
+ */
+class DispatchPlacement(val router:LocalRouter) {
+  import DispatchPlacement._
+
+  def dispatch_queue = router.dispatch_queue
+
+  class Node(val queue:DispatchQueue) {
+    var load = 0L
+    var flow_load = 0L
+    var parent = this
+
+    def root:Node = {
+      if( parent ne this ) {
+        parent = parent.root
+      }
+      parent
+    }
+  }
+
+  // The samples received since the last placement.
+  private var samples = new IdentityHashMap[AnyRef, LinkSample]()
+  private var last_counters = new IdentityHashMap[AnyRef, LinkSample]()
+  private var sampled_at = 0L
+  private var placements = HashMap[DispatchQueue, Placement]()
+
+  var move_counter = 0L
+
+  // Replaced with a new DTO on each placement, never updated in place,
+  // so it can be read from other threads.
+  @volatile
+  var status = new DispatchPlacementDTO
+
+  /**
+   * Places the flows based on the samples taken since the last call
+   * and starts taking new samples.  Should be called about every second.
+   */
+  def run(now:Long) = {
+    dispatch_queue.assertExecuting()
+    val elapsed = now - sampled_at
+    if( sampled_at != 0 && elapsed > 0 ) {
+      place(now, elapsed, Dispatch.getThreadQueues(DispatchPriority.DEFAULT))
+    }
+    sampled_at = now
+    sample
+  }
+
+  private def sample = {
+    // Topics run on the router's dispatch queue
+    router.local_topic_domain.destinations.foreach { topic =>
+      add_samples(topic.placement_links)
+    }
+    val queues = router.local_queue_domain.destinations ++ router.local_dsub_domain.destination_by_id.values
+    queues.foreach { queue =>
+      queue.dispatch_queue {
+        val links = queue.placement_links
+        dispatch_queue {
+          add_samples(links)
+        }
+      }
+    }
+  }
+
+  /**
+   * Records the current counters of the links.
+   */
+  def add_samples(links:Iterable[LinkSample]) = {
+    links.foreach { link =>
+      if( link.from!=null && link.to!=null && (link.from ne link.to) ) {
+        samples.put(link.key, link)
+      }
+    }
+  }
+
+  /**
+   * Places the flows sampled over the last `elapsed` ms onto the threads
+   * and starts a new sampling period.
+   */
+  def place(now:Long, elapsed:Long, threads:Array[DispatchQueue]):Unit = {
+    val current = samples
+    samples = new IdentityHashMap[AnyRef, LinkSample]()
+
+    // Convert the sampled counters to per second rates.
+    val nodes = HashMap[DispatchQueue, Node]()
+    def node(queue:DispatchQueue) = nodes.getOrElseUpdate(queue, new Node(queue))
+    val links = ArrayBuffer[(Node, Node, Long)]()
+    val i = current.values.iterator
+    while( i.hasNext ) {
+      val link = i.next
+      val last = last_counters.get(link.key)
+      if( last!=null ) {
+        val rate = load(link.items - last.items, link.size - last.size) * 1000 / elapsed
+        if( rate > 0 ) {
+          val from = node(link.from)
+          val to = node(link.to)
+          from.load += rate
+          to.load += rate
+          links += ((from, to, rate))
+        }
+      }
+    }
+    last_counters = current
+
+    val rc = new DispatchPlacementDTO
+    rc.timestamp = now
+    if( threads.length < 2 || nodes.isEmpty ) {
+      rc.move_counter = move_counter
+      status = rc
+      return
+    }
+
+    // Group the dispatch queues into flows, busiest links first.
+    var total = 0L
+    var busiest = 0L
+    nodes.values.foreach { node =>
+      node.flow_load = node.load
+      total += node.load
+      busiest = busiest max node.load
+    }
+    val fair_share = (total / threads.length) max busiest
+    links.sortBy(-_._3).foreach { case (from, to, rate) =>
+      val a = from.root
+      val b = to.root
+      if( (a ne b) && a.flow_load + b.flow_load <= fair_share ) {
+        b.parent = a
+        a.flow_load += b.flow_load
+      }
+    }
+
+    // Place the busiest flows first, each onto the least loaded thread
+    // unless it's fine where it is.
+    val thread_loads = new Array[Long](threads.length)
+    val thread_flows = new Array[Int](threads.length)
+    val placed = HashMap[DispatchQueue, Placement]()
+    val flows = nodes.values.groupBy(_.root).toSeq.sortBy(-_._1.flow_load)
+    flows.foreach { case (root, members) =>
+      val flow_load = root.flow_load
+      var least = 0
+      for( i <- 1 until threads.length ) {
+        if( thread_loads(i) < thread_loads(least) ) {
+          least = i
+        }
+      }
+      val sorted = members.toSeq.sortBy(-_.load)
+      val previous = sorted.flatMap(x => placements.get(x.queue)).headOption.filter(_.thread < threads.length)
+      val thread = previous match {
+        case Some(p) if now - p.moved_at < MIN_DWELL => p.thread
+        case Some(p) if thread_loads(p.thread) + flow_load <= (thread_loads(least) + flow_load) * MOVE_THRESHOLD => p.thread
+        case _ => least
+      }
+      thread_loads(thread) += flow_load
+      thread_flows(thread) += 1
+
+      val flow = new FlowPlacementDTO
+      flow.thread = threads(thread).getLabel
+      flow.load = flow_load
+      sorted.foreach { member =>
+        val placement = if( member.queue.getTargetQueue ne threads(thread) ) {
+          debug("placing %s on %s", member.queue.getLabel, threads(thread).getLabel)
+          member.queue.setTargetQueue(threads(thread))
+          move_counter += 1
+          Placement(thread, now)
+        } else {
+          placements.get(member.queue).filter(_.thread == thread).getOrElse(Placement(thread, now))
+        }
+        placed.put(member.queue, placement)
+        flow.moved_at = flow.moved_at max placement.moved_at
+        flow.members.add(member.queue.getLabel)
+      }
+      rc.flows.add(flow)
+    }
+    placements = placed
+
+    for( i <- 0 until threads.length ) {
+      val thread = new ThreadPlacementDTO
+      thread.thread = threads(i).getLabel
+      thread.load = thread_loads(i)
+      thread.flows = thread_flows(i)
+      rc.threads.add(thread)
+    }
+    rc.move_counter = move_counter
+    status = rc
+  }
+}
@@ -0,0 +1,100 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.activemq.apollo.broker
+
+import java.util.{Comparator, TreeSet}
+import collection.mutable.ArrayBuffer
+
+object ExpirationIndex {
+
+  val ORDER = new Comparator[QueueEntry] {
+    def compare(a:QueueEntry, b:QueueEntry):Int = {
+      if( a.indexed_expiration < b.indexed_expiration ) {
+        -1
+      } else if( a.indexed_expiration > b.indexed_expiration ) {
+        1
+      } else if( a.seq < b.seq ) {
+        -1
+      } else if( a.seq > b.seq ) {
+        1
+      } else {
+        0
+      }
+    }
+  }
+}
+
+/**
+ * Orders the entries of a queue which hold expiring messages by their
+ * expiration time so that the queue maintenance only has to visit the
+ * entries whose messages are due to expire instead of walking the
+ * whole queue.  Swapped ranges and segments are indexed by the earliest
+ * expiration of the messages they hold.
+ *
+ * Entries are identified by their seq, so an entry must be removed from
+ * the index before a replacement entry with the same seq gets indexed.
+ */
+class ExpirationIndex {
+  import ExpirationIndex._
+
+  private val entries = new TreeSet[QueueEntry](ORDER)
+
+  def size = entries.size
+  def isEmpty = entries.isEmpty
+
+  /**
+   * Re-indexes the entry if its expiration has changed.
+   */
+  def update(entry:QueueEntry):Unit = {
+    val expiration = entry.expiration
+    if( expiration != entry.indexed_expiration ) {
+      if( entry.indexed_expiration != 0 ) {
+        entries.remove(entry)
+      }
+      entry.indexed_expiration = expiration
+      if( expiration != 0 ) {
+        entries.add(entry)
+      }
+    }
+  }
+
+  def remove(entry:QueueEntry):Unit = {
+    if( entry.indexed_expiration != 0 ) {
+      entries.remove(entry)
+      entry.indexed_expiration = 0
+    }
+  }
+
+  // Reused by every call to due.
+  private val due_entries = ArrayBuffer[QueueEntry]()
+
+  /**
+   * @return the entries that expire at or before the given time, in
+   *         expiration order.  The returned buffer gets reused by the next
+   *         call, and it's a snapshot so the caller can update the index
+   *         while going through it.
+   */
+  def due(now:Long):Seq[QueueEntry] = {
+    due_entries.clear()
+    var entry = if( entries.isEmpty ) null else entries.first
+    while( entry!=null && entry.indexed_expiration <= now ) {
+      due_entries += entry
+      entry = entries.higher(entry)
+    }
+    due_entries
+  }
+}
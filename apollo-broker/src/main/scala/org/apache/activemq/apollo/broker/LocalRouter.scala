@@ -40,6 +40,8 @@ object DestinationMetricsSupport {
     metrics.swapped_in_size_max = 0
     metrics.swapped_in_size = 0
     metrics.swapped_in_items = 0
+    metrics.entries_heap_size = 0
+    metrics.expiring_items = 0
     metrics.swapping_in_size = 0
     metrics.swapping_out_size = 0;
     metrics.swapping_out_size = 0;
@@ -81,6 +83,15 @@ object DestinationMetricsSupport {
     to.swapped_in_items += from.swapped_in_items
     to.swapped_in_size += from.swapped_in_size
     to.swapped_in_size_max += from.swapped_in_size_max
+    to.entries_heap_size += from.entries_heap_size
+    to.expiring_items += from.expiring_items
+
+    to.maintenance_counter += from.maintenance_counter
+    to.maintenance_time_counter += from.maintenance_time_counter
+    to.maintenance_time_max = to.maintenance_time_max max from.maintenance_time_max
+
+    to.selector_counter += from.selector_counter
+    to.selector_time_counter += from.selector_time_counter
   }
 
 }
@@ -149,6 +160,13 @@ trait DomainDestination extends SecuredResource {
 
   def update(on_completed:Task):Unit
 
+  /**
+   * The catalog row the destination pushes its metrics snapshots into
+   * while it's listed in a domain.
+   */
+  @volatile
+  var catalog_row:DestinationCatalog#Row = _
+
 }
 
 /**
@@ -158,6 +176,9 @@ object LocalRouter extends Log {
 
   val destination_parser = new DestinationParser
 
+  // How many concrete path lookups the domains cache.
+  val DESTINATION_PATH_CACHE_LIMIT = 1024 * 10
+
   def is_wildcard_destination(id:String) = {
     if( id == null ) {
       true
@@ -246,12 +267,16 @@ class LocalRouter(val virtual_host:VirtualHost) extends BaseService with Router
     // holds all the destinations in the domain by id
     var destination_by_id = LinkedHashMap[String, D]()
     // holds all the destinations in the domain by path
-    var destination_by_path = new PathMap[D]()
+    var destination_by_path = new PathMap[D](true)
+    destination_by_path.cacheLimit = DESTINATION_PATH_CACHE_LIMIT
     // Can store consumers on wild cards paths
 
+    // holds the metrics of the destinations for the REST listings
+    val catalog = new DestinationCatalog
+
     val consumers = HashMap[DeliveryConsumer, ConsumerContext[D]]()
-    val consumers_by_path = new PathMap[(ConsumerContext[D], BindAddress)]()
-    val producers_by_path = new PathMap[ProducerContext]()
+    val consumers_by_path = new PathMap[(ConsumerContext[D], BindAddress)](true)
+    val producers_by_path = new PathMap[ProducerContext](true)
 
     def destinations:Iterable[D] = JavaConversions.collectionAsScalaIterable(destination_by_path.get(ALL))
 
@@ -282,6 +307,7 @@ class LocalRouter(val virtual_host:VirtualHost) extends BaseService with Router
     var add_destination = (path:Path, dest:D) => {
       destination_by_path.put(path, dest)
       destination_by_id.put(dest.id, dest)
+      dest.catalog_row = catalog.add(dest.id, dest)
 
       // binds any matching wild card subs and producers...
       import JavaConversions._
@@ -301,6 +327,10 @@ class LocalRouter(val virtual_host:VirtualHost) extends BaseService with Router
     var remove_destination = (path:Path, dest:D) => {
       destination_by_path.remove(path, dest)
       destination_by_id.remove(dest.id)
+      if( dest.catalog_row!=null ) {
+        catalog.remove(dest.catalog_row)
+        dest.catalog_row = null
+      }
     }
 
     def can_destroy_destination(address:DestinationAddress, security:SecurityContext):Option[String] = {
@@ -910,8 +940,9 @@ class LocalRouter(val virtual_host:VirtualHost) extends BaseService with Router
 
     import OptionSupport._
     if(virtual_host.config.regroup_connections.getOrElse(false)) {
-      schedule_connection_regroup
+      schedule_placement
     }
+    schedule_catalog_update
 
     tracker.callback {
       dispatch_queue {
@@ -962,51 +993,28 @@ class LocalRouter(val virtual_host:VirtualHost) extends BaseService with Router
   }
 
 
-  // Try to periodically re-balance connections so that consumers/producers
-  // are grouped onto the same thread.
-  def schedule_connection_regroup:Unit = dispatch_queue.after(1, TimeUnit.SECONDS) {
+  // Periodically re-balance the connections and destinations so that
+  // consumers/producers are grouped onto the same thread.
+  val placement = new DispatchPlacement(this)
+
+  def schedule_placement:Unit = dispatch_queue.after(1, TimeUnit.SECONDS) {
     if(service_state.is_started) {
-      connection_regroup
-      schedule_connection_regroup
+      placement.run(System.currentTimeMillis)
+      schedule_placement
     }
   }
 
-  def connection_regroup = {
-    // this should really be much more fancy.  It should look at the messaging
-    // rates between producers and consumers, look for natural data flow partitions
-    // and then try to equally divide the load over the available processing
-    // threads/cores.
-
-
-
-    // For the topics, just collocate the producers onto the first consumer's thread.
-    local_topic_domain.destinations.foreach { node =>
-
-      node.consumers.keys.headOption.foreach{ consumer =>
-        node.producers.keys.foreach { r=>
-          r.collocate(consumer.dispatch_queue)
-        }
-      }
-    }
-
-
-    local_queue_domain.destinations.foreach { queue=>
-      queue.dispatch_queue {
-
-        // Collocate the queue's with the first consumer
-        // TODO: change this so it collocates with the fastest consumer.
-
-        queue.all_subscriptions.headOption.map( _._1 ).foreach { consumer=>
-          queue.collocate( consumer.dispatch_queue )
-        }
-
-        // Collocate all the producers with the queue..
-
-        queue.inbound_sessions.foreach { session =>
-          session.producer.collocate( queue.dispatch_queue )
+  // The queues push their metrics into the catalog from their own
+  // maintenance task, the topics live on our thread so we push theirs.
+  def schedule_catalog_update:Unit = dispatch_queue.after(1, TimeUnit.SECONDS) {
+    if(service_state.is_started) {
+      local_topic_domain.destination_by_id.values.foreach { topic =>
+        val row = topic.catalog_row
+        if( row!=null ) {
+          row.update(topic.catalog_metrics)
         }
       }
-
+      schedule_catalog_update
     }
   }
 
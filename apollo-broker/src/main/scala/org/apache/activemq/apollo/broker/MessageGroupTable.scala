@@ -0,0 +1,182 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.activemq.apollo.broker
+
+import org.apache.activemq.apollo.util.HashRing
+import java.util.{Map => JMap, LinkedHashMap, HashMap, HashSet, ArrayList}
+
+object MessageGroupTable {
+  /** The number of positions each subscription takes on the ring. */
+  val RING_WEIGHT = 10
+}
+
+/**
+ * Remembers which subscription recently seen message groups are assigned
+ * to so that dispatching a grouped message does not have to hash the group
+ * and walk the hash ring every time.  Once the table holds more than
+ * `max_size` groups, the least recently used ones get evicted and are looked
+ * up in the ring again the next time they are seen.
+ *
+ * Only groups assigned to their owner on the ring are remembered, so the
+ * table always agrees with the ring.  The table also keeps the groups
+ * assigned to each subscription, so when a subscription joins only the
+ * groups of the subscriptions it takes ring positions from get checked,
+ * and when one leaves only its own groups do.
+ */
+class MessageGroupTable(private var max_size:Int) {
+  import MessageGroupTable._
+
+  val ring = new HashRing[GroupBucket, String]()
+
+  private val assignments = new LinkedHashMap[String, Subscription](16, 0.75f, true) {
+    override def removeEldestEntry(eldest:JMap.Entry[String, Subscription]) = {
+      if( size() > max_size ) {
+        unlink(eldest.getKey, eldest.getValue)
+        true
+      } else {
+        false
+      }
+    }
+  }
+
+  private val groups_by_sub = new HashMap[Subscription, HashSet[String]]()
+
+  def size = assignments.size
+
+  def is_empty = ring.getNodes.isEmpty
+
+  /**
+   * @return the subscription the group is assigned to or null if the
+   *         group has not been seen recently.
+   */
+  def assigned(group:String):Subscription = assignments.get(group)
+
+  /**
+   * Remembers that the group is assigned to the subscription.  The subscription
+   * must be the group's owner on the ring.
+   */
+  def assign(group:String, sub:Subscription) = {
+    val previous = assignments.put(group, sub)
+    if( previous!=null ) {
+      unlink(group, previous)
+    }
+    link(group, sub)
+  }
+
+  /**
+   * Adds the subscription to the ring and moves the remembered groups
+   * it now owns over to it.
+   *
+   * @return the subscriptions that owned the ring positions the
+   *         subscription took, one per position taken from another
+   *         subscription.
+   */
+  def add(sub:Subscription) = {
+    val iterators = ring.add(GroupBucket(sub), RING_WEIGHT)
+    val rc = new ArrayList[Subscription](iterators.size)
+    var i = 0
+    while( i < iterators.size ) {
+      val iterator = iterators.get(i)
+      var taking_over:Subscription = null
+      while( iterator.hasNext && taking_over==null ) {
+        val next = iterator.next()
+        if( next.sub ne sub ) {
+          taking_over = next.sub
+        }
+      }
+      if( taking_over!=null ) {
+        rc.add(taking_over)
+      }
+      i += 1
+    }
+
+    // Only the groups of the subscriptions that lost ring positions
+    // can now be owned by the new one.
+    val checked = new HashSet[Subscription]()
+    i = 0
+    while( i < rc.size ) {
+      if( checked.add(rc.get(i)) ) {
+        reassign(rc.get(i))
+      }
+      i += 1
+    }
+    rc
+  }
+
+  /**
+   * Removes the subscription from the ring and moves the remembered
+   * groups it owned over to their new owners.
+   */
+  def remove(sub:Subscription) = {
+    ring.remove(GroupBucket(sub))
+    reassign(sub)
+  }
+
+  def resize(value:Int) = {
+    max_size = value
+    val i = assignments.entrySet().iterator()
+    while( assignments.size > max_size && i.hasNext ) {
+      val entry = i.next()
+      unlink(entry.getKey, entry.getValue)
+      i.remove()
+    }
+  }
+
+  /**
+   * Checks the remembered groups of the subscription against the ring
+   * and moves the ones it no longer owns.
+   */
+  private def reassign(from:Subscription) = {
+    val groups = groups_by_sub.get(from)
+    if( groups!=null ) {
+      val moving = groups.toArray(new Array[String](groups.size))
+      var i = 0
+      while( i < moving.length ) {
+        val group = moving(i)
+        val owner = ring.get(group)
+        if( owner == null ) {
+          assignments.remove(group)
+          unlink(group, from)
+        } else if( owner.sub ne from ) {
+          assignments.put(group, owner.sub)
+          unlink(group, from)
+          link(group, owner.sub)
+        }
+        i += 1
+      }
+    }
+  }
+
+  private def link(group:String, sub:Subscription) = {
+    var groups = groups_by_sub.get(sub)
+    if( groups==null ) {
+      groups = new HashSet[String]()
+      groups_by_sub.put(sub, groups)
+    }
+    groups.add(group)
+    sub.message_group_count += 1
+  }
+
+  private def unlink(group:String, sub:Subscription) = {
+    val groups = groups_by_sub.get(sub)
+    groups.remove(group)
+    if( groups.isEmpty ) {
+      groups_by_sub.remove(sub)
+    }
+    sub.message_group_count -= 1
+  }
+}
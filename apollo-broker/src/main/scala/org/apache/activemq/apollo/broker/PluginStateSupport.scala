@@ -35,7 +35,11 @@ trait PluginStateSupport {
     if( state == null ) {
       state = factory
       if( state != null ) {
-        _plugin_state.put(clazz, state)
+        // another thread may have created the state concurrently.
+        val existing = _plugin_state.putIfAbsent(clazz, state).asInstanceOf[T]
+        if( existing != null ) {
+          state = existing
+        }
       }
     }
     state
@@ -79,21 +79,23 @@ class Queue(val router: LocalRouter, val store_id:Long, var binding:Binding) ext
   var producers = ListBuffer[BindableDeliveryProducer]()
   var inbound_sessions = Set[DeliverySession]()
   var all_subscriptions = Map[DeliveryConsumer, Subscription]()
-  var exclusive_subscriptions = ListBuffer[Subscription]()
+  // Walked by index on every dispatch, so it does not create an iterator.
+  val exclusive_subscriptions = new java.util.ArrayList[Subscription]()
+  val selector_index = new SelectorIndex
 
-  var _message_group_buckets: HashRing[GroupBucket, String] = _
+  var _message_groups: MessageGroupTable = _
 
-  def message_group_buckets = {
+  def message_groups = {
     // If the queue is not using message groups, lets avoid
-    // creating the bucket hash ring.
-    if( _message_group_buckets == null )  {
-      _message_group_buckets = new HashRing[GroupBucket, String]()
-      // Create a bucket for each subscription
+    // creating the group table and its hash ring.
+    if( _message_groups == null )  {
+      _message_groups = new MessageGroupTable(message_group_table_size)
+      // Add each subscription to the ring
       for( sub <- all_subscriptions.values if !sub.browser) {
-        _message_group_buckets.add(GroupBucket(sub), 10)
+        _message_groups.add(sub)
       }
     }
-    _message_group_buckets
+    _message_groups
   }
 
   def filter = binding.message_filter
@@ -102,6 +104,42 @@ class Queue(val router: LocalRouter, val store_id:Long, var binding:Binding) ext
 
   def address = binding.address
 
+  private var _sender_list:List[DestinationAddress] = Nil
+
+  /**
+   * The sender of the deliveries dispatched from this queue.  The list
+   * is cached so that dispatching a message does not have to create it.
+   */
+  def sender_list = {
+    val address = binding.address
+    if( _sender_list.isEmpty || (_sender_list.head ne address) ) {
+      _sender_list = address :: Nil
+    }
+    _sender_list
+  }
+
+  private var idle_dispatch_scratch = new DispatchScratch
+
+  /**
+   * Borrows the scratch space used to dispatch an entry.  A new one
+   * is created if an entry gets dispatched while the queue's one is
+   * still in use.
+   */
+  def borrow_dispatch_scratch = {
+    val rc = idle_dispatch_scratch
+    if( rc == null ) {
+      new DispatchScratch
+    } else {
+      idle_dispatch_scratch = null
+      rc
+    }
+  }
+
+  def return_dispatch_scratch(scratch:DispatchScratch) = {
+    scratch.clear
+    idle_dispatch_scratch = scratch
+  }
+
   debug("created queue: " + id)
 
   val session_manager = new SessionSinkMux[Delivery](messages, dispatch_queue, Delivery, Integer.MAX_VALUE, 1024*640) {
@@ -112,6 +150,7 @@ class Queue(val router: LocalRouter, val store_id:Long, var binding:Binding) ext
   var message_seq_counter = 1L
 
   val entries = new LinkedNodeList[QueueEntry]()
+  val expiration_index = new ExpirationIndex
   val head_entry = new QueueEntry(this, 0L).head
   var tail_entry = new QueueEntry(this, next_message_seq)
   entries.addFirst(head_entry)
@@ -204,12 +243,42 @@ class Queue(val router: LocalRouter, val store_id:Long, var binding:Binding) ext
   var producer_counter = 0L
   var consumer_counter = 0L
 
+  // The number of subs that close once they reach the tail.
+  var close_on_drain_subscriptions = 0
+
   // This set to true if any consumer kept up within the
   // last second.
   var consumers_keeping_up_historically = false
 
   var individual_swapped_items = 0
 
+  // The number of entries packed into swapped segments and the
+  // heap used by the segments' arrays.
+  var swapped_segment_items = 0
+  var swapped_segment_heap_size = 0L
+
+  /**
+   * An estimate of the heap used to track the messages in the queue,
+   * not counting the messages themselves.
+   */
+  def entries_heap_size = {
+    import QueueEntry._
+    // the head entry is not holding a message.
+    (entries.size - 1).toLong * ENTRY_HEAP_SIZE +
+    individual_swapped_items.toLong * SWAPPED_HEAP_SIZE +
+    loaded_items.toLong * LOADED_HEAP_SIZE +
+    swapped_segment_heap_size
+  }
+
+  // How often and how long in microseconds swap_messages ran.
+  var maintenance_counter = 0L
+  var maintenance_time_counter = 0L
+  var maintenance_time_max = 0L
+
+  // How often and how long in nanoseconds the subscription selectors were evaluated.
+  var selector_counter = 0L
+  var selector_time_counter = 0L
+
   var swap_triggered = false
   def trigger_swap = {
     dispatch_queue.assertExecuting()
@@ -229,6 +298,25 @@ class Queue(val router: LocalRouter, val store_id:Long, var binding:Binding) ext
 
   var loaded_items = 0
   var loaded_size = 0
+  val loaded_entries = new LoadedEntries
+
+  // Bumped on each swap pass to forget which entries were prefetched.
+  var prefetch_generation = 1L
+
+  // Entries which got into the Swapped state since the last swap pass.
+  private var combine_candidates = new java.util.ArrayList[QueueEntry]()
+  private var combine_scratch = new java.util.ArrayList[QueueEntry]()
+
+  /**
+   * Queues up a swapped entry to get combined into a segment
+   * or range on the next swap pass.
+   */
+  def swapped_to_combine(entry:QueueEntry) = {
+    if( !entry.combine_pending ) {
+      entry.combine_pending = true
+      combine_candidates.add(entry)
+    }
+  }
   def swapped_in_size_max = this.producer_swapped_in.size_max + this.consumer_swapped_in.size_max
 
   var config:QueueSettingsDTO = _
@@ -238,6 +326,7 @@ class Queue(val router: LocalRouter, val store_id:Long, var binding:Binding) ext
   def dlq_expired = OptionSupport(config.dlq_expired).getOrElse(false)
 
   def message_group_graceful_handoff = OptionSupport(config.message_group_graceful_handoff).getOrElse(true)
+  def message_group_table_size = OptionSupport(config.message_group_table_size).getOrElse(1024*128)
 
   def configure(update:QueueSettingsDTO) = {
     def mem_size(value:String, default:String) = MemoryPropertyEditor.parse(Option(value).getOrElse(default)).toInt
@@ -282,6 +371,9 @@ class Queue(val router: LocalRouter, val store_id:Long, var binding:Binding) ext
       case _ =>
     }
     config = update
+    if( _message_groups!=null ) {
+      _message_groups.resize(message_group_table_size)
+    }
     this
   }
 
@@ -291,6 +383,26 @@ class Queue(val router: LocalRouter, val store_id:Long, var binding:Binding) ext
     case _ => false
   }
 
+  /**
+   * @return the counters of the links messages flow over into
+   *         and out of the queue.
+   */
+  def placement_links = {
+    dispatch_queue.assertExecuting()
+    val rc = ListBuffer[DispatchPlacement.LinkSample]()
+    inbound_sessions.foreach { session =>
+      rc += DispatchPlacement.LinkSample(session, session.producer.dispatch_queue, dispatch_queue,
+        session.enqueue_item_counter, session.enqueue_size_counter)
+    }
+    all_subscriptions.valuesIterator.foreach { sub =>
+      if( sub.session!=null ) {
+        rc += DispatchPlacement.LinkSample(sub, dispatch_queue, sub.consumer.dispatch_queue,
+          sub.session.enqueue_item_counter, sub.session.enqueue_size_counter)
+      }
+    }
+    rc
+  }
+
   def get_queue_metrics:DestMetricsDTO = {
     dispatch_queue.assertExecuting()
     val rc = new DestMetricsDTO
@@ -325,6 +437,14 @@ class Queue(val router: LocalRouter, val store_id:Long, var binding:Binding) ext
     rc.swapped_in_items = this.loaded_items
     rc.swapped_in_size = this.loaded_size
     rc.swapped_in_size_max = swapped_in_size_max
+    rc.entries_heap_size = entries_heap_size
+    rc.expiring_items = expiration_index.size
+
+    rc.maintenance_counter = this.maintenance_counter
+    rc.maintenance_time_counter = this.maintenance_time_counter
+    rc.maintenance_time_max = this.maintenance_time_max
+    rc.selector_counter = this.selector_counter
+    rc.selector_time_counter = this.selector_time_counter
 
     rc.producer_counter = this.producer_counter
     rc.consumer_counter = this.consumer_counter
@@ -345,7 +465,7 @@ class Queue(val router: LocalRouter, val store_id:Long, var binding:Binding) ext
           return
         }
         val next = cur.getNext
-        if ( cur.seq >= start ) {
+        if ( cur.seq >= start || (cur.is_swapped_range && cur.as_swapped_range.last >= start) ) {
           cur.state match {
             case state:QueueEntry#Loaded =>
               result.append((create_entry_status(cur), state.delivery))
@@ -356,10 +476,18 @@ class Queue(val router: LocalRouter, val store_id:Long, var binding:Binding) ext
               cur.load(consumer_swapped_in)
               return
             case state:QueueEntry#SwappedRange =>
-              state.swapped_in_watchers ::=(()=>{
-                load_from(cur.seq)
+              // only load the span of the range which holds the next entries to browse.
+              val span = state.summary.span_index(start)
+              val loading = state.split(_ == span).head
+              loading.as_swapped_range.swapped_in_watchers ::=(()=>{
+                load_from(start)
               })
+              loading.load(consumer_swapped_in)
+              return
+            case state:QueueEntry#SwappedSegment =>
+              // expanding the segment does not need to wait on the store.
               cur.load(consumer_swapped_in)
+              load_from(cur.seq)
               return
           }
         }
@@ -438,9 +566,16 @@ class Queue(val router: LocalRouter, val store_id:Long, var binding:Binding) ext
     rc.seq = cur.seq
     rc.count = cur.count
     rc.size = cur.size
-    rc.consumer_count = cur.parked.size
+    rc.consumer_count = cur.parked_count
     rc.is_prefetched = cur.prefetched
     rc.state = cur.label
+    rc.expiration = cur.expiration
+    rc.redeliveries = cur.state match {
+      case state:QueueEntry#SwappedRange => state.summary.redeliveries
+      case state:QueueEntry#Swapped => state.redelivery_count
+      case state:QueueEntry#Loaded => state.redelivery_count
+      case _ => 0
+    }
     rc.acquirer = cur.acquiring_subscription match {
       case sub:Subscription => sub.create_link_dto(false)
       case _ => null
@@ -485,14 +620,21 @@ class Queue(val router: LocalRouter, val store_id:Long, var binding:Binding) ext
   def restore_from_store(on_completed: => Unit) {
     if (!restored_from_store && tune_persistent) {
       restored_from_store = true
-      virtual_host.store.list_queue_entry_ranges(store_id, tune_swap_range_size) { ranges =>
+      // list the entries in ranges small enough to become the spans of our swapped ranges.
+      val span_size = (tune_swap_range_size / RangeSummary.MAX_SPANS).max(1)
+      virtual_host.store.list_queue_entry_ranges(store_id, span_size) { ranges =>
         dispatch_queue {
           if (ranges != null && !ranges.isEmpty) {
 
             ranges.foreach {
               range =>
-                val entry = new QueueEntry(Queue.this, range.first_entry_seq).init(range)
-                entries.addLast(entry)
+                val prev = entries.getTail.as_swapped_range
+                if( prev!=null && prev.count + range.count <= tune_swap_range_size ) {
+                  prev.append(range)
+                } else {
+                  val entry = new QueueEntry(Queue.this, range.first_entry_seq).init(range)
+                  entries.addLast(entry)
+                }
 
                 message_seq_counter = range.last_entry_seq + 1
                 enqueue_item_counter += range.count
@@ -648,8 +790,11 @@ class Queue(val router: LocalRouter, val store_id:Long, var binding:Binding) ext
               next
             case state: entry.SwappedRange =>
               // we need to load in the range before we can drop entries..
-              entry.load(null)
+              // only the first span of it is needed to drop the head entries.
+              state.split(_ == 0).foreach(_.load(null))
               null
+            case state: entry.SwappedSegment =>
+              state.expand
           }
 
           if( tune_persistent ) {
@@ -810,6 +955,8 @@ class Queue(val router: LocalRouter, val store_id:Long, var binding:Binding) ext
         total_items += 1
       } else if (cur.is_swapped_range ) {
         total_items += cur.as_swapped_range.count
+      } else if (cur.is_swapped_segment ) {
+        total_items += cur.as_swapped_segment.count
       }
       
       cur = cur.getNext
@@ -834,20 +981,22 @@ class Queue(val router: LocalRouter, val store_id:Long, var binding:Binding) ext
     if( !service_state.is_started )
       return
 
-    var cur = entries.getHead
-    while( cur!=null ) {
+    val start = System.nanoTime
 
-      // reset the prefetch flags and handle expiration...
-      cur.prefetched = false
-      val next = cur.getNext
+    // forget the previous prefetches..
+    prefetch_generation += 1
 
-      // handle expiration...
-      if( !cur.expiring && cur.expiration != 0 && cur.expiration <= now ) {
-        val entry = cur
-        cur.state match {
+    // handle expiration, only the entries that are due get visited..
+    expiration_index.due(now).foreach { entry =>
+      if( !entry.expiring && entry.isLinked ) {
+        entry.state match {
           case x:QueueEntry#SwappedRange =>
-            // load the range to expire the messages in it.
-            cur.load(null)
+            // load the spans of the range which hold expired
+            // messages to expire them, the rest stays swapped.
+            x.split(x.summary.is_due(_, now)).foreach(_.load(null))
+          case x:QueueEntry#SwappedSegment =>
+            // expand the segment to expire the messages in it.
+            x.expand
           case state:QueueEntry#Swapped =>
             // remove the expired message if it has not been
             // acquired.
@@ -875,7 +1024,6 @@ class Queue(val router: LocalRouter, val store_id:Long, var binding:Binding) ext
           case _ =>
         }
       }
-      cur = next
     }
 
     // Set the prefetch flags
@@ -883,15 +1031,14 @@ class Queue(val router: LocalRouter, val store_id:Long, var binding:Binding) ext
       x.refill_prefetch
     }
 
-    // swap out messages.
-    cur = entries.getHead.getNext
-    var dropping_head_entries = is_topic_queue
-    var distance_from_last_prefetch = 0L
-    while( cur!=null ) {
-      val next = cur.getNext
-      if ( dropping_head_entries ) {
-        if( cur.parked.isEmpty ) {
-          if( cur.is_swapped_range ) {
+    // drop the topic queue entries nobody is interested in anymore.
+    if( is_topic_queue ) {
+      var cur = entries.getHead.getNext
+      var dropping_head_entries = true
+      while( dropping_head_entries && cur!=null ) {
+        val next = cur.getNext
+        if( !cur.hasSubs ) {
+          if( cur.is_swapped_range || cur.is_swapped_segment ) {
             cur.load(producer_swapped_in)
             dropping_head_entries=false
           } else {
@@ -902,94 +1049,179 @@ class Queue(val router: LocalRouter, val store_id:Long, var binding:Binding) ext
           cur.load(consumer_swapped_in)
           dropping_head_entries = false
         }
-      } else {
-        if( cur.prefetched ) {
-          // Prefteched entries need to get loaded..
+        cur = next
+      }
+    }
+
+    // swap out messages.  The subs already loaded the entries they prefetched,
+    // so only the loaded entries need to be looked at.  Walking backwards
+    // since swapping an entry out moves the last loaded entry into its slot.
+    val positions = subscription_positions
+    val average_size = if( queue_items > 0 ) queue_size / queue_items else 0L
+    var i = loaded_entries.size - 1
+    while( i >= 0 ) {
+      if( i < loaded_entries.size ) {
+        val cur = loaded_entries(i).entry
+        if( cur.prefetched || cur.read_ahead ) {
+          // Prefteched and read ahead entries need to get loaded..
           cur.load(consumer_swapped_in)
-          distance_from_last_prefetch = 0
         } else {
 
           // This is a non-prefetched entry.. entires ahead and behind the
           // consumer subscriptions.
-          val loaded = cur.as_loaded
-          if( loaded!=null ) {
-            // It's in memory.. perhaps we need to swap it out..
-            if(!consumers_keeping_up_historically) {
-              // Swap out ASAP if consumers are not keeping up..
-              cur.swap(true)
-            } else {
-              // Consumers seem to be keeping up.. so we have to be more selective
-              // about what gets swapped out..
-
-              if (cur.memory_space eq producer_swapped_in ) {
-                // If we think we can catch up in seconds.. lets keep it in producer_swapped_in to
-                // pause the producer.
-                val max_distance = delivery_rate * 2;
-                if( distance_from_last_prefetch < max_distance ) {
-                  // Looks like the entry will be used soon..
-                  cur.load(producer_swapped_in)
-                } else {
-                  // Does not look to be anywhere close to the consumer.. so get
-                  // rid of it asap.
-                  cur.swap(true)
-                }
-              } else if ( cur.is_acquired ) {
-                // Entry was just used...
-                cur.load(consumer_swapped_in)
-  //              cur.swap(false)
+          if(!consumers_keeping_up_historically) {
+            // Swap out ASAP if consumers are not keeping up..
+            cur.swap(true)
+          } else {
+            // Consumers seem to be keeping up.. so we have to be more selective
+            // about what gets swapped out..
+
+            if (cur.memory_space eq producer_swapped_in ) {
+              // If we think we can catch up in seconds.. lets keep it in producer_swapped_in to
+              // pause the producer.  The distance is estimated from the entries between
+              // the closest sub, or the head, and the entry.
+              var distance = distance_from_position(positions, cur.seq)
+              if( distance < 0 ) {
+                distance = cur.seq - head_entry.seq
+              }
+              val max_distance = delivery_rate * 2;
+              if( distance * average_size < max_distance ) {
+                // Looks like the entry will be used soon..
+                cur.load(producer_swapped_in)
               } else {
                 // Does not look to be anywhere close to the consumer.. so get
                 // rid of it asap.
                 cur.swap(true)
               }
+            } else if ( cur.is_acquired ) {
+              // Entry was just used...
+              cur.load(consumer_swapped_in)
+            } else {
+              // Does not look to be anywhere close to the consumer.. so get
+              // rid of it asap.
+              cur.swap(true)
             }
           }
-
-          distance_from_last_prefetch += cur.size
         }
       }
-      cur = next
-    }                               
+      i -= 1
+    }
 
+    combine_swapped(positions)
 
-    // Combine swapped items into swapped ranges
-    if( individual_swapped_items > tune_swap_range_size*2 ) {
+    if(!messages.full) {
+      messages.stall_check
+      messages.refiller.run
+    }
 
-      var distance_from_sub = tune_swap_range_size;
-      var cur = entries.getHead
-      var combine_counter = 0;
+    val duration = (System.nanoTime - start) / 1000
+    maintenance_counter += 1
+    maintenance_time_counter += duration
+    maintenance_time_max = maintenance_time_max max duration
+  }
 
-      while( cur!=null ) {
+  /**
+   * @return the sorted seqs of the entries the subscriptions are at.
+   */
+  private def subscription_positions = {
+    val rc = new Array[Long](all_subscriptions.size)
+    var i = 0
+    all_subscriptions.valuesIterator.foreach { sub =>
+      val pos = sub.pos
+      if( pos!=null ) {
+        rc(i) = pos.seq
+        i += 1
+      }
+    }
+    val positions = java.util.Arrays.copyOf(rc, i)
+    java.util.Arrays.sort(positions)
+    positions
+  }
 
-        // get the next now.. since cur may get combined and unlinked
-        // from the entry list.
-        val next = cur.getNext
+  /**
+   * @return how many seqs the seq is past the closest position at or before
+   *         it, or -1 if there is no such position.
+   */
+  private def distance_from_position(positions:Array[Long], seq:Long):Long = {
+    var i = java.util.Arrays.binarySearch(positions, seq)
+    if( i < 0 ) {
+      i = -i - 2
+    }
+    if( i < 0 ) -1L else seq - positions(i)
+  }
 
-        if( cur.prefetched ) {
-          distance_from_sub = 0
+  /**
+   * Combine swapped items into swapped segments and ranges.  Swapped items
+   * get packed into segments which can be expanded again without a store
+   * query.  Once a segment far from the subscriptions fills up it gets turned
+   * into a range, which only keeps a summary of its entries, so the heap used
+   * by the swapped backlog stays bounded while the entries near the
+   * subscriptions stay cheap to expand.  Only the entries that got swapped
+   * or filled up a segment since the last pass get looked at, the ones which
+   * can't be combined yet because they are in use get looked at again on
+   * the next pass.
+   */
+  private def combine_swapped(positions:Array[Long]) = {
+    val candidates = combine_candidates
+    combine_candidates = combine_scratch
+    combine_scratch = candidates
+
+    val combining = individual_swapped_items > tune_swap_range_size*2
+    java.util.Collections.sort(candidates)
+
+    var combine_counter = 0
+    var i = 0
+    while( i < candidates.size ) {
+      val cur = candidates.get(i)
+      cur.combine_pending = false
+      if( cur.isLinked && cur.is_swapped_segment ) {
+        if( cur.prefetched || cur.read_ahead || cur.hasSubs ) {
+          // In use, try again later.
+          swapped_to_combine(cur)
         } else {
-          distance_from_sub += 1
-          if( cur.can_combine_with_prev ) {
-            cur.getPrevious.as_swapped_range.combineNext
+          val distance = distance_from_position(positions, cur.seq)
+          if( distance < 0 || distance > tune_swap_range_size ) {
+            cur.swapped_range
+            if( cur.can_combine_with_prev ) {
+              cur.getPrevious.as_swapped_range.combineNext
+            }
             combine_counter += 1
           } else {
-            if( cur.is_swapped && !cur.is_acquired && distance_from_sub > tune_swap_range_size ) {
-              cur.swapped_range
-              combine_counter += 1
-            }
+            // Still close to a subscription, check again once they move on.
+            swapped_to_combine(cur)
+          }
+        }
+      } else if( cur.isLinked && cur.is_swapped ) {
+        if( !combining ) {
+          swapped_to_combine(cur)
+        } else if( cur.is_acquired || cur.is_loading || cur.prefetched || cur.read_ahead || cur.hasSubs ) {
+          // In use, try again later.
+          swapped_to_combine(cur)
+        } else if( cur.can_combine_with_prev ) {
+          cur.getPrevious.as_swapped_range.combineNext
+          combine_counter += 1
+        } else if( cur.can_append_to_prev_segment ) {
+          cur.getPrevious.as_swapped_segment.append(cur)
+          combine_counter += 1
+        } else if( cur.can_segment ) {
+          cur.swapped_segment
+          combine_counter += 1
+        } else {
+          val distance = distance_from_position(positions, cur.seq)
+          if( distance < 0 || distance > tune_swap_range_size ) {
+            // Can't be segmented, but it's not needed any time soon either.
+            cur.swapped_range
+            combine_counter += 1
+          } else {
+            // Still close to a subscription, check again once they move on.
+            swapped_to_combine(cur)
           }
-
         }
-        cur = next
       }
-      trace("combined %d entries", combine_counter)
-    }
-    
-    if(!messages.full) {
-      messages.stall_check
-      messages.refiller.run
+      i += 1
     }
-
+    candidates.clear
+    trace("combined %d entries", combine_counter)
   }
 
   def swapped_out_size = queue_size - (producer_swapped_in.size + consumer_swapped_in.size)
@@ -1062,6 +1294,22 @@ class Queue(val router: LocalRouter, val store_id:Long, var binding:Binding) ext
 
     swap_messages
     check_idle
+    publish_metrics
+  }
+
+  // The last snapshot of the queue metrics.  Topics read it from their
+  // thread to report on the queues they feed.
+  @volatile
+  var metrics_snapshot:DestMetricsDTO = _
+
+  def publish_metrics = {
+    val metrics = get_queue_metrics
+    metrics.current_time = now
+    metrics_snapshot = metrics
+    val row = catalog_row
+    if( row!=null ) {
+      row.update(metrics)
+    }
   }
     
   var max_enqueue_rate = Int.MaxValue
@@ -33,21 +33,163 @@ import Queue._
 
 object QueueEntry extends Sizer[QueueEntry] with Log {
   def size(value: QueueEntry): Int = value.size
+
+  // Rough estimates of the heap used by the different parts of an
+  // entry, used to report how much heap the queued messages cost.
+  val ENTRY_HEAP_SIZE = 136
+  val SWAPPED_HEAP_SIZE = 96
+  val LOADED_HEAP_SIZE = 160
+  val SEGMENT_HEAP_SIZE = 96
+  val SEGMENT_ROW_HEAP_SIZE = 42
+
+  // Markers stored in a segment's locator position column.
+  val NO_LOCATOR = -1L
+  val EMPTY_LOCATOR = -2L
+
+  /**
+   * @return true if the locator can be stored in the
+   *         locator position and length columns of a segment.
+   */
+  def is_segmentable(locator:AtomicReference[Object]) = locator == null || (locator.get match {
+    case null => true
+    case (pos:Long, len:Int) => true
+    case _ => false
+  })
+}
+
+/**
+ * Holds the state of an entry's dispatch to its parked subscriptions.
+ * The queue hands the same instance to each dispatch so that dispatching
+ * does not allocate per message.
+ */
+class DispatchScratch {
+  val held_back = new SubscriptionBuffer
+  var acquiring:Subscription = _
+  var index_lookup:SelectorIndex#Lookup = _
+  var exclusive_target:Subscription = _
+  var message_group:String = _
+  // avoid doing the copy if its' not needed.
+  var browser_copy:Delivery = _
+
+  def clear = {
+    held_back.clear
+    acquiring = null
+    index_lookup = null
+    exclusive_target = null
+    message_group = null
+    browser_copy = null
+  }
+}
+
+/**
+ * A growable array of subscriptions.
+ */
+class SubscriptionBuffer {
+  private var subs = new Array[Subscription](8)
+  var size = 0
+
+  def apply(i:Int) = subs(i)
+
+  def +=(sub:Subscription) = {
+    if( size == subs.length ) {
+      val grown = new Array[Subscription](size*2)
+      System.arraycopy(subs, 0, grown, 0, size)
+      subs = grown
+    }
+    subs(size) = sub
+    size += 1
+  }
+
+  def clear = {
+    var i = 0
+    while( i < size ) {
+      subs(i) = null
+      i += 1
+    }
+    size = 0
+  }
 }
 
+/**
+ * The loaded entries of a queue, so that the swap maintenance only has to
+ * visit them instead of every entry.  An entry gets removed by moving the
+ * last one into its slot.
+ */
+class LoadedEntries {
+  private var states = new Array[QueueEntry#Loaded](64)
+  var size = 0
+
+  def apply(i:Int) = states(i)
+
+  def add(state:QueueEntry#Loaded) = {
+    if( size == states.length ) {
+      states = java.util.Arrays.copyOf(states, size*2)
+    }
+    state.slot = size
+    states(size) = state
+    size += 1
+  }
+
+  def remove(state:QueueEntry#Loaded) = {
+    val i = state.slot
+    if( i >= 0 ) {
+      size -= 1
+      val last = states(size)
+      states(i) = last
+      last.slot = i
+      states(size) = null
+      state.slot = -1
+    }
+  }
+}
+
+/**
+ * The subscriptions parked at an entry.  The subscriptions are the nodes
+ * of the list so they move between entries without allocating, and the
+ * list as a whole gets handed to the next entry when that one has no
+ * subscriptions of its own.
+ */
+class ParkedList(var entry:QueueEntry) extends LinkedNodeList[Subscription]
+
 class QueueEntry(val queue:Queue, val seq:Long) extends LinkedNode[QueueEntry] with Comparable[QueueEntry] {
   import QueueEntry._
 
 
 
-  // Subscriptions waiting to dispatch this entry.
-  var parked:List[Subscription] = Nil
+  // Subscriptions waiting to dispatch this entry, created when the
+  // first one gets parked.
+  private var parked:ParkedList = null
+
+  // subscriptions set this to the queue's prefetch generation when
+  // they are interested in the entry, so the queue can forget all the
+  // prefetches at once by moving to the next generation.
+  private var prefetch_generation = 0L
+
+  def prefetched = prefetch_generation == queue.prefetch_generation
+
+  def prefetched_=(value:Boolean) = {
+    prefetch_generation = if( value ) queue.prefetch_generation else 0L
+  }
+
+  // like the prefetch generation, but set on the entries subscriptions
+  // read ahead of their prefetch window.
+  private var read_ahead_generation = 0L
+
+  def read_ahead = read_ahead_generation == queue.prefetch_generation
+
+  def read_ahead_=(value:Boolean) = {
+    read_ahead_generation = if( value ) queue.prefetch_generation else 0L
+  }
+
+  // set while the entry is waiting in the queue's list of swapped
+  // entries to combine.
+  var combine_pending = false
 
-  // subscriptions will set this to true if they are interested
-  // in the entry.
-  var prefetched = false
+  // The expiration the entry is filed under in the queue's
+  // expiration index, 0 if it's not in the index.
+  var indexed_expiration = 0L
 
-  // The current state of the entry: Head | Tail | Loaded | Swapped | SwappedRange
+  // The current state of the entry: Head | Tail | Loaded | Swapped | SwappedSegment | SwappedRange
   var state:EntryState = new Tail
 
   def <(value:QueueEntry) = this.seq < value.seq
@@ -74,6 +216,7 @@ class QueueEntry(val queue:Queue, val seq:Long) extends LinkedNode[QueueEntry] w
       queue.producer_swapped_in += delivery
       state = new Loaded(delivery, false, queue.producer_swapped_in)
     }
+    queue.expiration_index.update(this)
     this
   }
 
@@ -84,11 +227,22 @@ class QueueEntry(val queue:Queue, val seq:Long) extends LinkedNode[QueueEntry] w
   }
 
   def init(range:QueueEntryRange):QueueEntry = {
-    state = new SwappedRange(range.last_entry_seq, range.count, range.size, range.expiration)
+    state = new SwappedRange(RangeSummary(range.first_entry_seq, range.last_entry_seq, range.count, range.size, range.expiration, range.redeliveries))
+    queue.expiration_index.update(this)
+    this
+  }
+
+  def init(summary:RangeSummary):QueueEntry = {
+    state = new SwappedRange(summary)
+    queue.expiration_index.update(this)
     this
   }
 
-  def hasSubs = !parked.isEmpty
+  def hasSubs = parked!=null && !parked.isEmpty
+
+  def parked_count = if( parked==null ) 0 else parked.size
+
+  def parked_head:Subscription = if( parked==null ) null else parked.getHead
 
   /**
    * Dispatches this entry to the consumers and continues dispatching subsequent
@@ -110,16 +264,57 @@ class QueueEntry(val queue:Queue, val seq:Long) extends LinkedNode[QueueEntry] w
   }
 
   def ::=(sub:Subscription) = {
-    parked = parked ::: sub :: Nil
+    if( parked==null ) {
+      parked = new ParkedList(this)
+    }
+    parked.addLast(sub)
   }
 
-  def :::=(l:List[Subscription]) = {
-    parked = parked ::: l
+  def -=(sub:Subscription) = {
+    assert(sub.getList eq parked)
+    sub.unlink
   }
 
+  /**
+   * Moves the parked subscriptions behind the ones parked at the
+   * specified entry.
+   */
+  def move_parked_to(next:QueueEntry):Unit = {
+    if( !hasSubs ) {
+      return
+    }
+    val moving = parked
+    if( next.hasSubs && moving.size <= next.parked.size ) {
+      next.parked.addLast(moving)
+    } else {
+      // Cheaper to link the next entry's few subs in front of ours
+      // and then trade lists with it.
+      if( next.hasSubs ) {
+        moving.addFirst(next.parked)
+      }
+      parked = next.parked
+      if( parked!=null ) {
+        parked.entry = this
+      }
+      next.parked = moving
+      moving.entry = next
+    }
+  }
 
-  def -=(s:Subscription) = {
-    parked = parked.filterNot(_ == s)
+  /**
+   * Closes the parked subscriptions that asked to be closed once
+   * they have seen all the queue's entries.
+   */
+  def close_drained_subscriptions = {
+    val closing = ListBuffer[Subscription]()
+    var sub = parked_head
+    while( sub!=null ) {
+      if( sub.consumer.close_on_drain ) {
+        closing += sub
+      }
+      sub = sub.getNext
+    }
+    closing.foreach(_.close)
   }
 
   def nextOrTail():QueueEntry = {
@@ -164,6 +359,7 @@ class QueueEntry(val queue:Queue, val seq:Long) extends LinkedNode[QueueEntry] w
 
   def as_swapped = state.as_swapped
   def as_swapped_range = state.as_swapped_range
+  def as_swapped_segment = state.as_swapped_segment
   def as_loaded = state.as_loaded
 
   def label = state.label
@@ -173,6 +369,7 @@ class QueueEntry(val queue:Queue, val seq:Long) extends LinkedNode[QueueEntry] w
   def is_loaded = as_loaded!=null
   def is_swapped = as_swapped!=null
   def is_swapped_range = as_swapped_range!=null
+  def is_swapped_segment = as_swapped_segment!=null
   def is_swapped_or_swapped_range = is_swapped || is_swapped_range
   def is_loading = state match {
     case state:SwappedRange => state.loading
@@ -218,6 +415,7 @@ class QueueEntry(val queue:Queue, val seq:Long) extends LinkedNode[QueueEntry] w
 
 
   def swapped_range = state.swap_range
+  def swapped_segment = state.swap_segment
 
   def can_combine_with_prev = {
     var prev = getPrevious
@@ -230,12 +428,34 @@ class QueueEntry(val queue:Queue, val seq:Long) extends LinkedNode[QueueEntry] w
       } else {
         (!prev_range.loading) &&
         (!is_loading) &&
-        ( (is_swapped && !is_acquired) || is_swapped_range ) &&
+        ( (is_swapped && !is_acquired) || is_swapped_range || is_swapped_segment ) &&
         (prev.count + count  < queue.tune_swap_range_size)
       }
     }
   }
 
+  /**
+   * Can this entry be packed into a SwappedSegment?
+   */
+  def can_segment = {
+    is_swapped && !is_acquired && !is_loading && !prefetched && !hasSubs &&
+    is_segmentable(state.message_locator)
+  }
+
+  def can_append_to_prev_segment = {
+    var prev = getPrevious
+    if ( prev == null ) {
+      false
+    } else {
+      val prev_segment = prev.as_swapped_segment
+      if ( prev_segment == null ) {
+        false
+      } else {
+        !prev.prefetched && can_segment && (prev.count < queue.tune_swap_range_size)
+      }
+    }
+  }
+
   trait EntryState {
 
     final def entry:QueueEntry = QueueEntry.this
@@ -244,6 +464,7 @@ class QueueEntry(val queue:Queue, val seq:Long) extends LinkedNode[QueueEntry] w
     def as_loaded:Loaded = null
     def as_swapped:Swapped = null
     def as_swapped_range:SwappedRange = null
+    def as_swapped_segment:SwappedSegment = null
     def as_head:Head = null
 
     /**
@@ -317,31 +538,70 @@ class QueueEntry(val queue:Queue, val seq:Long) extends LinkedNode[QueueEntry] w
 
     def swap_range:Unit = throw new AssertionError("should only be called on swapped entries");
 
+    def swap_segment:Unit = throw new AssertionError("should only be called on swapped entries");
+
     /**
      * Removes the entry from the queue's linked list of entries.  This gets called
      * as a result of an acquired ack.
      */
     def remove:Unit = {
       // advance subscriptions that were on this entry..
-      advance(parked)
-      parked = Nil
+      advance_parked
 
       // take the entry of the entries list..
+      queue.expiration_index.remove(QueueEntry.this)
       unlink
       //TODO: perhaps refill subscriptions.
     }
 
     /**
-     * Advances the specified subscriptions to the next entry in
+     * Advances the parked subscriptions to the next entry in
      * the linked list
      */
-    def advance(advancing: Seq[Subscription]): Unit = {
+    def advance_parked: Unit = {
       val nextPos = nextOrTail
-      nextPos :::= advancing.toList
-      advancing.foreach(_.advance(nextPos))
+      move_parked_to(nextPos)
+      if( queue.close_on_drain_subscriptions > 0 && (nextPos eq queue.tail_entry) ) {
+        nextPos.close_drained_subscriptions
+      }
       queue.trigger_swap
     }
 
+    /**
+     * Advances the parked subscriptions except for the held back ones, which
+     * stay parked at this entry in the same order.
+     *
+     * @return true if any subscription advanced
+     */
+    def advance_parked(held_back:SubscriptionBuffer): Boolean = {
+      var i = 0
+      while( i < held_back.size ) {
+        held_back(i).unlink
+        i += 1
+      }
+      val advanced = hasSubs
+      if( advanced ) {
+        advance_parked
+      }
+      i = 0
+      while( i < held_back.size ) {
+        QueueEntry.this ::= held_back(i)
+        i += 1
+      }
+      advanced
+    }
+
+    /**
+     * Asks the parked subscriptions to prefetch this entry.
+     */
+    def refill_parked_prefetch = {
+      var sub = parked_head
+      while( sub!=null ) {
+        sub.refill_prefetch
+        sub = sub.getNext
+      }
+    }
+
   }
 
   /**
@@ -358,9 +618,8 @@ class QueueEntry(val queue:Queue, val seq:Long) extends LinkedNode[QueueEntry] w
      * in this entry.. just advance the parked subs onto the next entry.
      */
     override def dispatch() = {
-      if( parked != Nil ) {
-        advance(parked)
-        parked = Nil
+      if( hasSubs ) {
+        advance_parked
         true
 
       } else {
@@ -406,8 +665,12 @@ class QueueEntry(val queue:Queue, val seq:Long) extends LinkedNode[QueueEntry] w
     var swapping_out = false
     var storing_enqueue = false
 
+    // the slot of the state in the queue's loaded entries.
+    var slot = -1
+
     queue.loaded_items += 1
     queue.loaded_size += size
+    queue.loaded_entries.add(this)
 
     def label = {
       var rc = "loaded"
@@ -535,9 +798,12 @@ class QueueEntry(val queue:Queue, val seq:Long) extends LinkedNode[QueueEntry] w
       } else {
         if( can_combine_with_prev ) {
           getPrevious.as_swapped_range.combineNext
+        } else if( can_append_to_prev_segment ) {
+          getPrevious.as_swapped_segment.append(entry)
         }
         queue.loaded_items -= 1
         queue.loaded_size -= size
+        queue.loaded_entries.remove(this)
       }
     }
 
@@ -555,6 +821,7 @@ class QueueEntry(val queue:Queue, val seq:Long) extends LinkedNode[QueueEntry] w
       if( !remove_pending ) {
         queue.loaded_items -= 1
         queue.loaded_size -= size
+        queue.loaded_entries.remove(this)
       }
       if( storing_enqueue | remove_pending ) {
         remove_pending = true
@@ -582,124 +849,117 @@ class QueueEntry(val queue:Queue, val seq:Long) extends LinkedNode[QueueEntry] w
       }
 
       // Nothing to dispatch if we don't have subs..
-      if( parked.isEmpty ) {
+      if( !hasSubs ) {
         return false
       }
 
-      var heldBack = ListBuffer[Subscription]()
-      var advancing = ListBuffer[Subscription]()
-
-      // avoid doing the copy if its' not needed.
-      var _browser_copy:Delivery = null
-      def browser_copy = {
-        if( _browser_copy==null ) {
-          _browser_copy = delivery.copy
-          // TODO: perhaps only avoid adding the address in the durable sub case..
-          if( _browser_copy.sender == Nil ) {
-            _browser_copy.sender ::= queue.address
-          }
-        }
-        _browser_copy
-      }
+      val message = delivery.message
+      val scratch = queue.borrow_dispatch_scratch
 
-      var acquiringSub: Subscription = null
+      // Rules out the subs whose selectors can't match without evaluating them.
+      val index_lookup = queue.selector_index.lookup(message)
 
       // Find the the first exclusive target of the message
-      var exclusive_target = queue.exclusive_subscriptions.find( _.matches(delivery) )
-
-      // Should we looks for the message group bucket?
-      if ( exclusive_target.isEmpty && delivery.message.message_group != null ) {
-        var iterator = queue.message_group_buckets.iterator(delivery.message.message_group)
-        while (exclusive_target==None && iterator.hasNext) {
-          val bucket = iterator.next();
-          if( bucket.sub.matches(delivery) ) {
-            exclusive_target = Some(bucket.sub)
-          }
+      var exclusive_target:Subscription = null
+      val exclusive_subs = queue.exclusive_subscriptions
+      var e = 0
+      while( exclusive_target==null && e < exclusive_subs.size ) {
+        val sub = exclusive_subs.get(e)
+        if( matches(index_lookup, sub) ) {
+          exclusive_target = sub
         }
+        e += 1
       }
 
-      parked.foreach{ sub=>
-
-        if( sub.browser ) {
-          if (!sub.matches(delivery)) {
-            // advance: not interested.
-            advancing += sub
-          } else {
-            if (sub.offer(browser_copy)) {
-              // advance: accepted...
-              advancing += sub
-            } else {
-              // hold back: flow controlled
-              heldBack += sub
+      // Should we looks for the message group bucket?
+      val message_group = message.message_group
+      if ( exclusive_target==null && message_group != null ) {
+        val groups = queue.message_groups
+        val assigned = groups.assigned(message_group)
+        if( assigned!=null && matches(index_lookup, assigned) ) {
+          exclusive_target = assigned
+        } else {
+          val iterator = groups.ring.iterator(message_group)
+          var owner = true
+          while (exclusive_target==null && iterator.hasNext) {
+            val bucket = iterator.next();
+            if( matches(index_lookup, bucket.sub) ) {
+              exclusive_target = bucket.sub
+              // Later subs only get the message because the owner's
+              // selector did not match it, so don't remember those.
+              if( owner ) {
+                groups.assign(message_group, bucket.sub)
+              }
             }
+            owner = false
           }
+        }
+      }
 
-        } else {
-          if( is_acquired ) {
-            // advance: another sub already acquired this entry..
-            advancing += sub
-          } else {
-
-            // Is the current sub not the exclusive target?
-            if( (exclusive_target.isDefined && (exclusive_target.get != sub))
-                || !sub.matches(delivery)
-                || (exclusive_target.isEmpty && delivery.message.message_group!=null) ) {
-              // advance: not interested.
-              advancing += sub
-            } else {
-
-              // Is the sub flow controlled?
-              if( sub.full ) {
-                // hold back: flow controlled
-                heldBack += sub
-              } else {
-                // advance: accepted...
-                if( queue.tune_round_robin ) {
-                  acquiringSub = sub
-                } else {
-                  advancing += sub
-                }
-                acquirer = sub
-
-                val acquiredQueueEntry = sub.acquire(entry)
-                val acquiredDelivery = delivery.copy
-                if( acquiredDelivery.sender == Nil) {
-                  acquiredDelivery.sender ::= queue.address
-                }
-
-                acquiredDelivery.ack = (consumed, uow)=> {
-                  if( uow!=null ) {
-                    uow.retain
-                  }
-                  queue.process_ack(acquiredQueueEntry, consumed, uow)
-                }
-
-                val accepted = sub.offer(acquiredDelivery)
-                assert(accepted, "sub should have accepted, it had reported not full earlier.")
+      scratch.index_lookup = index_lookup
+      scratch.exclusive_target = exclusive_target
+      scratch.message_group = message_group
+
+      // Subs that advance are left parked, they all get moved to
+      // the next entry at once afterwards.
+      if( index_lookup!=null && index_lookup.candidate_count < parked_count ) {
+        // Only the subs the selector index found can match, so just
+        // visit the ones parked here.  The others advance without
+        // getting looked at.
+        var l = 0
+        while( l < index_lookup.list_count ) {
+          val candidates = index_lookup.list(l)
+          val count = candidates.size
+          var acquired_at = -1
+          var i = 0
+          while( i < count ) {
+            val sub = candidates(i)
+            if( sub.pos eq entry ) {
+              offer_to(sub, scratch)
+              if( acquired_at < 0 && (scratch.acquiring eq sub) ) {
+                acquired_at = i
               }
             }
+            i += 1
           }
+          // The next walk of the list starts after the acquiring sub,
+          // that's how round robin applies to the candidates.
+          if( acquired_at >= 0 ) {
+            candidates.rotate_past(acquired_at)
+          }
+          l += 1
+        }
+      } else {
+        var sub = parked_head
+        while( sub!=null ) {
+          val next_sub = sub.getNext
+          offer_to(sub, scratch)
+          sub = next_sub
         }
       }
 
-      // The acquiring sub is added last to the list so that
+      // The acquiring sub is moved last in the list so that
       // the other competing subs get first dibs at the next entry.
+      val acquiringSub = scratch.acquiring
       if( acquiringSub != null ) {
-        advancing += acquiringSub
+        QueueEntry.this -= acquiringSub
+        QueueEntry.this ::= acquiringSub
       }
 
-      if ( advancing.isEmpty ) {
+      // The held back subs stay on this entry, the rest move
+      // on to the next entry...
+      val advanced = advance_parked(scratch.held_back)
+      queue.return_dispatch_scratch(scratch)
+      if( index_lookup!=null ) {
+        queue.selector_index.release(index_lookup)
+      }
+
+      if ( !advanced ) {
         return false
       } else {
 
-        // The held back subs stay on this entry..
-        parked = heldBack.toList
-
-        // the advancing subs move on to the next entry...
-        advance(advancing)
-
         // We can drop after dispatch in some cases.
-        if( queue.is_topic_queue  && parked.isEmpty && getPrevious.is_head ) {
+        if( queue.is_topic_queue  && !hasSubs && getPrevious.is_head ) {
           dequeue(null)
           remove
         }
@@ -708,6 +968,74 @@ class QueueEntry(val queue:Queue, val seq:Long) extends LinkedNode[QueueEntry] w
         return true
       }
     }
+
+    /**
+     * Offers the entry to a parked sub.  The sub is added to the held back
+     * subs if it's flow controlled, and gets recorded as the acquiring sub
+     * if it acquires the entry and the queue is round robin.
+     */
+    private def offer_to(sub:Subscription, scratch:DispatchScratch):Unit = {
+      if( sub.browser ) {
+        if (!matches(scratch.index_lookup, sub)) {
+          // advance: not interested.
+        } else {
+          if( scratch.browser_copy==null ) {
+            scratch.browser_copy = delivery.copy
+            // TODO: perhaps only avoid adding the address in the durable sub case..
+            if( scratch.browser_copy.sender == Nil ) {
+              scratch.browser_copy.sender = queue.sender_list
+            }
+          }
+          if (sub.offer(scratch.browser_copy)) {
+            // advance: accepted...
+          } else {
+            // hold back: flow controlled
+            scratch.held_back += sub
+          }
+        }
+
+      } else {
+        if( is_acquired ) {
+          // advance: another sub already acquired this entry..
+        } else {
+
+          // Is the current sub not the exclusive target?
+          if( (scratch.exclusive_target!=null && (scratch.exclusive_target ne sub))
+              || !matches(scratch.index_lookup, sub)
+              || (scratch.exclusive_target==null && scratch.message_group!=null) ) {
+            // advance: not interested.
+          } else {
+
+            // Is the sub flow controlled?
+            if( sub.full ) {
+              // hold back: flow controlled
+              scratch.held_back += sub
+            } else {
+              // advance: accepted...
+              if( queue.tune_round_robin ) {
+                scratch.acquiring = sub
+              }
+              acquirer = sub
+
+              // The acquired entry doubles as the ack callback of the delivery.
+              val acquiredQueueEntry = sub.acquire(entry)
+              val acquiredDelivery = delivery.copy
+              if( acquiredDelivery.sender == Nil) {
+                acquiredDelivery.sender = queue.sender_list
+              }
+              acquiredDelivery.ack = acquiredQueueEntry
+
+              val accepted = sub.offer(acquiredDelivery)
+              assert(accepted, "sub should have accepted, it had reported not full earlier.")
+            }
+          }
+        }
+      }
+    }
+
+    private def matches(index_lookup:SelectorIndex#Lookup, sub:Subscription) = {
+      (index_lookup==null || index_lookup.may_match(sub)) && sub.matches(delivery)
+    }
   }
 
   /**
@@ -720,6 +1048,7 @@ class QueueEntry(val queue:Queue, val seq:Long) extends LinkedNode[QueueEntry] w
     assert( message_key!= -1 )
 
     queue.individual_swapped_items += 1
+    queue.swapped_to_combine(entry)
 
     var space:MemorySpace = _
 
@@ -838,7 +1167,16 @@ class QueueEntry(val queue:Queue, val seq:Long) extends LinkedNode[QueueEntry] w
         queue.swapping_in_size -= size
       }
       queue.individual_swapped_items -= 1
-      state = new SwappedRange(seq, 1, size, expiration)
+      state = new SwappedRange(RangeSummary(seq, seq, 1, size, expiration, redelivery_count))
+    }
+
+    override def swap_segment = {
+      // You can't segment an acquired or loading entry.
+      assert(!is_acquired && space==null)
+      queue.individual_swapped_items -= 1
+      val segment = new SwappedSegment(16)
+      segment.add(this)
+      state = segment
     }
 
     override def dispatch():Boolean = {
@@ -857,47 +1195,225 @@ class QueueEntry(val queue:Queue, val seq:Long) extends LinkedNode[QueueEntry] w
       }
 
       // Nothing to dispatch if we don't have subs..
-      if( parked.isEmpty ) {
+      if( !hasSubs ) {
         return false
       }
 
-      var heldBack = ListBuffer[Subscription]()
-      var advancing = ListBuffer[Subscription]()
-
-      parked.foreach{ sub=>
-        if( sub.browser ) {
-          heldBack += sub
-        } else {
-          if( is_acquired ) {
-            // advance: another sub already acquired this entry.. we don't need to load.. yay!
-            advancing += sub
-          } else {
-            heldBack += sub
+      // Browsers need the message loaded, and so do the other subs
+      // unless another sub already acquired this entry.
+      var advanced = false
+      if( is_acquired ) {
+        // advance: another sub already acquired this entry.. we don't need to load.. yay!
+        val scratch = queue.borrow_dispatch_scratch
+        var sub = parked_head
+        while( sub!=null ) {
+          if( sub.browser ) {
+            scratch.held_back += sub
           }
+          sub = sub.getNext
         }
+        advanced = advance_parked(scratch.held_back)
+        queue.return_dispatch_scratch(scratch)
       }
 
-      if ( advancing.isEmpty ) {
-        if (space==null && !parked.isEmpty) {
-          // If we are not swapping in try to get a sub to prefetch us.
-          parked.foreach(_.refill_prefetch)
-        }
-        return false
-      } else {
+      if (space==null && hasSubs) {
+        // If we are not swapping in try to get a sub to prefetch us.
+        refill_parked_prefetch
+      }
+      advanced
+    }
+  }
+
+  /**
+   * A SwappedSegment state packs the details of a run of swapped entries into primitive
+   * arrays so that the whole run only costs a single QueueEntry and a few arrays.
+   *
+   * Unlike a SwappedRange, the entries of a segment can be recreated without querying the
+   * store, so it is used for swapped entries which are still close to the subscriptions.
+   * The entries are recreated in the Swapped state once a subscription or the swap in
+   * logic reaches the segment.
+   */
+  class SwappedSegment(initial_capacity:Int) extends EntryState {
+
+    var seqs = new Array[Long](initial_capacity)
+    var sizes = new Array[Int](initial_capacity)
+    var expirations = new Array[Long](initial_capacity)
+    var redeliveries = new Array[Short](initial_capacity)
+    var message_keys = new Array[Long](initial_capacity)
+    var locator_positions = new Array[Long](initial_capacity)
+    var locator_lengths = new Array[Int](initial_capacity)
+    // Only allocated once an entry with senders gets added.
+    var senders:Array[List[DestinationAddress]] = null
 
-        // The held back subs stay on this entry..
-        parked = heldBack.toList
+    var _count = 0
+    var _size = 0
+    var _expiration = 0L
 
-        if (space==null && !parked.isEmpty) {
-          // If we are not swapping in try to get a sub to prefetch us.
-          parked.foreach(_.refill_prefetch)
+    queue.swapped_segment_heap_size += heap_size
+
+    override def count = _count
+    override def size = _size
+    override def expiration = _expiration
+
+    override def as_swapped_segment = this
+
+    override def is_swapped_or_swapping_out = true
+
+    def label = "swapped_segment"
+    override def toString = { "swapped_segment:{ count: "+count+", size: "+size+"}" }
+
+    /** the last seq id in the segment */
+    def last = seqs(_count-1)
+
+    def heap_size = SEGMENT_HEAP_SIZE + seqs.length * SEGMENT_ROW_HEAP_SIZE
+
+    private def grow = {
+      queue.swapped_segment_heap_size -= heap_size
+      val capacity = seqs.length * 2
+      seqs = java.util.Arrays.copyOf(seqs, capacity)
+      sizes = java.util.Arrays.copyOf(sizes, capacity)
+      expirations = java.util.Arrays.copyOf(expirations, capacity)
+      redeliveries = java.util.Arrays.copyOf(redeliveries, capacity)
+      message_keys = java.util.Arrays.copyOf(message_keys, capacity)
+      locator_positions = java.util.Arrays.copyOf(locator_positions, capacity)
+      locator_lengths = java.util.Arrays.copyOf(locator_lengths, capacity)
+      if( senders!=null ) {
+        senders = java.util.Arrays.copyOf(senders.asInstanceOf[Array[Object]], capacity).asInstanceOf[Array[List[DestinationAddress]]]
+      }
+      queue.swapped_segment_heap_size += heap_size
+    }
+
+    def add(swapped:Swapped) = {
+      val i = _count
+      if( i == seqs.length ) {
+        grow
+      }
+      seqs(i) = swapped.entry.seq
+      sizes(i) = swapped.size
+      expirations(i) = swapped.expiration
+      redeliveries(i) = swapped.redelivery_count
+      message_keys(i) = swapped.message_key
+      val locator = swapped.message_locator
+      if( locator == null ) {
+        locator_positions(i) = NO_LOCATOR
+      } else {
+        locator.get match {
+          case null =>
+            locator_positions(i) = EMPTY_LOCATOR
+          case (pos:Long, len:Int) =>
+            locator_positions(i) = pos
+            locator_lengths(i) = len
+        }
+      }
+      if( !swapped.sender.isEmpty ) {
+        if( senders == null ) {
+          senders = new Array[List[DestinationAddress]](seqs.length)
+          java.util.Arrays.fill(senders.asInstanceOf[Array[Object]], Nil)
         }
+        senders(i) = swapped.sender
+      } else if( senders!=null ) {
+        senders(i) = Nil
+      }
 
-        // the advancing subs move on to the next entry...
-        advance(advancing)
-        return true
+      _count += 1
+      _size += swapped.size
+      if( _expiration == 0 ) {
+        _expiration = swapped.expiration
+      } else if( swapped.expiration != 0 ) {
+        _expiration = swapped.expiration.min(_expiration)
+      }
+      queue.swapped_segment_items += 1
+      queue.expiration_index.update(QueueEntry.this)
+      if( _count >= queue.tune_swap_range_size ) {
+        // full, let the next swap pass decide if it should become a range.
+        queue.swapped_to_combine(QueueEntry.this)
       }
     }
+
+    /**
+     * Moves the next swapped queue entry into this segment.
+     */
+    def append(value:QueueEntry):Unit = {
+      assert(value.can_segment)
+      assert(last < value.seq)
+      add(value.as_swapped)
+      value.remove
+    }
+
+    private def locator(i:Int) = locator_positions(i) match {
+      case NO_LOCATOR => null
+      case EMPTY_LOCATOR => new AtomicReference[Object]()
+      case pos => new AtomicReference[Object]((pos, locator_lengths(i)))
+    }
+
+    private def release = {
+      queue.swapped_segment_items -= _count
+      queue.swapped_segment_heap_size -= heap_size
+    }
+
+    /**
+     * Replaces the segment with queue entries in the Swapped state.
+     * @return the first of the recreated entries.
+     */
+    def expand:QueueEntry = {
+      assert(isLinked)
+      // the first recreated entry has the same seq as the segment.
+      queue.expiration_index.remove(QueueEntry.this)
+      val tmpList = new LinkedNodeList[QueueEntry]()
+      var i = 0
+      while( i < _count ) {
+        val value = new QueueEntry(queue, seqs(i))
+        val sender = if( senders == null ) Nil else senders(i)
+        value.state = new value.Swapped(message_keys(i), locator(i), sizes(i), expirations(i), redeliveries(i), null, sender)
+        queue.expiration_index.update(value)
+        tmpList.addLast(value)
+        i += 1
+      }
+      release
+
+      linkAfter(tmpList)
+      val next = getNext
+
+      // move the subs to the first entry that we just recreated.
+      move_parked_to(next)
+      queue.trigger_swap
+      unlink
+      next
+    }
+
+    override def swap_in(space:MemorySpace):Unit = expand
+
+    override def dispatch():Boolean = {
+      if( !hasSubs ) {
+        false
+      } else {
+        expand
+        true
+      }
+    }
+
+    /**
+     * @return a summary of the entries in the segment.
+     */
+    def summary = {
+      val rc = new RangeSummary
+      var i = 0
+      while( i < _count ) {
+        rc.add(seqs(i), seqs(i), 1, sizes(i), expirations(i), redeliveries(i))
+        i += 1
+      }
+      rc
+    }
+
+    override def swap_range = {
+      release
+      state = new SwappedRange(summary)
+    }
+
+    override def remove = {
+      release
+      super.remove
+    }
   }
 
   /**
@@ -906,23 +1422,19 @@ class QueueEntry(val queue:Queue, val seq:Long) extends LinkedNode[QueueEntry] w
    * Even entries that are Swapped can us a significant amount of memory if the queue is holding
    * thousands of them.  Multiple entries in the swapped state can be combined into a single entry in
    * the SwappedRange state thereby conserving even more memory.  A SwappedRange entry only tracks
-   * the first, and last sequnce ids of the range.  When the entry needs to be loaded from the range
-   * it replaces the swapped range entry with all the swapped entries by querying the store of all the
-   * message keys for the entries in the range.
+   * a RangeSummary of a few spans of the sequence ids in the range.  When the entry needs to be loaded
+   * from the range it replaces the swapped range entry with all the swapped entries by querying the
+   * store of all the message keys for the entries in the range.  When only some of the entries are
+   * needed, the range can first be split on the span boundaries so that only those spans get loaded.
    */
-  class SwappedRange(
-    /** the last seq id in the range */
-    var last:Long,
-    /** the number of items in the range */
-    var _count:Int,
-    /** size in bytes of the range */
-    var _size:Int,
-    var _expiration:Long) extends EntryState {
+  class SwappedRange(var summary:RangeSummary) extends EntryState {
 
+    /** the last seq id in the range */
+    def last = summary.last
 
-    override def count = _count
-    override def size = _size
-    override def expiration = _expiration
+    override def count = summary.count
+    override def size = summary.size
+    override def expiration = summary.expiration
 
     var loading = false
 
@@ -938,7 +1450,7 @@ class QueueEntry(val queue:Queue, val seq:Long) extends LinkedNode[QueueEntry] w
       }
       rc
     }
-    override def toString = { "swapped_range:{ swapping_in: "+loading+", count: "+count+", size: "+size+"}" }
+    override def toString = { "swapped_range:{ swapping_in: "+loading+", count: "+count+", size: "+size+", spans: "+summary.span_count+"}" }
 
     var swapped_in_watchers = List[()=>Unit]()
     def fire_swapped_in_watchers = {
@@ -985,12 +1497,18 @@ class QueueEntry(val queue:Queue, val seq:Long) extends LinkedNode[QueueEntry] w
           }
 
           loading  = false
+          // the first loaded entry has the same seq as the range.
+          queue.expiration_index.remove(QueueEntry.this)
+          var cur = tmpList.getHead
+          while( cur!=null ) {
+            queue.expiration_index.update(cur)
+            cur = cur.getNext
+          }
           linkAfter(tmpList)
           val next = getNext
 
           // move the subs to the first entry that we just loaded.
-          parked.foreach(_.advance(next))
-          next :::= parked
+          move_parked_to(next)
           queue.trigger_swap
           unlink
           fire_swapped_in_watchers
@@ -1013,27 +1531,71 @@ class QueueEntry(val queue:Queue, val seq:Long) extends LinkedNode[QueueEntry] w
     def combineNext():Unit = {
       val value = getNext
       assert(value!=null)
-      assert(value.is_swapped || value.is_swapped_range)
+      assert(value.is_swapped || value.is_swapped_range || value.is_swapped_segment)
       assert(!value.is_acquired)
       assert(!value.is_loading)
+      assert(last < value.seq )
       if( value.is_swapped ) {
-        assert(last < value.seq )
-        last = value.seq
-        _count += 1
+        summary.add(value.seq, value.seq, 1, value.size, value.expiration, value.redelivery_count)
       } else if( value.is_swapped_range ) {
-        assert(last < value.seq )
-        last = value.as_swapped_range.last
-        _count += value.as_swapped_range.count
+        summary.add(value.as_swapped_range.summary)
+      } else if( value.is_swapped_segment ) {
+        summary.add(value.as_swapped_segment.summary)
       }
-      if(_expiration == 0){
-        _expiration = value.expiration
-      } else {
-        if( value.expiration != 0 ) {
-          _expiration = value.expiration.min(_expiration)
+      value.remove
+      queue.expiration_index.update(QueueEntry.this)
+    }
+
+    /**
+     * Appends a range of entries which was listed from the store.
+     */
+    def append(range:QueueEntryRange):Unit = {
+      summary.add(range.first_entry_seq, range.last_entry_seq, range.count, range.size, range.expiration, range.redeliveries)
+      queue.expiration_index.update(QueueEntry.this)
+    }
+
+    /**
+     * Splits the range on the boundaries between the spans that match and the
+     * spans that don't, so that the matching spans can be loaded without
+     * loading the rest of the range.  This entry keeps the first part of the range.
+     *
+     * @return the entries that hold the matching spans.
+     */
+    def split(matches:Int=>Boolean):Seq[QueueEntry] = {
+      if( loading ) {
+        return if( (0 until summary.span_count).exists(matches) ) List(QueueEntry.this) else Nil
+      }
+      val rc = ListBuffer[QueueEntry]()
+      val tmpList = new LinkedNodeList[QueueEntry]()
+      val spans = summary.span_count
+      var start = 0
+      var first_part:RangeSummary = null
+      while( start < spans ) {
+        val matched = matches(start)
+        var end = start + 1
+        while( end < spans && matches(end) == matched ) {
+          end += 1
+        }
+        val part = summary.slice(start, end)
+        val part_entry = if( first_part == null ) {
+          first_part = part
+          QueueEntry.this
+        } else {
+          val value = new QueueEntry(queue, part.first).init(part)
+          tmpList.addLast(value)
+          value
+        }
+        if( matched ) {
+          rc += part_entry
         }
+        start = end
       }
-      _size += value.size
-      value.remove
+      if( !tmpList.isEmpty ) {
+        summary = first_part
+        queue.expiration_index.update(QueueEntry.this)
+        linkAfter(tmpList)
+      }
+      rc
     }
 
   }
@@ -0,0 +1,227 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.activemq.apollo.broker
+
+object RangeSummary {
+
+  /**
+   * The most spans a summary keeps, adjacent spans get merged
+   * once a summary grows past this.
+   */
+  val MAX_SPANS = 16
+
+  def apply(first:Long, last:Long, count:Int, size:Int, expiration:Long, redeliveries:Short) = {
+    val rc = new RangeSummary
+    rc.add(first, last, count, size, expiration, redeliveries)
+    rc
+  }
+}
+
+/**
+ * Summarizes the entries of a swapped range as a short list of seq spans.
+ * Every span tracks the number and size of its entries, the earliest
+ * expiration of its messages and their highest redelivery count.  This lets
+ * the queue load just the spans of a range which hold the entries it needs
+ * (the expired ones or the ones being browsed) instead of querying the store
+ * for the whole range.
+ *
+ * Once there are more than MAX_SPANS spans, the adjacent spans which are
+ * cheapest to merge get merged.  Runs of entries which do not expire merge
+ * first so that the spans holding expiring messages stay narrow.
+ */
+class RangeSummary {
+  import RangeSummary._
+
+  private var firsts = new Array[Long](2)
+  private var lasts = new Array[Long](2)
+  private var counts = new Array[Int](2)
+  private var sizes = new Array[Int](2)
+  private var expirations = new Array[Long](2)
+  private var max_redeliveries = new Array[Short](2)
+  private var spans = 0
+
+  var count = 0
+  var size = 0
+
+  def span_count = spans
+
+  def first = firsts(0)
+  def last = lasts(spans-1)
+
+  def span_first(i:Int) = firsts(i)
+  def span_last(i:Int) = lasts(i)
+  def span_size(i:Int) = sizes(i)
+  def span_entries(i:Int) = counts(i)
+
+  /**
+   * @return the earliest expiration of the messages in the span, 0 if none of them expire.
+   */
+  def span_expiration(i:Int) = expirations(i)
+
+  /**
+   * @return true if messages in the span expire at or before the given time.
+   */
+  def is_due(i:Int, now:Long) = expirations(i) != 0 && expirations(i) <= now
+
+  /**
+   * @return the earliest expiration of the messages in the range, 0 if none of them expire.
+   */
+  def expiration = {
+    var rc = 0L
+    var i = 0
+    while( i < spans ) {
+      rc = min_expiration(rc, expirations(i))
+      i += 1
+    }
+    rc
+  }
+
+  /**
+   * @return the highest redelivery count of the messages in the range.
+   */
+  def redeliveries = {
+    var rc:Short = 0
+    var i = 0
+    while( i < spans ) {
+      if( max_redeliveries(i) > rc ) {
+        rc = max_redeliveries(i)
+      }
+      i += 1
+    }
+    rc
+  }
+
+  /**
+   * @return the index of the first span which holds entries at or after the seq.
+   */
+  def span_index(seq:Long) = {
+    var i = 0
+    while( i < spans-1 && lasts(i) < seq ) {
+      i += 1
+    }
+    i
+  }
+
+  private def min_expiration(a:Long, b:Long) = if( a == 0 ) b else if( b == 0 ) a else a.min(b)
+
+  private def grow = {
+    val capacity = (firsts.length * 2).min(MAX_SPANS+1)
+    firsts = java.util.Arrays.copyOf(firsts, capacity)
+    lasts = java.util.Arrays.copyOf(lasts, capacity)
+    counts = java.util.Arrays.copyOf(counts, capacity)
+    sizes = java.util.Arrays.copyOf(sizes, capacity)
+    expirations = java.util.Arrays.copyOf(expirations, capacity)
+    max_redeliveries = java.util.Arrays.copyOf(max_redeliveries, capacity)
+  }
+
+  /**
+   * Appends a span of entries which come after the entries already in the summary.
+   */
+  def add(first:Long, last:Long, count:Int, size:Int, expiration:Long, redeliveries:Short):Unit = {
+    assert(spans == 0 || this.last < first)
+    this.count += count
+    this.size += size
+    if( spans > 0 && expiration == 0 && redeliveries == 0 && expirations(spans-1) == 0 ) {
+      // extending a run of entries which don't expire
+      // keeps the span as useful as it was.
+      val i = spans-1
+      lasts(i) = last
+      counts(i) += count
+      sizes(i) += size
+    } else {
+      if( spans == firsts.length ) {
+        grow
+      }
+      val i = spans
+      firsts(i) = first
+      lasts(i) = last
+      counts(i) = count
+      sizes(i) = size
+      expirations(i) = expiration
+      max_redeliveries(i) = redeliveries
+      spans += 1
+      if( spans > MAX_SPANS ) {
+        compact
+      }
+    }
+  }
+
+  /**
+   * Appends the spans of a summary of the entries which come after the entries
+   * already in this summary.
+   */
+  def add(other:RangeSummary):Unit = {
+    var i = 0
+    while( i < other.spans ) {
+      add(other.firsts(i), other.lasts(i), other.counts(i), other.sizes(i), other.expirations(i), other.max_redeliveries(i))
+      i += 1
+    }
+  }
+
+  /**
+   * @return a summary of the spans from the start index up to but not including the end index.
+   */
+  def slice(start:Int, end:Int) = {
+    val rc = new RangeSummary
+    var i = start
+    while( i < end ) {
+      rc.add(firsts(i), lasts(i), counts(i), sizes(i), expirations(i), max_redeliveries(i))
+      i += 1
+    }
+    rc
+  }
+
+  /**
+   * Merges the pair of adjacent spans which costs the least precision.
+   */
+  private def compact = {
+    var best = 0
+    var best_cost = Long.MaxValue
+    var i = 0
+    while( i < spans-1 ) {
+      val cost = if( expirations(i) == 0 && expirations(i+1) == 0 ) {
+        0L
+      } else {
+        counts(i).toLong + counts(i+1)
+      }
+      if( cost < best_cost ) {
+        best = i
+        best_cost = cost
+      }
+      i += 1
+    }
+
+    lasts(best) = lasts(best+1)
+    counts(best) += counts(best+1)
+    sizes(best) += sizes(best+1)
+    expirations(best) = min_expiration(expirations(best), expirations(best+1))
+    if( max_redeliveries(best+1) > max_redeliveries(best) ) {
+      max_redeliveries(best) = max_redeliveries(best+1)
+    }
+
+    val moved = spans - best - 2
+    System.arraycopy(firsts, best+2, firsts, best+1, moved)
+    System.arraycopy(lasts, best+2, lasts, best+1, moved)
+    System.arraycopy(counts, best+2, counts, best+1, moved)
+    System.arraycopy(sizes, best+2, sizes, best+1, moved)
+    System.arraycopy(expirations, best+2, expirations, best+1, moved)
+    System.arraycopy(max_redeliveries, best+2, max_redeliveries, best+1, moved)
+    spans -= 1
+  }
+
+  override def toString = "range_summary:{ first: "+first+", last: "+last+", count: "+count+", spans: "+spans+"}"
+}
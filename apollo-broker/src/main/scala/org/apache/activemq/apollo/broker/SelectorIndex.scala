@@ -0,0 +1,325 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.activemq.apollo.broker
+
+import org.apache.activemq.apollo.filter.{FilterException, IndexablePredicate}
+import org.apache.activemq.apollo.selector.SelectorParser
+import org.apache.activemq.apollo.util.Log
+import collection.mutable.HashMap
+
+object SelectorIndex extends Log {
+
+  class PropertyIndex(val name:String) {
+    /** property value -> the subscriptions accepting it */
+    val by_value = new java.util.HashMap[String, CandidateList]()
+    /** the subscriptions that may also accept non String values */
+    val loose = new CandidateList
+    var size = 0
+  }
+
+  /**
+   * @return the `property = 'value'` or `property IN (...)` test the
+   *         consumer's selector requires, or null if it does not have one.
+   */
+  def predicate(consumer:DeliveryConsumer):IndexablePredicate = {
+    val selector = consumer.jms_selector
+    if( selector == null ) {
+      null
+    } else {
+      try {
+        IndexablePredicate.extract(SelectorParser.parse(selector))
+      } catch {
+        case e:FilterException =>
+          debug("Not indexing selector '%s': %s", selector, e.getMessage)
+          null
+      }
+    }
+  }
+}
+
+/**
+ * An ordered array of subscriptions.  The position the list starts at can
+ * be moved past a subscription so that the next walk of the list starts
+ * with the subscription after it, which is how round robin dispatch is
+ * done when only the list's subscriptions get visited.
+ */
+class CandidateList {
+  private var subs = new Array[Subscription](2)
+  private var start = 0
+  var size = 0
+
+  /**
+   * @return the i'th subscription counting from the start of the list.
+   */
+  def apply(i:Int) = {
+    var j = start + i
+    if( j >= size ) {
+      j -= size
+    }
+    subs(j)
+  }
+
+  def add(sub:Subscription) = {
+    if( size == subs.length ) {
+      subs = java.util.Arrays.copyOf(subs, size*2)
+    }
+    if( start == 0 ) {
+      subs(size) = sub
+    } else {
+      // The end of the list is just before its start.
+      System.arraycopy(subs, start, subs, start+1, size-start)
+      subs(start) = sub
+      start += 1
+    }
+    size += 1
+  }
+
+  def remove(sub:Subscription) = {
+    var i = 0
+    while( i < size && (subs(i) ne sub) ) {
+      i += 1
+    }
+    if( i < size ) {
+      System.arraycopy(subs, i+1, subs, i, size-i-1)
+      size -= 1
+      subs(size) = null
+      if( i < start ) {
+        start -= 1
+      }
+      if( start >= size ) {
+        start = 0
+      }
+    }
+  }
+
+  /**
+   * Moves the start of the list past its i'th subscription.
+   */
+  def rotate_past(i:Int) = {
+    start = (start + i + 1) % size
+  }
+}
+
+/**
+ * Indexes the subscriptions of a queue by the values their selectors require
+ * a message property to have.  When a message gets dispatched, each indexed
+ * property is looked up once to find the subscriptions which accept its
+ * value.  Those and the subscriptions that could not be indexed are the only
+ * ones whose selectors can match the message.
+ */
+class SelectorIndex {
+  import SelectorIndex._
+
+  private val properties = HashMap[String, PropertyIndex]()
+
+  // The property indexes as an array so a dispatch can walk them
+  // without allocating.
+  private var property_indexes = new Array[PropertyIndex](0)
+
+  /** the subscriptions whose selectors could not be indexed */
+  val unindexed = new CandidateList
+
+  def add(sub:Subscription) = {
+    val predicate = sub.selector_predicate
+    if( predicate==null ) {
+      unindexed.add(sub)
+    } else {
+      val index = properties.getOrElseUpdate(predicate.getProperty, {
+        val rc = new PropertyIndex(predicate.getProperty)
+        property_indexes = properties.values.toArray :+ rc
+        rc
+      })
+      val values = predicate.getValues.iterator
+      while( values.hasNext ) {
+        val value = values.next
+        var list = index.by_value.get(value)
+        if( list == null ) {
+          list = new CandidateList
+          index.by_value.put(value, list)
+        }
+        list.add(sub)
+      }
+      if( !predicate.isStrict ) {
+        index.loose.add(sub)
+      }
+      index.size += 1
+    }
+  }
+
+  def remove(sub:Subscription) = {
+    val predicate = sub.selector_predicate
+    if( predicate==null ) {
+      unindexed.remove(sub)
+    } else {
+      properties.get(predicate.getProperty) match {
+        case Some(index) =>
+          val values = predicate.getValues.iterator
+          while( values.hasNext ) {
+            val value = values.next
+            val list = index.by_value.get(value)
+            if( list != null ) {
+              list.remove(sub)
+              if( list.size == 0 ) {
+                index.by_value.remove(value)
+              }
+            }
+          }
+          if( !predicate.isStrict ) {
+            index.loose.remove(sub)
+          }
+          index.size -= 1
+          if( index.size == 0 ) {
+            properties.remove(index.name)
+            property_indexes = properties.values.toArray
+          }
+        case None =>
+      }
+    }
+  }
+
+  def isEmpty = properties.isEmpty
+
+  /**
+   * @return a lookup of the subscriptions which may match the message, or
+   *         null if none of the subscriptions are indexed.
+   */
+  def lookup(message:Message):Lookup = {
+    if( properties.isEmpty ) {
+      null
+    } else {
+      // Reuse the idle lookup unless a dispatch is still using it.
+      var rc = idle_lookup
+      if( rc == null ) {
+        rc = new Lookup
+      } else {
+        idle_lookup = null
+      }
+      rc.resolve(message)
+      rc
+    }
+  }
+
+  /**
+   * Hands back a lookup once the message has been dispatched so that
+   * the next message can reuse it.
+   */
+  def release(lookup:Lookup) = {
+    lookup.clear
+    idle_lookup = lookup
+  }
+
+  private var idle_lookup:Lookup = _
+
+  class Lookup {
+
+    // Most selectors will be indexed on the same one or two properties.
+    private var names = new Array[String](2)
+    private var values = new Array[AnyRef](2)
+    private var size = 0
+
+    private var lists = new Array[CandidateList](4)
+
+    /**
+     * The number of candidate lists.
+     */
+    var list_count = 0
+
+    /**
+     * The number of subscriptions in the candidate lists.
+     */
+    var candidate_count = 0
+
+    /**
+     * @return the i'th list of subscriptions which may match the message.
+     *         A subscription is never in more than one of the lists.
+     */
+    def list(i:Int) = lists(i)
+
+    private def add_list(list:CandidateList) = {
+      if( list.size > 0 ) {
+        if( list_count == lists.length ) {
+          lists = java.util.Arrays.copyOf(lists, list_count*2)
+        }
+        lists(list_count) = list
+        list_count += 1
+        candidate_count += list.size
+      }
+    }
+
+    private[SelectorIndex] def resolve(message:Message) = {
+      val indexes = property_indexes
+      if( indexes.length > names.length ) {
+        names = new Array[String](indexes.length)
+        values = new Array[AnyRef](indexes.length)
+      }
+      var i = 0
+      while( i < indexes.length ) {
+        val index = indexes(i)
+        val value = message.getProperty(index.name)
+        names(i) = index.name
+        values(i) = value
+        if( value!=null ) {
+          if( value.getClass == classOf[String] ) {
+            val accepting = index.by_value.get(value)
+            if( accepting!=null ) {
+              add_list(accepting)
+            }
+          } else {
+            add_list(index.loose)
+          }
+        }
+        i += 1
+      }
+      size = indexes.length
+      add_list(unindexed)
+    }
+
+    private[SelectorIndex] def clear = {
+      var i = 0
+      while( i < size ) {
+        names(i) = null
+        values(i) = null
+        i += 1
+      }
+      size = 0
+      i = 0
+      while( i < list_count ) {
+        lists(i) = null
+        i += 1
+      }
+      list_count = 0
+      candidate_count = 0
+    }
+
+    /**
+     * @return false if the subscription's selector can not match the message.
+     */
+    def may_match(sub:Subscription):Boolean = {
+      val predicate = sub.selector_predicate
+      if( predicate==null ) {
+        true
+      } else {
+        val name = predicate.getProperty
+        var i = 0
+        while( i < size && names(i) != name ) {
+          i += 1
+        }
+        i < size && predicate.mayMatch(values(i))
+      }
+    }
+  }
+}
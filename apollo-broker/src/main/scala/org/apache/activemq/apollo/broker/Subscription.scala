@@ -38,7 +38,7 @@ object Subscription extends Log
  *
  * @author <a href="http://hiramchirino.com">Hiram Chirino</a>
  */
-class Subscription(val queue:Queue, val consumer:DeliveryConsumer) extends Acquirer with DeliveryProducer with Dispatched with StallCheckSupport {
+class Subscription(val queue:Queue, val consumer:DeliveryConsumer) extends LinkedNode[Subscription] with Acquirer with DeliveryProducer with Dispatched with StallCheckSupport {
   import Subscription._
 
   def dispatch_queue = queue.dispatch_queue
@@ -46,11 +46,21 @@ class Subscription(val queue:Queue, val consumer:DeliveryConsumer) extends Acqui
   val id = Queue.subscription_counter.incrementAndGet
   var acquired = new LinkedNodeList[AcquiredQueueEntry]
   var session: DeliverySession = null
-  var pos:QueueEntry = null
+
+  /**
+   * The entry the sub is parked at, null once it's closed.
+   */
+  def pos:QueueEntry = {
+    val parked = getList
+    if( parked==null ) null else parked.asInstanceOf[ParkedList].entry
+  }
 
   var acquired_size = 0L
   def acquired_count = acquired.size()
 
+  // The number of message groups the queue's group table assigns to this sub.
+  var message_group_count = 0
+
   var enqueue_size_per_interval = new CircularBuffer[Int](15)
 
   def create_link_dto(include_metrics:Boolean=true) = {
@@ -73,6 +83,7 @@ class Subscription(val queue:Queue, val consumer:DeliveryConsumer) extends Acqui
       link.total_nack_count = total_nack_count
       link.acquired_size = acquired_size
       link.acquired_count = acquired_count
+      link.message_groups = message_group_count
       ack_rates match {
         case Some((items_per_sec, size_per_sec) ) =>
           link.ack_item_rate = items_per_sec
@@ -138,18 +149,21 @@ class Subscription(val queue:Queue, val consumer:DeliveryConsumer) extends Acqui
   def browser = consumer.browser
   def exclusive = consumer.exclusive
 
+  // The equality test the consumer's selector requires, used by the queue's selector index.
+  val selector_predicate = SelectorIndex.predicate(consumer)
+
   val consumer_buffer = consumer.receive_buffer_size
 
   // This opens up the consumer
   def open() = {
     consumer.retain
-    if(consumer.start_from_tail) {
-      pos = queue.tail_entry;
+    val start = if(consumer.start_from_tail) {
+      queue.tail_entry;
     } else {
-      pos = queue.head_entry;
+      queue.head_entry;
     }
-    assert(pos!=null)
-    consumer.set_starting_seq(pos.seq)
+    assert(start!=null)
+    consumer.set_starting_seq(start.seq)
 
     session = consumer.connect(this)
     session.refiller = dispatch_queue.runnable {
@@ -160,17 +174,18 @@ class Subscription(val queue:Queue, val consumer:DeliveryConsumer) extends Acqui
         pos.task.run
       }
     }
-    pos ::= this
+    start ::= this
 
     queue.all_subscriptions += consumer -> this
-    if( !consumer.browser && queue._message_group_buckets != null ) {
+    queue.selector_index.add(this)
+    if( !consumer.browser && queue._message_groups != null ) {
 
-      var iterators = queue._message_group_buckets.add(GroupBucket(this), 10)
+      val taken_from = queue._message_groups.add(this)
 
       // If we are doing graceful handoffs of message groups...
       if( queue.message_group_graceful_handoff ) {
         import collection.JavaConversions._
-        for ( iterator <- iterators ) {
+        for ( taking_over <- taken_from ) {
 
           // When we add the new bucket, it's going to get assigned
           // message groups that were previously being serviced by the next
@@ -178,23 +193,11 @@ class Subscription(val queue:Queue, val consumer:DeliveryConsumer) extends Acqui
           // until all dispatched messages get ack/drained, so that
           // messages groups are not being concurrently being processed
           // by two subscriptions.
-
-          var taking_over:Subscription = null
-          while ( iterator.hasNext && taking_over==null) {
-            val next = iterator.next()
-            if( next.sub != this ) {
-              taking_over = next.sub
-            }
-          }
-
-          // If we are taking over
-          if( taking_over!=null ) {
-            this.suspend
-            taking_over.suspend
-            taking_over.on_drain {
-              resume
-              taking_over.resume
-            }
+          this.suspend
+          taking_over.suspend
+          taking_over.on_drain {
+            resume
+            taking_over.resume
           }
         }
       }
@@ -202,9 +205,12 @@ class Subscription(val queue:Queue, val consumer:DeliveryConsumer) extends Acqui
 
     queue.consumer_counter += 1
     queue.change_consumer_capacity( consumer_buffer )
+    if( consumer.close_on_drain ) {
+      queue.close_on_drain_subscriptions += 1
+    }
 
     if( exclusive ) {
-      queue.exclusive_subscriptions.append(this)
+      queue.exclusive_subscriptions.add(this)
     }
 
     if( queue.service_state.is_started ) {
@@ -245,16 +251,19 @@ class Subscription(val queue:Queue, val consumer:DeliveryConsumer) extends Acqui
   }
 
   def close() = {
-    if(pos!=null) {
+    if(isLinked) {
       pos -= this
-      pos = null
+      if( consumer.close_on_drain ) {
+        queue.close_on_drain_subscriptions -= 1
+      }
 
-      queue.exclusive_subscriptions = queue.exclusive_subscriptions.filterNot( _ == this )
+      queue.exclusive_subscriptions.remove(this)
       queue.all_subscriptions -= consumer
-      if( !consumer.browser && queue._message_group_buckets != null ) {
-        queue._message_group_buckets.remove(GroupBucket(this))
-        if( queue._message_group_buckets.getNodes.isEmpty ) {
-          queue._message_group_buckets = null
+      queue.selector_index.remove(this)
+      if( !consumer.browser && queue._message_groups != null ) {
+        queue._message_groups.remove(this)
+        if( queue._message_groups.is_empty ) {
+          queue._message_groups = null
         }
       }
 
@@ -280,20 +289,6 @@ class Subscription(val queue:Queue, val consumer:DeliveryConsumer) extends Acqui
     } else {}
   }
 
-  /**
-   * Advances the subscriptions position to the specified
-   * queue entry.
-   */
-  def advance(value:QueueEntry):Unit = {
-    assert(value!=null)
-    pos = value
-    if( tail_parked ) {
-        if(consumer.close_on_drain) {
-          close
-        }
-    }
-  }
-
   /**
    * Rewinds to a previously seen location.. Happens when
    * a nack occurs from another consumer.
@@ -302,13 +297,26 @@ class Subscription(val queue:Queue, val consumer:DeliveryConsumer) extends Acqui
     assert(value!=null)
     pos -= this
     value ::= this
-    pos = value
     queue.dispatch_queue << value.task // queue up the entry to get dispatched..
   }
 
   def tail_parked = pos eq queue.tail_entry
 
-  def matches(entry:Delivery) = consumer.matches(entry)
+  private val has_selector = consumer.jms_selector != null
+
+  def matches(entry:Delivery):Boolean = {
+    if( has_selector ) {
+      val start = System.nanoTime
+      try {
+        consumer.matches(entry)
+      } finally {
+        queue.selector_counter += 1
+        queue.selector_time_counter += System.nanoTime - start
+      }
+    } else {
+      consumer.matches(entry)
+    }
+  }
   def full = suspend_count > 0 || session.full
 
   def offer(delivery:Delivery) = try {
@@ -344,6 +352,10 @@ class Subscription(val queue:Queue, val consumer:DeliveryConsumer) extends Acqui
 
     var remaining = consumer_buffer;
     while( remaining>0 && cursor!=null ) {
+      if( cursor.is_swapped_segment ) {
+        // expand it so that its entries can get prefetched individually.
+        cursor = cursor.as_swapped_segment.expand
+      }
       val next = cursor.getNext
       // Browsers prefetch all messages..
       // Non-Browsers prefetch non-acquired messages.
@@ -354,9 +366,50 @@ class Subscription(val queue:Queue, val consumer:DeliveryConsumer) extends Acqui
       }
       cursor = next
     }
+
+    // A consumer catching up on a swapped out backlog will soon reach the
+    // entries past its prefetch window, so read ahead their bodies from the
+    // store.  A swapped range first has to get loaded to find its entries,
+    // their bodies get read on the next pass.  Consumers which are full,
+    // or whose window is followed by loaded entries, don't need it.
+    var read_ahead = if( catching_up(cursor) ) consumer_buffer else 0
+    while( read_ahead>0 && cursor!=null ) {
+      if( cursor.is_swapped_range ) {
+        cursor.load(null)
+        read_ahead = 0
+      } else {
+        if( cursor.is_swapped_segment ) {
+          cursor = cursor.as_swapped_segment.expand
+        }
+        val next = cursor.getNext
+        if( !cursor.prefetched && !cursor.read_ahead && (browser || !cursor.is_acquired) ) {
+          cursor.read_ahead = true
+          cursor.load(queue.consumer_swapped_in)
+        }
+        read_ahead -= cursor.size
+        cursor = next
+      }
+    }
   }
 
-  class AcquiredQueueEntry(val entry:QueueEntry) extends LinkedNode[AcquiredQueueEntry] {
+  /**
+   * @return true if the consumer can take more deliveries and the entries
+   *         past its prefetch window are still swapped out or were read
+   *         ahead earlier in this pass.
+   */
+  def catching_up(cursor:QueueEntry) = {
+    cursor!=null && !full && (cursor.read_ahead || cursor.is_swapped || cursor.is_swapped_range || cursor.is_swapped_segment)
+  }
+
+  /**
+   * Also serves as the ack callback of the delivery that acquired the entry,
+   * so that the dispatch does not have to create one per message.
+   *
+   * One of these and a copy of the entry's delivery still get allocated for
+   * every acquired message.  The consumer holds on to both until it acks
+   * the message, so they can't be pooled.
+   */
+  class AcquiredQueueEntry(val entry:QueueEntry) extends LinkedNode[AcquiredQueueEntry] with ((DeliveryResult, StoreUOW)=>Unit) {
 
     if(acquired.isEmpty) {
       idle_total = System.nanoTime() - idle_start
@@ -366,6 +419,15 @@ class Subscription(val queue:Queue, val consumer:DeliveryConsumer) extends Acqui
     acquired.addLast(this)
     acquired_size += entry.size
 
+    def apply(consumed:DeliveryResult, uow:StoreUOW):Unit = {
+      if( uow!=null ) {
+        uow.retain
+      }
+      queue.process_ack(this, consumed, uow)
+    }
+
+    override def toString = "acquired entry: "+entry.seq
+
     def ack(uow:StoreUOW):Unit = {
       assert_executing
       if(!isLinked) {
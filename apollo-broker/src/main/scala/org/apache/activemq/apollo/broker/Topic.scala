@@ -204,6 +204,22 @@ class Topic(val router:LocalRouter, val address:DestinationAddress, var config_u
 
   def slow_consumer_policy = config.slow_consumer_policy.getOrElse("block")
 
+  /**
+   * @return the counters of the links messages flow over from the
+   *         topic's producers to its consumers.
+   */
+  def placement_links = {
+    dispatch_queue.assertExecuting()
+    val rc = ListBuffer[DispatchPlacement.LinkSample]()
+    proxy_sessions.foreach {
+      case session:ProxyConsumerSession =>
+        rc += DispatchPlacement.LinkSample(session, session.producer.dispatch_queue, session.consumer.dispatch_queue,
+          session.enqueue_item_counter, session.enqueue_size_counter)
+      case _ =>
+    }
+    rc
+  }
+
   def status(show_producers:Boolean, show_consumers:Boolean): FutureResult[TopicStatusDTO] = {
     val rc = FutureResult[TopicStatusDTO]()
     status(show_producers, show_consumers, x => rc.set(Success(x)))
@@ -345,6 +361,72 @@ class Topic(val router:LocalRouter, val address:DestinationAddress, var config_u
     }
   }
 
+  /**
+   * @return the same metrics as the status but without waiting on the
+   *         threads of the queues the topic feeds.  The last metrics
+   *         snapshot of those queues is used instead.
+   */
+  def catalog_metrics:DestMetricsDTO = {
+    dispatch_queue.assertExecuting()
+    val rc = new DestMetricsDTO
+    rc.current_time = now
+    rc.producer_count = producers.size
+    rc.consumer_count = consumers.size
+    DestinationMetricsSupport.add_destination_metrics(rc, topic_metrics)
+
+    producers.values.foreach { link =>
+      add_enqueue_counters(rc, link)
+    }
+    val consumer_links = HashMap[DeliveryConsumer, LinkDTO]()
+    consumers.values.foreach { proxy =>
+      val link = new LinkDTO()
+      add_link_counters(link, proxy.link)
+      consumer_links.put(proxy.consumer, link)
+    }
+
+    // Add in the counters from the live sessions..
+    proxy_sessions.foreach {
+      case session:ProxyProducerSession =>
+        if( producers.contains(session.producer.asInstanceOf[BindableDeliveryProducer]) ) {
+          add_enqueue_counters(rc, session)
+        }
+      case session:ProxyConsumerSession =>
+        for( link <- consumer_links.get(session.consumer) ) {
+          add_link_counters(link, session)
+        }
+      case _ =>
+    }
+
+    def add_queue_metrics(queue:Queue, consumer_counters:Boolean) = {
+      val snapshot = queue.metrics_snapshot
+      if( snapshot!=null ) {
+        val metrics = new DestMetricsDTO
+        DestinationMetricsSupport.add_destination_metrics(metrics, snapshot)
+        metrics.enqueue_item_counter = 0
+        metrics.enqueue_size_counter = 0
+        metrics.enqueue_ts = 0
+        metrics.producer_counter = 0
+        metrics.producer_count = 0
+        if( !consumer_counters ) {
+          metrics.consumer_counter = 0
+          metrics.consumer_count = 0
+        }
+        DestinationMetricsSupport.add_destination_metrics(rc, metrics)
+      }
+    }
+
+    if( topic_queue!=null ) {
+      add_queue_metrics(topic_queue, true)
+    }
+    consumer_links.foreach { case (consumer, link) =>
+      consumer match {
+        case queue:Queue => add_queue_metrics(queue, false)
+        case _ => add_dequeue_counters(rc, link)
+      }
+    }
+    rc
+  }
+
   def browse(from_seq:Long, to:Option[Long], max:Long)(func: (BrowseResult)=>Unit):Unit = {
     val msg = retained_message
     if ( msg==null ) {
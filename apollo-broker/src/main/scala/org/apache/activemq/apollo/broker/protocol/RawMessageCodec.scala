@@ -56,7 +56,7 @@ object RawMessageCodec extends MessageCodec {
   }
 }
 
-case class RawMessage(payload:Buffer) extends Message {
+case class RawMessage(payload:Buffer) extends RetainedConversions {
 
   def getBodyAs[T](toType : Class[T]) = {
     if( toType.isAssignableFrom(classOf[Buffer]) ) {
@@ -76,7 +76,4 @@ case class RawMessage(payload:Buffer) extends Message {
   def persistent = false
   def priority = 0
   def codec = RawMessageCodec
-  def release() {}
-  def retain() {}
-  def retained() = 0
 }
\ No newline at end of file
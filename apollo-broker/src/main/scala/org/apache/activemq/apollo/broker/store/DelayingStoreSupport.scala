@@ -87,10 +87,24 @@ trait DelayingStoreSupport extends Store with BaseService {
 
   protected def flush_delay:Long
 
+  /**
+   * When true, the UOWs are only delayed when the consumers of the
+   * queues they enqueue to are likely to cancel them within the flush
+   * delay, and only for as long as that usually takes.
+   */
+  protected def adaptive_flush_delay:Boolean = false
+
   protected def get_next_msg_key:Long
 
   protected def store(uows: Seq[DelayableUOW])(callback: =>Unit):Unit
 
+  /**
+   * The number of flush batches which can be handed to the store before
+   * the first of them completes.  Stores which can write a batch while the
+   * previous one is still being synced should allow more than one.
+   */
+  protected def flush_pipeline_depth:Int = 1
+
   /////////////////////////////////////////////////////////////////////
   //
   // Implementation of the BaseService interface
@@ -131,6 +145,8 @@ trait DelayingStoreSupport extends Store with BaseService {
 
     val uow_id:Int = next_batch_id.getAndIncrement
     var close_ts:Long = 0
+    // Set once the UOW gets delayed in hopes of getting canceled.
+    var delayed = false
 
     // User might request the UOW to flush asap
     var flush_asap = false
@@ -317,6 +333,12 @@ trait DelayingStoreSupport extends Store with BaseService {
 
   def on_store_requested(mr:MessageRecord) = {}
 
+  /**
+   * Caches the payloads of recently stored and loaded messages, null
+   * when the store is not configured to use one.
+   */
+  var message_cache:MessageCache = null
+
   var metric_canceled_message_counter:Long = 0
   var metric_canceled_enqueue_counter:Long = 0
   var metric_flushed_message_counter:Long = 0
@@ -351,6 +373,23 @@ trait DelayingStoreSupport extends Store with BaseService {
     rc.flushed_message_counter = metric_flushed_message_counter
     rc.flushed_enqueue_counter = metric_flushed_enqueue_counter
     rc.pending_stores = pending_stores.size
+    rc.canceled_enqueue_ratio = flush_delay_advisor.cancel_ratio
+    rc.effective_flush_delay = flush_delay_advisor.effective_delay.round
+    rc.flush_queue_depth = flush_queue_depth.get
+    rc.flushes_in_flight = flushes_in_flight.size
+    rc.flush_write_latency = flush_write_latency
+    rc.flush_sync_latency = flush_sync_latency
+
+    val cache = message_cache
+    if( cache!=null ) {
+      cache.synchronized {
+        rc.message_cache_hits = cache.hits
+        rc.message_cache_misses = cache.misses
+        rc.message_cache_evictions = cache.evictions
+      }
+      rc.message_cache_size = cache.size
+      rc.message_cache_entries = cache.count
+    }
   }
 
   def detailed_pending_status = {
@@ -361,6 +400,7 @@ trait DelayingStoreSupport extends Store with BaseService {
 
     out.println("--- Pending Stores Details ---")
     out.println("flush_source suspended: "+flush_source.isSuspended)
+    out.println("flushes in flight: "+flushes_in_flight.size)
     pending_stores.valuesIterator.foreach{ action =>
       out.println("uow: %d, state:%s".format(action.uow.uow_id, action.uow.state))
     }
@@ -378,6 +418,8 @@ trait DelayingStoreSupport extends Store with BaseService {
 
   val next_batch_id = new AtomicInteger(1)
 
+  val flush_delay_advisor = new FlushDelayAdvisor
+
   def drain_uows = {
     dispatch_queue.assertExecuting()
     uow_source.getData.foreach { uow =>
@@ -417,6 +459,9 @@ trait DelayingStoreSupport extends Store with BaseService {
 
                   prev_uow.delayable_actions -= 1
                   metric_canceled_enqueue_counter += 1
+                  if( prev_uow.delayed ) {
+                    flush_delay_advisor.canceled(entry.queue_key, System.nanoTime - prev_uow.close_ts)
+                  }
 
                   // yay we can cancel out a previous enqueue
                   prev_action.enqueues = prev_action.enqueues.filterNot( x=> key(x) == entry_key )
@@ -454,10 +499,27 @@ trait DelayingStoreSupport extends Store with BaseService {
       }
 
       if( !uow.canceled && uow.state.stage < UowFlushQueued.stage ) {
-        if( uow.delayable ) {
+        val delay = if( !uow.delayable ) {
+          -1L
+        } else if( adaptive_flush_delay ) {
+          // the advisor picks 0 for UOWs which should get flushed right away.
+          val queue_keys = uow.actions.values.flatMap(_.enqueues.map(_.queue_key)).toSet
+          val rc = flush_delay_advisor.delay(queue_keys, flush_delay)
+          if( rc > 0 ) rc else -1L
+        } else {
+          flush_delay_advisor.picked(flush_delay)
+          flush_delay
+        }
+        if( delay >= 0 ) {
+          uow.delayed = true
+          uow.actions.values.foreach { action =>
+            action.enqueues.foreach { entry =>
+              flush_delay_advisor.delayed(entry.queue_key)
+            }
+          }
           // Let the uow get GCed if its' canceled during the delay window..
           val ref = new WeakReference[DelayableUOW](uow)
-          schedule_flush(ref)
+          schedule_flush(ref, delay)
         } else {
           queue_flush(uow)
         }
@@ -475,8 +537,8 @@ trait DelayingStoreSupport extends Store with BaseService {
     }
   })
 
-  private def schedule_flush(ref: WeakReference[DelayableUOW]) {
-    dispatch_queue.executeAfter(flush_delay, TimeUnit.MILLISECONDS, ^ {
+  private def schedule_flush(ref: WeakReference[DelayableUOW], delay:Long) {
+    dispatch_queue.executeAfter(delay, TimeUnit.MILLISECONDS, ^ {
       val uow = ref.get();
       if (uow != null) {
         queue_flush(uow)
@@ -487,6 +549,7 @@ trait DelayingStoreSupport extends Store with BaseService {
   private def queue_flush(uow:DelayableUOW) = {
     if( uow!=null && !uow.canceled && uow.state.stage < UowFlushQueued.stage ) {
       uow.state = UowFlushQueued
+      flush_queue_depth.incrementAndGet
       flush_source.merge(uow)
     }
   }
@@ -498,6 +561,32 @@ trait DelayingStoreSupport extends Store with BaseService {
   val flush_latency_counter = new TimeCounter
   var flush_latency = flush_latency_counter(false)
 
+  // The time it takes the store to write a flush batch and to sync it.  These
+  // get updated from the store's threads so access them synchronized.
+  val flush_write_latency_counter = new TimeCounter
+  var flush_write_latency = flush_write_latency_counter(false)
+  val flush_sync_latency_counter = new TimeCounter
+  var flush_sync_latency = flush_sync_latency_counter(false)
+
+  def flush_written(duration:Long) = flush_write_latency_counter.synchronized {
+    flush_write_latency_counter += duration
+  }
+
+  def flush_synced(duration:Long) = flush_sync_latency_counter.synchronized {
+    flush_sync_latency_counter += duration
+  }
+
+  // The number of UOWs queued to get flushed which have not yet been handed to the store.
+  val flush_queue_depth = new AtomicInteger()
+
+  class FlushBatch(val uows:ListBuffer[DelayableUOW], val end:()=>Unit) {
+    var stored = false
+  }
+
+  // The batches handed to the store which have not completed yet, in flush order.
+  val flushes_in_flight = new java.util.LinkedList[FlushBatch]()
+  var flush_suspended = false
+
   def drain_flushes:Unit = {
     dispatch_queue.assertExecuting()
 
@@ -507,6 +596,7 @@ trait DelayingStoreSupport extends Store with BaseService {
     
     // Some UOWs may have been canceled.
     val uows = flush_source.getData.flatMap { uow=>
+      flush_queue_depth.decrementAndGet
       if( uow.canceled ) {
         None
       } else {
@@ -524,26 +614,48 @@ trait DelayingStoreSupport extends Store with BaseService {
     }
     if( !uows.isEmpty ) {
       flush_latency_counter.start { end=>
-        flush_source.suspend
+        val batch = new FlushBatch(uows, end)
+        flushes_in_flight.addLast(batch)
+        // Stop preparing batches once the pipeline is full.
+        if( !flush_suspended && flushes_in_flight.size >= flush_pipeline_depth ) {
+          flush_suspended = true
+          flush_source.suspend
+        }
         store(uows) {
           assert_executing
-          flush_source.resume
-          store_completed(uows)
-          dispatch_queue.assertExecuting()
-          uows.foreach { uow=>
-            uow.actions.foreach { case (msg, action) =>
-              if( action.message_record !=null ) {
-                metric_flushed_message_counter += 1
-                pending_stores.remove(msg)
-              }
-              action.enqueues.foreach { queue_entry=>
-                metric_flushed_enqueue_counter += 1
-              }
-            }
+          batch.stored = true
+          complete_flushes
+        }
+      }
+    }
+  }
+
+  /**
+   * Completes the stored batches at the head of the pipeline.  A batch
+   * the store finished before an earlier one has to wait for it, so that
+   * UOWs always complete in the order they were flushed.
+   */
+  private def complete_flushes:Unit = {
+    while( !flushes_in_flight.isEmpty && flushes_in_flight.getFirst.stored ) {
+      val batch = flushes_in_flight.removeFirst
+      if( flush_suspended && flushes_in_flight.size < flush_pipeline_depth ) {
+        flush_suspended = false
+        flush_source.resume
+      }
+      store_completed(batch.uows)
+      dispatch_queue.assertExecuting()
+      batch.uows.foreach { uow=>
+        uow.actions.foreach { case (msg, action) =>
+          if( action.message_record !=null ) {
+            metric_flushed_message_counter += 1
+            pending_stores.remove(msg)
+          }
+          action.enqueues.foreach { queue_entry=>
+            metric_flushed_enqueue_counter += 1
           }
-          end()
         }
       }
+      batch.end()
     }
   }
 
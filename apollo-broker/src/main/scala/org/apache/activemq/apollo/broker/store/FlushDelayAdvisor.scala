@@ -0,0 +1,150 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.activemq.apollo.broker.store
+
+import collection.mutable.HashMap
+
+object FlushDelayAdvisor {
+
+  // A queue needs this many delayed enqueues before its cancel ratio is trusted.
+  val MIN_SAMPLES = 32
+
+  // The samples of a queue get halved once it has this many, so
+  // that the ratios follow the recent traffic of the queue.
+  val MAX_SAMPLES = 1024
+
+  // A queue is expected to get drained within the flush delay when at
+  // least this fraction of its delayed enqueues get canceled.
+  val MIN_CANCEL_RATIO = 0.25
+
+  // The UOWs of queues which do not get drained are still delayed once
+  // every this many UOWs so that their cancel ratio keeps getting sampled.
+  val SAMPLE_INTERVAL = 32
+}
+
+/**
+ * Tracks how many of the delayed enqueues of each queue get canceled by
+ * a dequeue before they are flushed, and how long that takes.  In adaptive
+ * mode it uses that to pick the delay of a UOW: UOWs which only enqueue to
+ * queues whose consumers don't keep up get flushed right away, the others
+ * get delayed just long enough for their consumers to cancel them.
+ *
+ * Only accessed from the store's dispatch queue.
+ */
+class FlushDelayAdvisor {
+  import FlushDelayAdvisor._
+
+  class QueueStats {
+    var delayed = 0
+    var canceled = 0
+    // total time in nanoseconds it took the canceled enqueues to get canceled.
+    var cancel_latency = 0L
+    var skipped = 0
+
+    def ratio = if( delayed == 0 ) 0.0 else (canceled.toDouble / delayed).min(1.0)
+
+    def decay = {
+      delayed /= 2
+      canceled /= 2
+      cancel_latency /= 2
+    }
+
+    /**
+     * @return the delay in ms which lets most of the queue's enqueues get canceled.
+     */
+    def delay(max_delay:Long) = {
+      if( delayed < MIN_SAMPLES ) {
+        max_delay
+      } else if( ratio >= MIN_CANCEL_RATIO ) {
+        // twice the average time to cancel covers most of the cancels.
+        val avg_ms = if( canceled == 0 ) max_delay else cancel_latency / canceled / 1000000
+        (avg_ms * 2 + 1).min(max_delay)
+      } else {
+        skipped += 1
+        if( skipped >= SAMPLE_INTERVAL ) {
+          skipped = 0
+          max_delay
+        } else {
+          0L
+        }
+      }
+    }
+  }
+
+  val queues = HashMap[Long, QueueStats]()
+
+  var delayed_counter = 0L
+  var canceled_counter = 0L
+
+  // A moving average of the delays picked for the UOWs, in ms.
+  var effective_delay = 0.0
+
+  private def stats(queue_key:Long) = queues.getOrElseUpdate(queue_key, new QueueStats)
+
+  /**
+   * @return how long in ms to delay a UOW which enqueues to the queues, 0 to flush it right away.
+   */
+  def delay(queue_keys:Iterable[Long], max_delay:Long):Long = {
+    var rc = 0L
+    queue_keys.foreach { queue_key =>
+      rc = rc.max(stats(queue_key).delay(max_delay))
+    }
+    picked(rc)
+    rc
+  }
+
+  def picked(delay:Long) = {
+    effective_delay = effective_delay * 0.9 + delay * 0.1
+  }
+
+  /**
+   * Records an enqueue which got delayed.
+   */
+  def delayed(queue_key:Long) = {
+    val s = stats(queue_key)
+    s.delayed += 1
+    delayed_counter += 1
+    if( s.delayed >= MAX_SAMPLES ) {
+      s.decay
+    }
+  }
+
+  /**
+   * Records a delayed enqueue which got canceled after the given nanoseconds.
+   */
+  def canceled(queue_key:Long, latency:Long) = {
+    val s = stats(queue_key)
+    s.canceled += 1
+    s.cancel_latency += latency
+    canceled_counter += 1
+  }
+
+  /**
+   * @return the fraction of the recently delayed enqueues which got canceled.
+   */
+  def cancel_ratio = {
+    var delayed = 0L
+    var canceled = 0L
+    queues.valuesIterator.foreach { s =>
+      delayed += s.delayed
+      canceled += s.canceled.min(s.delayed)
+    }
+    if( delayed == 0 ) 0.0 else canceled.toDouble / delayed
+  }
+
+  def remove(queue_key:Long) = queues.remove(queue_key)
+}
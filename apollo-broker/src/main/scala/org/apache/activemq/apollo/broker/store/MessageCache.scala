@@ -0,0 +1,396 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.activemq.apollo.broker.store
+
+import java.nio.ByteBuffer
+import java.util.LinkedHashMap
+import org.fusesource.hawtbuf.Buffer
+
+object MessageCache {
+
+  // Payloads are stored in 128 byte chunks, which wastes less than a
+  // chunk per payload.  The chunks get allocated in 1MB slabs.
+  val CHUNK_SIZE = 128
+  val CHUNKS_PER_SLAB = 8192
+
+  class Entry(val key:Long, val chunks:Array[Int], val length:Int) {
+    def size = chunks.length * CHUNK_SIZE
+    var segment:Segment = _
+    // set once the payload has been copied into the chunks.
+    var ready = false
+    // set if the entry got evicted before it was ready, the chunks
+    // then get freed once the copy is done.
+    var evicted = false
+  }
+
+  /**
+   * Direct memory carved up into fixed size chunks.  The slabs holding the
+   * chunks are allocated as they are needed and kept for the life of the
+   * pool.  Chunks are handed back explicitly when their entry gets evicted
+   * so the memory does not wait on the GC to be reclaimed.
+   *
+   * allocate and free must be called while holding the cache's lock, the
+   * reads and writes of allocated chunks do not need it.
+   */
+  class ChunkPool(val chunk_count:Int) {
+    private val slabs = new Array[ByteBuffer]((chunk_count + CHUNKS_PER_SLAB - 1) / CHUNKS_PER_SLAB)
+    private val free_chunks = new Array[Int](chunk_count)
+    private var free_count = 0
+    // chunks past this one have never been handed out.
+    private var unused = 0
+
+    def available = free_count + (chunk_count - unused)
+
+    /**
+     * @return the size of the direct memory allocated for the slabs.
+     */
+    def slabs_size = slabs.foldLeft(0L)((rc, slab) => if( slab == null ) rc else rc + slab.capacity)
+
+    /**
+     * @return the allocated chunks or null if there are not enough free ones.
+     */
+    def allocate(count:Int):Array[Int] = {
+      if( count > available ) {
+        return null
+      }
+      val rc = new Array[Int](count)
+      var i = 0
+      while( i < count ) {
+        if( free_count > 0 ) {
+          free_count -= 1
+          rc(i) = free_chunks(free_count)
+        } else {
+          val slab = unused / CHUNKS_PER_SLAB
+          if( slabs(slab) == null ) {
+            val chunks = CHUNKS_PER_SLAB min (chunk_count - slab * CHUNKS_PER_SLAB)
+            slabs(slab) = ByteBuffer.allocateDirect(chunks * CHUNK_SIZE)
+          }
+          rc(i) = unused
+          unused += 1
+        }
+        i += 1
+      }
+      rc
+    }
+
+    def free(chunks:Array[Int]) = {
+      var i = 0
+      while( i < chunks.length ) {
+        free_chunks(free_count) = chunks(i)
+        free_count += 1
+        i += 1
+      }
+    }
+
+    private def chunk(index:Int) = {
+      val rc = slabs(index / CHUNKS_PER_SLAB).duplicate
+      val offset = (index % CHUNKS_PER_SLAB) * CHUNK_SIZE
+      rc.limit(offset + CHUNK_SIZE)
+      rc.position(offset)
+      rc
+    }
+
+    def write(chunks:Array[Int], payload:Array[Buffer]) = {
+      var c = 0
+      var target = chunk(chunks(0))
+      payload.foreach { buffer =>
+        var offset = buffer.offset
+        var remaining = buffer.length
+        while( remaining > 0 ) {
+          if( !target.hasRemaining ) {
+            c += 1
+            target = chunk(chunks(c))
+          }
+          val count = remaining min target.remaining
+          target.put(buffer.data, offset, count)
+          offset += count
+          remaining -= count
+        }
+      }
+    }
+
+    def read(chunks:Array[Int], length:Int):Array[Byte] = {
+      val rc = new Array[Byte](length)
+      var offset = 0
+      var c = 0
+      while( offset < length ) {
+        val count = CHUNK_SIZE min (length - offset)
+        chunk(chunks(c)).get(rc, offset, count)
+        offset += count
+        c += 1
+      }
+      rc
+    }
+  }
+
+  /**
+   * A LRU ordered segment of the cache.  The eldest entry is the least
+   * recently used one.
+   */
+  class Segment(val name:String) {
+    val entries = new LinkedHashMap[Long, Entry]()
+    var size = 0L
+
+    def add(entry:Entry) = {
+      entry.segment = this
+      entries.put(entry.key, entry)
+      size += entry.size
+    }
+
+    def remove(entry:Entry) = {
+      entries.remove(entry.key)
+      size -= entry.size
+    }
+
+    def eldest:Entry = {
+      val i = entries.values.iterator
+      if( i.hasNext ) i.next else null
+    }
+  }
+
+  /**
+   * A count-min sketch of 4 bit counters which estimates how often the
+   * keys have been accessed.  The counters get halved once the sample
+   * size is reached so that the estimate favors recent accesses.
+   */
+  class FrequencySketch(width:Int) {
+    private val mask = width - 1
+    private val table = new Array[Byte](width*4)
+    private val sample_size = width * 10
+    private var samples = 0
+
+    private def index(key:Long, row:Int) = {
+      var h = key * 0x9E3779B97F4A7C15L
+      h ^= (h >>> 32)
+      val h2 = (h >>> 17) | 1
+      row * width + ((h + row * h2) & mask).toInt
+    }
+
+    def increment(key:Long) = {
+      var added = false
+      var row = 0
+      while( row < 4 ) {
+        val i = index(key, row)
+        if( table(i) < 15 ) {
+          table(i) = (table(i) + 1).toByte
+          added = true
+        }
+        row += 1
+      }
+      if( added ) {
+        samples += 1
+        if( samples >= sample_size ) {
+          var i = 0
+          while( i < table.length ) {
+            table(i) = (table(i) >>> 1).toByte
+            i += 1
+          }
+          samples /= 2
+        }
+      }
+    }
+
+    def frequency(key:Long) = {
+      var rc = 15
+      var row = 0
+      while( row < 4 ) {
+        rc = rc min table(index(key, row))
+        row += 1
+      }
+      rc
+    }
+  }
+}
+
+/**
+ * <p>
+ * A size bounded cache of the encoded message payloads a store recently
+ * wrote or read, keyed by their location in the store.  The payloads are
+ * held in chunks of direct memory so that they do not add to the heap
+ * pressure that caused the messages to get swapped out in the first place.
+ * The chunks of an evicted payload get reused right away.
+ * </p><p>
+ * It uses the W-TinyLFU policy: new payloads enter a small LRU window,
+ * and when they age out of it they are only admitted into the main
+ * segmented LRU if they have been accessed more often than the entry
+ * they would evict.  Main entries that get accessed again move from the
+ * probation segment to the protected segment.
+ * </p>
+ */
+class MessageCache(val max_size:Long) {
+  import MessageCache._
+
+  val window_max = (max_size / 100) max 1
+  val protected_max = (max_size - window_max) * 8 / 10
+  val main_max = max_size - window_max
+
+  private val entries = new java.util.HashMap[Long, Entry]()
+  private val pool = new ChunkPool(((max_size + CHUNK_SIZE - 1) / CHUNK_SIZE).min(Int.MaxValue).toInt)
+  private val window = new Segment("window")
+  private val probation = new Segment("probation")
+  private val protect = new Segment("protected")
+  private val sketch = new FrequencySketch({
+    // Size the sketch assuming 1k payloads.
+    var rc = 1024
+    while( rc < (max_size / 1024) && rc < (1 << 20) ) {
+      rc <<= 1
+    }
+    rc
+  })
+
+  var hits = 0L
+  var misses = 0L
+  var evictions = 0L
+
+  /**
+   * Changes every time the cache gets cleared.  Payloads put with the
+   * epoch of an earlier clear are ignored.
+   */
+  @volatile
+  var epoch = 0L
+
+  def size = this.synchronized(window.size + probation.size + protect.size)
+  def direct_size = this.synchronized(pool.slabs_size)
+  def count = this.synchronized(entries.size)
+
+  /**
+   * @return a heap copy of the cached payload or null if it is not cached.
+   */
+  def get(key:Long):Buffer = this.synchronized {
+    sketch.increment(key)
+    val entry = entries.get(key)
+    if( entry == null || !entry.ready ) {
+      misses += 1
+      null
+    } else {
+      hits += 1
+      if( entry.segment eq probation ) {
+        probation.remove(entry)
+        protect.add(entry)
+        while( protect.size > protected_max ) {
+          val demoted = protect.eldest
+          protect.remove(demoted)
+          probation.add(demoted)
+        }
+      } else {
+        // move it to the most recently used position.
+        val segment = entry.segment
+        segment.remove(entry)
+        segment.add(entry)
+      }
+      new Buffer(pool.read(entry.chunks, entry.length))
+    }
+  }
+
+  def put(key:Long, payload:Buffer):Unit = put(key, Array(payload))
+
+  def put(key:Long, payload:Array[Buffer]):Unit = put(key, payload, epoch)
+
+  /**
+   * Caches the payload made up of the given buffers, unless the cache got
+   * cleared since the given epoch.
+   */
+  def put(key:Long, payload:Array[Buffer], put_epoch:Long):Unit = {
+    var length = 0
+    payload.foreach(length += _.length)
+    val chunk_count = (length + CHUNK_SIZE - 1) / CHUNK_SIZE
+    if( length == 0 || chunk_count.toLong * CHUNK_SIZE > main_max ) {
+      return
+    }
+    val entry = this.synchronized {
+      if( put_epoch != epoch || entries.containsKey(key) ) {
+        return
+      }
+      sketch.increment(key)
+
+      // Age entries out of the window first so that the chunks
+      // they free up can hold the new payload.
+      val size = chunk_count * CHUNK_SIZE
+      while( !window.entries.isEmpty && window.size + size > window_max ) {
+        val candidate = window.eldest
+        window.remove(candidate)
+        admit(candidate)
+      }
+      val chunks = pool.allocate(chunk_count)
+      if( chunks == null ) {
+        return
+      }
+      val rc = new Entry(key, chunks, length)
+      entries.put(key, rc)
+      window.add(rc)
+      while( window.size > window_max ) {
+        val candidate = window.eldest
+        window.remove(candidate)
+        admit(candidate)
+      }
+      rc
+    }
+    // do the copy outside the lock.
+    pool.write(entry.chunks, payload)
+    this.synchronized {
+      entry.ready = true
+      if( entry.evicted ) {
+        pool.free(entry.chunks)
+      }
+    }
+  }
+
+  private def admit(candidate:Entry):Unit = {
+    val frequency = sketch.frequency(candidate.key)
+    while( probation.size + protect.size + candidate.size > main_max ) {
+      val victim = if( probation.entries.isEmpty ) protect.eldest else probation.eldest
+      if( frequency <= sketch.frequency(victim.key) ) {
+        evict(candidate, null)
+        return
+      }
+      evict(victim, victim.segment)
+    }
+    probation.add(candidate)
+  }
+
+  private def evict(entry:Entry, segment:Segment) = {
+    if( segment!=null ) {
+      segment.remove(entry)
+    }
+    entries.remove(entry.key)
+    evictions += 1
+    release(entry)
+  }
+
+  private def release(entry:Entry) = {
+    if( entry.ready ) {
+      pool.free(entry.chunks)
+    } else {
+      entry.evicted = true
+    }
+  }
+
+  def clear = this.synchronized {
+    epoch += 1
+    val i = entries.values.iterator
+    while( i.hasNext ) {
+      release(i.next)
+    }
+    entries.clear()
+    window.entries.clear()
+    window.size = 0
+    probation.entries.clear()
+    probation.size = 0
+    protect.entries.clear()
+    protect.size = 0
+  }
+}
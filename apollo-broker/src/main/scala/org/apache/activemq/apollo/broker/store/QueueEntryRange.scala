@@ -26,4 +26,5 @@ class QueueEntryRange {
   var count = 0
   var size = 0
   var expiration = 0L
+  var redeliveries:Short = 0
 }
\ No newline at end of file
@@ -0,0 +1,113 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.activemq.apollo.broker
+
+import org.apache.activemq.apollo.util.FunSuiteSupport
+import org.apache.activemq.apollo.dto.DestMetricsDTO
+import org.scalatest.matchers.ShouldMatchers
+import collection.JavaConversions._
+
+class DestinationCatalogTest extends FunSuiteSupport with ShouldMatchers {
+
+  def metrics(queue_items:Long, consumer_count:Long) = {
+    val rc = new DestMetricsDTO
+    rc.queue_items = queue_items
+    rc.consumer_count = consumer_count
+    rc
+  }
+
+  def query(fields:List[String], where:String=null, order:List[String]=Nil) = {
+    DestinationCatalog.parse(fields, where, order).get
+  }
+
+  def ids(page:org.apache.activemq.apollo.dto.DataPageDTO) = page.rows.toList.map(_.asInstanceOf[java.util.List[AnyRef]].get(0))
+  def values(page:org.apache.activemq.apollo.dto.DataPageDTO) = page.rows.toList.map(_.asInstanceOf[java.util.List[AnyRef]].toList)
+
+  test("queries which need the full status are not supported") {
+    DestinationCatalog.parse(Nil, null, Nil) should be(None)
+    DestinationCatalog.parse(List("id", "config"), null, Nil) should be(None)
+    DestinationCatalog.parse(List("id"), "metrics.queue_items > 0 OR id = \"a\"", Nil) should be(None)
+    DestinationCatalog.parse(List("id"), null, List("metrics.queue_items", "id")) should be(None)
+    DestinationCatalog.parse(List("id"), "metrics.queue_items > 0 AND id LIKE \"a%\"", List("id DESC")) should not be(None)
+  }
+
+  test("rows are filtered, sorted and paged using the indexes") {
+    val catalog = new DestinationCatalog
+    val rows = for( i <- 0 until 10 ) yield {
+      val row = catalog.add("queue-"+i, null)
+      row.update(metrics(i % 5, i % 2))
+      row
+    }
+
+    var page = catalog.page(query(List("id", "metrics.queue_items")), 0, 3, _ => true)
+    page.total_rows should be(10)
+    page.total_pages should be(4)
+    page.headers.toList should be(List("id", "metrics.queue_items"))
+    ids(page) should be(List("queue-0", "queue-1", "queue-2"))
+
+    page = catalog.page(query(List("id"), "metrics.queue_items >= 3", List("metrics.queue_items DESC")), 0, 10, _ => true)
+    ids(page) should be(List("queue-9", "queue-4", "queue-8", "queue-3"))
+
+    page = catalog.page(query(List("id"), "metrics.consumer_count = 1 AND id LIKE \"queue-_\"", List("id")), 1, 2, _ => true)
+    page.total_rows should be(5)
+    ids(page) should be(List("queue-5", "queue-7"))
+
+    // updates re-sort the row and removed rows are no longer listed.
+    rows(0).update(metrics(100, 0))
+    catalog.remove(rows(9))
+    rows(9).update(metrics(200, 0))
+    page = catalog.page(query(List("id"), null, List("metrics.queue_items DESC")), 0, 1, _ => true)
+    page.total_rows should be(9)
+    ids(page) should be(List("queue-0"))
+
+    page = catalog.page(query(List("id")), 0, 10, _.id != "queue-1")
+    page.total_rows should be(8)
+  }
+
+  test("rows only get re-keyed with their latest snapshot") {
+    val catalog = new DestinationCatalog
+    val a = catalog.add("a", null)
+    val b = catalog.add("b", null)
+    a.update(metrics(5, 0))
+    b.update(metrics(3, 0))
+
+    var page = catalog.page(query(List("id", "metrics.queue_items"), "metrics.queue_items > 4"), 0, 10, _ => true)
+    values(page) should be(List(List("a", 5L)))
+
+    // several snapshots published between two queries.
+    a.update(metrics(1, 0))
+    a.update(metrics(2, 0))
+    b.update(metrics(7, 0))
+    page = catalog.page(query(List("id"), "metrics.queue_items > 1", List("metrics.queue_items")), 0, 10, _ => true)
+    ids(page) should be(List("a", "b"))
+    page = catalog.page(query(List("id"), "metrics.queue_items = 1"), 0, 10, _ => true)
+    page.total_rows should be(0)
+
+    // a destination re-created under the same id replaces the old row.
+    val c = catalog.add("a", null)
+    c.update(metrics(9, 0))
+    a.update(metrics(10, 0))
+    catalog.remove(a)
+    page = catalog.page(query(List("id", "metrics.queue_items"), null, List("metrics.queue_items DESC")), 0, 10, _ => true)
+    values(page) should be(List(List("a", 9L), List("b", 7L)))
+
+    // authorization is applied before the page is cut.
+    page = catalog.page(query(List("id"), null, List("id")), 0, 1, _.id != "a")
+    page.total_rows should be(1)
+    ids(page) should be(List("b"))
+  }
+}
@@ -0,0 +1,118 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.activemq.apollo.broker
+
+import org.fusesource.hawtdispatch._
+import org.apache.activemq.apollo.util.FunSuiteSupport
+import org.scalatest.matchers.ShouldMatchers
+import DispatchPlacement._
+
+class DispatchPlacementTest extends FunSuiteSupport with ShouldMatchers {
+
+  val threads = Array(createQueue("thread 0"), createQueue("thread 1"))
+
+  /**
+   * A producer sending to a destination, starting out on the given thread.
+   */
+  class Flow(name:String, initial_thread:Int) {
+    val key = new Object
+    val producer = createQueue(name+" producer")
+    val destination = createQueue(name+" destination")
+    producer.setTargetQueue(threads(initial_thread))
+    destination.setTargetQueue(threads(initial_thread))
+
+    var items = 0L
+
+    def sample(rate:Long) = {
+      items += rate
+      LinkSample(key, producer, destination, items, 0)
+    }
+
+    def thread = {
+      val rc = threads.indexOf(producer.getTargetQueue)
+      destination.getTargetQueue should be theSameInstanceAs(threads(rc))
+      rc
+    }
+  }
+
+  /**
+   * Samples the flows at the given message rates, then places them.
+   */
+  def place(placement:DispatchPlacement, now:Long, rates:(Flow, Long)*) = {
+    placement.add_samples(rates.map { case (flow, rate) => flow.sample(rate) })
+    placement.place(now, 1000, threads)
+  }
+
+  test("independent flows get spread over the threads") {
+    val placement = new DispatchPlacement(null)
+    val a = new Flow("a", 0)
+    val b = new Flow("b", 0)
+    val c = new Flow("c", 0)
+
+    place(placement, 1000, a->0, b->0, c->0)
+    place(placement, 2000, a->100, b->90, c->20)
+
+    // the busiest flow stays, the others go to the least loaded thread.
+    (a.thread, b.thread, c.thread) should be((0, 1, 1))
+    placement.move_counter should be(4)
+    placement.status.flows.size should be(3)
+    placement.status.threads.size should be(2)
+  }
+
+  test("flows do not swap threads over small rate changes") {
+    val placement = new DispatchPlacement(null)
+    val a = new Flow("a", 0)
+    val b = new Flow("b", 1)
+    val c = new Flow("c", 1)
+
+    place(placement, 1000, a->0, b->0, c->0)
+    place(placement, 2000, a->100, b->90, c->20)
+    (a.thread, b.thread, c.thread) should be((0, 1, 1))
+    placement.move_counter should be(0)
+
+    // b is now the busiest flow, but moving the flows around would
+    // not improve the balance by more than the MOVE_THRESHOLD.
+    place(placement, 2000+MIN_DWELL*2, a->100, b->110, c->20)
+    (a.thread, b.thread, c.thread) should be((0, 1, 1))
+    placement.move_counter should be(0)
+  }
+
+  test("flows stay on their thread for MIN_DWELL before getting moved") {
+    val placement = new DispatchPlacement(null)
+    val a = new Flow("a", 0)
+    val b = new Flow("b", 1)
+    val c = new Flow("c", 1)
+    val d = new Flow("d", 0)
+
+    place(placement, 1000, a->0, b->0, c->0, d->0)
+    place(placement, 2000, a->100, b->90, c->80, d->70)
+    (a.thread, b.thread, c.thread, d.thread) should be((0, 1, 1, 0))
+    placement.move_counter should be(0)
+
+    // d gets busier which overloads its thread, but the flows
+    // were just placed.
+    place(placement, 3000, a->100, b->90, c->80, d->170)
+    (a.thread, b.thread, c.thread, d.thread) should be((0, 1, 1, 0))
+    placement.move_counter should be(0)
+
+    // Once they have been there for MIN_DWELL, a moves over.
+    place(placement, 2000+MIN_DWELL, a->100, b->90, c->80, d->170)
+    (a.thread, b.thread, c.thread, d.thread) should be((1, 1, 1, 0))
+    placement.move_counter should be(2)
+  }
+
+}
@@ -0,0 +1,93 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.activemq.apollo.broker
+
+import org.apache.activemq.apollo.broker.protocol.RawMessage
+import org.apache.activemq.apollo.util.FunSuiteSupport
+import org.fusesource.hawtbuf.Buffer
+import org.fusesource.hawtbuf.Buffer._
+import org.scalatest.matchers.ShouldMatchers
+
+class MessageConversionTest extends FunSuiteSupport with ShouldMatchers {
+
+  /**
+   * Converts the message to a buffer of the given size and counts the
+   * times the conversion actually ran.
+   */
+  class Converter(size:Int) {
+    var conversions = 0
+    def apply(message:Message) = message.converted(this) {
+      conversions += 1
+      new Buffer(size)
+    }
+  }
+
+  def with_limit(limit:Int)(func: =>Unit) = {
+    Message.conversion_cache_limit = limit
+    try {
+      func
+    } finally {
+      Message.conversion_cache_limit = Message.DEFAULT_CONVERSION_CACHE_LIMIT
+    }
+  }
+
+  test("conversions are shared until the message is released") {
+    val message = RawMessage(ascii("test"))
+    message.retain()
+    val converter = new Converter(100)
+    val first = converter(message)
+    converter(message) should be theSameInstanceAs(first)
+    converter.conversions should be(1)
+
+    message.release()
+    converter(message)
+    converter.conversions should be(2)
+  }
+
+  test("the oldest conversions get dropped to make room") {
+    with_limit(1000) {
+      val message = RawMessage(ascii("test"))
+      val a = new Converter(400)
+      val b = new Converter(400)
+      val c = new Converter(400)
+      a(message); b(message); c(message)
+
+      // Only b and c fit.
+      b(message); c(message)
+      b.conversions should be(1)
+      c.conversions should be(1)
+      a(message)
+      a.conversions should be(2)
+    }
+  }
+
+  test("the latest conversion is kept even if it's over the limit") {
+    with_limit(0) {
+      val message = RawMessage(ascii("test"))
+      val small = new Converter(10)
+      val large = new Converter(10000)
+      small(message); small(message)
+      small.conversions should be(1)
+
+      large(message); large(message)
+      large.conversions should be(1)
+      small(message)
+      small.conversions should be(2)
+    }
+  }
+
+}
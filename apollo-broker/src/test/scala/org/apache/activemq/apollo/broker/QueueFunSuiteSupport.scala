@@ -0,0 +1,254 @@
+package org.apache.activemq.apollo.broker
+
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+import org.apache.activemq.apollo.broker.protocol.RawMessage
+import org.apache.activemq.apollo.dto.{StoreDTO, QueueDTO}
+import org.apache.activemq.apollo.selector.SelectorParser
+import org.apache.activemq.apollo.util.{FunSuiteSupport, ServiceControl}
+import org.apache.activemq.apollo.util.FileSupport._
+import org.fusesource.hawtdispatch._
+import org.fusesource.hawtbuf.Buffer
+import org.fusesource.hawtbuf.Buffer._
+import java.util.concurrent.{TimeUnit, CountDownLatch}
+import collection.mutable.ListBuffer
+
+/**
+ * <p>
+ * Starts a broker without any connectors and wires producers and
+ * consumers directly to its queues, so that tests can look at how the
+ * queue dispatches the messages and how the queue entries move between
+ * the loaded and swapped states.  Queues only swap messages out when a
+ * subclass configures a store.
+ * </p>
+ */
+abstract class QueueFunSuiteSupport extends FunSuiteSupport {
+
+  var broker:Broker = _
+
+  /**
+   * The store of the virtual host, none by default.
+   */
+  def store_config:StoreDTO = null
+
+  /**
+   * The queue settings of the virtual host.  Queues under `loaded` never
+   * swap their messages out.
+   */
+  def queue_configs:List[QueueDTO] = {
+    val loaded = new QueueDTO
+    loaded.id = "loaded.**"
+    loaded.swap = false
+    loaded :: Nil
+  }
+
+  override protected def beforeAll() = {
+    super.beforeAll()
+    broker = new Broker()
+    broker.config.connectors.clear()
+    val host = broker.config.virtual_hosts.get(0)
+    host.store = store_config
+    queue_configs.foreach(host.queues.add(_))
+    broker.setTmp(test_data_dir / "tmp")
+    broker.getTmp().mkdirs()
+    ServiceControl.start(broker, "starting the test broker")
+  }
+
+  override protected def afterAll() = {
+    ServiceControl.stop(broker, "stopping the test broker")
+    super.afterAll()
+  }
+
+  def create_queue(name:String):Queue = {
+    val host = broker.default_virtual_host
+    host.dispatch_queue.future {
+      val router = host.router.asInstanceOf[LocalRouter]
+      router.local_queue_domain.get_or_create_destination(SimpleAddress("queue:"+name), null).success
+    }.await()
+  }
+
+  /**
+   * Runs the function on the queue's dispatch queue and waits for its result.
+   */
+  def on_queue[T](queue:Queue)(func: =>T):T = queue.dispatch_queue.future(func).await()
+
+  /**
+   * Counts the entries between the head and the tail of the queue which
+   * match the predicate.  Has to be called on the queue's dispatch queue.
+   */
+  def count_entries(queue:Queue)(pred: QueueEntry=>Boolean) = {
+    var rc = 0
+    var cur = queue.head_entry.getNext
+    while( cur!=null && !cur.is_tail ) {
+      if( pred(cur) ) {
+        rc += 1
+      }
+      cur = cur.getNext
+    }
+    rc
+  }
+
+  def body(delivery:Delivery) = delivery.message.getBodyAs(classOf[Buffer]).ascii.toString
+
+  /**
+   * Sends raw messages with the bodies to the queue.  The expiration
+   * function gives the expiration time of each message body.
+   */
+  def send(queue:Queue, bodies:Seq[String], persistent:Boolean=true, expiration:String=>Long = (body:String)=>0L):Unit = {
+    send_messages(queue, bodies.map(x=> (RawMessage(ascii(x)), expiration(x))), persistent)
+  }
+
+  /**
+   * Sends the messages with their expiration times to the queue and waits
+   * for the queue to have enqueued them, and for the persistent ones to
+   * have been stored.  Messages only get persisted if the host has a store.
+   */
+  def send_messages(queue:Queue, messages:Seq[(Message, Long)], persistent:Boolean=true):Unit = {
+    val store = queue.virtual_host.store
+    val persist = persistent && store!=null
+    val enqueued = on_queue(queue)(queue.enqueue_item_counter)
+    val stored = new CountDownLatch(if(persist) messages.size else 0)
+    val producer_queue = createQueue("test producer")
+    val producer = new DeliveryProducer {
+      def dispatch_queue = producer_queue
+    }
+    val session = producer_queue.future(queue.connect(producer)).await()
+    val done = new CountDownLatch(1)
+    producer_queue {
+      var remaining = messages.toList
+      def fill:Unit = {
+        while( !remaining.isEmpty && !session.full ) {
+          val (message, expiration) = remaining.head
+          val delivery = new Delivery
+          delivery.message = message
+          delivery.size = message.getBodyAs(classOf[Buffer]).length
+          delivery.expiration = expiration
+          delivery.persistent = persist
+          if( persist ) {
+            val uow = store.create_uow
+            val task = ^{ stored.countDown() }
+            uow.on_complete(task.run)
+            delivery.uow = uow
+            session.offer(delivery)
+            uow.release
+          } else {
+            session.offer(delivery)
+          }
+          remaining = remaining.tail
+        }
+        if( remaining.isEmpty ) {
+          session.refiller = NOOP
+          done.countDown()
+        }
+      }
+      session.refiller = ^{ fill }
+      fill
+    }
+    done.await()
+    within(1, TimeUnit.MINUTES) {
+      assert(on_queue(queue)(queue.enqueue_item_counter) == enqueued + messages.size)
+    }
+    assert(stored.await(1, TimeUnit.MINUTES), "timed out waiting for the messages to be stored")
+    producer_queue.future(session.close).await()
+  }
+
+  /**
+   * A consumer which records the deliveries the queue sends it.  It uses the
+   * queue's dispatch queue so its state can be inspected from `on_queue`.
+   * While stalled its session reports itself as full.
+   *
+   * The selector only goes into the queue's selector index if `indexed` is
+   * set, otherwise the queue has to evaluate it against every message.
+   */
+  class TestConsumer(val queue:Queue,
+                     override val browser:Boolean=false,
+                     override val exclusive:Boolean=false,
+                     override val receive_buffer_size:Int=64*1024,
+                     val selector:String=null,
+                     val indexed:Boolean=true) extends AbstractRetainedDeliveryConsumer {
+
+    val filter = if( selector==null ) null else SelectorParser.parse(selector)
+
+    // The bodies of the received messages.
+    val received = ListBuffer[String]()
+    val unacked = ListBuffer[Delivery]()
+    var auto_ack = true
+    var stalled = false
+    var session:TestConsumerSession = _
+
+    def dispatch_queue = queue.dispatch_queue
+    override def jms_selector = if( indexed ) selector else null
+    def matches(message:Delivery) = filter==null || filter.matches(message.message)
+    def is_persistent = false
+    def connect(p:DeliveryProducer) = {
+      session = new TestConsumerSession(p, this)
+      session
+    }
+
+    def ack_all = {
+      unacked.foreach(_.ack(Consumed, null))
+      unacked.clear()
+    }
+
+    def resume = {
+      stalled = false
+      session.refiller.run()
+    }
+
+    def bind:TestConsumer = {
+      val bound = new CountDownLatch(1)
+      queue.bind(this::Nil, ()=>{ bound.countDown() })
+      bound.await()
+      this
+    }
+
+    def unbind = {
+      queue.unbind(this::Nil)
+      on_queue(queue){}
+    }
+  }
+
+  class TestConsumerSession(val producer:DeliveryProducer, val consumer:TestConsumer) extends DeliverySession {
+    var refiller:Task = NOOP
+    var enqueue_item_counter = 0L
+    var enqueue_size_counter = 0L
+    var enqueue_ts = 0L
+    def remaining_capacity = if( consumer.stalled ) 0 else Integer.MAX_VALUE
+    def full = consumer.stalled
+    def close = {}
+
+    def offer(delivery:Delivery) = {
+      if( full ) {
+        false
+      } else {
+        enqueue_item_counter += 1
+        enqueue_size_counter += delivery.size
+        consumer.received += body(delivery)
+        if( consumer.auto_ack ) {
+          if( delivery.ack!=null ) {
+            delivery.ack(Consumed, null)
+          }
+        } else {
+          consumer.unacked += delivery
+        }
+        true
+      }
+    }
+  }
+
+}
@@ -0,0 +1,216 @@
+package org.apache.activemq.apollo.broker
+
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+import org.apache.activemq.apollo.broker.protocol.RawMessageCodec
+import org.apache.activemq.apollo.selector.SelectorParser
+import org.fusesource.hawtbuf.Buffer
+import org.fusesource.hawtbuf.Buffer._
+import java.nio.ByteBuffer
+import java.util.concurrent.{TimeUnit, CountDownLatch}
+
+/**
+ * A non persistent message with properties the selectors can look at.
+ */
+case class PropertyMessage(payload:Buffer, properties:Map[String, AnyRef]) extends RetainedConversions {
+
+  def getBodyAs[T](toType : Class[T]) = {
+    if( toType.isAssignableFrom(classOf[Buffer]) ) {
+      toType.cast(payload)
+    } else if( toType == classOf[Array[Byte]] ) {
+      toType.cast(payload.toByteArray)
+    } else if( toType == classOf[ByteBuffer] ) {
+      toType.cast(payload.toByteBuffer)
+    } else {
+      null.asInstanceOf[T]
+    }
+  }
+
+  def getLocalConnectionId = null
+  def getProperty(name: String):AnyRef = properties.getOrElse(name, null)
+  def expiration = 0L
+  def persistent = false
+  def priority = 0
+  def codec = RawMessageCodec
+}
+
+class QueueSelectorIndexTest extends QueueFunSuiteSupport {
+
+  def message(body:String, properties:(String, AnyRef)*) = (PropertyMessage(ascii(body), properties.toMap), 0L)
+
+  def messages(prefix:String, count:Int, properties:(String, AnyRef)*) = {
+    (1 to count).map(i=> message(prefix+"-"+"%03d".format(i), properties:_*)).toList
+  }
+
+  def bodies(messages:Seq[(Message, Long)]) = messages.map(_._1.getBodyAs(classOf[Buffer]).ascii.toString).toList
+
+  def received(consumer:TestConsumer) = on_queue(consumer.queue)(consumer.received.toList)
+
+  /**
+   * Binds the consumers in a single go so that they all start out
+   * parked at the same entry.
+   */
+  def bind_all(queue:Queue, consumers:Seq[TestConsumer]) = {
+    val bound = new CountDownLatch(1)
+    queue.bind(consumers.toList, ()=>{ bound.countDown() })
+    bound.await()
+    consumers
+  }
+
+  /**
+   * @return the number of subscriptions the selector index has the queue
+   *         offer the message to.
+   */
+  def candidates(queue:Queue, message:Message) = on_queue(queue) {
+    val lookup = queue.selector_index.lookup(message)
+    try {
+      lookup.candidate_count
+    } finally {
+      queue.selector_index.release(lookup)
+    }
+  }
+
+  test("indexed selectors pick the same consumers as unindexed ones") {
+    val indexed_queue = create_queue("loaded.indexed")
+    val unindexed_queue = create_queue("loaded.unindexed")
+
+    // Integer and String property values, and messages without them.
+    val colors = List("red", "blue", "green", null)
+    val weights = List[AnyRef](new java.lang.Integer(10), "10", "20", null)
+    val sent = (0 until 320).map { i =>
+      val properties = List("color"->colors(i%4), "weight"->weights((i/4)%4)).filter(_._2!=null)
+      message("msg-"+"%03d".format(i), properties:_*)
+    }.toList
+    send_messages(indexed_queue, sent)
+    send_messages(unindexed_queue, sent)
+
+    val selectors = List(
+      "color = 'red'",
+      "color = 'blue'",
+      "color IN ('red', 'green')",
+      "color IN ('blue', 'purple')",
+      "weight = '10'",
+      "weight IN ('10', '20')",
+      "weight = 10",
+      "color = 'green' AND weight = '20'",
+      "color = 'red' OR weight = '20'",
+      "color NOT IN ('red')",
+      null
+    )
+    // Several browsers per selector so that the index only has to
+    // offer each message to a few of the parked subscriptions.
+    def browsers(queue:Queue, indexed:Boolean) = {
+      bind_all(queue, for( selector <- selectors; i <- 1 to 3 ) yield {
+        new TestConsumer(queue, browser=true, selector=selector, indexed=indexed)
+      })
+    }
+    val indexed = browsers(indexed_queue, true)
+    val unindexed = browsers(unindexed_queue, false)
+
+    indexed.zip(unindexed).foreach { case (a, b) =>
+      val expected = if( a.selector==null ) {
+        bodies(sent)
+      } else {
+        val filter = SelectorParser.parse(a.selector)
+        bodies(sent.filter(x=> filter.matches(x._1)))
+      }
+      within(1, TimeUnit.MINUTES) {
+        assert(received(a) == expected, "indexed browser with selector: "+a.selector)
+        assert(received(b) == expected, "unindexed browser with selector: "+b.selector)
+      }
+    }
+
+    // The indexed browsers closed at the tail and left the index empty.
+    within(1, TimeUnit.MINUTES) {
+      assert(on_queue(indexed_queue)(indexed_queue.selector_index.isEmpty))
+    }
+  }
+
+  test("consumers in the same candidate list get messages round robin") {
+    val queue = create_queue("loaded.round_robin")
+    val red = (1 to 4).map(x=> new TestConsumer(queue, selector="color = 'red'"))
+    val blue = (1 to 4).map(x=> new TestConsumer(queue, selector="color IN ('blue', 'purple')"))
+    bind_all(queue, red ++ blue)
+
+    // Only the consumers of the message's color get offered the message.
+    assert(candidates(queue, message("red", "color"->"red")._1) == red.size)
+    assert(candidates(queue, message("blue", "color"->"blue")._1) == blue.size)
+    assert(candidates(queue, message("none")._1) == 0)
+
+    val red_messages = messages("red", 40, "color"->"red")
+    val blue_messages = messages("blue", 40, "color"->"blue")
+    send_messages(queue, red_messages.zip(blue_messages).flatMap(x=> x._1::x._2::Nil))
+
+    within(1, TimeUnit.MINUTES) {
+      assert(on_queue(queue)(queue.queue_items) == 0)
+    }
+    List((red, red_messages), (blue, blue_messages)).foreach { case (consumers, sent) =>
+      assert(consumers.flatMap(received(_)).sorted == bodies(sent))
+      consumers.foreach { consumer =>
+        assert(received(consumer).size == 10)
+        assert(received(consumer) == received(consumer).sorted)
+      }
+    }
+    (red ++ blue).foreach(_.unbind)
+  }
+
+  test("consumers can join and leave the index mid-stream") {
+    val queue = create_queue("loaded.join_leave")
+    val red1 = new TestConsumer(queue, selector="color = 'red'")
+    val red2 = new TestConsumer(queue, selector="color IN ('red')")
+    val blue = new TestConsumer(queue, selector="color = 'blue'")
+    bind_all(queue, List(red1, red2, blue))
+
+    val first = messages("first", 20, "color"->"red")
+    send_messages(queue, first)
+    within(1, TimeUnit.MINUTES) {
+      assert(on_queue(queue)(queue.queue_items) == 0)
+    }
+
+    // A new consumer takes the place of one that leaves.
+    val red3 = new TestConsumer(queue, selector="color = 'red'").bind
+    red1.unbind
+    assert(candidates(queue, message("red", "color"->"red")._1) == 2)
+
+    val second = messages("second", 20, "color"->"red")
+    send_messages(queue, second)
+    within(1, TimeUnit.MINUTES) {
+      assert(on_queue(queue)(queue.queue_items) == 0)
+    }
+
+    // The leaving consumer only got its share of the first batch, and the
+    // one that joined only got messages from the second one.
+    assert(received(red1).size == 10)
+    assert(received(red1).forall(bodies(first).contains(_)))
+    assert(!received(red3).isEmpty)
+    assert(received(red3).forall(bodies(second).contains(_)))
+    assert((received(red1) ::: received(red2) ::: received(red3)).sorted == (bodies(first) ::: bodies(second)).sorted)
+    assert(received(blue) == Nil)
+
+    // Once all the red consumers are gone, the queue holds on to the
+    // red messages.
+    red2.unbind
+    red3.unbind
+    assert(candidates(queue, message("red", "color"->"red")._1) == 0)
+    send_messages(queue, messages("third", 5, "color"->"red"))
+    assert(on_queue(queue)(queue.queue_items) == 5)
+    assert(received(blue) == Nil)
+    blue.unbind
+  }
+
+}
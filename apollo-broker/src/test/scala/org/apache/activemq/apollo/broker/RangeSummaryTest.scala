@@ -0,0 +1,75 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.activemq.apollo.broker
+
+import org.apache.activemq.apollo.util.FunSuiteSupport
+import org.scalatest.matchers.ShouldMatchers
+
+class RangeSummaryTest extends FunSuiteSupport with ShouldMatchers {
+
+  def spans(summary:RangeSummary) = (0 until summary.span_count).toList.map { i =>
+    (summary.span_first(i), summary.span_last(i), summary.span_entries(i))
+  }
+
+  test("entries which do not expire share a span") {
+    val summary = new RangeSummary
+    for( seq <- 1L to 100L ) {
+      summary.add(seq, seq, 1, 10, 0, 0)
+    }
+    summary.count should be(100)
+    summary.size should be(1000)
+    summary.expiration should be(0)
+    spans(summary) should be(List((1L, 100L, 100)))
+  }
+
+  test("spans with expiring entries stay narrow") {
+    val summary = new RangeSummary
+    for( seq <- 1L to 1000L ) {
+      val expiration = if( seq == 500 ) 5000L else if ( seq > 900 ) 9000L else 0L
+      summary.add(seq, seq, 1, 10, expiration, 0)
+    }
+    summary.span_count should be <= (RangeSummary.MAX_SPANS)
+    summary.count should be(1000)
+    summary.expiration should be(5000)
+
+    val due = (0 until summary.span_count).filter(summary.is_due(_, 6000))
+    due.map(i=> (summary.span_first(i), summary.span_last(i))).toList should be(List((500L, 500L)))
+    summary.span_index(500) should be(due.head)
+  }
+
+  test("merged summaries keep the totals") {
+    val a = RangeSummary(1, 10, 10, 100, 0, 0)
+    val b = RangeSummary(11, 20, 10, 100, 3000, 2)
+    for( seq <- 21L to 60L ) {
+      b.add(seq, seq, 1, 10, seq * 100, 1)
+    }
+    a.add(b)
+    a.span_count should be <= (RangeSummary.MAX_SPANS)
+    a.first should be(1)
+    a.last should be(60)
+    a.count should be(60)
+    a.size should be(600)
+    a.expiration should be(2100)
+    a.redeliveries should be(2)
+
+    val head = a.slice(0, 1)
+    val tail = a.slice(1, a.span_count)
+    head.count + tail.count should be(60)
+    head.size + tail.size should be(600)
+    tail.first should be(head.last + 1)
+  }
+}
@@ -0,0 +1,57 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.activemq.apollo.broker.store
+
+import org.apache.activemq.apollo.util.FunSuiteSupport
+import org.scalatest.matchers.ShouldMatchers
+import FlushDelayAdvisor._
+
+class FlushDelayAdvisorTest extends FunSuiteSupport with ShouldMatchers {
+
+  test("new queues get the full delay") {
+    val advisor = new FlushDelayAdvisor
+    advisor.delay(List(1L), 500) should be(500)
+  }
+
+  test("drained queues get delayed about as long as the cancels take") {
+    val advisor = new FlushDelayAdvisor
+    for( i <- 0 until MIN_SAMPLES ) {
+      advisor.delayed(1)
+      advisor.canceled(1, 10 * 1000000L)
+    }
+    advisor.delay(List(1L), 500) should be(21)
+    advisor.cancel_ratio should be(1.0)
+  }
+
+  test("queues which are not drained get flushed right away, but still get sampled") {
+    val advisor = new FlushDelayAdvisor
+    for( i <- 0 until MIN_SAMPLES ) {
+      advisor.delayed(2)
+    }
+    val delays = for( i <- 0 until SAMPLE_INTERVAL ) yield advisor.delay(List(2L), 500)
+    delays.count(_ == 0) should be(SAMPLE_INTERVAL-1)
+    delays.last should be(500)
+
+    // a UOW which also enqueues to a drained queue still gets delayed.
+    for( i <- 0 until MIN_SAMPLES ) {
+      advisor.delayed(1)
+      advisor.canceled(1, 10 * 1000000L)
+    }
+    advisor.delay(List(1L, 2L), 500) should be(21)
+    advisor.cancel_ratio should be(0.5)
+  }
+}
@@ -0,0 +1,89 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.activemq.apollo.broker.store
+
+import org.apache.activemq.apollo.util.FunSuiteSupport
+import org.scalatest.matchers.ShouldMatchers
+import org.fusesource.hawtbuf.Buffer._
+
+class MessageCacheTest extends FunSuiteSupport with ShouldMatchers {
+
+  def payload(i:Int) = ascii("%099d".format(i)).buffer
+
+  test("cached payloads are copied back out") {
+    val cache = new MessageCache(10000)
+    cache.put(1, Array(ascii("hello ").buffer, ascii("world").buffer))
+    cache.get(1) should be (ascii("hello world").buffer)
+    cache.get(2) should be (null)
+    cache.hits should be (1)
+    cache.misses should be (1)
+  }
+
+  test("the cache stays within its size limit") {
+    val cache = new MessageCache(10000)
+    for( i <- 0 until 1000 ) {
+      cache.put(i, payload(i))
+    }
+    cache.size should be <= (10000L)
+    cache.evictions should be > (0L)
+  }
+
+  test("the chunks of evicted payloads get reused") {
+    val cache = new MessageCache(10000)
+    for( i <- 0 until 1000 ) {
+      cache.put(i, payload(i))
+    }
+    // never allocates more direct memory than the cache size.
+    cache.direct_size should be <= (10000L + MessageCache.CHUNK_SIZE)
+
+    cache.clear
+    cache.count should be (0)
+    cache.put(1, payload(1))
+    cache.get(1) should be (payload(1))
+  }
+
+  test("payloads put before a clear are not cached") {
+    val cache = new MessageCache(10000)
+    val epoch = cache.epoch
+    cache.clear
+    cache.put(1, Array(payload(1)), epoch)
+    cache.get(1) should be (null)
+  }
+
+  test("payloads spanning several chunks are copied back out") {
+    val cache = new MessageCache(10000)
+    val data = ascii("x" * (MessageCache.CHUNK_SIZE * 3 + 7)).buffer
+    cache.put(1, Array(data.slice(0, 100), data.slice(100, data.length)))
+    cache.get(1) should be (data)
+  }
+
+  test("frequently loaded payloads survive a scan") {
+    val cache = new MessageCache(10000)
+    for( i <- 0 until 50 ) {
+      cache.put(i, payload(i))
+    }
+    for( round <- 0 until 3; i <- 0 until 50 ) {
+      cache.get(i) should not be (null)
+    }
+
+    // payloads which are only stored once should not push out the hot ones.
+    for( i <- 1000 until 2000 ) {
+      cache.put(i, payload(i))
+    }
+    (0 until 50).count(cache.get(_) != null) should be > (40)
+  }
+}
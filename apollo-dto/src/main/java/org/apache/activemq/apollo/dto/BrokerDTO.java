@@ -122,6 +122,14 @@ public class BrokerDTO {
     @XmlAttribute(name = "security_factory")
     public String security_factory;
 
+    /**
+     * The most memory a message uses to remember the forms it was
+     * converted to for delivery, for example "64k".  The latest converted
+     * form is always kept.  Defaults to 64k.
+     */
+    @XmlAttribute(name = "conversion_cache_limit")
+    public String conversion_cache_limit;
+
 
     @Override
     public boolean equals(Object o) {
@@ -138,6 +146,8 @@ public class BrokerDTO {
             return false;
         if (connectors != null ? !connectors.equals(brokerDTO.connectors) : brokerDTO.connectors != null)
             return false;
+        if (conversion_cache_limit != null ? !conversion_cache_limit.equals(brokerDTO.conversion_cache_limit) : brokerDTO.conversion_cache_limit != null)
+            return false;
         if (id != null ? !id.equals(brokerDTO.id) : brokerDTO.id != null)
             return false;
         if (key_storage != null ? !key_storage.equals(brokerDTO.key_storage) : brokerDTO.key_storage != null)
@@ -178,6 +188,7 @@ public class BrokerDTO {
         result = 31 * result + (validation != null ? validation.hashCode() : 0);
         result = 31 * result + (other != null ? other.hashCode() : 0);
         result = 31 * result + (security_factory != null ? security_factory.hashCode() : 0);
+        result = 31 * result + (conversion_cache_limit != null ? conversion_cache_limit.hashCode() : 0);
         return result;
     }
 }
\ No newline at end of file
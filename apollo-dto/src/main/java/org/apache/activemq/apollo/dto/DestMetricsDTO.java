@@ -189,6 +189,58 @@ public class DestMetricsDTO {
     @XmlAttribute(name="swapped_in_items")
     public long swapped_in_items;
 
+    /**
+     * An estimate of the RAM in bytes used to track the messages
+     * that are sitting in the queue, not counting the messages
+     * themselves.  Swapped out messages are tracked more compactly
+     * than the messages resident in RAM.
+     */
+    @XmlAttribute(name="entries_heap_size")
+    public long entries_heap_size;
+
+    /**
+     * The number of queue entries holding messages that have
+     * an expiration set.  Swapped out ranges of messages are
+     * counted as one entry.
+     */
+    @XmlAttribute(name="expiring_items")
+    public long expiring_items;
+
+    /**
+     * The number of times the queue maintenance has run.  It
+     * expires messages and decides which messages to swap in or out.
+     */
+    @XmlAttribute(name="maintenance_counter")
+    public long maintenance_counter;
+
+    /**
+     * The total time in microseconds spent running the queue
+     * maintenance.
+     */
+    @XmlAttribute(name="maintenance_time_counter")
+    public long maintenance_time_counter;
+
+    /**
+     * The longest time in microseconds a single queue maintenance
+     * run has taken.
+     */
+    @XmlAttribute(name="maintenance_time_max")
+    public long maintenance_time_max;
+
+    /**
+     * The number of times the message selectors of the
+     * queue's subscriptions have been evaluated.
+     */
+    @XmlAttribute(name="selector_counter")
+    public long selector_counter;
+
+    /**
+     * The total time in nanoseconds spent evaluating the
+     * message selectors of the queue's subscriptions.
+     */
+    @XmlAttribute(name="selector_time_counter")
+    public long selector_time_counter;
+
     /**
      * The total size in bytes of messages that are being
      * loaded from persistent storage into RAM.
@@ -0,0 +1,61 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.activemq.apollo.dto;
+
+import com.fasterxml.jackson.annotation.JsonIgnoreProperties;
+
+import javax.xml.bind.annotation.*;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * <p>
+ *     The thread placement of the producer to destination to consumer
+ *     flows of a virtual host.
+ * </p>
+ */
+@XmlRootElement(name="dispatch_placement")
+@XmlAccessorType(XmlAccessType.FIELD)
+@JsonIgnoreProperties(ignoreUnknown = true)
+public class DispatchPlacementDTO {
+
+    /**
+     * The time the placement was last computed.  In milliseconds since the epoch.
+     */
+    @XmlAttribute(name="timestamp")
+    public long timestamp;
+
+    /**
+     * The number of times a dispatch queue has been moved to
+     * another thread.
+     */
+    @XmlAttribute(name="move_counter")
+    public long move_counter;
+
+    /**
+     * The load placed on each of the dispatch threads.
+     */
+    @XmlElement(name="thread")
+    public List<ThreadPlacementDTO> threads = new ArrayList<ThreadPlacementDTO>();
+
+    /**
+     * The flows that are being placed, busiest first.
+     */
+    @XmlElement(name="flow")
+    public List<FlowPlacementDTO> flows = new ArrayList<FlowPlacementDTO>();
+
+}
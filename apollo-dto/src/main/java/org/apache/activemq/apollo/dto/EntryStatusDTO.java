@@ -48,6 +48,19 @@ public class EntryStatusDTO {
     @XmlAttribute
     public String state;
 
+    /**
+     * The earliest expiration time of the messages held by the
+     * entry or 0 if none of them expire.
+     */
+    @XmlAttribute
+    public long expiration;
+
+    /**
+     * The highest redelivery count of the messages held by the entry.
+     */
+    @XmlAttribute
+    public int redeliveries;
+
     @XmlAttribute(name="consumer_count")
     public int consumer_count;
 
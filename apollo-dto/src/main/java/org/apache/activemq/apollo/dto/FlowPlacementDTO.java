@@ -0,0 +1,63 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.activemq.apollo.dto;
+
+import com.fasterxml.jackson.annotation.JsonIgnoreProperties;
+
+import javax.xml.bind.annotation.*;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * <p>
+ *     A group of dispatch queues that exchange messages and which
+ *     are placed on the same thread.
+ * </p>
+ */
+@XmlRootElement(name="flow_placement")
+@XmlAccessorType(XmlAccessType.FIELD)
+@JsonIgnoreProperties(ignoreUnknown = true)
+public class FlowPlacementDTO {
+
+    /**
+     * The label of the thread the flow is placed on.
+     */
+    @XmlAttribute(name="thread")
+    public String thread;
+
+    /**
+     * The estimated load of the flow.  Measured in messages per
+     * second with each KB of message data counting as an additional
+     * message.
+     */
+    @XmlAttribute(name="load")
+    public long load;
+
+    /**
+     * The time the flow was last moved to another thread.  In
+     * milliseconds since the epoch.
+     */
+    @XmlAttribute(name="moved_at")
+    public long moved_at;
+
+    /**
+     * The labels of the dispatch queues in the flow.
+     */
+    @XmlElement(name="member")
+    public List<String> members = new ArrayList<String>();
+
+}
@@ -33,6 +33,11 @@ public class QueueConsumerLinkDTO extends LinkDTO {
     public Integer acquired_count;
     public Long acquired_size;
 
+    /**
+     * The number of recently seen message groups assigned to the consumer.
+     */
+    public Integer message_groups;
+
     public Long total_ack_count;
     public Long total_nack_count;
 
@@ -64,6 +64,13 @@ public class QueueSettingsDTO {
     @XmlAttribute(name="message_group_graceful_handoff")
     public Boolean message_group_graceful_handoff;
 
+    /**
+     * The number of recently seen message groups the queue
+     * remembers the consumer assignment of. Defaults to 131072.
+     */
+    @XmlAttribute(name="message_group_table_size")
+    public Integer message_group_table_size;
+
     /**
      * Should messages be swapped out of memory if
      * no consumers need the message?
@@ -197,6 +204,8 @@ public class QueueSettingsDTO {
         if (swap_range_size != null ? !swap_range_size.equals(that.swap_range_size) : that.swap_range_size != null)
             return false;
         if (tail_buffer != null ? !tail_buffer.equals(that.tail_buffer) : that.tail_buffer != null) return false;
+        if (message_group_table_size != null ? !message_group_table_size.equals(that.message_group_table_size) : that.message_group_table_size != null)
+            return false;
 
         return true;
     }
@@ -215,6 +224,7 @@ public class QueueSettingsDTO {
         result = 31 * result + (dlq != null ? dlq.hashCode() : 0);
         result = 31 * result + (nak_limit != null ? nak_limit.hashCode() : 0);
         result = 31 * result + (other != null ? other.hashCode() : 0);
+        result = 31 * result + (message_group_table_size != null ? message_group_table_size.hashCode() : 0);
         return result;
     }
 }
@@ -42,6 +42,15 @@ public abstract class StoreDTO {
     @XmlAttribute(name="flush_delay", required=false)
     public Long flush_delay;
 
+    /**
+     * When set to true, a unit of work only gets delayed when the
+     * consumers of the queues it enqueues to have recently been
+     * dequeuing messages before they got flushed, and only for as long
+     * as that usually takes.  The flush delay becomes the maximum delay.
+     */
+    @XmlAttribute(name="adaptive_flush_delay", required=false)
+    public Boolean adaptive_flush_delay;
+
     @Override
     public boolean equals(Object o) {
         if (this == o) return true;
@@ -51,12 +60,16 @@ public abstract class StoreDTO {
 
         if (flush_delay != null ? !flush_delay.equals(storeDTO.flush_delay) : storeDTO.flush_delay != null)
             return false;
+        if (adaptive_flush_delay != null ? !adaptive_flush_delay.equals(storeDTO.adaptive_flush_delay) : storeDTO.adaptive_flush_delay != null)
+            return false;
 
         return true;
     }
 
     @Override
     public int hashCode() {
-        return flush_delay != null ? flush_delay.hashCode() : 0;
+        int result = flush_delay != null ? flush_delay.hashCode() : 0;
+        result = 31 * result + (adaptive_flush_delay != null ? adaptive_flush_delay.hashCode() : 0);
+        return result;
     }
 }
@@ -103,4 +103,75 @@ public abstract class StoreStatusDTO {
     @XmlElement(name="pending_stores")
     public int pending_stores;
 
+    /**
+     * The fraction of the recently delayed enqueues which got
+     * canceled by a dequeue before they were flushed.
+     */
+    @XmlAttribute(name="canceled_enqueue_ratio")
+    public double canceled_enqueue_ratio;
+
+    /**
+     * The average amount of time in milliseconds the units of
+     * work have recently been delayed before getting flushed.
+     */
+    @XmlAttribute(name="effective_flush_delay")
+    public long effective_flush_delay;
+
+    /**
+     * The number of units of work queued to get flushed which
+     * have not yet been handed to the store.
+     */
+    @XmlAttribute(name="flush_queue_depth")
+    public int flush_queue_depth;
+
+    /**
+     * The number of flush batches the store is writing or syncing.
+     */
+    @XmlAttribute(name="flushes_in_flight")
+    public int flushes_in_flight;
+
+    /**
+     * The amount of time it takes to write a flush batch to the
+     * journal and the index.
+     */
+    @XmlElement(name="flush_write_latency")
+    public TimeMetricDTO flush_write_latency;
+
+    /**
+     * The amount of time it takes to sync a flush batch to disk.
+     */
+    @XmlElement(name="flush_sync_latency")
+    public TimeMetricDTO flush_sync_latency;
+
+    /**
+     * The number of message loads served from the message cache.
+     */
+    @XmlAttribute(name="message_cache_hits")
+    public long message_cache_hits;
+
+    /**
+     * The number of message loads that were not in the message cache.
+     */
+    @XmlAttribute(name="message_cache_misses")
+    public long message_cache_misses;
+
+    /**
+     * The number of messages evicted from, or not admitted into, the
+     * main area of the message cache.
+     */
+    @XmlAttribute(name="message_cache_evictions")
+    public long message_cache_evictions;
+
+    /**
+     * The number of bytes held by the message cache.
+     */
+    @XmlAttribute(name="message_cache_size")
+    public long message_cache_size;
+
+    /**
+     * The number of messages held by the message cache.
+     */
+    @XmlAttribute(name="message_cache_entries")
+    public int message_cache_entries;
+
 }
\ No newline at end of file
@@ -0,0 +1,56 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.activemq.apollo.dto;
+
+import com.fasterxml.jackson.annotation.JsonIgnoreProperties;
+
+import javax.xml.bind.annotation.XmlAccessType;
+import javax.xml.bind.annotation.XmlAccessorType;
+import javax.xml.bind.annotation.XmlAttribute;
+import javax.xml.bind.annotation.XmlRootElement;
+
+/**
+ * <p>
+ *     The load placed on a dispatch thread.
+ * </p>
+ */
+@XmlRootElement(name="thread_placement")
+@XmlAccessorType(XmlAccessType.FIELD)
+@JsonIgnoreProperties(ignoreUnknown = true)
+public class ThreadPlacementDTO {
+
+    /**
+     * The label of the thread's dispatch queue.
+     */
+    @XmlAttribute(name="thread")
+    public String thread;
+
+    /**
+     * The number of flows placed on the thread.
+     */
+    @XmlAttribute(name="flows")
+    public int flows;
+
+    /**
+     * The estimated load of the flows placed on the thread.  Measured
+     * in messages per second with each KB of message data counting as
+     * an additional message.
+     */
+    @XmlAttribute(name="load")
+    public long load;
+
+}
@@ -77,7 +77,9 @@ public class VirtualHostDTO extends ServiceDTO {
     public ArrayList<DurableSubscriptionDTO> dsubs = new ArrayList<DurableSubscriptionDTO>();
 
     /**
-     * Should connections get regroups so they get serviced by the same thread?
+     * Should connections and destinations get regrouped so that the ones
+     * exchanging messages get serviced by the same thread and the load
+     * is spread evenly over the threads?
      */
     @XmlAttribute(name="regroup_connections")
     public Boolean regroup_connections;
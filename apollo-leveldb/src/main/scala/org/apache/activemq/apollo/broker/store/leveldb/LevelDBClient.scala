@@ -34,7 +34,7 @@ import org.apache.activemq.apollo.util.ProcessSupport._
 import collection.mutable.{HashMap, ListBuffer}
 import org.apache.activemq.apollo.dto.JsonCodec
 import org.iq80.leveldb._
-import org.apache.activemq.apollo.broker.store.leveldb.RecordLog.LogInfo
+import org.apache.activemq.apollo.broker.store.leveldb.RecordLog.{LogInfo, LOG_HEADER_SIZE}
 import org.apache.activemq.apollo.broker.store.PBSupport
 import java.util.concurrent.atomic.AtomicReference
 import org.fusesource.hawtbuf.{DataByteArrayInputStream, Buffer}
@@ -70,6 +70,10 @@ object LevelDBClient extends Log {
   final val LOG_REMOVE_QUEUE_ENTRY = 6.toByte
   final val LOG_MAP_ENTRY = 7.toByte
 
+  // Messages which are this close to each other in a log file get loaded with a single read.
+  final val MAX_LOAD_READ_GAP = 1024 * 4
+  final val MAX_LOAD_READ_SIZE = 1024 * 256
+
   final val LOG_SUFFIX = ".log"
   final val INDEX_SUFFIX = ".index"
   var auto_compaction_ratio = 100
@@ -242,6 +246,10 @@ class LevelDBClient(store: LevelDBStore) {
     Option(config.log_size).map(MemoryPropertyEditor.parse(_)).getOrElse(1024 * 1024 * 100L)
   }
 
+  def log_direct_write_threshold = {
+    Option(config.log_direct_write_threshold).map(MemoryPropertyEditor.parse(_).toInt).getOrElse(RecordLog.BYPASS_BUFFER_SIZE)
+  }
+
   def paranoid_checks = OptionSupport(config.paranoid_checks).getOrElse(false)
 
   def start() = {
@@ -295,6 +303,8 @@ class LevelDBClient(store: LevelDBStore) {
     log = create_log
     log.sync = sync
     log.logSize = log_size
+    log.direct_write_threshold = log_direct_write_threshold
+    log.mmap_reads = config.log_mmap_reads.getOrElse(false)
     log.verify_checksums = verify_checksums
     log.on_log_rotate = () => {
       // lets queue a request to checkpoint when
@@ -865,128 +875,295 @@ class LevelDBClient(store: LevelDBStore) {
     callback.run
   }
 
-  def store(uows: Seq[LevelDBStore#DelayableUOW]) {
-    retry_using_index {
-      log.appender {
-        appender =>
+  case class EncodedMessage(header: Buffer, body: Buffer, checksum: Int)
 
-          var sync_needed = false
-          index.write() {
-            batch =>
-              uows.foreach {
-                uow =>
-
-                  for ((key, value) <- uow.map_actions) {
-                    val entry = new MapEntryPB.Bean()
-                    entry.setKey(key)
-                    if (value == null) {
-                      batch.delete(encode_key(map_prefix, key))
-                    } else {
-                      entry.setValue(value)
-                      batch.put(encode_key(map_prefix, key), value.toByteArray)
+  def encode_message(message_record: MessageRecord) = {
+    val pb = new MessagePB.Bean
+    pb.setCodec(message_record.codec)
+
+    val body = if(message_record.compressed!=null) {
+      pb.setCompression(1)
+      message_record.compressed
+    } else {
+      message_record.buffer
+    }
+    val header = pb.freeze().toFramedBuffer
+    EncodedMessage(header, body, log.checksum(header, body))
+  }
+
+  /**
+   * Journals and indexes the units of work.  If a disk sync is needed before
+   * the units of work can be considered complete, the retained appender
+   * and the offset it needs to be synced up to are returned.  The caller must
+   * release the appender once it's done syncing it.
+   */
+  def store(uows: Seq[LevelDBStore#DelayableUOW]):Option[(RecordLog#LogAppender, Long)] = {
+    var sync_needed = false
+    var sync_appender: RecordLog#LogAppender = null
+    try {
+      retry_using_index {
+        log.appender {
+          appender =>
+
+            sync_needed = false
+            if (sync_appender ne appender) {
+              if (sync_appender != null) {
+                sync_appender.release()
+              }
+              appender.retain()
+              sync_appender = appender
+            }
+            index.write() {
+              batch =>
+                uows.foreach {
+                  uow =>
+
+                    for ((key, value) <- uow.map_actions) {
+                      val entry = new MapEntryPB.Bean()
+                      entry.setKey(key)
+                      if (value == null) {
+                        batch.delete(encode_key(map_prefix, key))
+                      } else {
+                        entry.setValue(value)
+                        batch.put(encode_key(map_prefix, key), value.toByteArray)
+                      }
+                      var log_data = entry.freeze().toUnframedBuffer
+
+                      appender.append(LOG_MAP_ENTRY, log_data)
                     }
-                    var log_data = entry.freeze().toUnframedBuffer
 
-                    appender.append(LOG_MAP_ENTRY, log_data)
-                  }
+                    uow.actions.foreach {
+                      case (msg, action) =>
+                        val message_record = action.message_record
+                        var locator: (Long, Int) = null
+                        var log_info: LogInfo = null
 
-                  uow.actions.foreach {
-                    case (msg, action) =>
-                      val message_record = action.message_record
-                      var locator: (Long, Int) = null
-                      var log_info: LogInfo = null
+                        if (message_record != null) {
 
-                      if (message_record != null) {
+                          val message = encode_message(message_record)
+                          val (pos, log_info) = appender.append_checksummed(LOG_ADD_MESSAGE, message.checksum, message.header, message.body)
+                          locator = (pos, message.header.length + message.body.length)
+                          message_record.locator.set(locator);
+                          cache_written_message(pos, Array(message.header, message.body))
+                        }
+
+                        action.dequeues.foreach {
+                          entry =>
+                            if (locator == null) {
+                              locator = entry.message_locator.get().asInstanceOf[(Long, Int)]
+                            }
+                            assert(locator != null)
+                            val (pos, len) = locator
+                            val key = encode_key(queue_entry_prefix, entry.queue_key, entry.entry_seq)
+
+                            appender.append(LOG_REMOVE_QUEUE_ENTRY, key)
+                            batch.delete(key)
+                            log_ref_decrement(pos, log_info)
+                        }
 
-                        val pb = new MessagePB.Bean
-                        pb.setCodec(message_record.codec)
+                        var locator_buffer: Buffer = null
+                        action.enqueues.foreach {
+                          entry =>
+                            if (locator == null) {
+                              locator = entry.message_locator.get().asInstanceOf[(Long, Int)]
+                            }
+                            assert(locator != null)
+                            val (pos, len) = locator
+                            if (locator_buffer == null) {
+                              locator_buffer = encode_locator(pos, len)
+                            }
+
+                            entry.message_locator.set(locator)
+
+                            val log_record = new QueueEntryPB.Bean
+                            // TODO: perhaps we should normalize the sender to make the index entries more compact.
+                            if( entry.sender!=null ) {
+                              entry.sender.foreach(log_record.addSender(_))
+                            }
+                            log_record.setMessageLocator(locator_buffer)
+                            log_record.setQueueKey(entry.queue_key)
+                            log_record.setQueueSeq(entry.entry_seq)
+                            log_record.setSize(entry.size)
+                            if (entry.expiration != 0)
+                              log_record.setExpiration(entry.expiration)
+                            if (entry.redeliveries != 0)
+                              log_record.setRedeliveries(entry.redeliveries)
+
+                            appender.append(LOG_ADD_QUEUE_ENTRY, log_record.freeze().toUnframedBuffer)
+
+                            // Slim down the index record, the smaller it is the cheaper the compactions
+                            // will be and the more we can cache in mem.
+                            val index_record = log_record.copy()
+                            index_record.clearQueueKey()
+                            index_record.clearQueueSeq()
+                            batch.put(encode_key(queue_entry_prefix, entry.queue_key, entry.entry_seq), index_record.freeze().toUnframedBuffer)
+
+                            // Increment it.
+                            log_ref_increment(pos, log_info)
 
-                        val body = if(message_record.compressed!=null) {
-                          pb.setCompression(1)
-                          message_record.compressed
-                        } else {
-                          message_record.buffer
                         }
-                        var header = pb.freeze().toFramedBuffer
+                    }
+                    if (uow.flush_sync) {
+                      sync_needed = true
+                    }
+                }
+            }
+        }
+      }
+    } catch {
+      case e: Throwable =>
+        if (sync_appender != null) {
+          sync_appender.release()
+        }
+        throw e
+    }
+    if (sync_needed && sync) {
+      // The UOW_END record has been appended by now, so include it in the sync.
+      Some((sync_appender, sync_appender.append_offset))
+    } else {
+      sync_appender.release()
+      None
+    }
+  }
 
-                        val (pos, log_info) = appender.append(LOG_ADD_MESSAGE, header, body)
-                        locator = (pos, header.length + body.length)
-                        message_record.locator.set(locator);
-                      }
+  val metric_load_from_index_counter = new TimeCounter
+  var metric_load_from_index = metric_load_from_index_counter(false)
 
-                      action.dequeues.foreach {
-                        entry =>
-                          if (locator == null) {
-                            locator = entry.message_locator.get().asInstanceOf[(Long, Int)]
-                          }
-                          assert(locator != null)
-                          val (pos, len) = locator
-                          val key = encode_key(queue_entry_prefix, entry.queue_key, entry.entry_seq)
-
-                          appender.append(LOG_REMOVE_QUEUE_ENTRY, key)
-                          batch.delete(key)
-                          log_ref_decrement(pos, log_info)
-                      }
+  type LoadRequest = (Long, AtomicReference[Object], (Option[MessageRecord]) => Unit)
 
-                      var locator_buffer: Buffer = null
-                      action.enqueues.foreach {
-                        entry =>
-                          if (locator == null) {
-                            locator = entry.message_locator.get().asInstanceOf[(Long, Int)]
-                          }
-                          assert(locator != null)
-                          val (pos, len) = locator
-                          if (locator_buffer == null) {
-                            locator_buffer = encode_locator(pos, len)
-                          }
-
-                          entry.message_locator.set(locator)
-
-                          val log_record = new QueueEntryPB.Bean
-                          // TODO: perhaps we should normalize the sender to make the index entries more compact.
-                          if( entry.sender!=null ) {
-                            entry.sender.foreach(log_record.addSender(_))
-                          }
-                          log_record.setMessageLocator(locator_buffer)
-                          log_record.setQueueKey(entry.queue_key)
-                          log_record.setQueueSeq(entry.entry_seq)
-                          log_record.setSize(entry.size)
-                          if (entry.expiration != 0)
-                            log_record.setExpiration(entry.expiration)
-                          if (entry.redeliveries != 0)
-                            log_record.setRedeliveries(entry.redeliveries)
-
-                          appender.append(LOG_ADD_QUEUE_ENTRY, log_record.freeze().toUnframedBuffer)
-
-                          // Slim down the index record, the smaller it is the cheaper the compactions
-                          // will be and the more we can cache in mem.
-                          val index_record = log_record.copy()
-                          index_record.clearQueueKey()
-                          index_record.clearQueueSeq()
-                          batch.put(encode_key(queue_entry_prefix, entry.queue_key, entry.entry_seq), index_record.freeze().toUnframedBuffer)
-
-                          // Increment it.
-                          log_ref_increment(pos, log_info)
+  def decode_message(locator: AtomicReference[Object], data: Buffer) = {
+    val is = new DataByteArrayInputStream(data)
+    val pb = MessagePB.FACTORY.parseFramed(is)
+    val rc = PBSupport.from_pb(pb)
+    rc.buffer = is.readBuffer(is.available())
+    rc.locator = locator
+    if(pb.getCompression == 1) {
+      rc.buffer = Snappy.uncompress(rc.buffer)
+    }
+    rc
+  }
 
-                      }
-                  }
-                  if (uow.flush_sync) {
-                    sync_needed = true
-                  }
+  private def cache_message(pos: Long, data: Array[Buffer]) = {
+    val cache = store.message_cache
+    if (cache != null) {
+      cache.put(pos, data)
+    }
+  }
+
+  /**
+   * Hands the copy of a message that just got appended to the log over to
+   * the cache thread, so that it does not hold up the write thread.
+   */
+  private def cache_written_message(pos: Long, data: Array[Buffer]) = {
+    val cache = store.message_cache
+    val executor = store.cache_executor
+    if (cache != null && executor != null) {
+      val epoch = cache.epoch
+      executor {
+        cache.put(pos, data, epoch)
+      }
+    }
+  }
+
+  def load_message(locator: AtomicReference[Object]): Option[MessageRecord] = {
+    metric_load_from_index_counter.time {
+      val (pos, len) = locator.get().asInstanceOf[(Long, Int)]
+      log.read(pos, len).map { data =>
+        store.message_load_read(LOG_HEADER_SIZE + len)
+        cache_message(pos, Array(data))
+        decode_message(locator, data)
+      }
+    }
+  }
+
+  /**
+   * Loads the requested messages in log position order.  The reads of messages
+   * which are stored close to each other in the same log file get coalesced
+   * into a single larger read.  Returns the requests which could not be loaded.
+   */
+  def load_messages_sorted(requests: Seq[LoadRequest]): Seq[LoadRequest] = {
+    val sorted = requests.map(x => (x, x._2.get().asInstanceOf[(Long, Int)])).sortBy(_._2._1).toArray
+    val missing = ListBuffer[LoadRequest]()
+
+    def load_one(x: LoadRequest) = {
+      val record = load_message(x._2)
+      if (record.isDefined) {
+        x._3(record)
+      } else {
+        missing += x
+      }
+    }
+
+    var i = 0
+    while (i < sorted.length) {
+      val (first_pos, first_len) = sorted(i)._2
+      val log_position = log.log_info(first_pos).map(_.position)
+      var end = first_pos + LOG_HEADER_SIZE + first_len
+      var j = i + 1
+      var coalescing = !verify_checksums && log_position.isDefined
+      while (coalescing && j < sorted.length) {
+        val (pos, len) = sorted(j)._2
+        val next_end = end.max(pos + LOG_HEADER_SIZE + len)
+        if (pos - end <= MAX_LOAD_READ_GAP && next_end - first_pos <= MAX_LOAD_READ_SIZE && log.log_info(pos).map(_.position) == log_position) {
+          end = next_end
+          j += 1
+        } else {
+          coalescing = false
+        }
+      }
+
+      if (j - i == 1) {
+        load_one(sorted(i)._1)
+      } else {
+        val block = metric_load_from_index_counter.time {
+          log.read_range(first_pos, (end - first_pos).toInt)
+        }
+        block match {
+          case Some(block) =>
+            store.message_load_read(block.length)
+            for (k <- i until j) {
+              val (x, (pos, len)) = sorted(k)
+              val offset = (pos - first_pos).toInt
+              if (block.get(offset) == RecordLog.LOG_HEADER_PREFIX) {
+                val data = new Buffer(block.data, block.offset + offset + LOG_HEADER_SIZE, len)
+                cache_message(pos, Array(data))
+                x._3(Some(decode_message(x._2, data)))
+              } else {
+                // Does not look like a record, fallback to reading it by itself.
+                load_one(x)
               }
-          }
-          if (sync_needed && sync) {
-            appender.flush
-            appender.force
-          }
+            }
+          case None =>
+            for (k <- i until j) {
+              load_one(sorted(k)._1)
+            }
+        }
       }
+      i = j
     }
+    missing
   }
 
-  val metric_load_from_index_counter = new TimeCounter
-  var metric_load_from_index = metric_load_from_index_counter(false)
+  def loadMessages(all_requests: ListBuffer[LoadRequest]): Unit = {
 
-  def loadMessages(requests: ListBuffer[(Long, AtomicReference[Object], (Option[MessageRecord]) => Unit)]): Unit = {
+    // Serve the recently stored or loaded messages from the cache.
+    val cache = store.message_cache
+    val requests = if (cache == null) {
+      all_requests
+    } else {
+      all_requests.filter { x =>
+        val (pos, _) = x._2.get().asInstanceOf[(Long, Int)]
+        val data = cache.get(pos)
+        if (data != null) {
+          x._3(Some(decode_message(x._2, data)))
+          false
+        } else {
+          true
+        }
+      }
+    }
+    if (requests.isEmpty)
+      return
 
     val ro = new ReadOptions
     ro.verifyChecksums(verify_checksums)
@@ -996,30 +1173,7 @@ class LevelDBClient(store: LevelDBStore) {
       index.snapshot {
         snapshot =>
           ro.snapshot(snapshot)
-          requests.flatMap {
-            x =>
-              val (_, locator, callback) = x
-              val record = metric_load_from_index_counter.time {
-                val (pos, len) = locator.get().asInstanceOf[(Long, Int)]
-                log.read(pos, len).map { data =>
-                  val is = new DataByteArrayInputStream(data)
-                  val pb = MessagePB.FACTORY.parseFramed(is)
-                  val rc = PBSupport.from_pb(pb)
-                  rc.buffer = is.readBuffer(is.available())
-                  rc.locator = locator
-                  if(pb.getCompression == 1) {
-                    rc.buffer = Snappy.uncompress(rc.buffer)
-                  }
-                  rc
-                }
-              }
-              if (record.isDefined) {
-                callback(record)
-                None
-              } else {
-                Some(x)
-              }
-          }
+          load_messages_sorted(requests)
       }
     }
 
@@ -1035,21 +1189,7 @@ class LevelDBClient(store: LevelDBStore) {
           missing.foreach {
             x =>
               val (_, locator, callback) = x
-              val record: Option[MessageRecord] = metric_load_from_index_counter.time {
-                val (pos, len) = locator.get().asInstanceOf[(Long, Int)]
-                log.read(pos, len).map { data=>
-                  val is = new DataByteArrayInputStream(data)
-                  val pb = MessagePB.FACTORY.parseFramed(is)
-                  val rc = PBSupport.from_pb(pb)
-                  rc.buffer = is.readBuffer(is.available())
-                  rc.locator = locator
-                  if(pb.getCompression == 1) {
-                    rc.buffer = Snappy.uncompress(rc.buffer)
-                  }
-                  rc
-                }
-              }
-              callback(record)
+              callback(load_message(locator))
           }
       }
     }
@@ -1116,6 +1256,9 @@ class LevelDBClient(store: LevelDBStore) {
                   group.expiration = entry.getExpiration.min(group.expiration)
                 }
               }
+              if (entry.getRedeliveries > group.redeliveries) {
+                group.redeliveries = entry.getRedeliveries.toShort
+              }
 
               if (group.count == limit) {
                 rc += group
@@ -52,6 +52,12 @@ class LevelDBStore(val config: LevelDBStoreDTO) extends DelayingStoreSupport {
   var write_executor: ExecutorService = _
   var read_executor: ExecutorService = _
 
+  // Only used when flushes are pipelined.
+  var sync_executor: ExecutorService = _
+
+  // Only used when the message cache is enabled.
+  var cache_executor: ExecutorService = _
+
   var client: LevelDBClient = _
 
   def create_client = new LevelDBClient(this)
@@ -65,6 +71,8 @@ class LevelDBStore(val config: LevelDBStoreDTO) extends DelayingStoreSupport {
 
   def flush_delay = config.flush_delay.getOrElse(500)
 
+  override protected def adaptive_flush_delay = config.adaptive_flush_delay.getOrElse(false)
+
   protected def get_next_msg_key = next_msg_key.getAndIncrement
 
 
@@ -77,22 +85,66 @@ class LevelDBStore(val config: LevelDBStoreDTO) extends DelayingStoreSupport {
     }
   }
 
+  override protected def flush_pipeline_depth = config.flush_pipeline_depth.getOrElse(1).max(1)
+
   protected def store(uows: Seq[DelayableUOW])(callback: => Unit) = write_executor {
+    var pending_sync:Option[(RecordLog#LogAppender, Long)] = None
+    val start = System.nanoTime
     try {
-      client.store(uows)
+      pending_sync = client.store(uows)
     } catch {
       case e =>
       warn(e, "Failure occured while storing units of work: "+e)
+    }
+    flush_written(System.nanoTime - start)
+    pending_sync match {
+      case Some((appender, offset)) if sync_executor!=null =>
+        // Let the write thread move on to the next batch while the log syncs,
+        // the next batch only gets handed over when pipelined flushes are enabled.
+        sync_executor {
+          sync(appender, offset)
+          dispatch_queue {
+            callback
+          }
+        }
+      case Some((appender, offset)) =>
+        sync(appender, offset)
+        dispatch_queue {
+          callback
+        }
+      case None =>
+        dispatch_queue {
+          callback
+        }
+    }
+  }
+
+  private def sync(appender:RecordLog#LogAppender, offset:Long) = {
+    val start = System.nanoTime
+    try {
+      appender.sync_to(offset)
+    } catch {
+      case e:Throwable =>
+      warn(e, "Failure occured while syncing the log: "+e)
     } finally {
-      dispatch_queue {
-        callback
-      }
+      appender.release()
+      flush_synced(System.nanoTime - start)
     }
   }
 
   protected def _start(on_completed: Task) = {
     try {
       client = create_client
+      message_cache = Option(config.message_cache_size).map(MemoryPropertyEditor.parse(_)).filter(_ > 0).map(new MessageCache(_)).getOrElse(null)
+      if( message_cache!=null ) {
+        cache_executor = Executors.newFixedThreadPool(1, new ThreadFactory() {
+          def newThread(r: Runnable) = {
+            val rc = new Thread(r, store_kind + " store io cache")
+            rc.setDaemon(true)
+            rc
+          }
+        })
+      }
       write_executor = Executors.newFixedThreadPool(1, new ThreadFactory() {
         def newThread(r: Runnable) = {
           val rc = new Thread(r, store_kind + " store io write")
@@ -100,6 +152,15 @@ class LevelDBStore(val config: LevelDBStoreDTO) extends DelayingStoreSupport {
           rc
         }
       })
+      if( flush_pipeline_depth > 1 ) {
+        sync_executor = Executors.newFixedThreadPool(1, new ThreadFactory() {
+          def newThread(r: Runnable) = {
+            val rc = new Thread(r, store_kind + " store io sync")
+            rc.setDaemon(true)
+            rc
+          }
+        })
+      }
       read_executor = Executors.newFixedThreadPool(config.read_threads.getOrElse(10), new ThreadFactory() {
         def newThread(r: Runnable) = {
           val rc = new Thread(r, store_kind + " store io read")
@@ -142,6 +203,16 @@ class LevelDBStore(val config: LevelDBStoreDTO) extends DelayingStoreSupport {
         write_executor.shutdown
         write_executor.awaitTermination(60, TimeUnit.SECONDS)
         write_executor = null
+        if( sync_executor!=null ) {
+          sync_executor.shutdown
+          sync_executor.awaitTermination(60, TimeUnit.SECONDS)
+          sync_executor = null
+        }
+        if( cache_executor!=null ) {
+          cache_executor.shutdown
+          cache_executor.awaitTermination(60, TimeUnit.SECONDS)
+          cache_executor = null
+        }
         read_executor.shutdown
         read_executor.awaitTermination(60, TimeUnit.SECONDS)
         read_executor = null
@@ -151,6 +222,13 @@ class LevelDBStore(val config: LevelDBStoreDTO) extends DelayingStoreSupport {
     }.start
   }
 
+  private def clear_message_cache = {
+    // log positions get reused once the logs are deleted.
+    if( message_cache!=null ) {
+      message_cache.clear
+    }
+  }
+
   private def keep_polling = {
     val ss = service_state
     ss.is_starting || ss.is_started
@@ -168,6 +246,7 @@ class LevelDBStore(val config: LevelDBStoreDTO) extends DelayingStoreSupport {
   def purge(callback: => Unit) = {
     write_executor {
       client.purge()
+      clear_message_cache
       next_queue_key.set(1)
       next_msg_key.set(1)
       callback
@@ -205,6 +284,9 @@ class LevelDBStore(val config: LevelDBStoreDTO) extends DelayingStoreSupport {
   }
 
   def remove_queue(queueKey: Long)(callback: (Boolean) => Unit) = {
+    dispatch_queue {
+      flush_delay_advisor.remove(queueKey)
+    }
     write_executor {
       client.remove_queue(queueKey, ^ {
         callback(true)
@@ -242,6 +324,13 @@ class LevelDBStore(val config: LevelDBStoreDTO) extends DelayingStoreSupport {
     }
   }
 
+  val message_load_read_size_counter = new IntMetricCounter
+  var message_load_read_size = message_load_read_size_counter(false)
+
+  def message_load_read(size:Int) = message_load_read_size_counter.synchronized {
+    message_load_read_size_counter += size
+  }
+
   def drain_loads = {
     var data = load_source.getData
     message_load_batch_size_counter += data.size
@@ -262,13 +351,27 @@ class LevelDBStore(val config: LevelDBStoreDTO) extends DelayingStoreSupport {
     }
   }
 
+  var journal_append_latency = TimeMetric(0, 0, 0, 0)
+
   def poll_stats: Unit = {
     flush_latency = flush_latency_counter(true)
+    flush_write_latency = flush_write_latency_counter.synchronized {
+      flush_write_latency_counter(true)
+    }
+    flush_sync_latency = flush_sync_latency_counter.synchronized {
+      flush_sync_latency_counter(true)
+    }
     message_load_latency = message_load_latency_counter(true)
-    //        client.metric_journal_append = client.metric_journal_append_counter(true)
+    val log = client.log
+    if( log!=null ) {
+      journal_append_latency = log.append_latency(true)
+    }
     //        client.metric_index_update = client.metric_index_update_counter(true)
     close_latency = close_latency_counter(true)
     message_load_batch_size = message_load_batch_size_counter(true)
+    message_load_read_size = message_load_read_size_counter.synchronized {
+      message_load_read_size_counter(true)
+    }
   }
 
   def kind = "LevelDB"
@@ -283,12 +386,15 @@ class LevelDBStore(val config: LevelDBStoreDTO) extends DelayingStoreSupport {
       }
     }
     rc.message_load_batch_size = message_load_batch_size
+    rc.message_load_read_size = message_load_read_size
+    rc.journal_append_latency = journal_append_latency
     import collection.JavaConversions._
     val pending_status = detailed_pending_status
     write_executor {
       client.using_index {
         rc.index_stats = client.index.getProperty("leveldb.stats")
         rc.log_append_pos = client.log.appender_limit
+        rc.log_direct_writes = client.log.direct_write_counter.get()
         rc.index_snapshot_pos = client.last_index_snapshot_pos
         rc.log_stats = {
           import collection.JavaConversions._
@@ -331,7 +437,9 @@ class LevelDBStore(val config: LevelDBStoreDTO) extends DelayingStoreSupport {
    * in the store.
    */
   def import_data(is: InputStream, cb: (Option[String]) => Unit) = write_executor {
-    cb(client.import_data(is))
+    val rc = client.import_data(is)
+    clear_message_cache
+    cb(rc)
   }
 
   /**
@@ -24,8 +24,10 @@ import java.util.zip.CRC32
 import java.util.Map.Entry
 import java.util.concurrent.atomic.AtomicLong
 import java.io._
+import java.nio.MappedByteBuffer
+import java.nio.channels.FileChannel
 import org.apache.activemq.apollo.util.FileSupport._
-import org.apache.activemq.apollo.util.{Log, LRUCache}
+import org.apache.activemq.apollo.util.{TimeCounter, Log, LRUCache}
 import org.fusesource.hawtdispatch.BaseRetained
 import org.fusesource.hawtbuf.{DataByteArrayInputStream, DataByteArrayOutputStream, Buffer}
 import java.util.TreeMap
@@ -47,7 +49,7 @@ object RecordLog extends Log {
   val LOG_HEADER_SIZE = 10
 
   val BUFFER_SIZE = 1024 * 512
-  val BYPASS_BUFFER_SIZE = 1024 * 16
+  val BYPASS_BUFFER_SIZE = 1024 * 128
 
   case class LogInfo(file: File, position: Long, length: Long) {
     def limit = position + length
@@ -64,6 +66,25 @@ object RecordLog extends Log {
     in.readLong()
   }
 
+  /**
+   * Eagerly releases the memory mapping of the buffer instead of
+   * waiting for it to get GCed.
+   */
+  def unmap(buffer: MappedByteBuffer):Unit = {
+    try {
+      val cleaner_method = buffer.getClass.getMethod("cleaner")
+      cleaner_method.setAccessible(true)
+      val cleaner = cleaner_method.invoke(buffer)
+      if (cleaner != null) {
+        cleaner.getClass.getMethod("clean").invoke(cleaner)
+      }
+    } catch {
+      case e: Throwable =>
+        // Not supported by this JVM, the mapping is released once the buffer is GCed.
+        debug("Could not unmap log file buffer: " + e)
+    }
+  }
+
 }
 
 case class RecordLog(directory: File, logSuffix: String) {
@@ -77,6 +98,22 @@ case class RecordLog(directory: File, logSuffix: String) {
   var verify_checksums = false
   var sync = false
 
+  // Should rotated log files be read via memory mapped buffers?
+  var mmap_reads = false
+
+  // Records larger than this are written directly to the log file
+  // instead of being copied into the write buffer first.
+  var direct_write_threshold = BYPASS_BUFFER_SIZE
+
+  val append_latency_counter = new TimeCounter
+  val direct_write_counter = new AtomicLong(0)
+  // The number of reads served from memory mapped log files.
+  val mapped_read_counter = new AtomicLong(0)
+
+  def append_latency(reset: Boolean) = append_latency_counter.synchronized {
+    append_latency_counter(reset)
+  }
+
 
   val log_infos = new TreeMap[Long, LogInfo]()
 
@@ -88,6 +125,7 @@ case class RecordLog(directory: File, logSuffix: String) {
       if (current_appender.position != id) {
         Option(log_infos.get(id)).foreach {
           info =>
+            evict_reader(info.file)
             onDelete(info.file)
             log_infos.remove(id)
         }
@@ -147,42 +185,59 @@ case class RecordLog(directory: File, logSuffix: String) {
     /**
      * returns the offset position of the data record.
      */
-    def append(id: Byte, data: Buffer*) = this.synchronized {
+    def append(id: Byte, data: Buffer*):(Long, LogInfo) = {
+      append_checksummed(id, checksum(data:_*), data:_*)
+    }
+
+    /**
+     * Appends a record who's data checksum has already been computed.
+     * returns the offset position of the data record.
+     */
+    def append_checksummed(id: Byte, cs: Int, data: Buffer*) = this.synchronized {
+      val start = System.nanoTime()
       val record_position = append_position
       var data_length = 0
       data.foreach(data_length += _.length)
       val total_length = LOG_HEADER_SIZE + data_length
 
-      if (write_buffer.position() + total_length > BUFFER_SIZE) {
-        flush
-      }
-
-      val cs: Int = checksum(data:_*)
       //      trace("Writing at: "+record_position+" len: "+data_length+" with checksum: "+cs)
 
-//      if (false && total_length > BYPASS_BUFFER_SIZE) {
-//
-//        // Write the header and flush..
-//        write_buffer.writeByte(LOG_HEADER_PREFIX)
-//        write_buffer.writeByte(id)
-//        write_buffer.writeInt(cs)
-//        write_buffer.writeInt(data_length)
-//
-//        append_offset += LOG_HEADER_SIZE
-//        flush
-//
-//        // Directly write the data to the channel since it's large.
-//        val buffer = data.toByteBuffer
-//        val pos = append_offset + LOG_HEADER_SIZE
-//        val remaining = buffer.remaining
-//        channel.write(buffer, pos)
-//        if (buffer.hasRemaining) {
-//          throw new IOException("Short write")
-//        }
-//        flushed_offset.addAndGet(remaining)
-//        append_offset += data_length
-//
-//      } else {
+      if (direct_write_threshold > 0 && total_length > direct_write_threshold) {
+
+        // Buffer up the header so that it gets written out with any
+        // pending records.
+        write_buffer.writeByte(LOG_HEADER_PREFIX)
+        write_buffer.writeByte(id)
+        write_buffer.writeInt(cs)
+        write_buffer.writeInt(data_length)
+        append_offset += LOG_HEADER_SIZE
+
+        // Then gather the buffered data and the large record body straight
+        // to the channel so that the body does not get copied into the write buffer.
+        val buffered = write_buffer.toBuffer.toByteBuffer
+        val pos = append_offset - buffered.remaining
+        val buffers = (buffered :: data.map(_.toByteBuffer).toList).toArray
+        val remaining = buffered.remaining.toLong + data_length
+        var written = 0L
+        channel.position(pos)
+        while (written < remaining) {
+          val count = channel.write(buffers)
+          if (count <= 0) {
+            throw new IOException("Short write")
+          }
+          written += count
+        }
+        flushed_offset.addAndGet(remaining)
+        write_buffer.reset()
+        append_offset += data_length
+        direct_write_counter.incrementAndGet()
+
+      } else {
+
+        if (write_buffer.position() + total_length > BUFFER_SIZE) {
+          flush
+        }
+
         write_buffer.writeByte(LOG_HEADER_PREFIX)
         write_buffer.writeByte(id)
         write_buffer.writeInt(cs)
@@ -192,7 +247,10 @@ case class RecordLog(directory: File, logSuffix: String) {
         }
 
         append_offset += total_length
-//      }
+      }
+      append_latency_counter.synchronized {
+        append_latency_counter += System.nanoTime() - start
+      }
       (record_position, info)
     }
 
@@ -210,6 +268,27 @@ case class RecordLog(directory: File, logSuffix: String) {
       }
     }
 
+    @volatile
+    var synced_offset = 0L
+
+    /**
+     * Makes sure all the data appended up to the given offset has been
+     * synced to disk.  Several callers waiting on the same offset range
+     * can share a single sync.
+     */
+    def sync_to(offset: Long) = {
+      if (sync && synced_offset < offset) {
+        val target = this.synchronized {
+          flush
+          append_offset
+        }
+        channel.force(target > logSize)
+        this.synchronized {
+          synced_offset = synced_offset.max(target)
+        }
+      }
+    }
+
     override def check_read_flush(end_offset: Long) = {
       if (flushed_offset.get() < end_offset) {
         this.synchronized {
@@ -233,7 +312,7 @@ case class RecordLog(directory: File, logSuffix: String) {
 
     def check_read_flush(end_offset: Long) = {}
 
-    private def read_buffer(data:Buffer, offset:Long) = {
+    protected def read_buffer(data:Buffer, offset:Long):Unit = {
       var bb = data.toByteBuffer
       var position = offset
       while( bb.hasRemaining  ) {
@@ -300,6 +379,18 @@ case class RecordLog(directory: File, logSuffix: String) {
       }
     }
 
+    /**
+     * Reads the raw log data starting at a record position, record headers included.
+     */
+    def read_range(record_position: Long, length: Int) = {
+      val offset = record_position - position
+      assert(offset >= 0)
+      check_read_flush(offset + length)
+      val data = new Buffer(length)
+      read_buffer(data, offset)
+      data
+    }
+
     def read(record_position: Long) = {
       val offset = record_position - position
       val header = new Buffer(LOG_HEADER_SIZE)
@@ -394,6 +485,31 @@ case class RecordLog(directory: File, logSuffix: String) {
     }
   }
 
+  /**
+   * Reads a log file which is no longer being appended to via a read only
+   * memory mapped buffer so that loading a record does not need a read
+   * system call.
+   */
+  class MappedLogReader(file: File, position: Long) extends LogReader(file, position) {
+
+    val mapped = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size())
+
+    override def dispose() {
+      unmap(mapped)
+      super.dispose()
+    }
+
+    override protected def read_buffer(data:Buffer, offset:Long):Unit = {
+      if (offset < 0 || offset + data.length > mapped.limit()) {
+        throw new EOFException("File '%s' offset: %d".format(file, offset))
+      }
+      val bb = mapped.duplicate()
+      bb.position(offset.toInt)
+      bb.get(data.data, data.offset, data.length)
+      mapped_read_counter.incrementAndGet()
+    }
+  }
+
   def create_log_appender(position: Long) = {
     new LogAppender(next_log(position), position)
   }
@@ -489,6 +605,23 @@ case class RecordLog(directory: File, logSuffix: String) {
     log_infos.map(_._2.position).toArray
   }
 
+  private def create_log_reader(info: LogInfo) = {
+    if (mmap_reads && info.file.length() <= Integer.MAX_VALUE) {
+      new MappedLogReader(info.file, info.position)
+    } else {
+      LogReader(info.file, info.position)
+    }
+  }
+
+  private def evict_reader(file: File) = {
+    reader_cache.synchronized {
+      val reader = reader_cache.remove(file)
+      if (reader != null) {
+        reader.release()
+      }
+    }
+  }
+
   private def get_reader[T](record_position: Long)(func: (LogReader) => T) = {
 
     val lookup = log_mutex.synchronized {
@@ -514,7 +647,7 @@ case class RecordLog(directory: File, logSuffix: String) {
           reader_cache.synchronized {
             var reader = reader_cache.get(info.file)
             if (reader == null) {
-              reader = LogReader(info.file, info.position)
+              reader = create_log_reader(info)
               reader_cache.put(info.file, reader)
             }
             reader.retain()
@@ -538,4 +671,8 @@ case class RecordLog(directory: File, logSuffix: String) {
     get_reader(pos)(_.read(pos, length))
   }
 
+  def read_range(pos: Long, length: Int) = {
+    get_reader(pos)(_.read_range(pos, length))
+  }
+
 }
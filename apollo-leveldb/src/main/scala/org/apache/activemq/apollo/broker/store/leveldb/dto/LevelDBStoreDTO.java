@@ -39,6 +39,9 @@ public class LevelDBStoreDTO extends StoreDTO {
     @XmlAttribute(name="read_threads")
     public Integer read_threads;
 
+    @XmlAttribute(name="flush_pipeline_depth")
+    public Integer flush_pipeline_depth;
+
     @XmlAttribute
     public Boolean sync;
 
@@ -54,6 +57,12 @@ public class LevelDBStoreDTO extends StoreDTO {
     @XmlAttribute(name="log_size")
     public String log_size;
 
+    @XmlAttribute(name="log_direct_write_threshold")
+    public String log_direct_write_threshold;
+
+    @XmlAttribute(name="log_mmap_reads")
+    public Boolean log_mmap_reads;
+
     @XmlAttribute(name="index_max_open_files")
     public Integer index_max_open_files;
 
@@ -81,6 +90,9 @@ public class LevelDBStoreDTO extends StoreDTO {
     @XmlAttribute(name="auto_compaction_ratio")
     public Integer auto_compaction_ratio;
 
+    @XmlAttribute(name="message_cache_size")
+    public String message_cache_size;
+
     @Override
     public boolean equals(Object o) {
         if (this == o) return true;
@@ -104,12 +116,20 @@ public class LevelDBStoreDTO extends StoreDTO {
             return false;
         if (index_factory != null ? !index_factory.equals(that.index_factory) : that.index_factory != null) return false;
         if (log_size != null ? !log_size.equals(that.log_size) : that.log_size != null) return false;
+        if (log_direct_write_threshold != null ? !log_direct_write_threshold.equals(that.log_direct_write_threshold) : that.log_direct_write_threshold != null)
+            return false;
+        if (log_mmap_reads != null ? !log_mmap_reads.equals(that.log_mmap_reads) : that.log_mmap_reads != null)
+            return false;
         if (paranoid_checks != null ? !paranoid_checks.equals(that.paranoid_checks) : that.paranoid_checks != null)
             return false;
         if (read_threads != null ? !read_threads.equals(that.read_threads) : that.read_threads != null) return false;
+        if (flush_pipeline_depth != null ? !flush_pipeline_depth.equals(that.flush_pipeline_depth) : that.flush_pipeline_depth != null)
+            return false;
         if (sync != null ? !sync.equals(that.sync) : that.sync != null) return false;
         if (verify_checksums != null ? !verify_checksums.equals(that.verify_checksums) : that.verify_checksums != null)
             return false;
+        if (message_cache_size != null ? !message_cache_size.equals(that.message_cache_size) : that.message_cache_size != null)
+            return false;
 
         return true;
     }
@@ -119,17 +139,21 @@ public class LevelDBStoreDTO extends StoreDTO {
         int result = super.hashCode();
         result = 31 * result + (directory != null ? directory.hashCode() : 0);
         result = 31 * result + (read_threads != null ? read_threads.hashCode() : 0);
+        result = 31 * result + (flush_pipeline_depth != null ? flush_pipeline_depth.hashCode() : 0);
         result = 31 * result + (index_factory != null ? index_factory.hashCode() : 0);
         result = 31 * result + (sync != null ? sync.hashCode() : 0);
         result = 31 * result + (paranoid_checks != null ? paranoid_checks.hashCode() : 0);
         result = 31 * result + (verify_checksums != null ? verify_checksums.hashCode() : 0);
         result = 31 * result + (log_size != null ? log_size.hashCode() : 0);
+        result = 31 * result + (log_direct_write_threshold != null ? log_direct_write_threshold.hashCode() : 0);
+        result = 31 * result + (log_mmap_reads != null ? log_mmap_reads.hashCode() : 0);
         result = 31 * result + (index_max_open_files != null ? index_max_open_files.hashCode() : 0);
         result = 31 * result + (index_block_restart_interval != null ? index_block_restart_interval.hashCode() : 0);
         result = 31 * result + (index_write_buffer_size != null ? index_write_buffer_size.hashCode() : 0);
         result = 31 * result + (index_block_size != null ? index_block_size.hashCode() : 0);
         result = 31 * result + (index_cache_size != null ? index_cache_size.hashCode() : 0);
         result = 31 * result + (index_compression != null ? index_compression.hashCode() : 0);
+        result = 31 * result + (message_cache_size != null ? message_cache_size.hashCode() : 0);
         return result;
     }
 }
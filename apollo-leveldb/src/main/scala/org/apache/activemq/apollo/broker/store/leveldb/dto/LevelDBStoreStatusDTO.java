@@ -38,12 +38,18 @@ public class LevelDBStoreStatusDTO extends StoreStatusDTO {
     @XmlElement(name="journal_append_latency")
     public TimeMetricDTO journal_append_latency;
 
+    @XmlElement(name="log_direct_writes")
+    public long log_direct_writes;
+
     @XmlElement(name="index_update_latency")
     public TimeMetricDTO index_update_latency;
 
     @XmlElement(name="message_load_batch_size")
     public IntMetricDTO message_load_batch_size;
 
+    @XmlElement(name="message_load_read_size")
+    public IntMetricDTO message_load_read_size;
+
     @XmlElement(name="leveldb_stats")
     public String index_stats;
 
@@ -0,0 +1,113 @@
+package org.apache.activemq.apollo.broker.store.leveldb
+
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+import dto.LevelDBStoreDTO
+import org.apache.activemq.apollo.broker.store.{MessageRecord, StoreTests, Store}
+import org.apache.activemq.apollo.broker.store.leveldb.RecordLog.LOG_HEADER_SIZE
+import org.fusesource.hawtbuf.AsciiBuffer._
+import org.fusesource.hawtbuf.Buffer
+import java.util.concurrent.atomic.AtomicReference
+import collection.mutable.HashMap
+
+class CoalescedLoadLevelDBStoreTest extends StoreTests {
+
+  def create_store(flushDelay: Long): Store = {
+    new LevelDBStore({
+      val rc = new LevelDBStoreDTO
+      rc.directory = data_directory
+      rc.flush_delay = flushDelay
+      // Small log files so that the messages span several of them.
+      rc.log_size = "64k"
+      rc.verify_checksums = false
+      rc
+    })
+  }
+
+  def client = store.asInstanceOf[LevelDBStore].client
+
+  def read_sizes = {
+    val counter = store.asInstanceOf[LevelDBStore].message_load_read_size_counter
+    counter.synchronized(counter(true))
+  }
+
+  /**
+   * Loads the messages with a single load_messages_sorted call and checks
+   * that each one was loaded exactly once with the expected content.
+   */
+  def load_sorted(messages:Seq[(Long, AtomicReference[Object], String)]) = {
+    val loaded = HashMap[Long, Buffer]()
+    val requests = messages.map { case (key, locator, _) =>
+      (key, locator, (record:Option[MessageRecord]) => {
+        assert(!loaded.contains(key), "message "+key+" was loaded twice")
+        loaded(key) = record.get.buffer
+      })
+    }
+    val missing = client.load_messages_sorted(requests)
+    assert(missing.isEmpty)
+    expect(messages.size)(loaded.size)
+    messages.foreach { case (key, _, content) =>
+      expect(ascii(content).buffer) {
+        loaded(key)
+      }
+    }
+  }
+
+  def log_file(locator:AtomicReference[Object]) = {
+    val (pos, _) = locator.get().asInstanceOf[(Long, Int)]
+    client.log.log_info(pos).map(_.position)
+  }
+
+  test("nearby messages get loaded with coalesced reads") {
+    val A = add_queue("A")
+    val contents = (0 until 120).map(i=> "message "+i+" "+("x" * (1000 + (i*397) % 2000))).toList
+    val msg_keys = populate(A, contents).zip(contents).map { case ((key, locator, _), content) => (key, locator, content) }
+
+    // Skip every third message so that the reads have to cover small gaps,
+    // and leave out runs of ten messages which are too far apart to be
+    // read together.
+    val picked = msg_keys.zipWithIndex.filter { case (_, i) => i%3 != 1 && (i/10)%4 != 3 }.map(_._1)
+    val files = picked.map(x=> log_file(x._2)).distinct
+    assert(files.size > 1, "the messages should span several log files")
+
+    // Forget the reads done so far.
+    read_sizes
+    load_sorted(new scala.util.Random(42).shuffle(picked))
+
+    val reads = read_sizes
+    assert(reads.count < picked.size, "expected coalesced reads but there were "+reads.count)
+    assert(reads.count >= files.size)
+    val record_bytes = picked.map(x=> LOG_HEADER_SIZE + x._2.get().asInstanceOf[(Long, Int)]._2).sum
+    assert(reads.total >= record_bytes)
+  }
+
+  test("a lone message gets read by itself") {
+    val A = add_queue("A")
+    val contents = (0 until 10).map("message "+_).toList
+    val msg_keys = populate(A, contents).zip(contents).map { case ((key, locator, _), content) => (key, locator, content) }
+
+    // Forget the reads done so far.
+    read_sizes
+    load_sorted(msg_keys(5)::Nil)
+
+    val reads = read_sizes
+    expect(1)(reads.count)
+    expect(LOG_HEADER_SIZE + msg_keys(5)._2.get().asInstanceOf[(Long, Int)]._2)(reads.total)
+  }
+
+}
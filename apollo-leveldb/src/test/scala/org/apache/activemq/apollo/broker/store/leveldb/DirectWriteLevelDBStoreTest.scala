@@ -0,0 +1,140 @@
+package org.apache.activemq.apollo.broker.store.leveldb
+
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+import dto.{LevelDBStoreStatusDTO, LevelDBStoreDTO}
+import org.apache.activemq.apollo.broker.store.{MessageRecord, StoreTests, Store}
+import org.apache.activemq.apollo.broker.store.leveldb.RecordLog.LOG_HEADER_SIZE
+import org.apache.activemq.apollo.dto.StoreStatusDTO
+import org.apache.activemq.apollo.util.sync_cb
+import org.apache.activemq.apollo.util.FileSupport._
+import org.fusesource.hawtbuf.AsciiBuffer._
+import org.fusesource.hawtbuf.Buffer
+
+class DirectWriteLevelDBStoreTest extends StoreTests {
+
+  val direct_write_threshold = 1024
+
+  def create_store(flushDelay: Long): Store = {
+    new LevelDBStore({
+      val rc = new LevelDBStoreDTO
+      rc.directory = data_directory
+      rc.flush_delay = flushDelay
+      rc.log_size = "64k"
+      rc.log_direct_write_threshold = "1k"
+      rc.verify_checksums = true
+      rc
+    })
+  }
+
+  def create_log = {
+    val rc = RecordLog(test_data_dir / "direct-write-log", ".log")
+    rc.logSize = 64 * 1024
+    rc.direct_write_threshold = direct_write_threshold
+    rc.verify_checksums = true
+    rc
+  }
+
+  def record(i:Int, size:Int) = {
+    val rc = new Buffer(size)
+    new scala.util.Random(i).nextBytes(rc.data)
+    rc
+  }
+
+  test("records get written directly and read back across log rotations") {
+    // Records which get buffered, ones right at the threshold, ones which
+    // get written directly, and ones which don't even fit in a log file.
+    val sizes = (0 until 80).map { i =>
+      i % 5 match {
+        case 0 => 100
+        case 1 => direct_write_threshold - LOG_HEADER_SIZE
+        case 2 => direct_write_threshold - LOG_HEADER_SIZE + 1
+        case 3 => 3000 + i * 100
+        case 4 => if( i % 20 == 4 ) 100 * 1024 else 10
+      }
+    }
+    val records = sizes.zipWithIndex.map { case (size, i) => record(i, size) }
+    val direct = sizes.count(LOG_HEADER_SIZE + _ > direct_write_threshold)
+
+    val log = create_log
+    log.open
+    var end = 0L
+    val positions = try {
+      log.append_latency(true)
+      val rc = records.map { data =>
+        // Every unit of work also appends its end record.
+        log.appender(_.append(1.toByte, data)._1)
+      }
+
+      expect(direct.toLong)(log.direct_write_counter.get)
+      val latency = log.append_latency(true)
+      expect(records.size * 2)(latency.count)
+      assert(latency.max >= latency.min)
+
+      // The logs got rotated, and some records run past the end of the
+      // log they start in.
+      assert(log.log_infos.size > 1)
+      assert(rc.zip(records).exists { case (pos, data) =>
+        pos + LOG_HEADER_SIZE + data.length > log.log_info(pos).get.position + log.logSize
+      })
+
+      rc.zip(records).foreach { case (pos, data) =>
+        expect(data)(log.read(pos, data.length).get)
+        val (kind, read, next) = log.read(pos).get
+        expect(1.toByte)(kind)
+        expect(data)(read)
+        expect(pos + LOG_HEADER_SIZE + data.length)(next)
+      }
+      end = log.appender_limit
+      rc
+    } finally {
+      log.close
+    }
+
+    // Recovery checks the checksums of all the records of the last log.
+    val reopened = create_log
+    reopened.open
+    try {
+      expect(end)(reopened.appender_limit)
+      positions.zip(records).foreach { case (pos, data) =>
+        expect(data)(reopened.read(pos, data.length).get)
+      }
+    } finally {
+      reopened.close
+    }
+  }
+
+  test("the store reports the direct writes") {
+    val A = add_queue("A")
+    val contents = (1 to 40).map(i=> "message "+i+" "+("x" * (if( i%2==0 ) 2000 else 100))).toList
+    val msg_keys = populate(A, contents)
+
+    val rc:StoreStatusDTO = sync_cb( cb=> store.get_store_status(cb) )
+    val status = rc.asInstanceOf[LevelDBStoreStatusDTO]
+    assert(status.log_direct_writes >= contents.size / 2)
+    assert(status.journal_append_latency != null)
+
+    msg_keys.zip(contents).foreach { case ((key, locator, _), content) =>
+      val rc:Option[MessageRecord] = sync_cb( cb=> store.load_message(key, locator)(cb) )
+      expect(ascii(content).buffer) {
+        rc.get.buffer
+      }
+    }
+  }
+
+}
@@ -0,0 +1,55 @@
+package org.apache.activemq.apollo.broker.store.leveldb
+
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+import org.apache.activemq.apollo.broker.store.{MessageRecord, StoreTests, Store, StoreFunSuiteSupport}
+import org.apache.activemq.apollo.broker.store.leveldb.dto.LevelDBStoreDTO
+import org.apache.activemq.apollo.util.sync_cb
+import org.fusesource.hawtbuf.AsciiBuffer._
+
+class MappedLogLevelDBStoreTest extends StoreTests {
+
+  def create_store(flushDelay: Long): Store = {
+    new LevelDBStore({
+      val rc = new LevelDBStoreDTO
+      // Use small logs so that most reads hit rotated log files.
+      rc.log_size = "64k"
+      rc.log_mmap_reads = true
+      rc.log_direct_write_threshold = "1k"
+      rc.directory = data_directory
+      rc.flush_delay = flushDelay
+      rc
+    })
+  }
+
+  test("rotated logs get read via memory mapped buffers") {
+    val A = add_queue("A")
+    val padding = "x" * 2048
+    // Fill a few logs so that the first messages end up in a rotated one.
+    val msg_keys = populate(A, (1 to 100).map("message "+_+padding).toList)
+
+    val log = store.asInstanceOf[LevelDBStore].client.log
+    val mapped_reads = log.mapped_read_counter.get
+    val rc:Option[MessageRecord] = sync_cb( cb=> store.load_message(msg_keys.head._1, msg_keys.head._2)(cb) )
+    expect(ascii("message 1"+padding).buffer) {
+      rc.get.buffer
+    }
+    assert(log.mapped_read_counter.get > mapped_reads)
+  }
+
+}
@@ -0,0 +1,70 @@
+package org.apache.activemq.apollo.broker.store.leveldb
+
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+import org.apache.activemq.apollo.broker.store.{MessageRecord, StoreTests, Store, StoreFunSuiteSupport}
+import org.apache.activemq.apollo.broker.store.leveldb.dto.LevelDBStoreDTO
+import org.apache.activemq.apollo.util.sync_cb
+import org.fusesource.hawtbuf.AsciiBuffer._
+import java.util.concurrent.TimeUnit
+
+class MessageCacheLevelDBStoreTest extends StoreTests {
+
+  def create_store(flushDelay: Long): Store = {
+    new LevelDBStore({
+      val rc = new LevelDBStoreDTO
+      rc.message_cache_size = "1m"
+      rc.directory = data_directory
+      rc.flush_delay = flushDelay
+      rc
+    })
+  }
+
+  def message_cache = store.asInstanceOf[LevelDBStore].message_cache
+
+  test("recently written messages get loaded from the cache") {
+    val A = add_queue("A")
+    val msg_keys = populate(A, (1 to 10).map("message "+_).toList)
+
+    // The written messages get cached by the cache thread.
+    within(5, TimeUnit.SECONDS) {
+      assert(message_cache.count == 10)
+    }
+
+    val hits = message_cache.synchronized(message_cache.hits)
+    val rc:Option[MessageRecord] = sync_cb( cb=> store.load_message(msg_keys.head._1, msg_keys.head._2)(cb) )
+    expect(ascii("message 1").buffer) {
+      rc.get.buffer
+    }
+    assert(message_cache.synchronized(message_cache.hits) == hits + 1)
+  }
+
+  test("the cache evicts messages to stay within its size") {
+    val A = add_queue("A")
+    val padding = "x" * (1024*50)
+    val evictions = message_cache.synchronized(message_cache.evictions)
+    // Write twice as much as the cache holds.
+    populate(A, (1 to 40).map("message "+_+padding).toList)
+
+    within(5, TimeUnit.SECONDS) {
+      assert(message_cache.synchronized(message_cache.evictions) > evictions)
+    }
+    assert(message_cache.size <= message_cache.max_size)
+  }
+
+}
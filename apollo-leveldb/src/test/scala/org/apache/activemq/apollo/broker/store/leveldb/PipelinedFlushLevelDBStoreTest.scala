@@ -0,0 +1,84 @@
+package org.apache.activemq.apollo.broker.store.leveldb
+
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+import org.apache.activemq.apollo.broker.store.{StoreTests, Store, StoreFunSuiteSupport}
+import org.apache.activemq.apollo.broker.store.leveldb.dto.LevelDBStoreDTO
+import org.apache.activemq.apollo.util.sync_cb
+import org.fusesource.hawtdispatch._
+import java.util.concurrent.{ConcurrentLinkedQueue, CountDownLatch, TimeUnit}
+
+class PipelinedFlushLevelDBStoreTest extends StoreTests {
+
+  def create_store(flushDelay: Long): Store = {
+    new LevelDBStore({
+      val rc = new LevelDBStoreDTO
+      rc.flush_pipeline_depth = 4
+      rc.directory = data_directory
+      rc.flush_delay = flushDelay
+      rc
+    })
+  }
+
+  test("flushes complete in order while several batches are in flight") {
+    val A = add_queue("A")
+    val leveldb = store.asInstanceOf[LevelDBStore]
+    def in_flight = sync_cb[Int] { cb=>
+      leveldb.dispatch_queue {
+        cb(leveldb.flushes_in_flight.size)
+      }
+    }
+
+    // Hold up the write thread so that the batches pile up in the pipeline.
+    val write_blocked = new CountDownLatch(1)
+    leveldb.write_executor.execute(new Runnable {
+      def run = write_blocked.await()
+    })
+
+    val completed = new ConcurrentLinkedQueue[Int]()
+    val tracker = new TaskTracker("uows", 0)
+    for( i <- 1 to 3 ) {
+      val uow = store.create_uow
+      uow.enqueue(entry(A, i, add_message(uow, "message "+i)))
+      val task = tracker.task("uow "+i)
+      uow.on_complete {
+        completed.add(i)
+        task.run
+      }
+      uow.complete_asap
+      uow.release
+      // Wait for it to be handed to the store as a batch of its own.
+      within(5, TimeUnit.SECONDS) {
+        assert(in_flight == i)
+      }
+    }
+
+    write_blocked.countDown()
+    expect(true) {
+      tracker.await(10, TimeUnit.SECONDS)
+    }
+    import collection.JavaConversions._
+    expect(List(1, 2, 3)) {
+      completed.toList
+    }
+    expect(0) {
+      in_flight
+    }
+  }
+
+}
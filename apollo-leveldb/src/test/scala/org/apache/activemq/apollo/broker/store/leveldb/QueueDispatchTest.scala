@@ -0,0 +1,162 @@
+package org.apache.activemq.apollo.broker.store.leveldb
+
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+import org.apache.activemq.apollo.dto.QueueDTO
+import java.util.concurrent.TimeUnit
+
+class QueueDispatchTest extends LevelDBQueueFunSuiteSupport {
+
+  // Small ranges so that a swapped backlog gets combined quickly.
+  override def queue_configs = {
+    val swapped = new QueueDTO
+    swapped.id = "swapped.**"
+    swapped.swap_range_size = 10
+    swapped :: super.queue_configs
+  }
+
+  def messages(prefix:String, count:Int) = (1 to count).map(i=> prefix+"-"+"%03d".format(i)).toList
+
+  def received(consumers:TestConsumer*) = on_queue(consumers.head.queue)(consumers.flatMap(_.received).toList)
+
+  test("competing consumers get the messages round robin") {
+    val queue = create_queue("loaded.round_robin")
+    val consumers = (1 to 3).map(x=> new TestConsumer(queue).bind)
+    val bodies = messages("rr", 30)
+    send(queue, bodies)
+
+    within(1, TimeUnit.MINUTES) {
+      assert(received(consumers:_*).sorted == bodies)
+    }
+    on_queue(queue) {
+      consumers.foreach { consumer =>
+        assert(consumer.received.size == 10)
+        assert(consumer.received.toList == consumer.received.toList.sorted)
+      }
+    }
+    consumers.foreach(_.unbind)
+  }
+
+  test("held back consumers don't hold up the others") {
+    val queue = create_queue("loaded.held_back")
+    val stalled = new TestConsumer(queue)
+    stalled.stalled = true
+    stalled.bind
+    val active = new TestConsumer(queue).bind
+
+    val first = messages("first", 10)
+    send(queue, first)
+    within(1, TimeUnit.MINUTES) {
+      assert(received(active) == first)
+    }
+    assert(received(stalled) == Nil)
+
+    on_queue(queue)(active.stalled = true)
+    val second = messages("second", 10)
+    send(queue, second)
+    assert(received(active) == first)
+    assert(received(stalled) == Nil)
+
+    // The messages are still there once the held back sub resumes.
+    on_queue(queue)(stalled.resume)
+    within(1, TimeUnit.MINUTES) {
+      assert(received(stalled) == second)
+    }
+    on_queue(queue)(active.resume)
+    within(1, TimeUnit.MINUTES) {
+      assert(on_queue(queue)(queue.queue_items) == 0)
+    }
+    stalled.unbind
+    active.unbind
+  }
+
+  test("an exclusive consumer gets all the messages while it's bound") {
+    val queue = create_queue("loaded.exclusive")
+    val exclusive = new TestConsumer(queue, exclusive=true).bind
+    val other = new TestConsumer(queue).bind
+
+    val first = messages("first", 10)
+    send(queue, first)
+    within(1, TimeUnit.MINUTES) {
+      assert(received(exclusive) == first)
+    }
+    assert(received(other) == Nil)
+
+    exclusive.unbind
+    val second = messages("second", 10)
+    send(queue, second)
+    within(1, TimeUnit.MINUTES) {
+      assert(received(other) == second)
+    }
+    other.unbind
+  }
+
+  test("browsers get closed once they reach the tail") {
+    val queue = create_queue("loaded.browsed")
+    val bodies = messages("browsed", 10)
+    send(queue, bodies)
+
+    val browser = new TestConsumer(queue, browser=true).bind
+    within(1, TimeUnit.MINUTES) {
+      assert(received(browser) == bodies)
+      assert(!on_queue(queue)(queue.all_subscriptions.contains(browser)))
+    }
+    assert(on_queue(queue)(queue.queue_items) == bodies.size)
+
+    // Browsing left the messages in the queue.
+    val consumer = new TestConsumer(queue).bind
+    within(1, TimeUnit.MINUTES) {
+      assert(received(consumer) == bodies)
+    }
+    consumer.unbind
+  }
+
+  test("subscriptions move across swapped, range and segment entries") {
+    val queue = create_queue("swapped.backlog")
+    val backlog = messages("backlog", 200)
+    send(queue, backlog)
+
+    // The maintenance swap passes combine the backlog.
+    within(1, TimeUnit.MINUTES) {
+      assert(on_queue(queue)(count_entries(queue)(x=> x.is_swapped_range || x.is_swapped_segment)) > 0)
+    }
+
+    // Too few to get combined, once the last segment or range is full
+    // these stay individually swapped.
+    val tail = messages("tail", 15)
+    send(queue, tail)
+    within(1, TimeUnit.MINUTES) {
+      assert(on_queue(queue)(queue.loaded_items) == 0)
+    }
+    assert(on_queue(queue)(count_entries(queue)(_.is_swapped)) > 0)
+    val bodies = backlog ::: tail
+
+    val browser = new TestConsumer(queue, browser=true, receive_buffer_size=1024).bind
+    within(1, TimeUnit.MINUTES) {
+      assert(received(browser) == bodies)
+    }
+
+    val consumer = new TestConsumer(queue, receive_buffer_size=1024).bind
+    within(1, TimeUnit.MINUTES) {
+      assert(received(consumer) == bodies)
+      assert(on_queue(queue)(queue.queue_items) == 0)
+    }
+    consumer.unbind
+  }
+
+}
@@ -0,0 +1,150 @@
+package org.apache.activemq.apollo.broker.store.leveldb
+
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+import org.apache.activemq.apollo.broker.Queue
+import org.apache.activemq.apollo.dto.QueueDTO
+import java.util.concurrent.TimeUnit
+
+class QueueExpirationTest extends LevelDBQueueFunSuiteSupport {
+
+  // Small ranges so that a swapped backlog gets combined quickly.
+  override def queue_configs = {
+    val ranged = new QueueDTO
+    ranged.id = "ranged.**"
+    ranged.swap_range_size = 10
+    ranged :: super.queue_configs
+  }
+
+  def messages(prefix:String, count:Int) = (1 to count).map(i=> prefix+"-"+"%03d".format(i)).toList
+
+  // The odd numbered messages expire soon, the even numbered ones don't.
+  def expiring(body:String) = body.takeRight(3).toInt % 2 == 1
+
+  def check_index(queue:Queue) = on_queue(queue) {
+    // Every entry holding expiring messages is indexed by its earliest
+    // expiration, and only those entries.
+    val index = queue.expiration_index
+    assert(count_entries(queue)(x=> x.indexed_expiration != x.expiration) == 0)
+    assert(index.size == count_entries(queue)(_.expiration != 0))
+    val due = index.due(Long.MaxValue).toList
+    assert(due.size == index.size)
+    assert(due.map(_.indexed_expiration) == due.map(_.indexed_expiration).sorted)
+    assert(queue.get_queue_metrics.expiring_items == index.size)
+  }
+
+  /**
+   * Sends messages which expire after the delay interleaved with ones which
+   * don't, waits until the test can look at the expiring entries before
+   * they expire, and checks that only the unexpired messages are left
+   * once they did.
+   */
+  def expire(queue:Queue, delay:Long)(before_expiry: =>Unit) = {
+    val bodies = messages("expire", 60)
+    val expiration = System.currentTimeMillis + delay
+    send(queue, bodies, expiration=(body:String)=> if( expiring(body) ) expiration else 0L)
+
+    before_expiry
+    check_index(queue)
+
+    val survivors = bodies.filterNot(expiring(_))
+    within(1, TimeUnit.MINUTES) {
+      on_queue(queue) {
+        assert(queue.expired_item_counter == bodies.size - survivors.size)
+        assert(queue.queue_items == survivors.size)
+        assert(queue.expiration_index.isEmpty)
+      }
+    }
+
+    val consumer = new TestConsumer(queue).bind
+    within(1, TimeUnit.MINUTES) {
+      assert(on_queue(queue)(consumer.received.toList) == survivors)
+    }
+    consumer.unbind
+  }
+
+  test("loaded entries expire") {
+    val queue = create_queue("loaded.expiry")
+    expire(queue, 2000) {
+      assert(on_queue(queue)(count_entries(queue)(x=> x.is_loaded && x.expiration != 0)) == 30)
+    }
+  }
+
+  test("swapped entries expire") {
+    val queue = create_queue("swapped.expiry")
+    expire(queue, 5000) {
+      within(1, TimeUnit.MINUTES) {
+        assert(on_queue(queue)(count_entries(queue)(x=> x.is_swapped && x.expiration != 0)) == 30)
+      }
+    }
+  }
+
+  test("entries in swapped ranges expire") {
+    val queue = create_queue("ranged.expiry")
+    expire(queue, 8000) {
+      within(1, TimeUnit.MINUTES) {
+        assert(on_queue(queue)(count_entries(queue)(x=> x.is_swapped_range && x.expiration != 0)) > 0)
+      }
+    }
+  }
+
+  test("entries get re-indexed as they move between states") {
+    val queue = create_queue("ranged.reindex")
+
+    // Keeps the entries close to it in segments, the others get combined
+    // into ranges.
+    val consumer = new TestConsumer(queue, receive_buffer_size=1024)
+    consumer.stalled = true
+    consumer.bind
+
+    val bodies = messages("reindex", 200)
+    val expiration = System.currentTimeMillis + TimeUnit.HOURS.toMillis(1)
+    send(queue, bodies, expiration=(body:String)=> expiration + body.takeRight(3).toInt)
+
+    within(1, TimeUnit.MINUTES) {
+      on_queue(queue) {
+        assert(count_entries(queue)(_.is_loaded) > 0)
+        assert(count_entries(queue)(_.is_swapped_segment) > 0)
+        assert(count_entries(queue)(_.is_swapped_range) > 0)
+      }
+    }
+    check_index(queue)
+
+    val metrics = on_queue(queue)(queue.get_queue_metrics)
+    assert(metrics.maintenance_counter > 0)
+    assert(metrics.maintenance_time_max <= metrics.maintenance_time_counter)
+    assert(metrics.expiring_items > 0)
+    assert(metrics.expiring_items < bodies.size)
+
+    // Walking through the segments and ranges re-indexes their entries,
+    // and they leave the index as they get consumed.
+    on_queue(queue)(consumer.resume)
+    within(1, TimeUnit.MINUTES) {
+      assert(on_queue(queue)(consumer.received.toList) == bodies)
+    }
+    within(1, TimeUnit.MINUTES) {
+      on_queue(queue) {
+        assert(queue.expiration_index.isEmpty)
+        assert(queue.get_queue_metrics.expiring_items == 0)
+      }
+    }
+    assert(on_queue(queue)(queue.expired_item_counter) == 0)
+    consumer.unbind
+  }
+
+}
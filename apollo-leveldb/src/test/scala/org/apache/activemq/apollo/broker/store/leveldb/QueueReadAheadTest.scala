@@ -0,0 +1,92 @@
+package org.apache.activemq.apollo.broker.store.leveldb
+
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+import org.apache.activemq.apollo.broker.Queue
+import java.util.concurrent.TimeUnit
+
+class QueueReadAheadTest extends LevelDBQueueFunSuiteSupport {
+
+  val bodies = (1 to 50).map(i=> "%03d".format(i) + ("x" * 1021)).toList
+
+  /**
+   * Runs a swap pass's worth of prefetching for the consumer.
+   */
+  def refill(queue:Queue, consumer:TestConsumer) = {
+    queue.prefetch_generation += 1
+    queue.all_subscriptions(consumer).refill_prefetch
+  }
+
+  test("only consumers catching up on a swapped backlog read ahead") {
+    val queue = create_queue("read_ahead")
+    send(queue, bodies)
+    within(1, TimeUnit.MINUTES) {
+      assert(on_queue(queue)(queue.loaded_items) == 0)
+    }
+
+    val consumer = new TestConsumer(queue, receive_buffer_size=4*1024)
+    consumer.stalled = true
+    consumer.bind
+
+    on_queue(queue) {
+      // A stalled consumer only prefetches its window.
+      refill(queue, consumer)
+      assert(count_entries(queue)(_.prefetched) > 0)
+      assert(count_entries(queue)(_.read_ahead) == 0)
+
+      // Once it can take deliveries again, the entries past its window
+      // get read from the store.
+      consumer.stalled = false
+      refill(queue, consumer)
+      val read_ahead = count_entries(queue)(_.read_ahead)
+      assert(read_ahead > 0)
+      assert(count_entries(queue)(x=> x.read_ahead && (x.is_loading || x.is_loaded)) == read_ahead)
+      assert(count_entries(queue)(x=> x.read_ahead && x.prefetched) == 0)
+      consumer.resume
+    }
+
+    within(1, TimeUnit.MINUTES) {
+      assert(on_queue(queue)(consumer.received.toList) == bodies)
+    }
+    consumer.unbind
+  }
+
+  test("consumers don't read ahead over loaded entries") {
+    val queue = create_queue("loaded.read_ahead")
+    send(queue, bodies)
+    assert(on_queue(queue)(queue.loaded_items) == bodies.size)
+
+    val consumer = new TestConsumer(queue, receive_buffer_size=4*1024)
+    consumer.stalled = true
+    consumer.bind
+
+    on_queue(queue) {
+      consumer.stalled = false
+      refill(queue, consumer)
+      assert(count_entries(queue)(_.prefetched) > 0)
+      assert(count_entries(queue)(_.read_ahead) == 0)
+      consumer.resume
+    }
+
+    within(1, TimeUnit.MINUTES) {
+      assert(on_queue(queue)(consumer.received.toList) == bodies)
+    }
+    consumer.unbind
+  }
+
+}
@@ -0,0 +1,73 @@
+package org.apache.activemq.apollo.broker.store.leveldb
+
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+import org.apache.activemq.apollo.broker.QueueEntry._
+import org.apache.activemq.apollo.dto.QueueDTO
+import java.util.concurrent.TimeUnit
+
+class SwappedSegmentTest extends LevelDBQueueFunSuiteSupport {
+
+  override def queue_configs = {
+    val segmented = new QueueDTO
+    segmented.id = "segmented.**"
+    segmented.swap_range_size = 100
+    segmented :: super.queue_configs
+  }
+
+  test("a swapped backlog gets combined into segments and ranges") {
+    val queue = create_queue("segmented.backlog")
+
+    // A consumer which is not taking any messages keeps the entries
+    // close to it in segments.
+    val consumer = new TestConsumer(queue, receive_buffer_size=2*1024)
+    consumer.stalled = true
+    consumer.bind
+
+    val count = 2000
+    val bodies = (1 to count).map(i=> "%04d".format(i) + ("x" * 996)).toList
+    send(queue, bodies)
+
+    // Tracking every message in its own swapped entry would take this much.
+    val individually_swapped = count.toLong * (ENTRY_HEAP_SIZE + SWAPPED_HEAP_SIZE)
+    within(1, TimeUnit.MINUTES) {
+      on_queue(queue) {
+        // Only the consumer's prefetch window stays loaded.
+        assert(queue.loaded_items < 10)
+        assert(queue.entries_heap_size < individually_swapped / 10)
+        assert(count_entries(queue)(_.is_swapped_segment) > 0)
+        assert(count_entries(queue)(_.is_swapped_range) > 0)
+      }
+    }
+
+    // The segments get expanded as the consumer walks through them.
+    on_queue(queue)(consumer.resume)
+    within(1, TimeUnit.MINUTES) {
+      assert(on_queue(queue)(consumer.received.toList) == bodies)
+    }
+    within(1, TimeUnit.MINUTES) {
+      on_queue(queue) {
+        assert(queue.queue_items == 0)
+        assert(count_entries(queue)(_ => true) == 0)
+        assert(queue.swapped_segment_heap_size == 0)
+      }
+    }
+    consumer.unbind
+  }
+
+}
@@ -286,6 +286,14 @@ public class MqttProtocolHandler extends AbstractProtocolHandler {
         return get(config.die_delay, 1000 * 5L);
     }
 
+    public int producer_route_cache_size() {
+        return get(config.producer_route_cache_size, 1024);
+    }
+
+    public int producer_route_cache_limit() {
+        return get(config.producer_route_cache_limit, 100000);
+    }
+
     class Break extends RuntimeException {
     }
 
@@ -512,6 +520,9 @@ public class MqttProtocolHandler extends AbstractProtocolHandler {
     /////////////////////////////////////////////////////////////////////
     LongCounter messages_sent = new LongCounter(0);
     LongCounter messages_received = new LongCounter(0);
+    LongCounter producer_route_hits = new LongCounter(0);
+    LongCounter producer_route_misses = new LongCounter(0);
+    LongCounter producer_route_evictions = new LongCounter(0);
     int subscription_count = 0;
 
     public MqttConnectionStatusDTO create_connection_status(boolean debug) {
@@ -520,6 +531,9 @@ public class MqttProtocolHandler extends AbstractProtocolHandler {
         rc.messages_sent = messages_sent.get();
         rc.messages_received = messages_received.get();
         rc.subscription_count = subscription_count;
+        rc.producer_route_hits = producer_route_hits.get();
+        rc.producer_route_misses = producer_route_misses.get();
+        rc.producer_route_evictions = producer_route_evictions.get();
         rc.waiting_on = status.apply();
         return rc;
     }
@@ -24,6 +24,7 @@ import org.apache.activemq.apollo.broker.store.StoreUOW;
 import org.apache.activemq.apollo.filter.FilterException;
 import org.apache.activemq.apollo.mqtt.MqttSessionManager.HostState;
 import org.apache.activemq.apollo.mqtt.MqttSessionManager.SessionState;
+import org.apache.activemq.apollo.mqtt.MqttSessionManager.Shard;
 import org.apache.activemq.apollo.util.*;
 import org.apache.activemq.apollo.util.path.Path$;
 import org.apache.activemq.apollo.util.path.PathMap;
@@ -55,12 +56,14 @@ import static org.apache.activemq.apollo.mqtt.MqttProtocolHandler.*;
 public class MqttSession {
 
     public final HostState host_state;
+    public final Shard shard;
     public final UTF8Buffer client_id;
     public final SessionState session_state;
     public final DispatchQueue queue;
 
-    public MqttSession(HostState host_state, UTF8Buffer client_id, SessionState session_state) {
+    public MqttSession(HostState host_state, Shard shard, UTF8Buffer client_id, SessionState session_state) {
         this.host_state = host_state;
+        this.shard = shard;
         this.client_id = client_id;
         this.queue = createQueue("mqtt: " + client_id);
         this.session_state = session_state;
@@ -117,7 +120,7 @@ public class MqttSession {
             @Override
             public void run() {
                 if (handler == prev) {
-                    MqttSessionManager.remove(host_state, client_id);
+                    MqttSessionManager.remove(MqttSession.this);
                     manager_disconnected = true;
                     detach();
                     handler = null;
@@ -215,8 +218,11 @@ public class MqttSession {
                     }
                 }
             });
+            host_state.producer_routes.addAndGet(-producerRoutes.size());
             producerRoutes.clear();
         }
+        // The routes still being connected get disconnected once they resolve.
+        pending_routes.clear();
 
         if (clean_session) {
             if (!mqtt_consumer().addresses.isEmpty()) {
@@ -362,7 +368,7 @@ public class MqttSession {
                     }
                     case DISCONNECT.TYPE: {
                         received(new DISCONNECT());
-                        MqttSessionManager.disconnect(host_state, client_id, handler);
+                        MqttSessionManager.disconnect(MqttSession.this, handler);
                         break;
                     }
                     default: {
@@ -376,7 +382,7 @@ public class MqttSession {
                     @Override
                     public void run() {
                         // then disconnect him.
-                        MqttSessionManager.disconnect(host_state, client_id, handler);
+                        MqttSessionManager.disconnect(MqttSession.this, handler);
 
                     }
                 });
@@ -393,18 +399,41 @@ public class MqttSession {
     // Bits that deal with processing PUBLISH messages
     //
     /////////////////////////////////////////////////////////////////////
-    LRUCache<UTF8Buffer, MqttProducerRoute> producerRoutes = new LRUCache<UTF8Buffer, MqttProducerRoute>(10) {
-        @Override
-        protected void onCacheEviction(final Map.Entry<UTF8Buffer, MqttProducerRoute> eldest) {
-            host().dispatch_queue().execute(new Task() {
-                @Override
-                public void run() {
-                    ConnectAddress[] array = new ConnectAddress[]{eldest.getValue().address};
-                    host().router().disconnect(array, eldest.getValue());
+    // The connected producer routes, least recently used first.
+    final LinkedHashMap<UTF8Buffer, MqttProducerRoute> producerRoutes = new LinkedHashMap<UTF8Buffer, MqttProducerRoute>(16, 0.75f, true);
+
+    // The producer routes to non-wildcard topics that are still being
+    // connected.  Publishes to them get queued on the route in the meantime.
+    final HashMap<UTF8Buffer, MqttProducerRoute> pending_routes = new HashMap<UTF8Buffer, MqttProducerRoute>();
+
+    void cache_route(UTF8Buffer topic, MqttProducerRoute route) {
+        if (producerRoutes.put(topic, route) == null) {
+            host_state.producer_routes.incrementAndGet();
+        }
+        // Grow the cache until it reaches the session's limit, but once the
+        // host wide limit is reached recycle a route for every one added.
+        if (producerRoutes.size() > Math.max(1, route.handler.producer_route_cache_size()) ||
+                (producerRoutes.size() > 1 && host_state.producer_routes.get() > route.handler.producer_route_cache_limit())) {
+            Iterator<MqttProducerRoute> i = producerRoutes.values().iterator();
+            while (i.hasNext()) {
+                final MqttProducerRoute eldest = i.next();
+                // Routes still sending queued publishes or holding reads
+                // suspended have to stay connected until they are done.
+                if (eldest != route && eldest.pending == null && !eldest.suspended) {
+                    i.remove();
+                    host_state.producer_routes.decrementAndGet();
+                    route.handler.producer_route_evictions.incrementAndGet();
+                    host().dispatch_queue().execute(new Task() {
+                        @Override
+                        public void run() {
+                            host().router().disconnect(new ConnectAddress[]{eldest.address}, eldest);
+                        }
+                    });
+                    return;
                 }
-            });
+            }
         }
-    };
+    }
 
     class MqttProducerRoute extends DeliveryProducerRoute {
 
@@ -412,6 +441,11 @@ public class MqttSession {
         public final MqttProtocolHandler handler;
         boolean suspended = false;
 
+        // The publishes waiting on the route to get connected, null once
+        // they have all been sent.
+        LinkedList<PUBLISH> pending;
+        int pending_size = 0;
+
         public MqttProducerRoute(SimpleAddress address, MqttProtocolHandler h) {
             super(host().router());
             this.address = address;
@@ -419,14 +453,44 @@ public class MqttSession {
             this.refiller_$eq(new Task() {
                 @Override
                 public void run() {
-                    if (suspended) {
-                        suspended = false;
-                        handler.resume_read();
-                    }
+                    refill();
                 }
             });
         }
 
+        public void send(PUBLISH publish) {
+            if (pending != null) {
+                pending.add(publish);
+                pending_size += publish.payload().length;
+                if (!suspended && pending_size >= send_buffer_size()) {
+                    // flow control the producer until the route gets connected.
+                    suspended = true;
+                    handler._suspend_read("waiting on route to: " + address);
+                }
+            } else {
+                send_via_route(this, publish);
+            }
+        }
+
+        void refill() {
+            while (pending != null) {
+                if (pending.isEmpty()) {
+                    pending = null;
+                    pending_size = 0;
+                } else if (full()) {
+                    return;
+                } else {
+                    PUBLISH publish = pending.removeFirst();
+                    pending_size -= publish.payload().length;
+                    send_via_route(this, publish);
+                }
+            }
+            if (suspended && !full()) {
+                suspended = false;
+                handler.resume_read();
+            }
+        }
+
         @Override
         public int send_buffer_size() {
             return handler.codec.getReadBufferSize();
@@ -455,37 +519,73 @@ public class MqttSession {
         handler.messages_received.incrementAndGet();
 
         queue.assertExecuting();
-        MqttProducerRoute route = producerRoutes.get(publish.topicName());
-        if (route == null) {
-            // create the producer route...
+        final UTF8Buffer topic = publish.topicName();
+        MqttProducerRoute route = producerRoutes.get(topic);
+        if (route != null) {
+            // we can re-use the existing producer route
+            handler.producer_route_hits.incrementAndGet();
+            route.send(publish);
+            return;
+        }
 
-            final SimpleAddress destination = decode_destination(publish.topicName());
-            final MqttProducerRoute froute = route = new MqttProducerRoute(destination, handler);
+        route = pending_routes.get(topic);
+        if (route != null) {
+            // line up behind the publishes waiting on the route.
+            handler.producer_route_hits.incrementAndGet();
+            route.send(publish);
+            return;
+        }
 
-            // don't process commands until producer is connected...
+        // create the producer route...
+        handler.producer_route_misses.incrementAndGet();
+        final SimpleAddress destination = decode_destination(topic);
+        final MqttProducerRoute froute = route = new MqttProducerRoute(destination, handler);
+
+        // A route to a single topic can't end up with a different set of
+        // targets, so keep reading and queue the publishes on the route
+        // while it gets connected.  Otherwise don't process commands until
+        // the producer is connected.
+        final boolean pipelined = !PathParser.containsWildCards(destination.path());
+        if (pipelined) {
+            route.pending = new LinkedList<PUBLISH>();
+            route.send(publish);
+            pending_routes.put(topic, route);
+        } else {
             route.handler._suspend_read("route publish lookup");
-            host().dispatch_queue().execute(new Task() {
+        }
+        host().dispatch_queue().execute(new Task() {
 
-                @Override
-                public void run() {
-                    host().router().connect(new ConnectAddress[]{destination}, froute, security_context);
-                    queue.execute(new Runnable() {
-                        @Override
-                        public void run() {
-                            // We don't care if we are not allowed to send..
-                            if (!froute.handler.connection().stopped()) {
+            @Override
+            public void run() {
+                host().router().connect(new ConnectAddress[]{destination}, froute, security_context);
+                queue.execute(new Runnable() {
+                    @Override
+                    public void run() {
+                        boolean current = !pipelined || pending_routes.get(topic) == froute;
+                        if (pipelined && current) {
+                            pending_routes.remove(topic);
+                        }
+                        // We don't care if we are not allowed to send..
+                        if (current && !froute.handler.connection().stopped()) {
+                            cache_route(topic, froute);
+                            if (pipelined) {
+                                froute.refill();
+                            } else {
                                 froute.handler.resume_read();
-                                producerRoutes.put(publish.topicName(), froute);
                                 send_via_route(froute, publish);
                             }
+                        } else {
+                            host().dispatch_queue().execute(new Task() {
+                                @Override
+                                public void run() {
+                                    host().router().disconnect(new ConnectAddress[]{destination}, froute);
+                                }
+                            });
                         }
-                    });
-                }
-            });
-        } else {
-            // we can re-use the existing producer route
-            send_via_route(route, publish);
-        }
+                    }
+                });
+            }
+        });
     }
 
     class AtLeastOnceProducerAck extends UnitFn2<DeliveryResult, StoreUOW> {
@@ -559,7 +659,7 @@ public class MqttSession {
             // routes can always accept at least 1 delivery...
             assert !route.full();
             route.offer(delivery);
-            if (route.full()) {
+            if (route.full() && !route.suspended) {
                 // but once it gets full.. suspend to flow control the producer.
                 route.suspended = true;
                 handler._suspend_read("blocked sending to: " + route.address);
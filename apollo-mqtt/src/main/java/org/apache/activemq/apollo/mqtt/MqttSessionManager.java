@@ -26,7 +26,6 @@ import org.apache.activemq.apollo.util.Fn0;
 import org.apache.activemq.apollo.util.Scala2Java;
 import org.apache.activemq.apollo.util.UnitFn0;
 import org.apache.activemq.apollo.util.UnitFn1;
-import org.fusesource.hawtbuf.AsciiBuffer;
 import org.fusesource.hawtbuf.Buffer;
 import org.fusesource.hawtbuf.UTF8Buffer;
 import org.fusesource.hawtbuf.proto.InvalidProtocolBufferException;
@@ -35,11 +34,16 @@ import org.fusesource.hawtdispatch.DispatchQueue;
 import org.fusesource.hawtdispatch.Task;
 import org.fusesource.mqtt.client.QoS;
 import org.fusesource.mqtt.client.Topic;
+import scala.Option;
 import scala.Tuple2;
-import scala.collection.Seq;
 
+import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import static org.fusesource.hawtdispatch.Dispatch.createQueue;
 
@@ -50,13 +54,30 @@ import static org.fusesource.hawtdispatch.Dispatch.createQueue;
  * connection, the first one will be closed before the session
  * is switch to the new connection.
  *
+ * The sessions of a virtual host are spread over several shards
+ * by the hash of their client id, each with its own dispatch queue,
+ * so that clients connecting at the same time do not all have to
+ * wait on a single queue.  Persisted session states are loaded from
+ * the store when their client connects, and a bounded number of
+ * the states of disconnected clients are kept in memory.
+ *
  * @author <a href="http://hiramchirino.com">Hiram Chirino</a>
  */
 public class MqttSessionManager {
 
     public static final Scala2Java.Logger log = MqttProtocolHandler.log;
 
-    static DispatchQueue queue = createQueue("session manager");
+    /**
+     * The number of shards the sessions of a virtual host are spread over.
+     */
+    public static int SHARDS = Runtime.getRuntime().availableProcessors();
+
+    /**
+     * The maximum number of disconnected session states each shard
+     * keeps in memory when the virtual host has a store.  Evicted
+     * states get reloaded from the store when their client reconnects.
+     */
+    public static int SESSION_CACHE_SIZE = 10000;
 
     interface StorageStrategy {
         void update(Task cb);
@@ -70,6 +91,29 @@ public class MqttSessionManager {
         HashSet<Short> received_message_ids = new HashSet<Short>();
         StorageStrategy strategy = new NoopStrategy();
 
+        // The number of store updates of the state that have not completed yet.
+        final AtomicInteger pending_updates = new AtomicInteger();
+
+        static SessionState load(Store store, Buffer value) throws InvalidProtocolBufferException {
+            SessionPB.Buffer session_pb = SessionPB.FACTORY.parseUnframed(value);
+            SessionState session_state = new SessionState();
+            session_state.strategy.create(store, session_pb.getClientId());
+            if (session_pb.hasReceivedMessageIds()) {
+                for (Integer i : session_pb.getReceivedMessageIdsList()) {
+                    session_state.received_message_ids.add(i.shortValue());
+                }
+            }
+            if (session_pb.hasSubscriptions()) {
+                for (TopicPB.Getter sub : session_pb.getSubscriptionsList()) {
+                    SimpleAddress address = SimpleAddress.apply(sub.getAddress().toString());
+                    Topic topic = new Topic(sub.getName(), QoS.values()[sub.getQos()]);
+                    session_state.subscriptions.put(sub.getName(), new Tuple2<Topic, BindAddress>(topic, address));
+
+                }
+            }
+            return session_state;
+        }
+
         class NoopStrategy implements StorageStrategy {
 
             @Override
@@ -125,10 +169,12 @@ public class MqttSessionManager {
                 }
                 uow.put(session_key, session_pb.freeze().toUnframedBuffer());
 
+                pending_updates.incrementAndGet();
                 final DispatchQueue current = Dispatch.getCurrentQueue();
                 uow.on_complete(Scala2Java.toScala(new UnitFn0() {
                     @Override
                     public void call() {
+                        pending_updates.decrementAndGet();
                         current.execute(new Task() {
                             @Override
                             public void run() {
@@ -144,10 +190,12 @@ public class MqttSessionManager {
             public void destroy(final Task cb) {
                 StoreUOW uow = store.create_uow();
                 uow.put(session_key, null);
+                pending_updates.incrementAndGet();
                 final DispatchQueue current = Dispatch.getCurrentQueue();
                 uow.on_complete(Scala2Java.toScala(new UnitFn0() {
                     @Override
                     public void call() {
+                        pending_updates.decrementAndGet();
                         current.execute(new Task() {
                             @Override
                             public void run() {
@@ -167,114 +215,155 @@ public class MqttSessionManager {
     static public class HostState {
 
         public final VirtualHost host;
-        public final HashMap<UTF8Buffer, SessionState> session_states = new HashMap<UTF8Buffer, SessionState>();
-        public final HashMap<UTF8Buffer, MqttSession> sessions = new HashMap<UTF8Buffer, MqttSession>();
-        public boolean loaded = false;
+        public final Shard[] shards;
+
+        // The number of producer routes cached by all the sessions of the host.
+        public final AtomicInteger producer_routes = new AtomicInteger();
 
         public HostState(VirtualHost host) {
             this.host = host;
+            this.shards = new Shard[Math.max(1, SHARDS)];
+            for (int i = 0; i < shards.length; i++) {
+                shards[i] = new Shard(this, i);
+            }
+        }
+
+        public Shard shard(UTF8Buffer client_id) {
+            return shards[(client_id.hashCode() & 0x7FFFFFFF) % shards.length];
+        }
+    }
+
+    static public class Shard {
+
+        public final HostState host_state;
+        public final DispatchQueue queue;
+        public final HashMap<UTF8Buffer, MqttSession> sessions = new HashMap<UTF8Buffer, MqttSession>();
+
+        // The states of the disconnected sessions, least recently used first.
+        final LinkedHashMap<UTF8Buffer, SessionState> session_states = new LinkedHashMap<UTF8Buffer, SessionState>(16, 0.75f, true);
+
+        // The client ids whose state is being loaded from the store, and
+        // the attachments waiting on the load.
+        final HashMap<UTF8Buffer, ArrayList<Task>> loading = new HashMap<UTF8Buffer, ArrayList<Task>>();
+
+        public Shard(HostState host_state, int id) {
+            this.host_state = host_state;
+            this.queue = createQueue("session manager " + id);
         }
 
-        public void on_load(final Task func) {
-            if (loaded) {
-                func.run();
-            } else {
-                if (host.store() != null) {
-                    // We load all the persisted session's from the host's store when we are first accessed.
-                    queue.suspend();
-                    host.store().get_prefixed_map_entries(new AsciiBuffer("mqtt:"), Scala2Java.toScala(new UnitFn1<Seq<Tuple2<Buffer, Buffer>>>() {
-                        @Override
-                        public void call(final Seq<Tuple2<Buffer, Buffer>> entries) {
-                            queue.resume();
-                            queue.execute(new Task() {
-                                @Override
-                                public void run() {
-                                    for (Tuple2<Buffer, Buffer> entry : Scala2Java.toIterable(entries)) {
-                                        try {
-                                            Buffer value = entry._2();
-                                            SessionPB.Buffer session_pb = SessionPB.FACTORY.parseUnframed(value);
-                                            SessionState session_state = new SessionState();
-                                            session_state.strategy.create(host.store(), session_pb.getClientId());
-                                            if (session_pb.hasReceivedMessageIds()) {
-                                                for (Integer i : session_pb.getReceivedMessageIdsList()) {
-                                                    session_state.received_message_ids.add(i.shortValue());
-                                                }
-                                            }
-                                            if (session_pb.hasSubscriptions()) {
-                                                for (TopicPB.Getter sub : session_pb.getSubscriptionsList()) {
-                                                    SimpleAddress address = SimpleAddress.apply(sub.getAddress().toString());
-                                                    Topic topic = new Topic(sub.getName(), QoS.values()[sub.getQos()]);
-                                                    session_state.subscriptions.put(sub.getName(), new Tuple2<Topic, BindAddress>(topic, address));
-
-                                                }
-                                            }
-                                            session_states.put(session_pb.getClientId(), session_state);
-                                        } catch (InvalidProtocolBufferException e) {
-                                            log.warn(e, "Could not load a stored MQTT session");
-                                        }
+        void attach(final UTF8Buffer client_id, final MqttProtocolHandler handler) {
+            queue.assertExecuting();
+            MqttSession assignment = sessions.get(client_id);
+            if (assignment != null) {
+                assignment.connect(handler);
+                return;
+            }
+
+            final Task retry = new Task() {
+                @Override
+                public void run() {
+                    attach(client_id, handler);
+                }
+            };
+            ArrayList<Task> waiting = loading.get(client_id);
+            if (waiting != null) {
+                waiting.add(retry);
+                return;
+            }
+
+            final Store store = host_state.host.store();
+            SessionState state = session_states.remove(client_id);
+            if (state == null && store != null) {
+                // Load the persisted session state before attaching.
+                loading.put(client_id, new ArrayList<Task>());
+                store.get_map_entry(new UTF8Buffer("mqtt:" + client_id), Scala2Java.toScala(new UnitFn1<Option<Buffer>>() {
+                    @Override
+                    public void call(final Option<Buffer> value) {
+                        queue.execute(new Task() {
+                            @Override
+                            public void run() {
+                                if (value.isDefined()) {
+                                    try {
+                                        session_states.put(client_id, SessionState.load(store, value.get()));
+                                    } catch (InvalidProtocolBufferException e) {
+                                        log.warn(e, "Could not load a stored MQTT session");
                                     }
-                                    loaded = true;
-                                    func.run();
                                 }
-                            });
-                        }
-                    }));
+                                ArrayList<Task> waiting = loading.remove(client_id);
+                                if (!session_states.containsKey(client_id)) {
+                                    // not stored.. use an empty state.
+                                    session_states.put(client_id, new SessionState());
+                                }
+                                retry.run();
+                                for (Task task : waiting) {
+                                    task.run();
+                                }
+                            }
+                        });
+                    }
+                }));
+                return;
+            }
 
-                } else {
-                    loaded = true;
-                    func.run();
+            if (state == null) {
+                state = new SessionState();
+            }
+            assignment = new MqttSession(host_state, this, client_id, state);
+            assignment.connect(handler);
+            sessions.put(client_id, assignment);
+        }
+
+        void remove(MqttSession session) {
+            queue.assertExecuting();
+            if (sessions.get(session.client_id) == session) {
+                sessions.remove(session.client_id);
+                // clean sessions don't get remembered.
+                if (!session.clean_session) {
+                    session_states.put(session.client_id, session.session_state);
+                    evict();
+                }
+            }
+        }
+
+        private void evict() {
+            if (host_state.host.store() == null) {
+                // The states can't be reloaded.
+                return;
+            }
+            Iterator<Map.Entry<UTF8Buffer, SessionState>> i = session_states.entrySet().iterator();
+            while (session_states.size() > SESSION_CACHE_SIZE && i.hasNext()) {
+                SessionState state = i.next().getValue();
+                // States being stored could get reloaded before the store sees the update.
+                if (state.pending_updates.get() == 0) {
+                    i.remove();
                 }
             }
         }
     }
 
     static public void attach(final VirtualHost host, final UTF8Buffer client_id, final MqttProtocolHandler handler) {
-        queue.execute(new Task() {
-            @Override
-            public void run() {
-                final HostState host_state = host.plugin_state(
-                        Scala2Java.toScala(new Fn0<HostState>(){
-                            @Override
-                            public HostState apply() {
-                                return new HostState(host);
-                            }
-                        }),
-                        HostState.class);
-                host_state.on_load(new Task() {
+        final HostState host_state = host.plugin_state(
+                Scala2Java.toScala(new Fn0<HostState>(){
                     @Override
-                    public void run() {
-                        MqttSession assignment = host_state.sessions.get(client_id);
-                        if (assignment != null) {
-                            assignment.connect(handler);
-                        } else {
-                            SessionState state;
-                            if (handler.connect_message.cleanSession()) {
-                                state = host_state.session_states.remove(client_id);
-                                if (state == null) {
-                                    state = new SessionState();
-                                }
-                            } else {
-                                state = host_state.session_states.get(client_id);
-                                if (state == null) {
-                                    state = new SessionState();
-                                    host_state.session_states.put(client_id, state);
-                                }
-                            }
-                            assignment = new MqttSession(host_state, client_id, state);
-                            assignment.connect(handler);
-                            host_state.sessions.put(client_id, assignment);
-                        }
+                    public HostState apply() {
+                        return new HostState(host);
                     }
-                });
+                }),
+                HostState.class);
+        final Shard shard = host_state.shard(client_id);
+        shard.queue.execute(new Task() {
+            @Override
+            public void run() {
+                shard.attach(client_id, handler);
             }
         });
     }
 
-    static public void disconnect(final HostState host_state, final UTF8Buffer client_id, final MqttProtocolHandler handler) {
-        queue.execute(new Task() {
+    static public void disconnect(final MqttSession session, final MqttProtocolHandler handler) {
+        session.shard.queue.execute(new Task() {
             @Override
             public void run() {
-                MqttSession assignment = host_state.sessions.get(client_id);
+                MqttSession assignment = session.shard.sessions.get(session.client_id);
                 if (assignment != null) {
                     assignment.disconnect(handler);
                 }
@@ -282,11 +371,11 @@ public class MqttSessionManager {
         });
     }
 
-    static public void remove(final HostState host_state, final UTF8Buffer client_id) {
-        queue.execute(new Task() {
+    static public void remove(final MqttSession session) {
+        session.shard.queue.execute(new Task() {
             @Override
             public void run() {
-                host_state.sessions.remove(client_id);
+                session.shard.remove(session);
             }
         });
     }
@@ -33,4 +33,24 @@ import javax.xml.bind.annotation.XmlRootElement;
 @XmlAccessorType(XmlAccessType.FIELD)
 public class MqttConnectionStatusDTO extends ConnectionStatusDTO {
 
+    /**
+     * The number of publishes that were sent over a cached producer route.
+     */
+    @XmlAttribute(name="producer_route_hits")
+    public long producer_route_hits;
+
+    /**
+     * The number of publishes that had to wait on a new producer
+     * route to be connected.
+     */
+    @XmlAttribute(name="producer_route_misses")
+    public long producer_route_misses;
+
+    /**
+     * The number of producer routes that were dropped from the
+     * session's route cache to stay within the cache limits.
+     */
+    @XmlAttribute(name="producer_route_evictions")
+    public long producer_route_evictions;
+
 }
@@ -62,6 +62,21 @@ public class MqttDTO extends ProtocolDTO {
     @XmlAttribute(name="die_delay")
     public Long die_delay;
 
+    /**
+     * The maximum number of producer routes a session keeps
+     * connected to the topics it has recently published to.
+     */
+    @XmlAttribute(name="producer_route_cache_size")
+    public Integer producer_route_cache_size;
+
+    /**
+     * The maximum number of producer routes that all the sessions
+     * of a virtual host keep cached.  Once reached, sessions recycle
+     * their least recently used routes instead of caching more.
+     */
+    @XmlAttribute(name="producer_route_cache_limit")
+    public Integer producer_route_cache_limit;
+
     @Override
     public boolean equals(Object o) {
         if (this == o) return true;
@@ -88,6 +103,10 @@ public class MqttDTO extends ProtocolDTO {
             return false;
         if (part_pattern != null ? !part_pattern.equals(mqttDTO.part_pattern) : mqttDTO.part_pattern != null)
             return false;
+        if (producer_route_cache_size != null ? !producer_route_cache_size.equals(mqttDTO.producer_route_cache_size) : mqttDTO.producer_route_cache_size != null)
+            return false;
+        if (producer_route_cache_limit != null ? !producer_route_cache_limit.equals(mqttDTO.producer_route_cache_limit) : mqttDTO.producer_route_cache_limit != null)
+            return false;
 
         return true;
     }
@@ -104,6 +123,8 @@ public class MqttDTO extends ProtocolDTO {
         result = 31 * result + (any_descendant_wildcard != null ? any_descendant_wildcard.hashCode() : 0);
         result = 31 * result + (regex_wildcard_start != null ? regex_wildcard_start.hashCode() : 0);
         result = 31 * result + (regex_wildcard_end != null ? regex_wildcard_end.hashCode() : 0);
+        result = 31 * result + (producer_route_cache_size != null ? producer_route_cache_size.hashCode() : 0);
+        result = 31 * result + (producer_route_cache_limit != null ? producer_route_cache_limit.hashCode() : 0);
         return result;
     }
 }
@@ -18,6 +18,7 @@
 package org.apache.activemq.apollo.mqtt.test
 
 import org.fusesource.mqtt.client._
+import org.apache.activemq.apollo.mqtt.MqttSessionManager
 import QoS._
 
 class MqttExistingSessionTest extends MqttTestSupport {
@@ -40,6 +41,24 @@ class MqttExistingSessionTest extends MqttTestSupport {
     should_receive("1", "existing/sub")
   }
 
+  test("Subscribe is remembered after the session state is evicted from memory.") {
+    val original = MqttSessionManager.SESSION_CACHE_SIZE
+    MqttSessionManager.SESSION_CACHE_SIZE = 0
+    try {
+      connect()
+      subscribe("evicted/sub")
+
+      // reconnect...
+      disconnect()
+      connect()
+
+      publish("evicted/sub", "1", EXACTLY_ONCE)
+      should_receive("1", "evicted/sub")
+    } finally {
+      MqttSessionManager.SESSION_CACHE_SIZE = original
+    }
+  }
+
   test("Subscribe") {
 
     connect()
@@ -19,6 +19,7 @@ package org.apache.activemq.apollo.mqtt.test
 
 import org.fusesource.mqtt.client._
 import QoS._
+import java.util.concurrent.TimeUnit._
 
 class MqttQosTest extends MqttTestSupport {
 
@@ -40,4 +41,21 @@ class MqttQosTest extends MqttTestSupport {
       }
     }
   }
+
+  test("Publishes to many topics keep their order on each topic") {
+    connect()
+    subscribe("sensor/#")
+    for (i <- 0 until 200) {
+      publish("sensor/" + (i % 20) + "/temp", i.toString, if (i % 2 == 0) AT_MOST_ONCE else AT_LEAST_ONCE)
+    }
+    var last = Map[String, Int]()
+    for (i <- 0 until 200) {
+      val msg = client.connection.receive(5, SECONDS)
+      expect(true)(msg != null)
+      val value = new String(msg.getPayload, "UTF-8").toInt
+      last.getOrElse(msg.getTopic, -1) should be < (value)
+      last += msg.getTopic -> value
+      msg.ack()
+    }
+  }
 }
@@ -105,6 +105,8 @@ class NetworkManager(broker: Broker) extends BaseService with MembershipListener
   def network_user = Option(config.user).getOrElse("network")
   def network_password = config.password
   def monitoring_interval = OptionSupport(config.monitoring_interval).getOrElse(5)
+  def bridge_window = OptionSupport(config.bridge_window).getOrElse(1000)
+  def bridge_ack_batch = OptionSupport(config.bridge_ack_batch).getOrElse(100)
 
   protected def _start(on_completed: Task) = {
     import collection.JavaConversions._
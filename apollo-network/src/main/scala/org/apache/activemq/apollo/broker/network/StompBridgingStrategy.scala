@@ -25,11 +25,14 @@ import org.apache.activemq.apollo.broker.Broker
 import java.util.Properties
 import org.fusesource.stomp.client.{CallbackConnection, Stomp}
 import java.util.concurrent.TimeUnit
-import collection.mutable.HashMap
+import collection.mutable.{Queue, HashMap}
 import org.fusesource.stomp.codec.StompFrame
 
 
 object StompBridgingStrategy extends Log {
+  val CREDIT = new AsciiBuffer("credit")
+  // How long confirmed messages may wait for their ack to be batched.
+  val ACK_DELAY = 100
 }
 
 class StompBridgingStrategy(val manager:NetworkManager) extends BridgingStrategy {
@@ -42,6 +45,9 @@ class StompBridgingStrategy(val manager:NetworkManager) extends BridgingStrategy
 
   def network_user = manager.network_user
   def network_password = manager.network_password
+  def window = manager.bridge_window
+  // A batch must not need more than the window to fill up.
+  def ack_batch = manager.bridge_ack_batch.min((window / 2).max(1))
 
   def deploy(bridge_info:BridgeInfo) = {
     dispatch_queue.assertExecuting()
@@ -65,31 +71,117 @@ class StompBridgingStrategy(val manager:NetworkManager) extends BridgingStrategy
     val from_connection = ConnectionStateMachine(new URI(from))
     val to_connection = ConnectionStateMachine(new URI(to))
 
+    /**
+     * A message received from the source which has not been acked yet.
+     */
+    class Forward(val msgid:AsciiBuffer, val subscription:AsciiBuffer) {
+      var confirmed = false
+    }
+
+    // The source connection state the unacked messages were received on.
+    var ack_state:AnyRef = null
+    // The unacked messages of each subscription in the order they were received.
+    val unacked = HashMap[AsciiBuffer, Queue[Forward]]()
+    // The last confirmed message of each subscription which still needs to
+    // be acked and how many messages the ack will cover.
+    val ack_pending = HashMap[AsciiBuffer, (AsciiBuffer, Int)]()
+    var ack_flush_scheduled = false
+
+    // The forwarded messages which the target has not confirmed yet.
+    val in_flight = HashMap[AsciiBuffer, Forward]()
+    // The ids of the recently confirmed messages, so that the messages the
+    // source redelivers after a reconnect don't get forwarded twice.
+    val delivered = new java.util.LinkedHashMap[AsciiBuffer, java.lang.Boolean]() {
+      override def removeEldestEntry(eldest: java.util.Map.Entry[AsciiBuffer, java.lang.Boolean]) = size > (window * 4).max(1000)
+    }
+
     from_connection.receive_handler = frame => {
-      val original_state = from_connection.state
       frame.action() match {
         case MESSAGE =>
-          // forward it..
-          frame.action(SEND)
-          var msgid = frame.getHeader(MESSAGE_ID)
-          debug("forwarding message: %s", msgid)
-          to_connection.send(frame, ()=>{
-            // Ack it if the original connection is still up...
-            // TODO: if it's not a we will probably get a dup/redelivery.
-            // Might want to introduce some dup detection at this point.
-            if( from_connection.state eq original_state ) {
-              val ack = new StompFrame(ACK);
-              ack.addHeader(SUBSCRIPTION, frame.getHeader(SUBSCRIPTION))
-              ack.addHeader(MESSAGE_ID, msgid)
-              from_connection.send(ack, null)
-              debug("forwarded message, now acking: %s", msgid)
+          if( from_connection.state ne ack_state ) {
+            // The source redelivers what was not acked on the previous connection.
+            ack_state = from_connection.state
+            unacked.clear()
+            ack_pending.clear()
+          }
+          val msgid = frame.getHeader(MESSAGE_ID)
+          val forward = new Forward(msgid, frame.getHeader(SUBSCRIPTION))
+          unacked.getOrElseUpdate(forward.subscription, Queue()).enqueue(forward)
+
+          if( msgid!=null && delivered.containsKey(msgid) ) {
+            debug("dropping duplicate message: %s", msgid)
+            confirmed(forward)
+          } else if( msgid!=null && in_flight.contains(msgid) ) {
+            // The target will confirm the copy that is already in flight.
+            debug("waiting on the in flight copy of message: %s", msgid)
+            in_flight.put(msgid, forward)
+          } else {
+            // forward it..
+            frame.action(SEND)
+            debug("forwarding message: %s", msgid)
+            if( msgid!=null ) {
+              in_flight.put(msgid, forward)
             }
-          })
+            to_connection.send(frame, ()=>{
+              if( msgid!=null ) {
+                delivered.put(msgid, java.lang.Boolean.TRUE)
+                confirmed(in_flight.remove(msgid).getOrElse(forward))
+              } else {
+                confirmed(forward)
+              }
+            })
+          }
         case _ =>
           println("unhandled stomp frame: %s", frame)
       }
     }
 
+    /**
+     * The subscriptions use the client ack mode, so an ack covers all the
+     * messages received before the acked one.  The confirmed messages at
+     * the head of the subscription are acked once a batch of them builds
+     * up or after a short delay.
+     */
+    def confirmed(forward:Forward):Unit = {
+      forward.confirmed = true
+      if( from_connection.state ne ack_state ) {
+        return
+      }
+      for( received <- unacked.get(forward.subscription) ) {
+        var last:Forward = null
+        var count = 0
+        while( !received.isEmpty && received.head.confirmed ) {
+          last = received.dequeue()
+          count += 1
+        }
+        if( last!=null ) {
+          val pending = ack_pending.get(forward.subscription).map(_._2).getOrElse(0) + count
+          ack_pending.put(forward.subscription, (last.msgid, pending))
+          if( pending >= ack_batch ) {
+            send_ack(forward.subscription)
+          } else if( !ack_flush_scheduled ) {
+            ack_flush_scheduled = true
+            dispatch_queue.after(ACK_DELAY, TimeUnit.MILLISECONDS) {
+              ack_flush_scheduled = false
+              if( from_connection.state eq ack_state ) {
+                ack_pending.keys.toList.foreach(send_ack(_))
+              }
+            }
+          }
+        }
+      }
+    }
+
+    def send_ack(subscription:AsciiBuffer) = {
+      for( (msgid, count) <- ack_pending.remove(subscription) ) {
+        val ack = new StompFrame(ACK);
+        ack.addHeader(SUBSCRIPTION, subscription)
+        ack.addHeader(MESSAGE_ID, msgid)
+        from_connection.send(ack, null)
+        debug("forwarded %d messages, now acking: %s", count, msgid)
+      }
+    }
+
     dispatch_queue {
       from_connection.connect
       to_connection.connect
@@ -224,6 +316,8 @@ class StompBridgingStrategy(val manager:NetworkManager) extends BridgingStrategy
           frame.addHeader(ID, id)
           frame.addHeader(DESTINATION, destination)
           frame.addHeader(ACK_MODE, CLIENT)
+          // Limits how many messages can be in flight on the bridge.
+          frame.addHeader(CREDIT, ascii(window.toString))
           connection.send(frame, null)
         }
       }
@@ -42,6 +42,19 @@ public class NetworkManagerDTO extends CustomServiceDTO {
     @XmlAttribute(name="monitoring_interval")
     public Integer monitoring_interval;
 
+    /**
+     * The maximum number of messages a bridge will have in flight
+     * per destination.
+     */
+    @XmlAttribute(name="bridge_window")
+    public Integer bridge_window;
+
+    /**
+     * How many forwarded messages a bridge acks at once.
+     */
+    @XmlAttribute(name="bridge_ack_batch")
+    public Integer bridge_ack_batch;
+
     @XmlElement(name="self")
     public ClusterMemberDTO self = null;
 
@@ -65,6 +78,10 @@ public class NetworkManagerDTO extends CustomServiceDTO {
             return false;
         if (monitoring_interval != null ? !monitoring_interval.equals(that.monitoring_interval) : that.monitoring_interval != null)
             return false;
+        if (bridge_window != null ? !bridge_window.equals(that.bridge_window) : that.bridge_window != null)
+            return false;
+        if (bridge_ack_batch != null ? !bridge_ack_batch.equals(that.bridge_ack_batch) : that.bridge_ack_batch != null)
+            return false;
         if (password != null ? !password.equals(that.password) : that.password != null)
             return false;
         if (self != null ? !self.equals(that.self) : that.self != null)
@@ -83,6 +100,8 @@ public class NetworkManagerDTO extends CustomServiceDTO {
         result = 31 * result + (self != null ? self.hashCode() : 0);
         result = 31 * result + (duplex != null ? duplex.hashCode() : 0);
         result = 31 * result + (monitoring_interval != null ? monitoring_interval.hashCode() : 0);
+        result = 31 * result + (bridge_window != null ? bridge_window.hashCode() : 0);
+        result = 31 * result + (bridge_ack_batch != null ? bridge_ack_batch.hashCode() : 0);
         result = 31 * result + (members != null ? members.hashCode() : 0);
         return result;
     }
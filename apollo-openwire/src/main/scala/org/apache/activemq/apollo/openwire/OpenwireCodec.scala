@@ -39,6 +39,17 @@ object OpenwireCodec extends Sizer[Command] {
   final val DB_VERSION = OpenWireFormat.DEFAULT_VERSION
   final val DB_TIGHT_ENCODING = false
 
+  // The formats are not thread safe, so every thread re-uses its own.
+  private val db_formats = new ThreadLocal[OpenWireFormat] {
+    override def initialValue = {
+      val rc = new OpenWireFormat();
+      rc.setCacheEnabled(false)
+      rc.setTightEncodingEnabled(DB_TIGHT_ENCODING)
+      rc.setVersion(DB_VERSION)
+      rc
+    }
+  }
+
   def encode(message: Message):MessageRecord = {
     val rc = new MessageRecord
     rc.codec = PROTOCOL
@@ -60,10 +71,7 @@ object OpenwireCodec extends Sizer[Command] {
 
       case _ =>
 
-        val db_format = new OpenWireFormat();
-        db_format.setCacheEnabled(false)
-        db_format.setTightEncodingEnabled(DB_TIGHT_ENCODING)
-        db_format.setVersion(DB_VERSION)
+        val db_format = db_formats.get
 
         val size = msg.message.getEncodedSize
         val boas = new DataByteArrayOutputStream(if(size==0) 1024 else size + 20)
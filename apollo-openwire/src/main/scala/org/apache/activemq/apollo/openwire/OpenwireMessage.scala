@@ -138,6 +138,12 @@ class OpenwireMessage(val message:ActiveMQMessage) extends BaseRetained with Mes
     }).asInstanceOf[T]
   }
 
+  override def dispose() = {
+    // the converted forms are not needed once all the consumers are done.
+    clear_conversions
+    super.dispose()
+  }
+
 }
 
 object EndOfBrowseMessage extends Message {
@@ -980,6 +980,7 @@ class OpenwireProtocolHandler extends ProtocolHandler {
 
     def is_persistent = false
     override def receive_buffer_size = buffer_size
+    override def jms_selector = if( selector_expression!=null ) info.getSelector.toString else null
 
     def matches(delivery:Delivery):Boolean = {
       if( delivery.message.codec eq OpenwireMessageCodec ) {
@@ -0,0 +1,419 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.activemq.apollo.filter;
+
+import java.util.Collection;
+import java.util.regex.Pattern;
+
+/**
+ * Compiles a parsed selector expression tree into a tree of specialized
+ * evaluators.  The compiled evaluators use a three valued (TRUE, FALSE, UNKNOWN)
+ * int result instead of boxed Boolean values, short circuit AND/OR without
+ * re-evaluating their operands through the generic Expression interface, and
+ * compare properties against constants without going through the generic type
+ * promotion logic when the property value is of the expected type.
+ *
+ * Any expression that the compiler does not know how to specialize is
+ * evaluated using the original interpreted expression, so a compiled
+ * expression always produces the same results as the interpreted one.
+ */
+public final class ExpressionCompiler {
+
+    static final int FALSE = 0;
+    static final int TRUE = 1;
+    static final int UNKNOWN = -1;
+
+    private ExpressionCompiler() {
+    }
+
+    /**
+     * Compiles the expression.  Returns the original expression if it does
+     * not benefit from being compiled.
+     */
+    public static BooleanExpression compile(BooleanExpression expression) {
+        if (expression instanceof CompiledExpression) {
+            return expression;
+        }
+        CompiledExpression rc = doCompile(expression);
+        if (rc instanceof InterpretedExpression) {
+            return expression;
+        }
+        return rc;
+    }
+
+    /**
+     * A compiled boolean expression.
+     */
+    public static abstract class CompiledExpression implements BooleanExpression {
+
+        protected final BooleanExpression source;
+
+        CompiledExpression(BooleanExpression source) {
+            this.source = source;
+        }
+
+        /**
+         * @return TRUE, FALSE or UNKNOWN
+         */
+        abstract int eval(Filterable message) throws FilterException;
+
+        public boolean matches(Filterable message) throws FilterException {
+            return eval(message) == TRUE;
+        }
+
+        public Object evaluate(Filterable message) throws FilterException {
+            switch (eval(message)) {
+                case TRUE:
+                    return Boolean.TRUE;
+                case FALSE:
+                    return Boolean.FALSE;
+                default:
+                    return null;
+            }
+        }
+
+        /**
+         * @return the interpreted expression this was compiled from.
+         */
+        public BooleanExpression getSource() {
+            return source;
+        }
+
+        public String toString() {
+            return source.toString();
+        }
+
+        public int hashCode() {
+            return source.hashCode();
+        }
+
+        public boolean equals(Object o) {
+            if (o == null || !this.getClass().equals(o.getClass())) {
+                return false;
+            }
+            return source.equals(((CompiledExpression)o).source);
+        }
+    }
+
+    static int toResult(Object value) {
+        if (value == null) {
+            return UNKNOWN;
+        }
+        return value == Boolean.TRUE ? TRUE : FALSE;
+    }
+
+    private static CompiledExpression doCompile(BooleanExpression expression) {
+        if (expression instanceof CompiledExpression) {
+            return (CompiledExpression)expression;
+        }
+
+        if (expression instanceof LogicExpression) {
+            LogicExpression logic = (LogicExpression)expression;
+            String symbol = logic.getExpressionSymbol();
+            if (logic.getLeft() instanceof BooleanExpression && logic.getRight() instanceof BooleanExpression) {
+                CompiledExpression left = doCompile((BooleanExpression)logic.getLeft());
+                CompiledExpression right = doCompile((BooleanExpression)logic.getRight());
+                if ("AND".equals(symbol)) {
+                    return new AndExpression(logic, left, right);
+                } else if ("OR".equals(symbol)) {
+                    return new OrExpression(logic, left, right);
+                }
+            }
+        }
+
+        if (expression instanceof UnaryExpression) {
+            UnaryExpression unary = (UnaryExpression)expression;
+            Expression right = unary.getRight();
+            if (expression instanceof UnaryExpression.InExpression) {
+                UnaryExpression.InExpression in = (UnaryExpression.InExpression)expression;
+                return new InListExpression(in, ((PropertyExpression)right).getName(), in.getInList(), in.isNot());
+            }
+            if (expression instanceof ComparisonExpression.LikeExpression && right instanceof PropertyExpression) {
+                ComparisonExpression.LikeExpression like = (ComparisonExpression.LikeExpression)expression;
+                return new LikePropertyExpression(like, ((PropertyExpression)right).getName(), like.likePattern);
+            }
+            String symbol = unary.getExpressionSymbol();
+            if ("NOT".equals(symbol) && right instanceof BooleanExpression) {
+                return new NotExpression((BooleanExpression)expression, doCompile((BooleanExpression)right));
+            }
+            if ("".equals(symbol) && right instanceof PropertyExpression) {
+                return new BooleanPropertyExpression((BooleanExpression)expression, ((PropertyExpression)right).getName());
+            }
+        }
+
+        if (expression instanceof ComparisonExpression) {
+            ComparisonExpression comparison = (ComparisonExpression)expression;
+            Expression left = comparison.getLeft();
+            Expression right = comparison.getRight();
+            String symbol = comparison.getExpressionSymbol();
+            if ("=".equals(symbol)) {
+                if (left instanceof PropertyExpression && right instanceof ConstantExpression) {
+                    return new EqualConstantExpression(comparison, ((PropertyExpression)left).getName(), ((ConstantExpression)right).getValue(), false);
+                }
+                if (right instanceof PropertyExpression && left instanceof ConstantExpression) {
+                    return new EqualConstantExpression(comparison, ((PropertyExpression)right).getName(), ((ConstantExpression)left).getValue(), true);
+                }
+            } else if (left instanceof PropertyExpression && right instanceof ConstantExpression) {
+                Object value = ((ConstantExpression)right).getValue();
+                if (value instanceof Integer || value instanceof Long || value instanceof Double) {
+                    return new CompareConstantExpression(comparison, ((PropertyExpression)left).getName(), (Number)value);
+                }
+            }
+        }
+
+        return new InterpretedExpression(expression);
+    }
+
+    /**
+     * Falls back to evaluating the interpreted expression.
+     */
+    static final class InterpretedExpression extends CompiledExpression {
+
+        InterpretedExpression(BooleanExpression source) {
+            super(source);
+        }
+
+        int eval(Filterable message) throws FilterException {
+            return toResult(source.evaluate(message));
+        }
+    }
+
+    static final class AndExpression extends CompiledExpression {
+        private final CompiledExpression left;
+        private final CompiledExpression right;
+
+        AndExpression(BooleanExpression source, CompiledExpression left, CompiledExpression right) {
+            super(source);
+            this.left = left;
+            this.right = right;
+        }
+
+        int eval(Filterable message) throws FilterException {
+            int lv = left.eval(message);
+            if (lv != TRUE) {
+                return lv;
+            }
+            return right.eval(message);
+        }
+    }
+
+    static final class OrExpression extends CompiledExpression {
+        private final CompiledExpression left;
+        private final CompiledExpression right;
+
+        OrExpression(BooleanExpression source, CompiledExpression left, CompiledExpression right) {
+            super(source);
+            this.left = left;
+            this.right = right;
+        }
+
+        int eval(Filterable message) throws FilterException {
+            if (left.eval(message) == TRUE) {
+                return TRUE;
+            }
+            return right.eval(message);
+        }
+    }
+
+    static final class NotExpression extends CompiledExpression {
+        private final CompiledExpression right;
+
+        NotExpression(BooleanExpression source, CompiledExpression right) {
+            super(source);
+            this.right = right;
+        }
+
+        int eval(Filterable message) throws FilterException {
+            switch (right.eval(message)) {
+                case TRUE:
+                    return FALSE;
+                case FALSE:
+                    return TRUE;
+                default:
+                    return UNKNOWN;
+            }
+        }
+    }
+
+    static final class BooleanPropertyExpression extends CompiledExpression {
+        private final String name;
+
+        BooleanPropertyExpression(BooleanExpression source, String name) {
+            super(source);
+            this.name = name;
+        }
+
+        int eval(Filterable message) throws FilterException {
+            Object value = message.getProperty(name);
+            if (value == null) {
+                return UNKNOWN;
+            }
+            return value == Boolean.TRUE || Boolean.TRUE.equals(value) ? TRUE : FALSE;
+        }
+    }
+
+    static final class InListExpression extends CompiledExpression {
+        private final String name;
+        private final Collection<Object> inList;
+        private final boolean not;
+
+        InListExpression(BooleanExpression source, String name, Collection<Object> inList, boolean not) {
+            super(source);
+            this.name = name;
+            this.inList = inList;
+            this.not = not;
+        }
+
+        int eval(Filterable message) throws FilterException {
+            Object value = message.getProperty(name);
+            if (value == null || value.getClass() != String.class) {
+                return UNKNOWN;
+            }
+            return ((inList != null && inList.contains(value)) ^ not) ? TRUE : FALSE;
+        }
+    }
+
+    static final class LikePropertyExpression extends CompiledExpression {
+        private final String name;
+        private final Pattern pattern;
+
+        LikePropertyExpression(BooleanExpression source, String name, Pattern pattern) {
+            super(source);
+            this.name = name;
+            this.pattern = pattern;
+        }
+
+        int eval(Filterable message) throws FilterException {
+            Object value = message.getProperty(name);
+            if (value == null) {
+                return UNKNOWN;
+            }
+            if (!(value instanceof String)) {
+                return FALSE;
+            }
+            return pattern.matcher((String)value).matches() ? TRUE : FALSE;
+        }
+    }
+
+    /**
+     * A property = constant (or IS NULL) test.
+     */
+    static final class EqualConstantExpression extends CompiledExpression {
+        private final ComparisonExpression comparison;
+        private final String name;
+        private final Object constant;
+        private final boolean constantOnLeft;
+
+        EqualConstantExpression(ComparisonExpression source, String name, Object constant, boolean constantOnLeft) {
+            super(source);
+            this.comparison = source;
+            this.name = name;
+            this.constant = constant;
+            this.constantOnLeft = constantOnLeft;
+        }
+
+        int eval(Filterable message) throws FilterException {
+            Object value = message.getProperty(name);
+            if (constant == null) {
+                return value == null ? TRUE : FALSE;
+            }
+            if (value == null) {
+                return FALSE;
+            }
+            if (value.getClass() == constant.getClass()) {
+                // No type promotion needed.
+                return value.equals(constant) ? TRUE : (value instanceof Comparable ? slow(value) : FALSE);
+            }
+            if (value instanceof Comparable && constant instanceof Comparable) {
+                return slow(value);
+            }
+            return FALSE;
+        }
+
+        private int slow(Object value) {
+            Boolean rc;
+            if (constantOnLeft) {
+                if (constant.equals(value)) {
+                    return TRUE;
+                }
+                rc = comparison.compare((Comparable)constant, (Comparable)value);
+            } else {
+                if (value.equals(constant)) {
+                    return TRUE;
+                }
+                rc = comparison.compare((Comparable)value, (Comparable)constant);
+            }
+            return toResult(rc);
+        }
+    }
+
+    /**
+     * A property &lt;, &lt;=, &gt; or &gt;= numeric constant test.
+     */
+    static final class CompareConstantExpression extends CompiledExpression {
+        private final ComparisonExpression comparison;
+        private final String name;
+        private final Number constant;
+        private final boolean integral;
+        private final long longConstant;
+        private final double doubleConstant;
+        private final float floatConstant;
+
+        CompareConstantExpression(ComparisonExpression source, String name, Number constant) {
+            super(source);
+            this.comparison = source;
+            this.name = name;
+            this.constant = constant;
+            this.integral = !(constant instanceof Double);
+            this.longConstant = constant.longValue();
+            this.doubleConstant = constant.doubleValue();
+            this.floatConstant = constant.floatValue();
+        }
+
+        int eval(Filterable message) throws FilterException {
+            Object value = message.getProperty(name);
+            if (value == null) {
+                return UNKNOWN;
+            }
+            Class<?> c = value.getClass();
+            int cmp;
+            if (c == Integer.class || c == Long.class || c == Short.class || c == Byte.class) {
+                if (integral) {
+                    long l = ((Number)value).longValue();
+                    cmp = l < longConstant ? -1 : (l == longConstant ? 0 : 1);
+                } else {
+                    cmp = Double.compare(((Number)value).doubleValue(), doubleConstant);
+                }
+            } else if (c == Double.class) {
+                cmp = Double.compare(((Double)value).doubleValue(), doubleConstant);
+            } else if (c == Float.class) {
+                if (integral) {
+                    // Integral constants get promoted to a float.
+                    cmp = Float.compare(((Float)value).floatValue(), floatConstant);
+                } else {
+                    cmp = Double.compare(((Float)value).doubleValue(), doubleConstant);
+                }
+            } else if (value instanceof Comparable) {
+                return toResult(comparison.compare((Comparable)value, (Comparable)constant));
+            } else {
+                return FALSE;
+            }
+            return comparison.asBoolean(cmp) ? TRUE : FALSE;
+        }
+    }
+
+}
@@ -0,0 +1,146 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.activemq.apollo.filter;
+
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.Set;
+
+/**
+ * A <code>property = 'value'</code> or <code>property IN ('value', ...)</code>
+ * test that a selector requires to be true for a message to match.  Since
+ * the test is a top level conjunct of the selector, a message whose property
+ * value fails the test can never match the selector, which allows selectors
+ * to be indexed by the property values they accept.
+ */
+public final class IndexablePredicate {
+
+    private final String property;
+    private final Set<String> values;
+    private final boolean strict;
+
+    IndexablePredicate(String property, Set<String> values, boolean strict) {
+        this.property = property;
+        this.values = values;
+        this.strict = strict;
+    }
+
+    /**
+     * Finds a test that the expression requires to be true for it to match.
+     *
+     * @return the predicate or null if the expression does not have one.
+     */
+    public static IndexablePredicate extract(BooleanExpression expression) {
+        if (expression instanceof ExpressionCompiler.CompiledExpression) {
+            expression = ((ExpressionCompiler.CompiledExpression)expression).getSource();
+        }
+
+        if (expression instanceof LogicExpression) {
+            LogicExpression logic = (LogicExpression)expression;
+            if ("AND".equals(logic.getExpressionSymbol())) {
+                IndexablePredicate rc = null;
+                if (logic.getLeft() instanceof BooleanExpression) {
+                    rc = extract((BooleanExpression)logic.getLeft());
+                }
+                if (rc == null && logic.getRight() instanceof BooleanExpression) {
+                    rc = extract((BooleanExpression)logic.getRight());
+                }
+                return rc;
+            }
+            return null;
+        }
+
+        if (expression instanceof UnaryExpression.InExpression) {
+            UnaryExpression.InExpression in = (UnaryExpression.InExpression)expression;
+            Collection<Object> list = in.getInList();
+            if (in.isNot() || list == null || !(in.getRight() instanceof PropertyExpression)) {
+                return null;
+            }
+            HashSet<String> values = new HashSet<String>(list.size());
+            for (Object value : list) {
+                if (!(value instanceof String)) {
+                    return null;
+                }
+                values.add((String)value);
+            }
+            // IN only ever matches String property values.
+            return new IndexablePredicate(((PropertyExpression)in.getRight()).getName(), values, true);
+        }
+
+        if (expression instanceof ComparisonExpression) {
+            ComparisonExpression comparison = (ComparisonExpression)expression;
+            if (!"=".equals(comparison.getExpressionSymbol())) {
+                return null;
+            }
+            Expression left = comparison.getLeft();
+            Expression right = comparison.getRight();
+            if (right instanceof PropertyExpression) {
+                Expression t = left;
+                left = right;
+                right = t;
+            }
+            if (left instanceof PropertyExpression && right instanceof ConstantExpression
+                && ((ConstantExpression)right).getValue() instanceof String) {
+                HashSet<String> values = new HashSet<String>(1);
+                values.add((String)((ConstantExpression)right).getValue());
+                // A non String property value could still compare equal to the
+                // constant once converted, so only String values can be ruled out.
+                return new IndexablePredicate(((PropertyExpression)left).getName(), values, false);
+            }
+        }
+        return null;
+    }
+
+    /**
+     * @return the name of the property being tested.
+     */
+    public String getProperty() {
+        return property;
+    }
+
+    /**
+     * @return the String values of the property that pass the test.
+     */
+    public Set<String> getValues() {
+        return values;
+    }
+
+    /**
+     * @return true if only String property values can pass the test.
+     */
+    public boolean isStrict() {
+        return strict;
+    }
+
+    /**
+     * @return false if a message with the given property value can not
+     *         match the expression the predicate was extracted from.
+     */
+    public boolean mayMatch(Object value) {
+        if (value == null) {
+            return false;
+        }
+        if (value.getClass() == String.class) {
+            return values.contains(value);
+        }
+        return !strict;
+    }
+
+    public String toString() {
+        return property + (strict ? " IN " : " = ") + values;
+    }
+}
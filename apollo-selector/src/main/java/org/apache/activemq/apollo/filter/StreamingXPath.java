@@ -0,0 +1,197 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.activemq.apollo.filter;
+
+import org.xml.sax.InputSource;
+
+import javax.xml.stream.XMLInputFactory;
+import javax.xml.stream.XMLStreamConstants;
+import javax.xml.stream.XMLStreamReader;
+import java.util.ArrayList;
+
+/**
+ * Evaluates simple XPath location paths like <code>/order/item</code>,
+ * <code>//item</code> or <code>//order/item[@type='book']</code> while
+ * streaming through the document with StAX, so that a DOM of the document
+ * does not need to be built.
+ * <p/>
+ * Only child steps made of unprefixed element names or <code>*</code> are
+ * supported.  The path may start with <code>//</code> and its last step may
+ * test an unprefixed attribute for equality with a string literal.
+ */
+final class StreamingXPath {
+
+    private final boolean descendant;
+    private final String[] steps;
+    private final String attribute;
+    private final String value;
+
+    private StreamingXPath(boolean descendant, String[] steps, String attribute, String value) {
+        this.descendant = descendant;
+        this.steps = steps;
+        this.attribute = attribute;
+        this.value = value;
+    }
+
+    /**
+     * @return the streaming form of the XPath expression, or null if the
+     *         expression is not simple enough to be streamed.
+     */
+    static StreamingXPath compile(String xpath) {
+        String path = xpath;
+        boolean descendant = false;
+        if (path.startsWith("//")) {
+            descendant = true;
+            path = path.substring(2);
+        } else if (path.startsWith("/")) {
+            path = path.substring(1);
+        }
+
+        String attribute = null;
+        String value = null;
+        int predicate = path.indexOf('[');
+        if (predicate >= 0) {
+            if (!path.endsWith("]")) {
+                return null;
+            }
+            String test = path.substring(predicate + 1, path.length() - 1);
+            path = path.substring(0, predicate);
+            int eq = test.indexOf('=');
+            if (!test.startsWith("@") || eq < 0) {
+                return null;
+            }
+            attribute = test.substring(1, eq);
+            value = test.substring(eq + 1);
+            if (!isName(attribute) || value.length() < 2) {
+                return null;
+            }
+            char quote = value.charAt(0);
+            if ((quote != '\'' && quote != '"') || value.charAt(value.length() - 1) != quote) {
+                return null;
+            }
+            value = value.substring(1, value.length() - 1);
+            if (value.indexOf(quote) >= 0) {
+                return null;
+            }
+        }
+
+        String[] steps = path.split("/", -1);
+        for (String step : steps) {
+            if (!"*".equals(step) && !isName(step)) {
+                return null;
+            }
+        }
+        return new StreamingXPath(descendant, steps, attribute, value);
+    }
+
+    private static boolean isName(String name) {
+        if (name.length() == 0 || !Character.isLetter(name.charAt(0)) && name.charAt(0) != '_') {
+            return false;
+        }
+        for (int i = 1; i < name.length(); i++) {
+            char c = name.charAt(i);
+            if (!Character.isLetterOrDigit(c) && c != '_' && c != '-' && c != '.') {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * @return true if the path selects at least one element of the document.
+     */
+    boolean matches(XMLInputFactory factory, InputSource source) throws Exception {
+        XMLStreamReader reader;
+        if (source.getCharacterStream() != null) {
+            reader = factory.createXMLStreamReader(source.getCharacterStream());
+        } else {
+            reader = factory.createXMLStreamReader(source.getByteStream());
+        }
+        try {
+            // The names of the open elements, null for the ones in a namespace.
+            ArrayList<String> open = new ArrayList<String>();
+            boolean rc = false;
+            while (reader.hasNext()) {
+                switch (reader.next()) {
+                    case XMLStreamConstants.START_ELEMENT:
+                        String ns = reader.getNamespaceURI();
+                        open.add(ns == null || ns.length() == 0 ? reader.getLocalName() : null);
+                        if (!rc && selects(open) && hasAttribute(reader)) {
+                            // Keep reading so that malformed documents still do
+                            // not match, like when they are parsed into a DOM.
+                            rc = true;
+                        }
+                        break;
+                    case XMLStreamConstants.END_ELEMENT:
+                        open.remove(open.size() - 1);
+                        break;
+                }
+            }
+            return rc;
+        } finally {
+            reader.close();
+        }
+    }
+
+    private boolean selects(ArrayList<String> open) {
+        int depth = open.size();
+        if (descendant ? depth < steps.length : depth != steps.length) {
+            return false;
+        }
+        int offset = depth - steps.length;
+        for (int i = 0; i < steps.length; i++) {
+            String name = open.get(offset + i);
+            if ("*".equals(steps[i])) {
+                continue;
+            }
+            if (name == null || !name.equals(steps[i])) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private boolean hasAttribute(XMLStreamReader reader) {
+        if (attribute == null) {
+            return true;
+        }
+        for (int i = 0; i < reader.getAttributeCount(); i++) {
+            String ns = reader.getAttributeNamespace(i);
+            if ((ns == null || ns.length() == 0)
+                && attribute.equals(reader.getAttributeLocalName(i))
+                && value.equals(reader.getAttributeValue(i))) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    public String toString() {
+        return (descendant ? "//" : "/") + join(steps) + (attribute == null ? "" : "[@" + attribute + "='" + value + "']");
+    }
+
+    private static String join(String[] steps) {
+        StringBuilder rc = new StringBuilder();
+        for (int i = 0; i < steps.length; i++) {
+            if (i > 0) {
+                rc.append('/');
+            }
+            rc.append(steps[i]);
+        }
+        return rc.toString();
+    }
+}
@@ -57,66 +57,84 @@ public abstract class UnaryExpression implements Expression {
     }
 
     public static BooleanExpression createInExpression(PropertyExpression right, List<Object> elements, final boolean not) {
+        return new InExpression(right, elements, not);
+    }
 
-        // Use a HashSet if there are many elements.
-        Collection<Object> t;
-        if (elements.size() == 0) {
-            t = null;
-        } else if (elements.size() < 5) {
-            t = elements;
-        } else {
-            t = new HashSet<Object>(elements);
-        }
-        final Collection<Object> inList = t;
+    public static class InExpression extends BooleanUnaryExpression {
 
-        return new BooleanUnaryExpression(right) {
-            public Object evaluate(Filterable message) throws FilterException {
+        private final Collection<Object> inList;
+        private final boolean not;
 
-                Object rvalue = right.evaluate(message);
-                if (rvalue == null) {
-                    return null;
-                }
-                if (rvalue.getClass() != String.class) {
-                    return null;
-                }
+        public InExpression(PropertyExpression right, List<Object> elements, boolean not) {
+            super(right);
+            // Use a HashSet if there are many elements.
+            if (elements.size() == 0) {
+                inList = null;
+            } else if (elements.size() < 5) {
+                inList = elements;
+            } else {
+                inList = new HashSet<Object>(elements);
+            }
+            this.not = not;
+        }
 
-                if ((inList != null && inList.contains(rvalue)) ^ not) {
-                    return Boolean.TRUE;
-                } else {
-                    return Boolean.FALSE;
-                }
+        public Object evaluate(Filterable message) throws FilterException {
 
+            Object rvalue = right.evaluate(message);
+            if (rvalue == null) {
+                return null;
+            }
+            if (rvalue.getClass() != String.class) {
+                return null;
             }
 
-            public String toString() {
-                StringBuffer answer = new StringBuffer();
-                answer.append(right);
-                answer.append(" ");
-                answer.append(getExpressionSymbol());
-                answer.append(" ( ");
-
-                int count = 0;
-                for (Iterator<Object> i = inList.iterator(); i.hasNext();) {
-                    Object o = (Object)i.next();
-                    if (count != 0) {
-                        answer.append(", ");
-                    }
-                    answer.append(o);
-                    count++;
-                }
-
-                answer.append(" )");
-                return answer.toString();
+            if ((inList != null && inList.contains(rvalue)) ^ not) {
+                return Boolean.TRUE;
+            } else {
+                return Boolean.FALSE;
             }
 
-            public String getExpressionSymbol() {
-                if (not) {
-                    return "NOT IN";
-                } else {
-                    return "IN";
+        }
+
+        /**
+         * @return the values the property is tested against, or null if there are none.
+         */
+        public Collection<Object> getInList() {
+            return inList;
+        }
+
+        public boolean isNot() {
+            return not;
+        }
+
+        public String toString() {
+            StringBuffer answer = new StringBuffer();
+            answer.append(right);
+            answer.append(" ");
+            answer.append(getExpressionSymbol());
+            answer.append(" ( ");
+
+            int count = 0;
+            for (Iterator<Object> i = inList.iterator(); i.hasNext();) {
+                Object o = (Object)i.next();
+                if (count != 0) {
+                    answer.append(", ");
                 }
+                answer.append(o);
+                count++;
             }
-        };
+
+            answer.append(" )");
+            return answer.toString();
+        }
+
+        public String getExpressionSymbol() {
+            if (not) {
+                return "NOT IN";
+            } else {
+                return "IN";
+            }
+        }
     }
 
     abstract static class BooleanUnaryExpression extends UnaryExpression implements BooleanExpression {
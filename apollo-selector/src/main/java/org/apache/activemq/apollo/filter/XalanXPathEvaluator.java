@@ -25,23 +25,119 @@ import org.xml.sax.InputSource;
 
 import javax.xml.parsers.DocumentBuilder;
 import javax.xml.parsers.DocumentBuilderFactory;
+import javax.xml.stream.XMLInputFactory;
 import java.io.StringReader;
 
 
 public class XalanXPathEvaluator implements XPathExpression.XPathEvaluator {
 
+    /**
+     * When enabled, simple location paths get evaluated by streaming
+     * through the message body instead of parsing it into a DOM.
+     */
+    public static boolean STREAMING_ENABLED = true;
+
+    /**
+     * The body last evaluated on the thread.  All the XPath selectors
+     * a message gets evaluated against in a row share the DOM it
+     * is parsed into.
+     */
+    private static final ThreadLocal<ParsedBody> PARSED = new ThreadLocal<ParsedBody>() {
+        protected ParsedBody initialValue() {
+            return new ParsedBody();
+        }
+    };
+
+    private static final class ParsedBody {
+        Object body;
+        boolean streamed;
+        Document document;
+        CachedXPathAPI api;
+        boolean failed;
+
+        DocumentBuilder builder;
+        XMLInputFactory inputs;
+
+        void reset(Object body) {
+            this.body = body;
+            this.streamed = false;
+            this.document = null;
+            this.api = null;
+            this.failed = false;
+        }
+
+        DocumentBuilder builder() throws Exception {
+            if (builder == null) {
+                DocumentBuilderFactory factory = DocumentBuilderFactory.newInstance();
+                factory.setNamespaceAware(true);
+                builder = factory.newDocumentBuilder();
+            }
+            return builder;
+        }
+
+        XMLInputFactory inputs() {
+            if (inputs == null) {
+                inputs = XMLInputFactory.newInstance();
+            }
+            return inputs;
+        }
+    }
+
     private final String xpath;
+    private final StreamingXPath streaming;
 
     public XalanXPathEvaluator(String xpath) {
         this.xpath = xpath;
+        this.streaming = STREAMING_ENABLED ? StreamingXPath.compile(xpath) : null;
     }
 
     public boolean evaluate(Filterable m) throws FilterException {
-        String stringBody = m.getBodyAs(String.class);
-        if (stringBody!=null) {
-            return evaluate(stringBody);
-        } 
-        return false;
+        Object body = body(m);
+        if (body == null) {
+            return false;
+        }
+
+        ParsedBody parsed = PARSED.get();
+        if (parsed.body != body && !body.equals(parsed.body)) {
+            parsed.reset(body);
+        }
+
+        try {
+            if (parsed.document == null && !parsed.failed) {
+                // A body that only gets evaluated once is cheaper to stream
+                // through, but once it is evaluated again its DOM gets shared.
+                if (streaming != null && !parsed.streamed) {
+                    parsed.streamed = true;
+                    return streaming.matches(parsed.inputs(), source(body));
+                }
+                parsed.failed = true;
+                parsed.document = parsed.builder().parse(source(body));
+                parsed.api = new CachedXPathAPI();
+                parsed.failed = false;
+            }
+        } catch (Throwable e) {
+            return false;
+        }
+
+        if (parsed.document == null) {
+            return false;
+        }
+        return evaluate(parsed.document, parsed.api);
+    }
+
+    /**
+     * @return the message body the XPath expression is evaluated against,
+     *         or null if the message does not have one.
+     */
+    protected Object body(Filterable m) throws FilterException {
+        return m.getBodyAs(String.class);
+    }
+
+    /**
+     * @return the body returned by {@link #body(Filterable)} as an XML input source.
+     */
+    protected InputSource source(Object body) {
+        return new InputSource(new StringReader((String) body));
     }
 
     protected boolean evaluate(String text) {
@@ -54,13 +150,19 @@ public class XalanXPathEvaluator implements XPathExpression.XPathEvaluator {
             factory.setNamespaceAware(true);
             DocumentBuilder dbuilder = factory.newDocumentBuilder();
             Document doc = dbuilder.parse(inputSource);
+            return evaluate(doc, new CachedXPathAPI());
+        } catch (Throwable e) {
+            return false;
+        }
+    }
 
+    private boolean evaluate(Document doc, CachedXPathAPI cachedXPathAPI) {
+        try {
             //An XPath expression could return a true or false value instead of a node.
             //eval() is a better way to determine the boolean value of the exp.
             //For compliance with legacy behavior where selecting an empty node returns true,
             //selectNodeIterator is attempted in case of a failure.
 
-            CachedXPathAPI cachedXPathAPI = new CachedXPathAPI();
             XObject result = cachedXPathAPI.eval(doc, xpath);
             if (result.bool())
             	return true;
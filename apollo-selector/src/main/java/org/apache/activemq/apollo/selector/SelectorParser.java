@@ -18,6 +18,7 @@ package org.apache.activemq.apollo.selector;
 
 import org.apache.activemq.apollo.filter.BooleanExpression;
 import org.apache.activemq.apollo.filter.ComparisonExpression;
+import org.apache.activemq.apollo.filter.ExpressionCompiler;
 import org.apache.activemq.apollo.filter.FilterException;
 import org.apache.activemq.apollo.selector.hyphenated.HyphenatedParser;
 import org.apache.activemq.apollo.selector.strict.StrictParser;
@@ -34,6 +35,12 @@ public class SelectorParser {
     private static final String NO_CONVERT_STRING_EXPRESSIONS_PREFIX = "no_convert_string_expressions:";
     private static final String NO_HYPHENATED_PROPS_PREFIX = "no_hyphenated_props:";
 
+    /**
+     * Should parsed selectors get compiled to specialized evaluators?
+     * Off by default, enabled with the apollo.selector.compile=true system property.
+     */
+    private static volatile boolean compile = "true".equals(System.getProperty("apollo.selector.compile"));
+
     public static BooleanExpression parse(String sql) throws FilterException {
         Object result = cache.get(sql);
         if (result instanceof FilterException) {
@@ -80,6 +87,9 @@ public class SelectorParser {
                     StrictParser parser = new StrictParser(new StringReader(actual));
                     e = parser.JmsSelector();
                 }
+                if( compile ) {
+                    e = ExpressionCompiler.compile(e);
+                }
                 cache.put(sql, e);
                 return e;
             } catch (Throwable e) {
@@ -97,4 +107,15 @@ public class SelectorParser {
     public static void clearCache() {
         cache.clear();
     }
+
+    public static boolean isCompile() {
+        return compile;
+    }
+
+    public static void setCompile(boolean value) {
+        if( compile != value ) {
+            compile = value;
+            clearCache();
+        }
+    }
 }
@@ -21,8 +21,10 @@ import java.util.HashMap;
 import junit.framework.TestCase;
 
 import org.apache.activemq.apollo.filter.BooleanExpression;
+import org.apache.activemq.apollo.filter.ExpressionCompiler;
 import org.apache.activemq.apollo.filter.FilterException;
 import org.apache.activemq.apollo.filter.Filterable;
+import org.apache.activemq.apollo.filter.IndexablePredicate;
 
 /**
  * @version $Revision: 1.7 $
@@ -167,6 +169,27 @@ public class SelectorTest extends TestCase {
         
     }
 
+    public void testStreamedXPathSelectors() throws Exception {
+        String[][] cases = {
+            {"<root><a key='first'/></root>", "XPATH '/root/a'", "true"},
+            {"<root><a key='first'/></root>", "XPATH '/a'", "false"},
+            {"<root><x><b/></x></root>", "XPATH '//x/b'", "true"},
+            {"<root><x><b/></x></root>", "XPATH '//root/b'", "false"},
+            {"<root><a key='first'/></root>", "XPATH '//a[@key=\"first\"]'", "true"},
+            {"<root><a key='first'/></root>", "XPATH '//*[@key=''second'']'", "false"},
+            {"<root xmlns='urn:test'><a/></root>", "XPATH '/root/a'", "false"},
+            {"<root xmlns='urn:test'><a/></root>", "XPATH '/*/*'", "true"},
+            {"<root><a/><b></root>", "XPATH '//a'", "false"},
+        };
+        for (String[] c : cases) {
+            // every body is new, so the first evaluation streams and the
+            // second one uses the parsed document.
+            MockMessage message = new MockMessage();
+            message.setText(c[0]);
+            assertSelector(message, c[1], Boolean.valueOf(c[2]));
+        }
+    }
+
     public void testJMSPropertySelectors() throws Exception {
         MockMessage message = createMessage();
         message.setJMSType("selector-test");
@@ -296,6 +319,31 @@ public class SelectorTest extends TestCase {
         assertSelector(message, "name not in ('Gromit', 'Bob', 'Cheddar')", true);
     }
 
+    public void testIndexablePredicate() throws Exception {
+        IndexablePredicate predicate = IndexablePredicate.extract(SelectorParser.parse("rank > 100 AND location = 'London'"));
+        assertNotNull(predicate);
+        assertEquals("location", predicate.getProperty());
+        assertTrue(predicate.mayMatch("London"));
+        assertFalse(predicate.mayMatch("Paris"));
+        assertFalse(predicate.mayMatch(null));
+
+        predicate = IndexablePredicate.extract(SelectorParser.parse("name in ('James', 'Bob') AND rank > 100"));
+        assertNotNull(predicate);
+        assertEquals("name", predicate.getProperty());
+        assertTrue(predicate.mayMatch("Bob"));
+        assertFalse(predicate.mayMatch(Integer.valueOf(1)));
+
+        assertNull(IndexablePredicate.extract(SelectorParser.parse("name = 'James' OR rank > 100")));
+        assertNull(IndexablePredicate.extract(SelectorParser.parse("name not in ('James', 'Bob')")));
+        assertNull(IndexablePredicate.extract(SelectorParser.parse("NOT name = 'James'")));
+        assertNull(IndexablePredicate.extract(SelectorParser.parse("rank = 123")));
+
+        MockMessage message = createMessage();
+        assertSelector(message, "location = 'London' AND name = 'James'", true);
+        assertSelector(message, "'James' = name", true);
+        assertSelector(message, "name in ('James') AND location = 'Paris'", false);
+    }
+
     public void testIsNull() throws Exception {
         MockMessage message = createMessage();
 
@@ -473,6 +521,19 @@ public class SelectorTest extends TestCase {
         assertTrue("Created a valid selector", selector != null);
         boolean value = selector.matches(message);
         assertEquals("Selector for: " + text, expected, value);
+        // The interpreted and compiled expressions should agree whether or
+        // not the parser compiles selectors.
+        BooleanExpression interpreted = selector;
+        if( selector instanceof ExpressionCompiler.CompiledExpression ) {
+            interpreted = ((ExpressionCompiler.CompiledExpression)selector).getSource();
+        }
+        assertEquals("Interpreted selector for: " + text, expected, interpreted.matches(message));
+        assertEquals("Compiled selector for: " + text, expected, ExpressionCompiler.compile(interpreted).matches(message));
+        IndexablePredicate predicate = IndexablePredicate.extract(selector);
+        if( predicate != null && expected ) {
+            // An index must never rule out a message the selector matches.
+            assertTrue("Indexed selector for: " + text, predicate.mayMatch(message.getProperty(predicate.getProperty())));
+        }
     }
 
     protected MockMessage createMessage(String subject) {
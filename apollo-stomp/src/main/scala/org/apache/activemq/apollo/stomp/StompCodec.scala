@@ -52,31 +52,35 @@ object StompCodec extends Log {
     frame.action.writeTo(os)
     os.write(NEWLINE)
 
-    // Write any updated headers first...
-    if( !frame.updated_headers.isEmpty ) {
-      for( (key, value) <- frame.updated_headers ) {
-        key.writeTo(os)
-        os.write(COLON)
-        value.writeTo(os)
-        os.write(NEWLINE)
-      }
+    // Write any updated headers first, the most recently added one leads.
+    val updated_headers = frame.updated_headers
+    var i = updated_headers.size - 1
+    while( i >= 0 ) {
+      updated_headers.name(i).writeTo(os)
+      os.write(COLON)
+      updated_headers.value(i).writeTo(os)
+      os.write(NEWLINE)
+      i -= 1
     }
 
     // we can optimize a little if the headers and content are in the same buffer..
     if( frame.are_headers_in_content_buffer && frame.contiguous ) {
 
-      val offset = frame.headers.head._1.offset;
-      val buffer1 = frame.headers.head._1;
+      val offset = frame.headers.name(0).offset;
+      val buffer1 = frame.headers.name(0);
       val buffer2 = frame.content.asInstanceOf[BufferContent].content;
       val length = (buffer2.offset-buffer1.offset)+buffer2.length
       os.write( buffer1.data, offset, length)
 
     } else {
-      for( (key, value) <- frame.headers ) {
-        key.writeTo(os)
+      val headers = frame.headers
+      i = 0
+      while( i < headers.size ) {
+        headers.name(i).writeTo(os)
         os.write(COLON)
-        value.writeTo(os)
+        headers.value(i).writeTo(os)
         os.write(NEWLINE)
+        i += 1
       }
       os.write(NEWLINE)
       if ( rc.direct_buffer==null ) {
@@ -107,7 +111,7 @@ object StompCodec extends Log {
 
     val action = read_line
 
-    val headers = new HeaderMapBuffer()
+    val headers = new StompHeaders()
     var contentLength:AsciiBuffer = null
 
     var line = read_line
@@ -119,7 +123,7 @@ object StompCodec extends Log {
           }
           var name = line.slice(0, seperatorIndex)
           var value = line.slice(seperatorIndex + 1, line.length)
-          headers.add((name, value))
+          headers.add(name, value)
           if (end_check && contentLength==null && name == CONTENT_LENGTH ) {
             contentLength = value
           }
@@ -152,9 +156,9 @@ object StompCodec extends Log {
     }
 
     if( direct_buffer==null ) {
-      new StompFrame(action, headers.toList, BufferContent(buffer), true)
+      new StompFrame(action, headers, BufferContent(buffer), true)
     } else {
-      new StompFrame(action, headers.toList, ZeroCopyContent(direct_buffer), true)
+      new StompFrame(action, headers, ZeroCopyContent(direct_buffer), true)
     }
   }
 
@@ -177,32 +181,36 @@ class StompCodec extends AbstractProtocolCodec {
     frame.action.writeTo(os)
     os.write(NEWLINE)
 
-    // Write any updated headers first...
-    if( !frame.updated_headers.isEmpty ) {
-      for( (key, value) <- frame.updated_headers ) {
-        key.writeTo(os)
-        os.write(COLON)
-        value.writeTo(os)
-        os.write(NEWLINE)
-      }
+    // Write any updated headers first, the most recently added one leads.
+    val updated_headers = frame.updated_headers
+    var i = updated_headers.size - 1
+    while( i >= 0 ) {
+      updated_headers.name(i).writeTo(os)
+      os.write(COLON)
+      updated_headers.value(i).writeTo(os)
+      os.write(NEWLINE)
+      i -= 1
     }
 
     // we can optimize a little if the headers and content are in the same buffer..
     if( frame.are_headers_in_content_buffer && frame.contiguous) {
 
-      val offset = frame.headers.head._1.offset;
-      val buffer1 = frame.headers.head._1;
+      val offset = frame.headers.name(0).offset;
+      val buffer1 = frame.headers.name(0);
       val buffer2 = frame.content.asInstanceOf[BufferContent].content;
       val length = (buffer2.offset-buffer1.offset)+buffer2.length
       os.write( buffer1.data, offset, length)
       END_OF_FRAME_BUFFER.writeTo(os)
 
     } else {
-      for( (key, value) <- frame.headers ) {
-        key.writeTo(os)
+      val headers = frame.headers
+      i = 0
+      while( i < headers.size ) {
+        headers.name(i).writeTo(os)
         os.write(COLON)
-        value.writeTo(os)
+        headers.value(i).writeTo(os)
         os.write(NEWLINE)
+        i += 1
       }
       os.write(NEWLINE)
 
@@ -247,7 +255,7 @@ class StompCodec extends AbstractProtocolCodec {
 
   private def read_headers(command: AsciiBuffer, c:Boolean): AbstractProtocolCodec.Action = new AbstractProtocolCodec.Action {
     var contentLength:AsciiBuffer = _
-    val headers = new ListBuffer[(AsciiBuffer, AsciiBuffer)]()
+    val headers = new StompHeaders()
     var contiguous = c;
 
     def apply: AnyRef = {
@@ -279,18 +287,19 @@ class StompCodec extends AbstractProtocolCodec {
             if (trim) {
               value = value.trim
             }
-            var entry = (name.ascii, value.ascii)
-            if (contentLength==null && entry._1 == CONTENT_LENGTH) {
-              contentLength = entry._2
+            val ascii_name = name.ascii
+            val ascii_value = value.ascii
+            if (contentLength==null && ascii_name == CONTENT_LENGTH) {
+              contentLength = ascii_value
             }
-            headers.add(entry)
+            headers.add(ascii_name, ascii_value)
           } catch {
             case e: Exception => {
               throw new IOException("Unable to parser header line [" +  Log.escape(line.ascii) + "]")
             }
           }
         } else {
-          val h = headers.toList
+          val h = headers
           if (contentLength != null) {
             var length = try {
               contentLength.toString.toInt
@@ -17,7 +17,6 @@
 package org.apache.activemq.apollo.stomp
 
 import _root_.org.fusesource.hawtbuf._
-import collection.mutable.ListBuffer
 import java.lang.{String, Class}
 import org.apache.activemq.apollo.broker._
 import java.io.OutputStream
@@ -35,7 +34,7 @@ import Stomp._
 /**
  * @author <a href="http://hiramchirino.com">Hiram Chirino</a>
  */
-case class StompFrameMessage(frame:StompFrame) extends Message {
+case class StompFrameMessage(frame:StompFrame) extends RetainedConversions {
   
   def codec = StompMessageCodec
 
@@ -63,20 +62,24 @@ case class StompFrameMessage(frame:StompFrame) extends Message {
   var message_group_buffer:AsciiBuffer = null
   override def message_group = if( message_group_buffer==null ) null else message_group_buffer.toString
 
-  for( header <- (frame.updated_headers ::: frame.headers).reverse ) {
-    header match {
-      case (MESSAGE_ID, value) =>
-        id = value
-      case (PRIORITY, value) =>
-        priority = java.lang.Integer.parseInt(value).toByte
-      case (EXPIRES, value) =>
-        expiration = java.lang.Long.parseLong(value)
-      case (PERSISTENT, value) =>
-        persistent = java.lang.Boolean.parseBoolean(value)
-      case (MESSAGE_GROUP, value) =>
-        message_group_buffer = value
-      case _ =>
+  locally {
+    var value = frame.header(MESSAGE_ID)
+    if( value!=null ) {
+      id = value
     }
+    value = frame.header(PRIORITY)
+    if( value!=null ) {
+      priority = java.lang.Integer.parseInt(value).toByte
+    }
+    value = frame.header(EXPIRES)
+    if( value!=null ) {
+      expiration = java.lang.Long.parseLong(value)
+    }
+    value = frame.header(PERSISTENT)
+    if( value!=null ) {
+      persistent = java.lang.Boolean.parseBoolean(value)
+    }
+    message_group_buffer = frame.header(MESSAGE_GROUP)
   }
 
 
@@ -117,50 +120,56 @@ case class StompFrameMessage(frame:StompFrame) extends Message {
     id.slice(id.offset, pos).toString
   }
 
-  /* avoid paying the price of creating the header index. lots of times we don't need it */
-  lazy val headerIndex: Map[AsciiBuffer, AsciiBuffer] =  {
-    var rc = Map[AsciiBuffer, AsciiBuffer]()
-    for( header <- (frame.updated_headers ::: frame.headers).reverse ) {
-      rc += (header._1 -> header._2)
-    }
-    rc
-  }
-
   def getProperty(name: String):AnyRef = {
-    (name match {
+    val rc:AsciiBuffer = name match {
       // TODO: handle more of the JMS Types that ActiveMQ 5 supports.
       case "JMSMessageID" =>
-        Some(id)
+        id
       case "JMSType" =>
-        headerIndex.get(ascii("type"))
+        frame.header("type")
       case "JMSDeliveryMode" =>
-        Some(ascii(
+        ascii(
           if( persistent )
             "PERSISTENT"
           else
             "NON_PERSISTENT"
-        ))
+        )
       case _=>
-        headerIndex.get(ascii(name))
-    }) match {
-      case Some(rc) => rc.utf8.toString
-      case None => null
+        frame.header(name)
+    }
+    if( rc == null ) {
+      null
+    } else {
+      rc.utf8.toString
     }
   }
 
 
   override def headers_as_json: java.util.HashMap[String, Object] = {
     val rc = new java.util.HashMap[String, Object]
-    for( (k,v)<-headerIndex ) {
+    frame.headers.foreach { (k, v) =>
+      val key = k.toString
+      if( !rc.containsKey(key) ) {
+        rc.put(key, v.toString)
+      }
+    }
+    frame.updated_headers.foreach { (k, v) =>
       rc.put(k.toString, v.toString)
     }
     rc
   }
 
   def setDisposer(disposer: Runnable) = throw new UnsupportedOperationException
-  def retained = throw new UnsupportedOperationException
-  def retain = frame.retain
-  def release = frame.release
+
+  override def retain():Unit = {
+    super.retain()
+    frame.retain
+  }
+
+  override def release():Unit = {
+    frame.release
+    super.release()
+  }
 }
 
 
@@ -243,11 +252,9 @@ case class ZeroCopyContent(zero_copy_buffer:DirectBuffer) extends StompContent {
  *
  * @author <a href="http://hiramchirino.com">chirino</a>
  */
-case class StompFrame(action:AsciiBuffer, headers:HeaderMap=Nil, content:StompContent=NilContent, contiguous:Boolean=false, updated_headers:HeaderMap=Nil) {
+case class StompFrame(action:AsciiBuffer, headers:HeaderMap=StompHeaders.EMPTY, content:StompContent=NilContent, contiguous:Boolean=false, updated_headers:HeaderMap=StompHeaders.EMPTY) {
 
-  def size_of_updated_headers = {
-    size_of(updated_headers)
-  }
+  def size_of_updated_headers = updated_headers.encoded_size
 
   def size_of_original_headers = {
     if( headers.isEmpty ) {
@@ -255,36 +262,26 @@ case class StompFrame(action:AsciiBuffer, headers:HeaderMap=Nil, content:StompCo
     } else {
       // if all the headers were part of the same input buffer.. size can be calculated by
       // subtracting positions in the buffer.
-      val firstBuffer = headers.head._1
-      val lastBuffer =  headers.last._2
+      val firstBuffer = headers.name(0)
+      val lastBuffer =  headers.value(headers.size-1)
       if( firstBuffer.data eq lastBuffer.data ) {
         (lastBuffer.offset-firstBuffer.offset)+lastBuffer.length+1
       } else {
         // gota do it the hard way
-        size_of(headers)
+        headers.encoded_size
       }
     }
   }
 
-  private def size_of(headers:HeaderMap): Int = {
-    var rc = 0;
-    val i = headers.iterator
-    while (i.hasNext) {
-      val (key, value) = i.next
-      rc += (key.length + value.length + 2)
-    }
-    rc
-  }
-
-  def are_headers_in_content_buffer = !headers.isEmpty && 
+  def are_headers_in_content_buffer = !headers.isEmpty &&
           content.isInstanceOf[BufferContent] &&
-          ( headers.head._1.data eq content.asInstanceOf[BufferContent].content.data )
+          ( headers.name(0).data eq content.asInstanceOf[BufferContent].content.data )
 
   def size:Int = {
     if( contiguous ) {
       content match {
         case x:BufferContent =>
-          if( (action.data eq x.content.data) && updated_headers==Nil ) {
+          if( (action.data eq x.content.data) && updated_headers.isEmpty ) {
              return (x.content.offset-action.offset)+x.content.length
           }
         case _ =>
@@ -295,13 +292,48 @@ case class StompFrame(action:AsciiBuffer, headers:HeaderMap=Nil, content:StompCo
     size_of_original_headers + 1 + content.length
   }
 
-  def header(name:AsciiBuffer) = {
-    updated_headers.filter( _._1 == name ).headOption.orElse(
-      headers.filter( _._1 == name ).headOption
-    ).map(_._2).getOrElse(null)
+  def header(name:AsciiBuffer):AsciiBuffer = {
+    val rc = updated_headers.get(name)
+    if( rc!=null ) {
+      rc
+    } else {
+      headers.get(name)
+    }
   }
 
-  def append_headers(value:HeaderMap) = StompFrame(action, headers, content, contiguous, value ::: updated_headers)
+  def header(name:String):AsciiBuffer = {
+    val rc = updated_headers.get(name)
+    if( rc!=null ) {
+      rc
+    } else {
+      headers.get(name)
+    }
+  }
+
+  /**
+   * @return a copy of the updated headers with room for `extra` more
+   *         entries, so that several headers can get appended to the
+   *         frame with a single copy.
+   */
+  def copy_updated_headers(extra:Int) = {
+    val rc = new StompHeaders(updated_headers.size+extra, true)
+    var i = 0
+    while( i < updated_headers.size ) {
+      rc.add(updated_headers.name(i), updated_headers.value(i))
+      i += 1
+    }
+    rc
+  }
+
+  /**
+   * @return a frame with the header added to its updated headers.  The
+   *         most recently added updated header wins over earlier ones.
+   */
+  def append_header(name:AsciiBuffer, value:AsciiBuffer) = {
+    val updated = copy_updated_headers(1)
+    updated.add(name, value)
+    StompFrame(action, headers, content, contiguous, updated)
+  }
 
   def retain = content.retain
   def release = content.release
@@ -324,8 +356,7 @@ object Stomp {
   destination_parser.any_child_wildcard = "*"
   destination_parser.any_descendant_wildcard = "**"
 
-  type HeaderMap = List[(AsciiBuffer, AsciiBuffer)]
-  type HeaderMapBuffer = ListBuffer[(AsciiBuffer, AsciiBuffer)]
+  type HeaderMap = StompHeaders
   val NO_DATA = new Buffer(0);
 
   ///////////////////////////////////////////////////////////////////
@@ -0,0 +1,259 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.activemq.apollo.stomp
+
+import org.fusesource.hawtbuf.{Buffer, AsciiBuffer}
+
+object StompHeaders {
+
+  /**
+   * A shared table without any headers.  It must never be added to.
+   */
+  val EMPTY = new StompHeaders(0)
+
+  def apply(entries:(AsciiBuffer, AsciiBuffer)*):StompHeaders = {
+    val rc = new StompHeaders(entries.size)
+    for( (name, value) <- entries ) {
+      rc.add(name, value)
+    }
+    rc
+  }
+
+  def hash(data:Array[Byte], offset:Int, length:Int):Int = {
+    var rc = 0
+    var i = offset
+    val end = offset + length
+    while( i < end ) {
+      rc = 31 * rc + (data(i) & 0xFF)
+      i += 1
+    }
+    rc ^ (rc >>> 16)
+  }
+
+  def hash(value:Buffer):Int = hash(value.data, value.offset, value.length)
+
+  def hash(value:String):Int = {
+    var rc = 0
+    var i = 0
+    while( i < value.length ) {
+      rc = 31 * rc + (value.charAt(i) & 0xFF)
+      i += 1
+    }
+    rc ^ (rc >>> 16)
+  }
+
+  private def ascii_equals(name:Buffer, value:String):Boolean = {
+    if( name.length != value.length ) {
+      return false
+    }
+    var i = 0
+    while( i < value.length ) {
+      val c = value.charAt(i)
+      if( c > 0x7F || name.data(name.offset+i) != c.toByte ) {
+        return false
+      }
+      i += 1
+    }
+    true
+  }
+}
+
+/**
+ * A flat table of STOMP header entries kept in the order they were
+ * added.  The entries are usually slices of the frame buffer they were
+ * decoded from, and a small open addressing hash of the header names
+ * to their slots lets them be looked up without scanning or allocating.
+ *
+ * When a header name is repeated, lookups return the first entry unless
+ * the table was created with `last_wins` set.
+ */
+class StompHeaders(initial_capacity:Int, val last_wins:Boolean=false) {
+  import StompHeaders._
+
+  private var names = new Array[AsciiBuffer](initial_capacity.max(1))
+  private var values = new Array[AsciiBuffer](initial_capacity.max(1))
+  private var hashes = new Array[Int](initial_capacity.max(1))
+  // holds slot+1 of the entries, 0 marks an unused bucket.
+  private var index = new Array[Int](index_capacity(names.length))
+  private var _size = 0
+  private var _encoded_size = 0
+
+  def this() = this(8)
+
+  private def index_capacity(capacity:Int) = {
+    var rc = 4
+    while( rc < capacity*2 ) {
+      rc <<= 1
+    }
+    rc
+  }
+
+  def size = _size
+  def isEmpty = _size == 0
+
+  /**
+   * @return the number of bytes the headers take up when encoded,
+   *         including the ':' and new line separators.
+   */
+  def encoded_size = _encoded_size
+
+  def name(i:Int) = names(i)
+  def value(i:Int) = values(i)
+
+  def add(name:AsciiBuffer, value:AsciiBuffer):Unit = {
+    assert(this ne EMPTY)
+    if( _size == names.length ) {
+      grow(_size*2)
+    }
+    val h = hash(name)
+    names(_size) = name
+    values(_size) = value
+    hashes(_size) = h
+    index_slot(_size, h)
+    _size += 1
+    _encoded_size += name.length + value.length + 2
+  }
+
+  private def index_slot(slot:Int, h:Int) = {
+    val mask = index.length - 1
+    var i = h & mask
+    var done = false
+    while( !done ) {
+      val existing = index(i)
+      if( existing == 0 ) {
+        index(i) = slot + 1
+        done = true
+      } else if( hashes(existing-1) == h && names(existing-1) == names(slot) ) {
+        if( last_wins ) {
+          index(i) = slot + 1
+        }
+        done = true
+      } else {
+        i = (i + 1) & mask
+      }
+    }
+  }
+
+  private def grow(capacity:Int) = {
+    names = java.util.Arrays.copyOf(names, capacity)
+    values = java.util.Arrays.copyOf(values, capacity)
+    hashes = java.util.Arrays.copyOf(hashes, capacity)
+    index = new Array[Int](index_capacity(capacity))
+    var i = 0
+    while( i < _size ) {
+      index_slot(i, hashes(i))
+      i += 1
+    }
+  }
+
+  /**
+   * @return the value of the header or null if it is not set.
+   */
+  def get(name:AsciiBuffer):AsciiBuffer = {
+    val h = hash(name)
+    val mask = index.length - 1
+    var i = h & mask
+    while( true ) {
+      val slot = index(i) - 1
+      if( slot < 0 ) {
+        return null
+      }
+      if( hashes(slot) == h && names(slot) == name ) {
+        return values(slot)
+      }
+      i = (i + 1) & mask
+    }
+    null
+  }
+
+  /**
+   * @return the value of the header or null if it is not set.
+   */
+  def get(name:String):AsciiBuffer = {
+    val h = hash(name)
+    val mask = index.length - 1
+    var i = h & mask
+    while( true ) {
+      val slot = index(i) - 1
+      if( slot < 0 ) {
+        return null
+      }
+      if( hashes(slot) == h && ascii_equals(names(slot), name) ) {
+        return values(slot)
+      }
+      i = (i + 1) & mask
+    }
+    null
+  }
+
+  def contains(name:AsciiBuffer) = get(name)!=null
+
+  def foreach[U](func:(AsciiBuffer, AsciiBuffer)=>U):Unit = {
+    var i = 0
+    while( i < _size ) {
+      func(names(i), values(i))
+      i += 1
+    }
+  }
+
+  /**
+   * @return a new table holding the entries of this table and the new entry.
+   */
+  def plus(name:AsciiBuffer, value:AsciiBuffer):StompHeaders = {
+    val rc = new StompHeaders(_size+1, last_wins)
+    foreach(rc.add _)
+    rc.add(name, value)
+    rc
+  }
+
+  /**
+   * @return a new table without the entries with the given name.
+   */
+  def without(name:AsciiBuffer):StompHeaders = {
+    val rc = new StompHeaders(_size, last_wins)
+    foreach { (k, v) =>
+      if( k != name ) {
+        rc.add(k, v)
+      }
+    }
+    rc
+  }
+
+  /**
+   * @return a copy of the table whose entries no longer reference
+   *         the buffer they were decoded from.
+   */
+  def deep_copy:StompHeaders = {
+    val rc = new StompHeaders(_size, last_wins)
+    foreach { (k, v) =>
+      rc.add(k.deepCopy().ascii(), v.deepCopy().ascii())
+    }
+    rc
+  }
+
+  def toList:List[(AsciiBuffer, AsciiBuffer)] = {
+    var rc = List[(AsciiBuffer, AsciiBuffer)]()
+    var i = _size - 1
+    while( i >= 0 ) {
+      rc ::= (names(i), values(i))
+      i -= 1
+    }
+    rc
+  }
+
+  override def toString = toList.mkString("StompHeaders(", ", ", ")")
+}
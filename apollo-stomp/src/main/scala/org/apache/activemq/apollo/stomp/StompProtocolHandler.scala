@@ -74,16 +74,7 @@ object StompProtocolHandler extends Log {
     def size(value: (Session[Delivery], Delivery)) = Delivery.size(value._2)
   }
 
-  def get(headers:HeaderMap, name:AsciiBuffer):Option[AsciiBuffer] = {
-    val i = headers.iterator
-    while( i.hasNext ) {
-      val entry = i.next
-      if( entry._1 == name ) {
-        return Some(entry._2)
-      }
-    }
-    None
-  }
+  def get(headers:HeaderMap, name:AsciiBuffer):Option[AsciiBuffer] = Option(headers.get(name))
 
   def get(headers:HeaderMap, names:List[AsciiBuffer]):List[Option[AsciiBuffer]] = {
     names.map(x=>get(headers, x))
@@ -526,39 +517,52 @@ class StompProtocolHandler extends ProtocolHandler {
           message.asInstanceOf[StompFrameMessage].frame
         } else {
           val (body, content_type) =  protocol_convert match{
-            case "body" => (message.getBodyAs(classOf[Buffer]), "protocol/"+message.codec.id+";conv=body")
+            case "body" => (message.converted(Message.BODY_CONVERSION)(message.getBodyAs(classOf[Buffer])), "protocol/"+message.codec.id+";conv=body")
             case _ => (message.encoded, "protocol/"+message.codec.id())
           }
           message_id_counter += 1
-          var headers =  (MESSAGE_ID -> ascii(session_id+message_id_counter)) :: Nil
-          headers ::= (CONTENT_TYPE -> ascii(content_type))
-          headers ::= (CONTENT_LENGTH -> ascii(body.length().toString))
-          headers ::= (DESTINATION -> encode_header(destination_parser.encode_destination(delivery.sender.tail)))
+          val headers = new StompHeaders(4)
+          headers.add(DESTINATION, encode_header(destination_parser.encode_destination(delivery.sender.tail)))
+          headers.add(CONTENT_LENGTH, ascii(body.length().toString))
+          headers.add(CONTENT_TYPE, ascii(content_type))
+          headers.add(MESSAGE_ID, ascii(session_id+message_id_counter))
           StompFrame(MESSAGE, headers, BufferContent(body))
         }
 
-        val ack_id = if( (protocol_version eq V1_0) || (protocol_version eq V1_1) ) {
-          frame.header(MESSAGE_ID)
+        // we need to add the ACK id on STOMP 1.2
+        val add_ack_header = !(protocol_version eq V1_0) && !(protocol_version eq V1_1)
+        val ack_id = if( add_ack_header ) {
+          checkout_ack_id
         } else {
-          val ack_id = checkout_ack_id
-          // we need to add the ACK id.
-          frame = frame.append_headers((ACK_HEADER->ack_id)::Nil)
-          ack_id
+          frame.header(MESSAGE_ID)
         }
 
         session_manager.delivered(session, delivery.size)
         ack_handler.track(session, ack_id, delivery.size, delivery.ack)
 
-        if( subscription_id != None ) {
-          frame = frame.append_headers((SUBSCRIPTION, subscription_id.get)::Nil)
-        }
-        if( config.add_redeliveries_header!=null && delivery.redeliveries > 0) {
-          val header = encode_header(config.add_redeliveries_header)
-          val value = ascii(delivery.redeliveries.toString())
-          frame = frame.append_headers((header, value)::Nil)
-        }
-        if( include_seq.isDefined ) {
-          frame = frame.append_headers((include_seq.get, ascii(delivery.seq.toString))::Nil)
+        // Append all the delivery's headers with a single copy of the frame.
+        val add_redeliveries_header = config.add_redeliveries_header!=null && delivery.redeliveries > 0
+        val appended = (if( add_ack_header ) 1 else 0) +
+          (if( subscription_id != None ) 1 else 0) +
+          (if( add_redeliveries_header ) 1 else 0) +
+          (if( include_seq.isDefined ) 1 else 0)
+        if( appended > 0 ) {
+          val updated = frame.copy_updated_headers(appended)
+          if( add_ack_header ) {
+            updated.add(ACK_HEADER, ack_id)
+          }
+          if( subscription_id != None ) {
+            updated.add(SUBSCRIPTION, subscription_id.get)
+          }
+          if( add_redeliveries_header ) {
+            val header = encode_header(config.add_redeliveries_header)
+            val value = ascii(delivery.redeliveries.toString())
+            updated.add(header, value)
+          }
+          if( include_seq.isDefined ) {
+            updated.add(include_seq.get, ascii(delivery.seq.toString))
+          }
+          frame = frame.copy(updated_headers=updated)
         }
         messages_sent += 1
         Some(frame)
@@ -641,7 +645,7 @@ class StompProtocolHandler extends ProtocolHandler {
           closed = true
           if( browser && close_on_drain ) {
             // Then send the end of browse message.
-            val headers:HeaderMap = List(DESTINATION->EMPTY, MESSAGE_ID->EMPTY, BROWSER->END)
+            val headers:HeaderMap = StompHeaders(DESTINATION->EMPTY, MESSAGE_ID->EMPTY, BROWSER->END)
             var frame = StompFrame(MESSAGE, headers, BufferContent(EMPTY_BUFFER))
 
             val delivery = new Delivery()
@@ -854,7 +858,7 @@ class StompProtocolHandler extends ProtocolHandler {
     } else {
       connection_log.info("STOMP connection '%s' error: %s", security_context.remote_address, msg)
     }
-    die((MESSAGE_HEADER, encode_header(msg))::Nil, "")
+    die(StompHeaders(MESSAGE_HEADER -> encode_header(msg)), "")
   }
 
   private def die[T](headers:HeaderMap, body:String):T = {
@@ -865,7 +869,10 @@ class StompProtocolHandler extends ProtocolHandler {
       if( body.isEmpty ) {
         connection_sink.offer(StompFrame(ERROR, headers, BufferContent(EMPTY_BUFFER)) )
       } else {
-        connection_sink.offer(StompFrame(ERROR, (CONTENT_TYPE, TEXT_PLAIN)::headers, BufferContent(utf8(body))) )
+        val error_headers = new StompHeaders(headers.size+1)
+        error_headers.add(CONTENT_TYPE, TEXT_PLAIN)
+        headers.foreach(error_headers.add _)
+        connection_sink.offer(StompFrame(ERROR, error_headers, BufferContent(utf8(body))) )
       }
 
       // TODO: if there are too many open connections we should just close the connection
@@ -1085,8 +1092,8 @@ class StompProtocolHandler extends ProtocolHandler {
       case Some(x) => x
       case None=>
         val supported_versions = SUPPORTED_PROTOCOL_VERSIONS.mkString(",")
-        die((MESSAGE_HEADER, ascii("version not supported"))::
-            (VERSION, ascii(supported_versions))::Nil,
+        die(StompHeaders(MESSAGE_HEADER -> ascii("version not supported"),
+            VERSION -> ascii(supported_versions)),
             "Supported protocol versions are %s".format(supported_versions))
     }
 
@@ -1134,22 +1141,23 @@ class StompProtocolHandler extends ProtocolHandler {
 
     def send_connected = {
 
-      var connected_headers = ListBuffer((VERSION, protocol_version))
+      val connected_headers = new StompHeaders(6)
+      connected_headers.add(VERSION, protocol_version)
 
-      connected_headers += SERVER->encode_header("apache-apollo/"+Broker.version)
-      connected_headers += HOST_ID->encode_header(host.id)
-      connected_headers += SESSION->encode_header(session_id)
+      connected_headers.add(SERVER, encode_header("apache-apollo/"+Broker.version))
+      connected_headers.add(HOST_ID, encode_header(host.id))
+      connected_headers.add(SESSION, encode_header(session_id))
 
       val outbound_heart_beat_header = ascii("%d,%d".format(outbound_heartbeat,inbound_heartbeat))
-      connected_headers += HEART_BEAT->outbound_heart_beat_header
+      connected_headers.add(HEART_BEAT, outbound_heart_beat_header)
 
       if( host.authenticator!=null ) {
         host.authenticator.user_name(security_context).foreach{ name=>
-          connected_headers += USER_ID->encode_header(name)
+          connected_headers.add(USER_ID, encode_header(name))
         }
       }
 
-      connection_sink.offer(StompFrame(CONNECTED,connected_headers.toList))
+      connection_sink.offer(StompFrame(CONNECTED,connected_headers))
 //      codec.direct_buffer_allocator = this.host.direct_buffer_allocator
     }
 
@@ -1166,8 +1174,9 @@ class StompProtocolHandler extends ProtocolHandler {
         if(host==null) {
           async_die("Invalid virtual host: "+host_header.get)
         } else if(!host.service_state.is_started) {
-          var headers = (MESSAGE_HEADER, encode_header("Virtual host stopped")) :: Nil
-          host.client_redirect.foreach(x=> headers ::= REDIRECT_HEADER->encode_header(x) )
+          val headers = new StompHeaders(2)
+          host.client_redirect.foreach(x=> headers.add(REDIRECT_HEADER, encode_header(x)) )
+          headers.add(MESSAGE_HEADER, encode_header("Virtual host stopped"))
           async_die(headers, "")
         } else {
           this.host=host
@@ -1392,11 +1401,12 @@ class StompProtocolHandler extends ProtocolHandler {
   }
 
   def updated_headers(addresses: Array[SimpleAddress], headers:HeaderMap) = {
-    var rc:HeaderMap=Nil
+    // The most recently added header wins, like it does on the wire.
+    val rc = new StompHeaders(4, true)
 
     // Do we need to re-write the destination names?
     if( addresses.find(_.id.startsWith("temp.")).isDefined ) {
-      rc ::= (DESTINATION -> encode_header(encode_address(addresses)))
+      rc.add(DESTINATION, encode_header(encode_address(addresses)))
     }
     get(headers, REPLY_TO).foreach { value=>
       // we may need to translate local temp destination names to broker destination names
@@ -1404,7 +1414,7 @@ class StompProtocolHandler extends ProtocolHandler {
         try {
           val dests = decode_addresses(value)
           if (dests.find(_.id.startsWith("temp.")).isDefined) {
-            rc ::= (REPLY_TO -> encode_header(encode_address(dests)))
+            rc.add(REPLY_TO, encode_header(encode_address(dests)))
           }
         } catch {
           case _:Throwable=> // the translation is a best effort thing.
@@ -1415,11 +1425,11 @@ class StompProtocolHandler extends ProtocolHandler {
     // Do we need to add the message id?
     if( get( headers, MESSAGE_ID) == None ) {
       message_id_counter += 1
-      rc ::= (MESSAGE_ID -> ascii(session_id+message_id_counter))
+      rc.add(MESSAGE_ID, ascii(session_id+message_id_counter))
     }
 
     if( config.add_timestamp_header!=null ) {
-      rc ::= (encode_header(config.add_timestamp_header), ascii(broker.now.toString()))
+      rc.add(encode_header(config.add_timestamp_header), ascii(broker.now.toString()))
     }
 
     // Do we need to add the user id?
@@ -1427,7 +1437,7 @@ class StompProtocolHandler extends ProtocolHandler {
       if( config.add_user_header!=null ) {
         host.authenticator.user_name(security_context).foreach{ name=>
           val value = host.authenticator.user_name(security_context).getOrElse("")
-          rc ::= (encode_header(config.add_user_header), encode_header(value))
+          rc.add(encode_header(config.add_user_header), encode_header(value))
         }
       }
       if( !config.add_user_headers.isEmpty ){
@@ -1444,7 +1454,7 @@ class StompProtocolHandler extends ProtocolHandler {
           } else {
             ""
           }
-          rc ::= (encode_header(h.name.trim), encode_header(value))
+          rc.add(encode_header(h.name.trim), encode_header(value))
         }
       }
     }
@@ -1459,11 +1469,11 @@ class StompProtocolHandler extends ProtocolHandler {
     val receipt = frame.header(RECEIPT_REQUESTED)
 
     // We may need to add some headers..
-    var message = updated_headers(addresses, frame.headers) match {
-      case Nil=>
-        StompFrameMessage(StompFrame(MESSAGE, frame.headers, frame.content, frame.contiguous))
-      case updated_headers =>
-        StompFrameMessage(StompFrame(MESSAGE, frame.headers, frame.content, frame.contiguous, updated_headers))
+    val updated = updated_headers(addresses, frame.headers)
+    var message = if( updated.isEmpty ) {
+      StompFrameMessage(StompFrame(MESSAGE, frame.headers, frame.content, frame.contiguous))
+    } else {
+      StompFrameMessage(StompFrame(MESSAGE, frame.headers, frame.content, frame.contiguous, updated))
     }
 
     val delivery = new Delivery
@@ -1499,11 +1509,7 @@ class StompProtocolHandler extends ProtocolHandler {
     frame.release
   }
 
-  def deep_copy(headers:HeaderMap) = {
-    headers.map { header=>
-      (header._1.deepCopy().ascii(), header._2.deepCopy().ascii())
-    }
-  }
+  def deep_copy(headers:HeaderMap) = headers.deep_copy
 
   def on_stomp_subscribe(headers:HeaderMap):Unit = {
 
@@ -1771,7 +1777,7 @@ class StompProtocolHandler extends ProtocolHandler {
 
   def send_receipt(receipt:AsciiBuffer):StompFrame = {
     dispatchQueue.assertExecuting()
-    val frame = StompFrame(RECEIPT, List((RECEIPT_ID, receipt)))
+    val frame = StompFrame(RECEIPT, StompHeaders(RECEIPT_ID -> receipt))
     connection_sink.offer(frame)
     if( connection_sink.overflow.size() > 1000 && !connection_sink_read_suspended) {
       connection_sink_read_suspended = true
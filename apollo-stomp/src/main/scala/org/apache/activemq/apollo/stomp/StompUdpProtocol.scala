@@ -102,11 +102,11 @@ class StompUdpProtocol extends UdpProtocol {
       if( login.isDefined || passcode.isDefined ) {
         for( value <- login ) {
           sc.user = value.toString
-          headers = headers.filterNot( _._1 == LOGIN)
+          headers = headers.without(LOGIN)
         }
         for( value <- passcode ) {
           sc.password = value.toString
-          headers = headers.filterNot( _._1 == PASSCODE)
+          headers = headers.without(PASSCODE)
         }
         (sc, frame.copy(headers=headers))
       } else {
@@ -149,9 +149,11 @@ class StompUdpProtocol extends UdpProtocol {
           def delivery = {
 
             // Apply header updates...
-            val updated_frame = updated_headers(frame.headers, security_context) match {
-              case Nil=> frame.copy(action=MESSAGE)
-              case updated_headers => frame.copy(action=MESSAGE, updated_headers=updated_headers)
+            val updated = updated_headers(frame.headers, security_context)
+            val updated_frame = if( updated.isEmpty ) {
+              frame.copy(action=MESSAGE)
+            } else {
+              frame.copy(action=MESSAGE, updated_headers=updated)
             }
 
             var message: StompFrameMessage = new StompFrameMessage(updated_frame)
@@ -181,24 +183,24 @@ class StompUdpProtocol extends UdpProtocol {
       import StompProtocolHandler._
       import collection.JavaConversions._
 
-      var rc:HeaderMap=Nil
+      val rc = new StompHeaders(4, true)
       val host = default_virtual_host
 
       // Do we need to add the message id?
       if( get( headers, MESSAGE_ID) == None ) {
         message_id_counter += 1
-        rc ::= (MESSAGE_ID -> ascii(session_id+message_id_counter))
+        rc.add(MESSAGE_ID, ascii(session_id+message_id_counter))
       }
 
       if( config.add_timestamp_header!=null ) {
-        rc ::= (encode_header(config.add_timestamp_header), ascii(broker.now.toString()))
+        rc.add(encode_header(config.add_timestamp_header), ascii(broker.now.toString()))
       }
 
       // Do we need to add the user id?
       if( host.authenticator!=null ) {
         if( config.add_user_header!=null ) {
           val value = host.authenticator.user_name(security_context).getOrElse("")
-          rc ::= (encode_header(config.add_user_header), encode_header(value))
+          rc.add(encode_header(config.add_user_header), encode_header(value))
         }
         if( !config.add_user_headers.isEmpty ){
           config.add_user_headers.foreach { h =>
@@ -213,7 +215,7 @@ class StompUdpProtocol extends UdpProtocol {
             } else {
               ""
             }
-            rc ::= (encode_header(h.name.trim), encode_header(value))
+            rc.add(encode_header(h.name.trim), encode_header(value))
           }
         }
       }
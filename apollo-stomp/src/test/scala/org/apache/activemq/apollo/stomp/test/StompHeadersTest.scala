@@ -0,0 +1,86 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.activemq.apollo.stomp.test
+
+import org.apache.activemq.apollo.util.FunSuiteSupport
+import org.apache.activemq.apollo.stomp._
+import org.scalatest.matchers.ShouldMatchers
+import org.fusesource.hawtbuf.Buffer._
+import Stomp._
+
+class StompHeadersTest extends FunSuiteSupport with ShouldMatchers {
+
+  test("lookups return the first header unless last_wins is set") {
+    val headers = new StompHeaders(2)
+    for( i <- 0 until 20 ) {
+      headers.add(ascii("header-"+i), ascii("value-"+i))
+    }
+    headers.add(ascii("header-3"), ascii("again"))
+
+    headers.size should be (21)
+    headers.get(ascii("header-3")) should be (ascii("value-3"))
+    headers.get("header-3") should be (ascii("value-3"))
+    headers.get("header-19") should be (ascii("value-19"))
+    headers.get(ascii("missing")) should be (null)
+    headers.get("missing") should be (null)
+
+    val updated = new StompHeaders(2, true)
+    updated.add(ascii("a"), ascii("1"))
+    updated.add(ascii("a"), ascii("2"))
+    updated.get("a") should be (ascii("2"))
+  }
+
+  test("decoded frames round trip through encoding") {
+    val data = new StringBuilder("SEND\n")
+    for( i <- 0 until 20 ) {
+      data.append("header-"+i+":value-"+i+"\n")
+    }
+    data.append("destination:/queue/test\n\nhello\u0000")
+
+    val frame = StompCodec.decode_frame(ascii(data.toString))
+    frame.headers.size should be (21)
+    frame.header(DESTINATION) should be (ascii("/queue/test"))
+
+    val message = StompFrameMessage(frame.append_header(MESSAGE_ID, ascii("id:1")).copy(action=MESSAGE))
+    message.id should be (ascii("id:1"))
+    message.getProperty("header-7") should be ("value-7")
+    message.frame.size should be (StompCodec.encode(message).buffer.length)
+
+    val decoded = StompCodec.decode(StompCodec.encode(message)).frame
+    decoded.headers.size should be (22)
+    decoded.header(MESSAGE_ID) should be (ascii("id:1"))
+    decoded.header("header-19") should be (ascii("value-19"))
+  }
+
+  test("several headers get appended with a single copy") {
+    val frame = StompFrame(MESSAGE, StompHeaders(DESTINATION->ascii("/queue/test"))).append_header(MESSAGE_ID, ascii("id:1"))
+
+    val updated = frame.copy_updated_headers(2)
+    updated.add(SUBSCRIPTION, ascii("sub-1"))
+    updated.add(MESSAGE_ID, ascii("id:2"))
+    val appended = frame.copy(updated_headers=updated)
+
+    // The original frame is left alone.
+    frame.updated_headers.size should be (1)
+    frame.header(MESSAGE_ID) should be (ascii("id:1"))
+
+    appended.header(MESSAGE_ID) should be (ascii("id:2"))
+    appended.header(SUBSCRIPTION) should be (ascii("sub-1"))
+    appended.header(DESTINATION) should be (ascii("/queue/test"))
+    appended.size should be (StompCodec.encode(StompFrameMessage(appended)).buffer.length)
+  }
+}
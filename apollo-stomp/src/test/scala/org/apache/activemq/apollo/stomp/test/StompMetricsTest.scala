@@ -324,6 +324,7 @@ class StompLevelDBMetricsTest extends StompMetricsTest {
       val stat = topic_status(dest_name).metrics
       stat.queue_items should be (0L)
       stat.swapped_in_items should be(0L)
+      stat.entries_heap_size should be(0L)
       stat.enqueue_item_counter should be(1000L)
     }
   }
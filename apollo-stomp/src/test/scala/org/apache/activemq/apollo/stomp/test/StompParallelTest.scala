@@ -653,6 +653,53 @@ class StompParallelTest extends StompTestSupport with BrokerParallelTestExecutio
   }
 
 
+  test("Message groups move back when a consumer leaves") {
+
+    val dest = next_id("/queue/msggroups")
+    connect("1.1")
+    subscribe("1", dest)
+    subscribe("2", dest)
+
+    var actual_mapping = mutable.HashMap[String, mutable.HashSet[Char]]()
+
+    def send_receive = {
+      for (i <- 0 until 26 ) { async_send(dest, "data", "message_group:"+('a'+i).toChar+"\n") }
+      for (i <- 0 until 26 ) {
+        val (frame, ack) = receive_message()
+        for( sub <- List("1", "2", "3") if( frame.contains("subscription:"+sub+"\n")) ) {
+          val set = actual_mapping.getOrElseUpdate(sub, mutable.HashSet())
+          for (i <- 0 until 26 ) {
+            var c = ('a' + i).toChar
+            if( frame.contains("message_group:"+c+"\n")) {
+              set.add(c)
+            }
+          }
+        }
+        ack
+      }
+    }
+
+    send_receive
+    val expected_mapping = actual_mapping
+
+    // The third consumer takes over some of the groups..
+    subscribe("3", dest)
+    actual_mapping = mutable.HashMap[String, mutable.HashSet[Char]]()
+    send_receive
+    actual_mapping.get("3").isDefined should be(true)
+
+    // and they should go back to their old consumers once it leaves.
+    unsubscribe("3")
+    actual_mapping = mutable.HashMap[String, mutable.HashSet[Char]]()
+    send_receive
+    actual_mapping should be (expected_mapping)
+
+    // and stay there.
+    actual_mapping = mutable.HashMap[String, mutable.HashSet[Char]]()
+    send_receive
+    actual_mapping should be (expected_mapping)
+  }
+
   test("Queues do NOT load balance across exclusive subscribers") {
     connect("1.1")
 
@@ -16,6 +16,8 @@
   */
 package org.apache.activemq.apollo.util.path
 
+import java.util.Collections
+import java.util.HashMap
 import java.util.HashSet
 import java.util.Set
 import java.util.SortedSet
@@ -31,10 +33,32 @@ import java.util.TreeSet
   * pretty fast. <br>
   * Looking up of a value could return a single value or a List of matching
   * values if a wildcard or composite path is used.
+  * <br>
+  * When `cacheLimit` is set, the results of looking up concrete paths (paths
+  * without any wildcards) are cached until a value gets added or removed under
+  * the paths that could match them.  When `compiled` is set, concrete paths are matched by walking
+  * the tree once through the literal, wildcard and regex child slots of
+  * the nodes instead of through the generic wildcard traversal.
   *
   * @version $Revision: 1.3 $
   */
-class PathMap[Value] {
+class PathMap[Value](val compiled: Boolean) {
+
+  def this() = this(false)
+
+  /**
+    * The maximum number of concrete path lookups to cache.  The whole
+    * cache gets cleared once it fills up.  Defaults to 0, which disables
+    * the cache.
+    */
+  var cacheLimit = 0
+
+  /**
+    * Incremented every time a value is added or removed.  Callers who hold on
+    * to the results of a lookup can use it to tell when they could be stale.
+    */
+  var version = 0L
+
   /**
     * Looks up the value(s) matching the given String key. For simple
     * paths this is typically a List of one single value, for wild cards
@@ -46,18 +70,43 @@ class PathMap[Value] {
     *         matching values.
     */
   def get(key: Path): Set[Value] = {
-    return findWildcardMatches(key)
+    if (!isConcrete(key)) {
+      return findWildcardMatches(key)
+    }
+    var node = cache
+    var parts = key.parts
+    while (!parts.isEmpty && node != null) {
+      node = node.get(parts.head.asInstanceOf[LiteralPart].value)
+      parts = parts.tail
+    }
+    if (node != null && node.result != null) {
+      return node.result
+    }
+    val answer = Collections.unmodifiableSet(findConcreteMatches(key))
+    if (cacheLimit <= 0) {
+      return answer
+    }
+    if (cacheSize >= cacheLimit) {
+      cache.clear
+      cacheSize = 0
+    }
+    cache.getOrCreate(key.parts).result = answer
+    cacheSize += 1
+    return answer
   }
 
   def put(key: Path, value: Value): Unit = {
     root.add(key, 0, value)
+    invalidate(key)
   }
 
   /**
     * Removes the value from the associated path
     */
   def remove(path: Path, value: Value): Boolean = {
-    return root.remove(path, 0, value)
+    val rc = root.remove(path, 0, value)
+    invalidate(path)
+    return rc
   }
 
   def getRootNode = root
@@ -68,6 +117,63 @@ class PathMap[Value] {
     return answer
   }
 
+  protected def findConcreteMatches(path: Path): Set[Value] = {
+    if (!compiled) {
+      return findWildcardMatches(path)
+    }
+    var answer: HashSet[Value] = new HashSet[Value]
+    root.appendConcreteMatches(answer, path.parts)
+    return answer
+  }
+
+  private def isConcrete(path: Path): Boolean = {
+    var parts = path.parts
+    while (!parts.isEmpty) {
+      if (!parts.head.isInstanceOf[LiteralPart]) {
+        return false
+      }
+      parts = parts.tail
+    }
+    return true
+  }
+
+  /**
+    * Drops the cached lookups that a change to the values stored under the
+    * given path could affect.  Those are the lookups of the concrete paths
+    * that start with the literal parts of the path up to its first wildcard.
+    */
+  private def invalidate(path: Path): Unit = {
+    version += 1
+    if (cacheSize == 0) {
+      return
+    }
+    var node = cache
+    var parent: CacheNode = null
+    var parts = path.parts
+    while (!parts.isEmpty && node != null) {
+      parts.head match {
+        case LiteralPart(value) =>
+          parent = node
+          node = node.get(value)
+          parts = parts.tail
+        case _ =>
+          // a wildcard, everything under the current node could be affected.
+          if (parent == null) {
+            cache.clear
+            cacheSize = 0
+          } else {
+            cacheSize -= node.size
+            parent.children.remove(node.name)
+          }
+          return
+      }
+    }
+    if (node != null && node.result != null) {
+      node.result = null
+      cacheSize -= 1
+    }
+  }
+
   /**
     * @param key
     * @return
@@ -75,6 +181,7 @@ class PathMap[Value] {
   def removeAll(key: Path): Set[Value] = {
     var rc: HashSet[Value] = new HashSet[Value]
     root.removeAll(rc, key, 0)
+    invalidate(key)
     return rc
   }
 
@@ -100,4 +207,51 @@ class PathMap[Value] {
   }
 
   private final val root = new PathMapNode[Value](null)
+
+  /**
+    * The cached lookup results, held in a tree keyed by the literal
+    * parts of the concrete paths so that whole subtrees can be dropped.
+    */
+  private class CacheNode(val name: String) {
+    var result: Set[Value] = null
+    val children = new HashMap[String, CacheNode]
+
+    def get(name: String) = children.get(name)
+
+    def getOrCreate(parts: scala.List[Part]): CacheNode = {
+      var node = this
+      var rest = parts
+      while (!rest.isEmpty) {
+        val name = rest.head.asInstanceOf[LiteralPart].value
+        var child = node.children.get(name)
+        if (child == null) {
+          child = new CacheNode(name)
+          node.children.put(name, child)
+        }
+        node = child
+        rest = rest.tail
+      }
+      node
+    }
+
+    /**
+      * @return the number of results cached in this subtree.
+      */
+    def size: Int = {
+      var rc = if (result != null) 1 else 0
+      val i = children.values.iterator
+      while (i.hasNext) {
+        rc += i.next.size
+      }
+      rc
+    }
+
+    def clear = {
+      result = null
+      children.clear
+    }
+  }
+
+  private val cache = new CacheNode(null)
+  private var cacheSize = 0
 }
\ No newline at end of file
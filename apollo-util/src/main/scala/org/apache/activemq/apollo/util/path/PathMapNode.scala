@@ -36,6 +36,13 @@ class PathMapNode[Value](val parent: PathMapNode[Value]) extends PathNode[Value]
   val values: List[Value] = new ArrayList[Value]
   var part: Part = RootPart
 
+  // The child nodes again, but split up by the kind of part they match so that
+  // concrete paths can be matched without visiting every child.
+  val literalChildNodes: Map[String, PathMapNode[Value]] = new HashMap[String, PathMapNode[Value]]
+  val regexChildNodes: List[PathMapNode[Value]] = new ArrayList[PathMapNode[Value]]
+  var anyChildNode: PathMapNode[Value] = null
+  var anyDescendantNode: PathMapNode[Value] = null
+
   var pathLength:Int = if (parent == null) {
     0
   } else {
@@ -71,6 +78,13 @@ class PathMapNode[Value](val parent: PathMapNode[Value]) extends PathNode[Value]
       answer = createChildNode
       answer.part = part
       childNodes.put(part, answer)
+      part match {
+        case LiteralPart(value) => literalChildNodes.put(value, answer)
+        case x:RegexChildPart => regexChildNodes.add(answer)
+        case AnyChildPart => anyChildNode = answer
+        case AnyDescendantPart => anyDescendantNode = answer
+        case RootPart =>
+      }
     }
     return answer
   }
@@ -230,6 +244,41 @@ class PathMapNode[Value](val parent: PathMapNode[Value]) extends PathNode[Value]
     }
   }
 
+  /**
+    * Matches a path made up of only literal parts.  Unlike appendMatchingValues,
+    * this takes a single walk down the tree which only branches off into the
+    * wildcard children and does not allocate any intermediate nodes.
+    */
+  def appendConcreteMatches(answer: Set[Value], parts: scala.List[Part]): Unit = {
+    if (parts.isEmpty) {
+      answer.addAll(values)
+      if (anyDescendantNode != null) {
+        answer.addAll(anyDescendantNode.values)
+      }
+    } else {
+      val name = parts.head.asInstanceOf[LiteralPart].value
+      val rest = parts.tail
+      if (anyDescendantNode != null) {
+        anyDescendantNode.appendDescendantValues(answer)
+      }
+      if (anyChildNode != null) {
+        anyChildNode.appendConcreteMatches(answer, rest)
+      }
+      var i = 0
+      while (i < regexChildNodes.size) {
+        val child = regexChildNodes.get(i)
+        if (child.part.asInstanceOf[RegexChildPart].regex.matcher(name).matches) {
+          child.appendConcreteMatches(answer, rest)
+        }
+        i += 1
+      }
+      val child = literalChildNodes.get(name)
+      if (child != null) {
+        child.appendConcreteMatches(answer, rest)
+      }
+    }
+  }
+
   def getPart: Part = {
     return part
   }
@@ -242,6 +291,13 @@ class PathMapNode[Value](val parent: PathMapNode[Value]) extends PathNode[Value]
 
   protected def removeChild(node: PathMapNode[Value]): Unit = {
     childNodes.remove(node.getPart)
+    node.getPart match {
+      case LiteralPart(value) => literalChildNodes.remove(value)
+      case x:RegexChildPart => regexChildNodes.remove(node)
+      case AnyChildPart => anyChildNode = null
+      case AnyDescendantPart => anyDescendantNode = null
+      case RootPart =>
+    }
     pruneIfEmpty
   }
 
@@ -37,7 +37,7 @@ class PathMapTest {
   val v6 = "value6"
 
   @Test def testSimplePaths: Unit = {
-    var map: PathMap[String] = new PathMap[String]
+    var map: PathMap[String] = createMap
     map.put(d1, v1)
     map.put(d2, v2)
     map.put(d3, v3)
@@ -47,7 +47,7 @@ class PathMapTest {
   }
 
   @Test def testSimpleDestinationsWithMultipleValues: Unit = {
-    var map: PathMap[String] = new PathMap[String]
+    var map: PathMap[String] = createMap
     map.put(d1, v1)
     map.put(d2, v2)
     map.put(d2, v3)
@@ -57,7 +57,7 @@ class PathMapTest {
   }
 
   @Test def testLookupOneStepWildcardPaths: Unit = {
-    var map: PathMap[String] = new PathMap[String]
+    var map: PathMap[String] = createMap
     map.put(d1, v1)
     map.put(d2, v2)
     map.put(d3, v3)
@@ -78,7 +78,7 @@ class PathMapTest {
   }
 
   @Test def testLookupMultiStepWildcardPaths: Unit = {
-    var map: PathMap[String] = new PathMap[String]
+    var map: PathMap[String] = createMap
     map.put(d1, v1)
     map.put(d2, v2)
     map.put(d3, v3)
@@ -89,7 +89,7 @@ class PathMapTest {
   }
 
   @Test def testStoreWildcardWithOneStepPath: Unit = {
-    var map: PathMap[String] = new PathMap[String]
+    var map: PathMap[String] = createMap
     put(map, "TEST.*", v1)
     put(map, "TEST.D1", v2)
     put(map, "TEST.BAR.*", v2)
@@ -112,7 +112,7 @@ class PathMapTest {
   }
 
   @Test def testStoreWildcardInMiddleOfPath: Unit = {
-    var map: PathMap[String] = new PathMap[String]
+    var map: PathMap[String] = createMap
     put(map, "TEST.*", v1)
     put(map, "TEST.D1", v2)
     put(map, "TEST.BAR.*", v2)
@@ -135,7 +135,7 @@ class PathMapTest {
   }
 
   @Test def testCustomRegexWildcardPaths: Unit = {
-    var map: PathMap[String] = new PathMap[String]
+    var map: PathMap[String] = createMap
     put(map, "TEST.a{[0-9]+}a", v1)
     put(map, "TEST.BAR.aa", v2)
     put(map, "TEST.BAR.a123a", v3)
@@ -147,7 +147,7 @@ class PathMapTest {
   }
 
   @Test def testRegexWildcardPaths: Unit = {
-    var map: PathMap[String] = new PathMap[String]
+    var map: PathMap[String] = createMap
     put(map, "TEST.a*a", v1)
     put(map, "TEST.BAR.aa", v2)
     put(map, "TEST.BAR.aba", v3)
@@ -159,20 +159,20 @@ class PathMapTest {
   }
 
   @Test def testDoubleWildcardDoesNotMatchLongerPattern: Unit = {
-    var map: PathMap[String] = new PathMap[String]
+    var map: PathMap[String] = createMap
     put(map, "TEST.*", v1)
     put(map, "TEST.BAR.D3", v2)
     assertMapValue(map, "*.*.D3", v2)
   }
 
   @Test def testWildcardAtEndOfPathAndAtBeginningOfSearch: Unit = {
-    var map: PathMap[String] = new PathMap[String]
+    var map: PathMap[String] = createMap
     put(map, "TEST.*", v1)
     assertMapValue(map, "*.D1", v1)
   }
 
   @Test def testAnyPathWildcardInMap: Unit = {
-    var map: PathMap[String] = new PathMap[String]
+    var map: PathMap[String] = createMap
     put(map, "TEST.FOO.**", v1)
     assertMapValue(map, "TEST.FOO.BAR.WHANOT.A.B.C", v1)
     assertMapValue(map, "TEST.FOO.BAR.WHANOT", v1)
@@ -183,7 +183,7 @@ class PathMapTest {
   }
 
   @Test def testSimpleAddRemove: Unit = {
-    var map: PathMap[String] = new PathMap[String]
+    var map: PathMap[String] = createMap
     put(map, "TEST.D1", v2)
     assertEquals("Root child count", 1, map.getRootNode.getChildCount)
     assertMapValue(map, "TEST.D1", v2)
@@ -193,7 +193,7 @@ class PathMapTest {
   }
 
   @Test def testStoreAndLookupAllWildcards: Unit = {
-    var map: PathMap[String] = new PathMap[String]
+    var map: PathMap[String] = createMap
     loadSample2(map)
     assertSample2(map)
     remove(map, "TEST.FOO", v1)
@@ -242,7 +242,7 @@ class PathMapTest {
   }
 
   @Test def testAddAndRemove: Unit = {
-    var map: PathMap[String] = new PathMap[String]
+    var map: PathMap[String] = createMap
     put(map, "FOO.A", v1)
     assertMapValue(map, "FOO.**", v1)
     put(map, "FOO.B", v2)
@@ -251,6 +251,47 @@ class PathMapTest {
     assertMapValue(map, "FOO.**", v2)
   }
 
+  @Test def testCachedLookupsSeeChanges: Unit = {
+    var map: PathMap[String] = createMap
+    map.cacheLimit = 1024
+    put(map, "TEST.FOO.BAR", v1)
+    assertMapValue(map, "TEST.FOO.BAR", v1)
+    assertMapValue(map, "TEST.FOO.XYZ")
+    assertMapValue(map, "TEST.ABC.BAR")
+    put(map, "TEST.FOO.*", v2)
+    assertMapValue(map, "TEST.FOO.BAR", v1, v2)
+    assertMapValue(map, "TEST.FOO.XYZ", v2)
+    assertMapValue(map, "TEST.ABC.BAR")
+    put(map, "*.ABC.BAR", v3)
+    assertMapValue(map, "TEST.ABC.BAR", v3)
+    put(map, "TEST.FOO.**", v4)
+    assertMapValue(map, "TEST.FOO", v4)
+    assertMapValue(map, "TEST.FOO.XYZ", v2, v4)
+    remove(map, "TEST.FOO.*", v2)
+    assertMapValue(map, "TEST.FOO.BAR", v1, v4)
+    assertMapValue(map, "TEST.FOO.XYZ", v4)
+    remove(map, "TEST.FOO.**", v4)
+    assertMapValue(map, "TEST.FOO.XYZ")
+    assertMapValue(map, "TEST.FOO.BAR", v1)
+    map.removeAll(createDestination("TEST.FOO.BAR"))
+    assertMapValue(map, "TEST.FOO.BAR")
+    assertMapValue(map, "TEST.ABC.BAR", v3)
+  }
+
+  @Test def testCacheLimit: Unit = {
+    var map: PathMap[String] = createMap
+    map.cacheLimit = 10
+    put(map, "TEST.*", v1)
+    for (i <- 0 until 100) {
+      assertMapValue(map, "TEST.D" + i, v1)
+    }
+    put(map, "TEST.D5", v2)
+    assertMapValue(map, "TEST.D5", v1, v2)
+    assertMapValue(map, "TEST.D99", v1)
+  }
+
+  protected def createMap = new PathMap[String]
+
   protected def loadSample2(map: PathMap[String]): Unit = {
     put(map, "TEST.FOO", v1)
     put(map, "TEST.*", v2)
@@ -301,4 +342,21 @@ class PathMapTest {
     return parser.decode_path(name)
   }
 
-}
\ No newline at end of file
+}
+
+/**
+  * Runs the same tests against a PathMap which matches concrete
+  * paths by walking its compiled child slots.
+  */
+class CompiledPathMapTest extends PathMapTest {
+
+  override protected def createMap = new PathMap[String](true)
+
+  @Test def testRegexOnlyMatchesMatchingNames: Unit = {
+    var map: PathMap[String] = createMap
+    put(map, "TEST.a{[0-9]+}a", v1)
+    put(map, "TEST.**", v2)
+    assertMapValue(map, "TEST.a99a", v1, v2)
+    assertMapValue(map, "TEST.abca", v2)
+  }
+}
@@ -408,6 +408,17 @@ class BrokerResource() extends Resource {
     }
   }
 
+  @GET @Path("/virtual-hosts/{id}/placement")
+  @ApiOperation(value = "Shows how the message flows of the virtual host are placed on the dispatch threads.")
+  def virtual_host_placement(@PathParam("id") id : String): DispatchPlacementDTO = {
+    with_virtual_host(id) { host =>
+      monitoring(host) {
+        val router: LocalRouter = host
+        router.placement.status
+      }
+    }
+  }
+
 
   @GET @Path("/virtual-hosts/{id}/store")
   @ApiOperation(value = "Gets metrics about the status of the message store used by the {host} virtual host.")
@@ -522,6 +533,39 @@ class BrokerResource() extends Resource {
     }
   }
 
+  /**
+   * Answers a destination listing from the metrics catalog of the domain
+   * when the query only uses the catalog's columns, so that the
+   * destinations don't have to be visited to build the listing.
+   *
+   * @return None if the listing has to be built from the destination status.
+   */
+  def catalog_page(host:VirtualHost, catalog:DestinationCatalog, f:java.util.List[String], q:String, p:java.lang.Integer, ps:java.lang.Integer, o:java.util.List[String]):Option[FutureResult[DataPageDTO]] = {
+    import collection.JavaConversions._
+    DestinationCatalog.parse(f.toSeq, q, o.toSeq).map { query =>
+      val page_size = if( ps !=null ) ps.intValue() else 100
+      val page = if( p !=null ) p.intValue() else 0
+      if( host.authenticator == null ) {
+        FutureResult(Success(catalog.page(query, page, page_size, row => true)))
+      } else {
+        // only list the destinations the user is allowed to monitor.
+        val rc = FutureResult[DataPageDTO]()
+        authenticate(host.authenticator) { security_context =>
+          try {
+            if( security_context == null ) {
+              unauthorized
+            }
+            rc(Success(catalog.page(query, page, page_size, row => host.authorizer.can(security_context, "monitor", row.destination))))
+          } catch {
+            case e:Throwable =>
+              rc.apply(Failure(e))
+          }
+        }
+        rc
+      }
+    }
+  }
+
   @GET @Path("/virtual-hosts/{id}/topics")
   @ApiOperation(value = "Gets a list of all the topics that exist on the broker.")
   @Produces(Array(APPLICATION_JSON))
@@ -529,15 +573,17 @@ class BrokerResource() extends Resource {
             @QueryParam("q") q:String, @QueryParam("p") p:java.lang.Integer, @QueryParam("ps") ps:java.lang.Integer, @QueryParam("o") o:java.util.List[String] ):DataPageDTO = {
     with_virtual_host(id) { host =>
       val router: LocalRouter = host
-      val records = Future.all {
-        router.local_topic_domain.destination_by_id.values.map { value  =>
-          monitoring(value) {
-            value.status(false, false)
+      catalog_page(host, router.local_topic_domain.catalog, f, q, p, ps, o).getOrElse {
+        val records = Future.all {
+          router.local_topic_domain.destination_by_id.values.map { value  =>
+            monitoring(value) {
+              value.status(false, false)
+            }
           }
         }
+        val rc:FutureResult[DataPageDTO] = records.map(narrow(classOf[TopicStatusDTO], _, f, q, p, ps, o))
+        rc
       }
-      val rc:FutureResult[DataPageDTO] = records.map(narrow(classOf[TopicStatusDTO], _, f, q, p, ps, o))
-      rc
     }
   }
 
@@ -649,14 +695,16 @@ class BrokerResource() extends Resource {
             @QueryParam("q") q:String, @QueryParam("p") p:java.lang.Integer, @QueryParam("ps") ps:java.lang.Integer, @QueryParam("o") o:java.util.List[String] ):DataPageDTO = {
     with_virtual_host(id) { host =>
       val router: LocalRouter = host
-      val values: Iterable[Queue] = router.local_queue_domain.destination_by_id.values
+      catalog_page(host, router.local_queue_domain.catalog, f, q, p, ps, o).getOrElse {
+        val values: Iterable[Queue] = router.local_queue_domain.destination_by_id.values
 
-      val records = sync_all(values) { value =>
-        status(value, false, false , false)
-      }
+        val records = sync_all(values) { value =>
+          status(value, false, false , false)
+        }
 
-      val rc:FutureResult[DataPageDTO] = records.map(narrow(classOf[QueueStatusDTO], _, f, q, p, ps, o))
-      rc
+        val rc:FutureResult[DataPageDTO] = records.map(narrow(classOf[QueueStatusDTO], _, f, q, p, ps, o))
+        rc
+      }
     }
   }
 